@@ -8,6 +8,7 @@ import static com.google.common.base.Charsets.UTF_8;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Date;
@@ -33,7 +34,7 @@ import com.google.common.io.CharStreams;
 import com.google.common.io.Files;
 
 public abstract class DbBenchmark {
-	protected boolean useExisting, compressMode;
+	protected boolean useExisting, compressMode, syncMode;
 	protected double compressionRatio;
 	protected String dbName;
 	protected String version;
@@ -85,6 +86,15 @@ public abstract class DbBenchmark {
 		return compressMode;
 	}
 
+	public String getDurability() {
+		return (String) flags().get(Flag.durability);
+	}
+
+	// true while running fillsync, every write must be synced when the db is opened
+	public boolean getSyncMode() {
+		return syncMode;
+	}
+
 	private Map<Flag, Object> flags() {
 		if (flags_ == null) {
 			flags_ = new EnumMap<Flag, Object>(Flag.class);
@@ -143,11 +153,15 @@ public abstract class DbBenchmark {
 			} else if (benchmark.equals("overwrite")) {
 				write(RANDOM, EXISTING, num_, valueSize_, 1);
 			} else if (benchmark.equals("fillsync")) {
+				syncMode = true;
 				write(RANDOM, FRESH, num_ / 1000, valueSize_, 1);
+				syncMode = false;
 			} else if (benchmark.equals("fill100K")) {
 				write(RANDOM, FRESH, num_ / 1000, 100 * 1000, 1);
 			} else if (benchmark.equals("readrandom")) {
 				readRandom();
+			} else if (benchmark.equals("readrandombuf")) {
+				readRandomIntoBuffer();
 			} else if (benchmark.equals("readhot")) {
 				readHot();
 			} else if (benchmark.equals("readrandomsmall")) {
@@ -155,6 +169,10 @@ public abstract class DbBenchmark {
 				reads_ /= 1000;
 				readRandom();
 				reads_ = n;
+			} else if (benchmark.equals("heapusage")) {
+				heapUsage();
+			} else if (benchmark.equals("reopen")) {
+				reopen();
 			} else if (benchmark.equals("snappycomp")) {
 				snappyCompress();
 			} else if (benchmark.equals("snappyuncomp")) {
@@ -281,12 +299,23 @@ public abstract class DbBenchmark {
 				bytes_ += valueSize + key.length;
 				finishedSingleOp();
 			}
-			for (Entry<byte[], byte[]> entry : batch) {
-				put(entry.getKey(), entry.getValue());
+			if (entries_per_batch == 1) {
+				for (Entry<byte[], byte[]> entry : batch) {
+					put(entry.getKey(), entry.getValue());
+				}
+			} else {
+				writeBatch(batch);
 			}
 		}
 	}
 
+	// db without batch support falls back to single puts
+	public void writeBatch(List<Entry<byte[], byte[]>> batch) {
+		for (Entry<byte[], byte[]> entry : batch) {
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+
 	public void stop(String benchmark) {
 		long endTime = System.nanoTime();
 		double elapsedSeconds = 1.0d * (endTime - startTime_)
@@ -315,6 +344,7 @@ public abstract class DbBenchmark {
 	}
 
 	private void readRandom() {
+		long allocatedBefore = currentThreadAllocatedBytes();
 		for (int i = 0; i < reads_; i++) {
 			byte[] key = formatNumber(rand_.nextInt(num_));
 			byte[] value = get(key);
@@ -323,6 +353,70 @@ public abstract class DbBenchmark {
 			bytes_ += key.length + value.length;
 			finishedSingleOp();
 		}
+		reportAllocation(allocatedBefore, reads_);
+	}
+
+	// same as readRandom, but reads into one reused buffer with one reused key
+	private void readRandomIntoBuffer() {
+		ByteBuffer dst = ByteBuffer.allocateDirect(Math.max(valueSize_, 100 * 1000));
+		byte[] key = new byte[16];
+		long allocatedBefore = currentThreadAllocatedBytes();
+		for (int i = 0; i < reads_; i++) {
+			formatNumber(rand_.nextInt(num_), key);
+			dst.clear();
+			int length = get(key, dst);
+			if (length < 0) {
+				throw new IllegalStateException(String.format("db.get(%s) is not found", new String(
+						key, UTF_8)));
+			}
+			bytes_ += key.length + length;
+			finishedSingleOp();
+		}
+		reportAllocation(allocatedBefore, reads_);
+	}
+
+	// heap retained after a full gc, averaged over the entries in the db
+	private void heapUsage() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		long used = runtime.totalMemory() - runtime.freeMemory();
+		message_ = String.format("(%.1f bytes heap/entry, %d MB heap used)", 1.0d * used / num_, used / 1048576);
+	}
+
+	private void reopen() throws IOException {
+		close();
+		start(); // Do not count time taken to close
+		open();
+		message_ = String.format("(%d entries)", num_);
+	}
+
+	private void reportAllocation(long allocatedBefore, int ops) {
+		long allocatedAfter = currentThreadAllocatedBytes();
+		if (allocatedBefore >= 0 && allocatedAfter >= 0 && ops > 0) {
+			message_ = String.format("(%.1f bytes allocated/op)", 1.0d * (allocatedAfter - allocatedBefore) / ops);
+		}
+	}
+
+	private static long currentThreadAllocatedBytes() {
+		java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	/**
+	 * Get value into the buffer, db without buffer support falls back to get
+	 *
+	 * @return value length, or negative if not found
+	 */
+	public int get(byte[] key, ByteBuffer dst) {
+		byte[] value = get(key);
+		if (value == null) return -1;
+		dst.put(value);
+		return value.length;
 	}
 
 	private void readHot() {
@@ -362,9 +456,11 @@ public abstract class DbBenchmark {
 	}
 
 	private static byte[] formatNumber(long n) {
-		Preconditions.checkArgument(n >= 0, "number must be positive");
+		return formatNumber(n, new byte[16]);
+	}
 
-		byte[] slice = new byte[16];
+	private static byte[] formatNumber(long n, byte[] slice) {
+		Preconditions.checkArgument(n >= 0, "number must be positive");
 
 		int i = 15;
 		while (n > 0) {
@@ -389,12 +485,17 @@ public abstract class DbBenchmark {
 		// Comma-separated list of operations to run in the specified order
 		// Actual benchmarks:
 		// fillseq -- write N values in sequential key order in async mode
+		// fillbatch -- write N values in sequential key order in batches of 1000
 		// fillrandom -- write N values in random key order in async mode
 		// overwrite -- overwrite N values in random key order in async mode
-		// fillsync -- write N/100 values in random key order in sync mode
+		// fillsync -- write N/1000 values in random key order in sync mode
 		// fill100K -- write N/1000 100K values in random order in async mode
 		// readrandom -- read N times in random order
+		// readrandombuf -- read N times in random order into a reused buffer
 		// readhot -- read N times in random order from 1% section of DB
+		// heapusage -- heap retained by the DB after a full gc, per entry
+		// reopen -- close and open the DB, time to load all tables; run after fillseq with
+		//           --num and --value_size set for 1, 10 or 100 GB of data
 		benchmarks(ImmutableList.<String> of("fillseq", "fillseq", "fillrandom",
 				"fillrandom", "fillseq", "readrandom",
 				"readrandom", // Extra run to allow previous compactions to quiesce
@@ -461,6 +562,14 @@ public abstract class DbBenchmark {
 			public Object parseValue(String value) {
 				return Boolean.parseBoolean(value);
 			}
+		},
+
+		// Durability mode of the db for all benchmarks but fillsync: none, interval or sync
+		durability("none") {
+			@Override
+			public Object parseValue(String value) {
+				return value;
+			}
 		};
 
 		private final Object defaultValue;
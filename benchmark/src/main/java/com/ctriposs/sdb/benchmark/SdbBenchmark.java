@@ -1,9 +1,13 @@
 package com.ctriposs.sdb.benchmark;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map.Entry;
 
 import com.ctriposs.sdb.DBConfig;
 import com.ctriposs.sdb.SDB;
+import com.ctriposs.sdb.WriteBatch;
 
 public class SdbBenchmark extends DbBenchmark {
 	private SDB sdb_;
@@ -21,6 +25,11 @@ public class SdbBenchmark extends DbBenchmark {
 	public void open() {
 	    	DBConfig config = new DBConfig();
 	    	config.setCompressionEnabled(this.getCompressMode());
+	    	if (this.getSyncMode()) {
+	    		config.setDurabilityMode(DBConfig.DurabilityMode.SYNC);
+	    	} else {
+	    		config.setDurabilityMode(DBConfig.DurabilityMode.valueOf(this.getDurability().toUpperCase()));
+	    	}
 		sdb_ = new SDB(databaseDir_, config);
 	}
 
@@ -43,11 +52,25 @@ public class SdbBenchmark extends DbBenchmark {
 		sdb_.put(key, value);
 	}
 
+	@Override
+	public void writeBatch(List<Entry<byte[], byte[]>> batch) {
+		WriteBatch writeBatch = new WriteBatch(batch.size());
+		for (Entry<byte[], byte[]> entry : batch) {
+			writeBatch.put(entry.getKey(), entry.getValue());
+		}
+		sdb_.write(writeBatch);
+	}
+
 	@Override
 	public byte[] get(byte[] key) {
 		return sdb_.get(key);
 	}
 
+	@Override
+	public int get(byte[] key, ByteBuffer dst) {
+		return sdb_.get(key, dst);
+	}
+
 	@Override
 	public void destroyDb() {
 		if (sdb_ != null) {
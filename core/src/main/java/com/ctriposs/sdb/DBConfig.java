@@ -1,5 +1,13 @@
 package com.ctriposs.sdb;
 
+import com.ctriposs.sdb.merge.CompactionSchedule;
+import com.ctriposs.sdb.table.AbstractMapTable;
+import com.ctriposs.sdb.table.AbstractSortedMapTable.IndexType;
+import com.ctriposs.sdb.table.FilterPolicy;
+import com.ctriposs.sdb.table.HashMapTable;
+import com.ctriposs.sdb.table.SortedMapTableScanner;
+import com.google.common.base.Preconditions;
+
 public class DBConfig {
 	
 	public static final DBConfig SMALL = new DBConfig().setShardNumber((short)1);
@@ -8,11 +16,57 @@ public class DBConfig {
 	public static final DBConfig LARGE = new DBConfig().setShardNumber((short)16);
 	public static final DBConfig HUGE = new DBConfig().setShardNumber((short)32);
 	
+	public static final int MIN_MEM_TABLE_DATA_FILE_SIZE = 1024 * 1024; // 1M
+	public static final int MAX_MEM_TABLE_DATA_FILE_SIZE = 512 * 1024 * 1024; // 512M
+	
+	/**
+	 * When writes to in memory tables are forced to the storage device
+	 */
+	public enum DurabilityMode {
+		// never forced, writes survive a process crash but not a power loss
+		NONE,
+		// forced by a background thread every sync interval
+		INTERVAL,
+		// forced before the write returns, concurrent writers of a table share one force
+		SYNC
+	}
+	
 	private short shardNumber = 4;
 	
 	private boolean compressionEnabled = true;
 	private boolean localityEnabled = false;
 	
+	private int memTableMaxEntries = AbstractMapTable.INIT_INDEX_ITEMS_PER_TABLE;
+	private int memTableDataFileSize = AbstractMapTable.INIT_DATA_FILE_SIZE;
+	private boolean memTableAdaptiveSizingEnabled = false;
+	
+	private DurabilityMode durabilityMode = DurabilityMode.NONE;
+	private long syncInterval = 1000; // 1 second
+	
+	private int standbyTableNumber = 1;
+	private boolean standbyTablePrefaultEnabled = false;
+	
+	private int level0SlowdownTrigger = 8;
+	private int level0StopTrigger = 12;
+	private int level1SlowdownTrigger = 12;
+	private int level1StopTrigger = 16;
+	private long slowdownDelay = 1; // 1 millisecond
+	private long maxStallTime = 10 * 1000; // 10 seconds
+	private long level2TableSize = 256 * 1024 * 1024; // 256M
+	private int compactionThreadNumber = 0; // 0 for auto
+	private long compactionRateLimit = 0; // 0 for unlimited
+	private int subCompactionNumber = 0; // 0 for auto
+	private double expiryCompactionThreshold = 0.5;
+	private int compactionReadAheadSize = SortedMapTableScanner.DEFAULT_READ_AHEAD_SIZE;
+	private boolean compactionPrefetchEnabled = true;
+	private CompactionSchedule compactionSchedule = null; // no scheduled major compaction
+	// by level, level 0 hash map tables have no filter
+	private FilterPolicy[] filterPolicies = { null, FilterPolicy.DEFAULT, FilterPolicy.DEFAULT };
+	private long filterMemoryBudget = 0; // 0 for the per level filter policies
+	private double[] filterLookupCosts = { 0, 1, 4 };
+	// by level, level 0 hash map tables are looked up by their hash index
+	private IndexType[] indexTypes = { null, IndexType.SORTED, IndexType.SORTED };
+	
 	public boolean isCompressionEnabled() {
 		return compressionEnabled;
 	}
@@ -21,6 +75,123 @@ public class DBConfig {
 		return this.localityEnabled;
 	}
 	
+	public int getMemTableMaxEntries() {
+		return this.memTableMaxEntries;
+	}
+	
+	public int getMemTableDataFileSize() {
+		return this.memTableDataFileSize;
+	}
+	
+	public boolean isMemTableAdaptiveSizingEnabled() {
+		return this.memTableAdaptiveSizingEnabled;
+	}
+	
+	public DurabilityMode getDurabilityMode() {
+		return this.durabilityMode;
+	}
+	
+	public long getSyncInterval() {
+		return this.syncInterval;
+	}
+	
+	public int getStandbyTableNumber() {
+		return this.standbyTableNumber;
+	}
+	
+	public boolean isStandbyTablePrefaultEnabled() {
+		return this.standbyTablePrefaultEnabled;
+	}
+	
+	public int getLevel0SlowdownTrigger() {
+		return this.level0SlowdownTrigger;
+	}
+	
+	public int getLevel0StopTrigger() {
+		return this.level0StopTrigger;
+	}
+	
+	public int getLevel1SlowdownTrigger() {
+		return this.level1SlowdownTrigger;
+	}
+	
+	public int getLevel1StopTrigger() {
+		return this.level1StopTrigger;
+	}
+	
+	public long getSlowdownDelay() {
+		return this.slowdownDelay;
+	}
+	
+	public long getMaxStallTime() {
+		return this.maxStallTime;
+	}
+	
+	public long getLevel2TableSize() {
+		return this.level2TableSize;
+	}
+	
+	/**
+	 * @return number of compaction threads, by default two per shard but not more than the processors, at least two
+	 */
+	public int getCompactionThreadNumber() {
+		if (this.compactionThreadNumber > 0) return this.compactionThreadNumber;
+		return Math.max(2, Math.min(this.shardNumber * 2, Runtime.getRuntime().availableProcessors()));
+	}
+	
+	public long getCompactionRateLimit() {
+		return this.compactionRateLimit;
+	}
+	
+	/**
+	 * @return max number of sub compactions of a merge, by default the processors but not more than four
+	 */
+	public int getSubCompactionNumber() {
+		if (this.subCompactionNumber > 0) return this.subCompactionNumber;
+		return Math.min(4, Runtime.getRuntime().availableProcessors());
+	}
+	
+	public double getExpiryCompactionThreshold() {
+		return this.expiryCompactionThreshold;
+	}
+	
+	public int getCompactionReadAheadSize() {
+		return this.compactionReadAheadSize;
+	}
+	
+	public boolean isCompactionPrefetchEnabled() {
+		return this.compactionPrefetchEnabled;
+	}
+	
+	/**
+	 * @return schedule of major compactions of all shards, null if not scheduled
+	 */
+	public CompactionSchedule getCompactionSchedule() {
+		return this.compactionSchedule;
+	}
+	
+	public FilterPolicy getFilterPolicy(int level) {
+		checkSortedLevel(level);
+		return this.filterPolicies[level];
+	}
+	
+	/**
+	 * @return bytes of the key filters of all shards split across levels, 0 if the per level filter policies are used
+	 */
+	public long getFilterMemoryBudget() {
+		return this.filterMemoryBudget;
+	}
+	
+	public double getFilterLookupCost(int level) {
+		checkSortedLevel(level);
+		return this.filterLookupCosts[level];
+	}
+	
+	public IndexType getIndexType(int level) {
+		checkSortedLevel(level);
+		return this.indexTypes[level];
+	}
+	
 	/**
 	 * Important: shard number can't be changed for an existing DB.
 	 * 
@@ -58,4 +229,352 @@ public class DBConfig {
 		return this;
 	}
 
+	/**
+	 * Max number of entries of an in memory table, the index file of the table is sized by it.
+	 * With adaptive sizing enabled, it's only used for the first in memory table of each shard.
+	 * 
+	 * @param memTableMaxEntries
+	 * @return Session DB configuration
+	 */
+	public DBConfig setMemTableMaxEntries(int memTableMaxEntries) {
+		Preconditions.checkArgument(memTableMaxEntries > 0 && memTableMaxEntries <= HashMapTable.MAX_ENTRIES_PER_TABLE,
+				"memTableMaxEntries (%s) must be between 1 and %s", memTableMaxEntries, HashMapTable.MAX_ENTRIES_PER_TABLE);
+		this.memTableMaxEntries = memTableMaxEntries;
+		return this;
+	}
+	
+	/**
+	 * Size in bytes of the data file of an in memory table, at most 512MB since level 0 tables are merged into one memory mapped file.
+	 * 
+	 * @param memTableDataFileSize
+	 * @return Session DB configuration
+	 */
+	public DBConfig setMemTableDataFileSize(int memTableDataFileSize) {
+		Preconditions.checkArgument(memTableDataFileSize >= MIN_MEM_TABLE_DATA_FILE_SIZE && memTableDataFileSize <= MAX_MEM_TABLE_DATA_FILE_SIZE,
+				"memTableDataFileSize (%s) must be between %s and %s", memTableDataFileSize, MIN_MEM_TABLE_DATA_FILE_SIZE, MAX_MEM_TABLE_DATA_FILE_SIZE);
+		this.memTableDataFileSize = memTableDataFileSize;
+		return this;
+	}
+	
+	/**
+	 * Size the max entries of the next in memory table of a shard by the average entry size observed
+	 * in the previous one, so neither the index nor the data file of a table runs out much earlier than the other.
+	 * 
+	 * @param memTableAdaptiveSizingEnabled
+	 * @return Session DB configuration
+	 */
+	public DBConfig setMemTableAdaptiveSizingEnabled(boolean memTableAdaptiveSizingEnabled) {
+		this.memTableAdaptiveSizingEnabled = memTableAdaptiveSizingEnabled;
+		return this;
+	}
+	
+	/**
+	 * Durability of writes, NONE by default
+	 * 
+	 * @param durabilityMode
+	 * @return Session DB configuration
+	 */
+	public DBConfig setDurabilityMode(DurabilityMode durabilityMode) {
+		Preconditions.checkNotNull(durabilityMode, "durabilityMode is null");
+		this.durabilityMode = durabilityMode;
+		return this;
+	}
+	
+	/**
+	 * Milliseconds between two forces of in memory tables in INTERVAL durability mode
+	 * 
+	 * @param syncInterval
+	 * @return Session DB configuration
+	 */
+	public DBConfig setSyncInterval(long syncInterval) {
+		Preconditions.checkArgument(syncInterval > 0, "syncInterval (%s) must be greater than 0", syncInterval);
+		this.syncInterval = syncInterval;
+		return this;
+	}
+	
+	/**
+	 * Number of ready in memory tables kept per shard by a background thread, so switching
+	 * the active in memory table doesn't create and map files while writers wait, 0 to disable.
+	 * 
+	 * @param standbyTableNumber
+	 * @return Session DB configuration
+	 */
+	public DBConfig setStandbyTableNumber(int standbyTableNumber) {
+		this.standbyTableNumber = standbyTableNumber;
+		return this;
+	}
+	
+	/**
+	 * Touch every page of standby tables in advance, so appends to a new active table don't page fault,
+	 * at the cost of resident memory for the standby tables.
+	 * 
+	 * @param standbyTablePrefaultEnabled
+	 * @return Session DB configuration
+	 */
+	public DBConfig setStandbyTablePrefaultEnabled(boolean standbyTablePrefaultEnabled) {
+		this.standbyTablePrefaultEnabled = standbyTablePrefaultEnabled;
+		return this;
+	}
+
+	/**
+	 * Writes of a shard are delayed by slowdown delay once its level 0 queue reaches this size
+	 * 
+	 * @param level0SlowdownTrigger
+	 * @return Session DB configuration
+	 */
+	public DBConfig setLevel0SlowdownTrigger(int level0SlowdownTrigger) {
+		Preconditions.checkArgument(level0SlowdownTrigger > 0, "level0SlowdownTrigger (%s) must be greater than 0", level0SlowdownTrigger);
+		this.level0SlowdownTrigger = level0SlowdownTrigger;
+		return this;
+	}
+	
+	/**
+	 * Writes of a shard are blocked, for at most max stall time, once its level 0 queue reaches this size,
+	 * must not be less than the level 0 slowdown trigger when the DB is opened
+	 * 
+	 * @param level0StopTrigger
+	 * @return Session DB configuration
+	 */
+	public DBConfig setLevel0StopTrigger(int level0StopTrigger) {
+		Preconditions.checkArgument(level0StopTrigger > 0, "level0StopTrigger (%s) must be greater than 0", level0StopTrigger);
+		this.level0StopTrigger = level0StopTrigger;
+		return this;
+	}
+	
+	/**
+	 * Writes of a shard are delayed by slowdown delay once its level 1 queue reaches this size
+	 * 
+	 * @param level1SlowdownTrigger
+	 * @return Session DB configuration
+	 */
+	public DBConfig setLevel1SlowdownTrigger(int level1SlowdownTrigger) {
+		Preconditions.checkArgument(level1SlowdownTrigger > 0, "level1SlowdownTrigger (%s) must be greater than 0", level1SlowdownTrigger);
+		this.level1SlowdownTrigger = level1SlowdownTrigger;
+		return this;
+	}
+	
+	/**
+	 * Writes of a shard are blocked, for at most max stall time, once its level 1 queue reaches this size,
+	 * must not be less than the level 1 slowdown trigger when the DB is opened
+	 * 
+	 * @param level1StopTrigger
+	 * @return Session DB configuration
+	 */
+	public DBConfig setLevel1StopTrigger(int level1StopTrigger) {
+		Preconditions.checkArgument(level1StopTrigger > 0, "level1StopTrigger (%s) must be greater than 0", level1StopTrigger);
+		this.level1StopTrigger = level1StopTrigger;
+		return this;
+	}
+	
+	/**
+	 * Delay in milliseconds of each write once a slowdown trigger is reached
+	 * 
+	 * @param slowdownDelay
+	 * @return Session DB configuration
+	 */
+	public DBConfig setSlowdownDelay(long slowdownDelay) {
+		Preconditions.checkArgument(slowdownDelay >= 0, "slowdownDelay (%s) must not be negative", slowdownDelay);
+		this.slowdownDelay = slowdownDelay;
+		return this;
+	}
+	
+	/**
+	 * Max milliseconds a write is blocked once a stop trigger is reached, the write goes on after that
+	 * 
+	 * @param maxStallTime
+	 * @return Session DB configuration
+	 */
+	public DBConfig setMaxStallTime(long maxStallTime) {
+		Preconditions.checkArgument(maxStallTime >= 0, "maxStallTime (%s) must not be negative", maxStallTime);
+		this.maxStallTime = maxStallTime;
+		return this;
+	}
+	
+	/**
+	 * Target data file size of level 2 tables, level 2 of a shard is split into tables covering
+	 * disjoint key hash ranges, and a level 1 merge only rewrites the tables its data falls in.
+	 * 
+	 * @param level2TableSize
+	 * @return Session DB configuration
+	 */
+	public DBConfig setLevel2TableSize(long level2TableSize) {
+		Preconditions.checkArgument(level2TableSize > 0, "level2TableSize (%s) must be greater than 0", level2TableSize);
+		this.level2TableSize = level2TableSize;
+		return this;
+	}
+	
+	/**
+	 * Number of threads merging level 0 and level 1 tables of all shards
+	 * 
+	 * @param compactionThreadNumber
+	 * @return Session DB configuration
+	 */
+	public DBConfig setCompactionThreadNumber(int compactionThreadNumber) {
+		Preconditions.checkArgument(compactionThreadNumber > 0, "compactionThreadNumber (%s) must be greater than 0", compactionThreadNumber);
+		this.compactionThreadNumber = compactionThreadNumber;
+		return this;
+	}
+	
+	/**
+	 * Max bytes per second read and written by level 0 and level 1 merges of all shards together,
+	 * keeps merges from starving foreground reads of disk bandwidth
+	 * 
+	 * @param compactionRateLimit bytes per second, 0 for unlimited
+	 * @return Session DB configuration
+	 */
+	public DBConfig setCompactionRateLimit(long compactionRateLimit) {
+		Preconditions.checkArgument(compactionRateLimit >= 0, "compactionRateLimit (%s) must not be negative", compactionRateLimit);
+		this.compactionRateLimit = compactionRateLimit;
+		return this;
+	}
+	
+	/**
+	 * Max number of key hash sub ranges a large level 1 merge is split into and merged in parallel,
+	 * the source tables of a level 0 merge are sorted in parallel up to this number, 1 to disable
+	 * 
+	 * @param subCompactionNumber
+	 * @return Session DB configuration
+	 */
+	public DBConfig setSubCompactionNumber(int subCompactionNumber) {
+		Preconditions.checkArgument(subCompactionNumber > 0, "subCompactionNumber (%s) must be greater than 0", subCompactionNumber);
+		this.subCompactionNumber = subCompactionNumber;
+		return this;
+	}
+	
+	/**
+	 * Estimated fraction of expired entries in a level 1 or level 2 table above which the table is merged
+	 * to reclaim space, level 2 tables whose entries have all expired are always dropped
+	 * 
+	 * @param expiryCompactionThreshold fraction greater than 0, 1 to only drop fully expired tables
+	 * @return Session DB configuration
+	 */
+	public DBConfig setExpiryCompactionThreshold(double expiryCompactionThreshold) {
+		Preconditions.checkArgument(expiryCompactionThreshold > 0 && expiryCompactionThreshold <= 1,
+				"expiryCompactionThreshold (%s) must be greater than 0 and not greater than 1", expiryCompactionThreshold);
+		this.expiryCompactionThreshold = expiryCompactionThreshold;
+		return this;
+	}
+	
+	/**
+	 * Bytes read at a time from each table merged into level 2, every merged table holds two buffers of
+	 * about this size while prefetch is enabled
+	 * 
+	 * @param compactionReadAheadSize
+	 * @return Session DB configuration
+	 */
+	public DBConfig setCompactionReadAheadSize(int compactionReadAheadSize) {
+		Preconditions.checkArgument(compactionReadAheadSize > 0, "compactionReadAheadSize (%s) must be greater than 0", compactionReadAheadSize);
+		this.compactionReadAheadSize = compactionReadAheadSize;
+		return this;
+	}
+	
+	/**
+	 * Whether the next chunk of a table merged into level 2 is read in the background while the current one is merged
+	 * 
+	 * @param compactionPrefetchEnabled
+	 * @return Session DB configuration
+	 */
+	public DBConfig setCompactionPrefetchEnabled(boolean compactionPrefetchEnabled) {
+		this.compactionPrefetchEnabled = compactionPrefetchEnabled;
+		return this;
+	}
+	
+	/**
+	 * Cron like schedule of major compactions of all shards, e.g. "30 2 * * *" for 2:30 every night,
+	 * see CompactionSchedule for the format
+	 * 
+	 * @param compactionSchedule schedule expression, null for no scheduled major compaction
+	 * @return Session DB configuration
+	 */
+	public DBConfig setCompactionSchedule(String compactionSchedule) {
+		this.compactionSchedule = compactionSchedule == null ? null : CompactionSchedule.parse(compactionSchedule);
+		return this;
+	}
+	
+	/**
+	 * Key filter of new level 1 and level 2 tables, existing tables keep the filter they were written with
+	 * 
+	 * @param filterPolicy FilterPolicy.blockedBloom(bitsPerKey), FilterPolicy.xor(fingerprintBits) or FilterPolicy.none()
+	 * @return Session DB configuration
+	 */
+	public DBConfig setFilterPolicy(FilterPolicy filterPolicy) {
+		this.setFilterPolicy(SDB.LEVEL1, filterPolicy);
+		this.setFilterPolicy(SDB.LEVEL2, filterPolicy);
+		return this;
+	}
+	
+	/**
+	 * Key filter of new tables of a level, not used while a filter memory budget is set
+	 * 
+	 * @param level 1 or 2
+	 * @param filterPolicy FilterPolicy.blockedBloom(bitsPerKey), FilterPolicy.xor(fingerprintBits) or FilterPolicy.none()
+	 * @return Session DB configuration
+	 */
+	public DBConfig setFilterPolicy(int level, FilterPolicy filterPolicy) {
+		checkSortedLevel(level);
+		Preconditions.checkNotNull(filterPolicy, "filterPolicy");
+		this.filterPolicies[level] = filterPolicy;
+		return this;
+	}
+	
+	/**
+	 * Total memory of the key filters of all shards, when set new tables get blocked bloom filters whose bits
+	 * per key are spread across levels by entries and lookup costs to minimize the expected cost of false positives,
+	 * levels of many entries and cheap lookups get fewer bits per key, see FilterBudget
+	 * 
+	 * @param filterMemoryBudget bytes, 0 for the per level filter policies
+	 * @return Session DB configuration
+	 */
+	public DBConfig setFilterMemoryBudget(long filterMemoryBudget) {
+		Preconditions.checkArgument(filterMemoryBudget >= 0, "filterMemoryBudget (%s) must not be negative", filterMemoryBudget);
+		this.filterMemoryBudget = filterMemoryBudget;
+		return this;
+	}
+	
+	/**
+	 * Relative cost of a false positive of a table of a level, weighs the levels when a filter memory budget is
+	 * spread across them, level 1 tables are recent and mostly cached while a level 2 lookup more likely faults
+	 * 
+	 * @param level 1 or 2
+	 * @param filterLookupCost greater than 0, 1 for level 1 and 4 for level 2 by default
+	 * @return Session DB configuration
+	 */
+	public DBConfig setFilterLookupCost(int level, double filterLookupCost) {
+		checkSortedLevel(level);
+		Preconditions.checkArgument(filterLookupCost > 0, "filterLookupCost (%s) must be greater than 0", filterLookupCost);
+		this.filterLookupCosts[level] = filterLookupCost;
+		return this;
+	}
+	
+	/**
+	 * How point lookups find keys in new level 1 and level 2 tables, existing tables keep the index they were written with
+	 * 
+	 * @param indexType IndexType.SORTED or IndexType.PERFECT_HASH
+	 * @return Session DB configuration
+	 */
+	public DBConfig setIndexType(IndexType indexType) {
+		this.setIndexType(SDB.LEVEL1, indexType);
+		this.setIndexType(SDB.LEVEL2, indexType);
+		return this;
+	}
+	
+	/**
+	 * How point lookups find keys in new tables of a level, a perfect hash index built when a merge writes a table
+	 * takes about 3.5 bits per key plus the bits of an index item number, and saves the key hash search
+	 * 
+	 * @param level 1 or 2
+	 * @param indexType IndexType.SORTED or IndexType.PERFECT_HASH
+	 * @return Session DB configuration
+	 */
+	public DBConfig setIndexType(int level, IndexType indexType) {
+		checkSortedLevel(level);
+		Preconditions.checkNotNull(indexType, "indexType");
+		this.indexTypes[level] = indexType;
+		return this;
+	}
+	
+	private static void checkSortedLevel(int level) {
+		Preconditions.checkArgument(level == SDB.LEVEL1 || level == SDB.LEVEL2, "level (%s) must be 1 or 2", level);
+	}
+
 }
@@ -0,0 +1,45 @@
+package com.ctriposs.sdb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background thread forcing in memory tables to the storage device every sync interval,
+ * used in INTERVAL durability mode.
+ */
+public class InMemTableSyncer extends Thread {
+
+	static final Logger log = LoggerFactory.getLogger(InMemTableSyncer.class);
+
+	private final SDB sdb;
+	private final long syncInterval;
+
+	private volatile boolean stop = false;
+
+	public InMemTableSyncer(SDB sdb, long syncInterval) {
+		this.sdb = sdb;
+		this.syncInterval = syncInterval;
+		this.setDaemon(true);
+	}
+
+	@Override
+	public void run() {
+		while(!stop) {
+			try {
+				Thread.sleep(syncInterval);
+				sdb.syncInMemTables();
+			} catch (InterruptedException ex) {
+				// stopping
+			} catch (Exception ex) {
+				log.error("Error occured in the in memory table syncer", ex);
+			}
+		}
+		log.info("Stopped in memory table syncer thread " + this.getName());
+	}
+
+	public void setStop() {
+		this.stop = true;
+		this.interrupt();
+		log.info("Stopping in memory table syncer thread " + this.getName());
+	}
+}
@@ -0,0 +1,71 @@
+package com.ctriposs.sdb;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ctriposs.sdb.table.AbstractMapTable;
+
+/**
+ * Immutable snapshot of the on disk tables of every level of a shard, newest tables first in each level.
+ *
+ * A version is pinned by a reference count, the current version of its version set holds one reference.
+ * Tables of a pinned version are never closed, so readers iterate the levels without any lock.
+ */
+public class LevelVersion {
+
+	private final VersionSet versionSet;
+	private final AbstractMapTable[][] levels;
+	private final AtomicInteger refCount = new AtomicInteger(1);
+
+	LevelVersion(VersionSet versionSet, AbstractMapTable[][] levels) {
+		this.versionSet = versionSet;
+		this.levels = levels;
+	}
+
+	/**
+	 * @param level the level
+	 * @return tables of the level, newest first, the array is shared and must not be modified
+	 */
+	public AbstractMapTable[] getTables(int level) {
+		return levels[level];
+	}
+
+	public int size(int level) {
+		return levels[level].length;
+	}
+
+	public boolean contains(int level, AbstractMapTable table) {
+		for(AbstractMapTable t : levels[level]) {
+			if (t == table) return true;
+		}
+		return false;
+	}
+
+	int getLevelNumber() {
+		return levels.length;
+	}
+
+	// pin unless already released
+	boolean retain() {
+		while(true) {
+			int count = refCount.get();
+			if (count <= 0) return false;
+			if (refCount.compareAndSet(count, count + 1)) return true;
+		}
+	}
+
+	/**
+	 * Unpin the version, tables no version refers to any more are closed and deleted by the last release
+	 */
+	public void release() {
+		int count = refCount.decrementAndGet();
+		if (count == 0) {
+			versionSet.releaseTables(this);
+		} else if (count < 0) {
+			throw new IllegalStateException("Level version released more than retained");
+		}
+	}
+
+	int getRefCount() {
+		return refCount.get();
+	}
+}
@@ -4,11 +4,21 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.PriorityQueue;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import com.ctriposs.sdb.stats.FileStatsCollector;
 import com.ctriposs.sdb.stats.Operations;
@@ -16,14 +26,18 @@ import com.ctriposs.sdb.stats.SDBStats;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.ctriposs.sdb.merge.Level0Merger;
-import com.ctriposs.sdb.merge.Level1Merger;
+import com.ctriposs.sdb.merge.CompactionScheduler;
+import com.ctriposs.sdb.merge.MajorCompaction;
 import com.ctriposs.sdb.table.AbstractMapTable;
+import com.ctriposs.sdb.table.AbstractSortedMapTable;
 import com.ctriposs.sdb.table.FCMapTable;
 import com.ctriposs.sdb.table.GetResult;
 import com.ctriposs.sdb.table.HashMapTable;
+import com.ctriposs.sdb.table.KeyFilter;
 import com.ctriposs.sdb.table.MMFMapTable;
+import com.ctriposs.sdb.table.PackedMapTable;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 
 /**
  * A Big, Fast, Persistent K/V Store, Tailored for Session Data
@@ -40,17 +54,30 @@ public class SDB implements Closeable {
 	public static final int LEVEL1 = 1;
 	public static final int LEVEL2 = 2;
 	public static final int MAX_LEVEL = 2;
+	private static final int STALL_CHECK_INTERVAL = 10; // 10 milliseconds
+	private static final int MIN_MEM_TABLE_MAX_ENTRIES = 1024;
 	private volatile HashMapTable[] activeInMemTables;
 	private Object[] activeInMemTableCreationLocks;
-	private List<LevelQueue>[] levelQueueLists;
+	private VersionSet[] versionSets;
 	private final SDBStats stats = new SDBStats();
+	// reusable result of the get into buffer variant
+	private final ThreadLocal<GetResult> localGetResult = new ThreadLocal<GetResult>() {
+
+		@Override
+		protected GetResult initialValue() {
+			return new GetResult();
+		}
+
+	};
 
 	private String dir;
 	private DBConfig config;
-	private Level0Merger[] level0Mergers;
-	private Level1Merger[] level1Mergers;
-	private CountDownLatch[] countDownLatches;
+	private CompactionScheduler compactionScheduler;
 	private FileStatsCollector fileStatsCollector;
+	private StandbyTableAllocator standbyTableAllocator;
+	private InMemTableSyncer inMemTableSyncer;
+	// max entries of the next in memory table of each shard
+	private AtomicIntegerArray memTableMaxEntries;
 
 	private boolean closed = false;
 
@@ -58,25 +85,30 @@ public class SDB implements Closeable {
 		this(dir, new DBConfig());
 	}
 
-	@SuppressWarnings("unchecked")
 	public SDB(String dir, DBConfig config) {
+		// the triggers are set one by one, so a stop trigger is checked against its slowdown trigger only here
+		Preconditions.checkArgument(config.getLevel0StopTrigger() >= config.getLevel0SlowdownTrigger(),
+				"level0StopTrigger (%s) must not be less than level0SlowdownTrigger (%s)", config.getLevel0StopTrigger(), config.getLevel0SlowdownTrigger());
+		Preconditions.checkArgument(config.getLevel1StopTrigger() >= config.getLevel1SlowdownTrigger(),
+				"level1StopTrigger (%s) must not be less than level1SlowdownTrigger (%s)", config.getLevel1StopTrigger(), config.getLevel1SlowdownTrigger());
 		this.dir = dir;
 		this.config = config;
 
 		activeInMemTables = new HashMapTable[config.getShardNumber()];
+		memTableMaxEntries = new AtomicIntegerArray(config.getShardNumber());
+		for(int i = 0; i < config.getShardNumber(); i++) {
+			memTableMaxEntries.set(i, config.getMemTableMaxEntries());
+		}
 
 		activeInMemTableCreationLocks = new Object[config.getShardNumber()];
 		for(int i = 0; i < config.getShardNumber(); i++) {
 			activeInMemTableCreationLocks[i] = new Object();
 		}
 
-		// initialize level queue list
-		levelQueueLists = new ArrayList[config.getShardNumber()];
+		// initialize level versions
+		versionSets = new VersionSet[config.getShardNumber()];
 		for(int i = 0; i < config.getShardNumber(); i++) {
-			levelQueueLists[i] = new ArrayList<LevelQueue>(MAX_LEVEL + 1);
-			for(int j = 0; j <= MAX_LEVEL; j++) {
-				levelQueueLists[i].add(new LevelQueue());
-			}
+			versionSets[i] = new VersionSet(MAX_LEVEL + 1);
 		}
 
 		try {
@@ -85,26 +117,25 @@ public class SDB implements Closeable {
 			throw new RuntimeException("Fail to load on disk map tables!", ex);
 		}
 
-		this.fileStatsCollector = new FileStatsCollector(stats, levelQueueLists);
+		this.fileStatsCollector = new FileStatsCollector(stats, versionSets);
 		this.fileStatsCollector.start();
 
+		if (config.getStandbyTableNumber() > 0) {
+			this.standbyTableAllocator = new StandbyTableAllocator(this);
+			this.standbyTableAllocator.start();
+		}
+
+		if (config.getDurabilityMode() == DBConfig.DurabilityMode.INTERVAL) {
+			this.inMemTableSyncer = new InMemTableSyncer(this, config.getSyncInterval());
+			this.inMemTableSyncer.start();
+		}
+
 		this.startLevelMergers();
 	}
 
 	private void startLevelMergers() {
-		countDownLatches = new CountDownLatch[this.config.getShardNumber()];
-		for(int i = 0; i < this.config.getShardNumber(); i++) {
-			countDownLatches[i] = new CountDownLatch(2);
-		}
-		level0Mergers = new Level0Merger[config.getShardNumber()];
-		level1Mergers = new Level1Merger[config.getShardNumber()];
-
-		for(short i = 0; i < this.config.getShardNumber(); i++) {
-			level0Mergers[i] = new Level0Merger(this, this.levelQueueLists[i], countDownLatches[i], i, stats);
-			level0Mergers[i].start();
-			level1Mergers[i] = new Level1Merger(this, this.levelQueueLists[i], countDownLatches[i], i, stats);
-			level1Mergers[i].start();
-		}
+		this.compactionScheduler = new CompactionScheduler(this, this.versionSets, this.config.getCompactionThreadNumber(), stats);
+		this.compactionScheduler.start();
 	}
 
 	private void loadMapTables() throws IOException, ClassNotFoundException {
@@ -117,6 +148,7 @@ public class SDB implements Closeable {
 			@Override
 			public boolean accept(File dir, String filename) {
 				if (filename.endsWith(AbstractMapTable.INDEX_FILE_SUFFIX)) return true;
+				if (filename.endsWith(PackedMapTable.TABLE_FILE_SUFFIX)) return true;
 				return false;
 			}
 
@@ -125,30 +157,50 @@ public class SDB implements Closeable {
 		// new DB, setup new active map table
 		if (fileNames == null || fileNames.length == 0) {
 			for(short i = 0; i < this.config.getShardNumber(); i++) {
-				this.activeInMemTables[i] = new HashMapTable(dir, i, LEVEL0, System.nanoTime());
+				this.activeInMemTables[i] = this.newInMemTable(i);
 				this.activeInMemTables[i].markUsable(true);
 				this.activeInMemTables[i].markImmutable(false); // mutable
 				this.activeInMemTables[i].setCompressionEnabled(this.config.isCompressionEnabled());
+				this.activeInMemTables[i].setSyncEnabled(this.config.getDurabilityMode() == DBConfig.DurabilityMode.SYNC);
 			}
 			return;
 		}
 
+		// tables are loaded in parallel, level 0 tables scan their index items unless a hash index snapshot is found
+		int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), fileNames.length));
+		ExecutorService loader = Executors.newFixedThreadPool(threads);
+		List<Future<AbstractMapTable>> futures = new ArrayList<Future<AbstractMapTable>>(fileNames.length);
 		PriorityQueue<AbstractMapTable> pq = new PriorityQueue<AbstractMapTable>();
-		for(String fileName : fileNames) {
-			int dotIndex = fileName.lastIndexOf(".");
-			if (dotIndex > 0) {
-				fileName = fileName.substring(0, dotIndex);
+		try {
+			for(String fileName : fileNames) {
+				boolean packed = fileName.endsWith(PackedMapTable.TABLE_FILE_SUFFIX);
+				int dotIndex = fileName.lastIndexOf(".");
+				if (dotIndex > 0) {
+					fileName = fileName.substring(0, dotIndex);
+				}
+				String[] parts = fileName.split("-");
+				Preconditions.checkArgument(parts != null && parts.length == 3, "on-disk table file names corrupted!");
+				futures.add(loader.submit(new TableLoader(dir, fileName, Integer.parseInt(parts[1]), packed)));
 			}
-			String[] parts = fileName.split("-");
-			Preconditions.checkArgument(parts != null && parts.length == 3, "on-disk table file names corrupted!");
-			int level = Integer.parseInt(parts[1]);
-			if (level == LEVEL0) {
-				pq.add(new HashMapTable(dir, fileName));
-			} else if (level == LEVEL1) {
-				pq.add(new MMFMapTable(dir, fileName));
-			} else {
-				pq.add(new FCMapTable(dir, fileName));
+
+			for(Future<AbstractMapTable> future : futures) {
+				AbstractMapTable table;
+				try {
+					table = future.get();
+				} catch (ExecutionException e) {
+					Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+					Throwables.propagateIfInstanceOf(e.getCause(), ClassNotFoundException.class);
+					throw Throwables.propagate(e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while loading map tables", e);
+				}
+				if (table != null) {
+					pq.add(table);
+				}
 			}
+		} finally {
+			loader.shutdown();
 		}
 
 		Preconditions.checkArgument(pq.size() > 0, "on-disk table file names corrupted!");
@@ -161,19 +213,61 @@ public class SDB implements Closeable {
 			this.activeInMemTables[table.getShard()].markUsable(true);
 			this.activeInMemTables[table.getShard()].markImmutable(false); // mutable
 			this.activeInMemTables[table.getShard()].setCompressionEnabled(this.config.isCompressionEnabled());
+			this.activeInMemTables[table.getShard()].setSyncEnabled(this.config.getDurabilityMode() == DBConfig.DurabilityMode.SYNC);
 		}
 
+		VersionSet.Edit[] edits = new VersionSet.Edit[this.config.getShardNumber()];
+		for(int i = 0; i < edits.length; i++) {
+			edits[i] = new VersionSet.Edit(MAX_LEVEL + 1);
+		}
 		while(!pq.isEmpty()) {
 			AbstractMapTable table = pq.poll();
 			if (table.isUsable()) {
-				int level = table.getLevel();
-				LevelQueue lq = levelQueueLists[table.getShard()].get(level);
-				lq.addLast(table);
+				edits[table.getShard()].addLast(table.getLevel(), table);
 			} else { // garbage
 				table.close();
 				table.delete();
 			}
 		}
+		for(int i = 0; i < edits.length; i++) {
+			versionSets[i].apply(edits[i]);
+		}
+	}
+
+	// load one on-disk table, garbage level 0 tables are deleted and null is returned
+	private static class TableLoader implements Callable<AbstractMapTable> {
+
+		private final String dir;
+		private final String fileName;
+		private final int level;
+		// single file table, otherwise meta, index and data files
+		private final boolean packed;
+
+		TableLoader(String dir, String fileName, int level, boolean packed) {
+			this.dir = dir;
+			this.fileName = fileName;
+			this.level = level;
+			this.packed = packed;
+		}
+
+		@Override
+		public AbstractMapTable call() throws IOException, ClassNotFoundException {
+			if (level == LEVEL0) {
+				HashMapTable table = new HashMapTable(dir, fileName);
+				if (!table.isUsable()) { // garbage, merged or never switched on standby table
+					table.close();
+					table.delete();
+					return null;
+				}
+				return table;
+			} else if (packed) {
+				return new PackedMapTable(dir, fileName);
+			} else if (level == LEVEL1) {
+				return new MMFMapTable(dir, fileName);
+			} else {
+				return new FCMapTable(dir, fileName);
+			}
+		}
 	}
 
 	public String getDir() {
@@ -186,6 +280,30 @@ public class SDB implements Closeable {
 		return this.stats;
 	}
 
+	/**
+	 * Start a major compaction of all shards in the background, deleted and expired entries are purged and
+	 * the tables waiting in level 0 and level 1 are merged into level 2. Active in memory tables are not included.
+	 *
+	 * @return handle to follow the progress or cancel
+	 */
+	public MajorCompaction compactAll() {
+		ensureNotClosed();
+		return this.compactionScheduler.compactAll();
+	}
+
+	/**
+	 * Start a major compaction of a shard in the background, see compactAll
+	 *
+	 * @param shard the shard, from 0 to the shard number minus 1
+	 * @return handle to follow the progress or cancel
+	 */
+	public MajorCompaction compactShard(int shard) {
+		ensureNotClosed();
+		Preconditions.checkArgument(shard >= 0 && shard < this.config.getShardNumber(),
+				"shard (%s) must be between 0 and %s", shard, this.config.getShardNumber() - 1);
+		return this.compactionScheduler.compactShards(new short[] { (short) shard });
+	}
+
 	/**
 	 * Put key/value entry into the DB with no timeout
 	 *
@@ -193,7 +311,7 @@ public class SDB implements Closeable {
 	 * @param value the map entry value
 	 */
 	public void put(byte[] key, byte[] value) {
-		this.put(key, value, AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false);
+		this.put(key, value, AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false, true);
 	}
 
 	/**
@@ -204,7 +322,7 @@ public class SDB implements Closeable {
 	 * @param timeToLive time to live
 	 */
 	public void put(byte[] key, byte[] value, long timeToLive) {
-		this.put(key, value, timeToLive, System.currentTimeMillis(), false);
+		this.put(key, value, timeToLive, System.currentTimeMillis(), false, true);
 	}
 
 	/**
@@ -213,7 +331,7 @@ public class SDB implements Closeable {
 	 * @param key the map entry key
 	 */
 	public void delete(byte[] key) {
-		this.put(key, new byte[] {0}, AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), true);
+		this.put(key, new byte[] {0}, AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), true, true);
 	}
 
 	private short getShard(byte[] key) {
@@ -222,7 +340,8 @@ public class SDB implements Closeable {
 		return (short) (keyHash % this.config.getShardNumber());
 	}
 
-	private void put(byte[] key, byte[] value, long timeToLive, long createdTime, boolean isDelete) {
+	// no back pressure for locality puts, reads are never stalled
+	private void put(byte[] key, byte[] value, long timeToLive, long createdTime, boolean isDelete, boolean backPressure) {
 		Preconditions.checkArgument(key != null && key.length > 0, "key is empty");
 		Preconditions.checkArgument(value != null && value.length > 0, "value is empty");
 		ensureNotClosed();
@@ -230,25 +349,16 @@ public class SDB implements Closeable {
 		String operation = isDelete ? Operations.DELETE : Operations.PUT;
 		try {
 			short shard = this.getShard(key);
+			if (backPressure) {
+				this.makeRoomForWrite(shard);
+			}
 			boolean success = this.activeInMemTables[shard].put(key, value, timeToLive, createdTime, isDelete);
 
 			if (!success) { // overflow
 				synchronized(activeInMemTableCreationLocks[shard]) {
 					success = this.activeInMemTables[shard].put(key, value, timeToLive, createdTime, isDelete); // other thread may have done the creation work
 					if (!success) { // move to level queue 0
-						this.activeInMemTables[shard].markImmutable(true);
-						LevelQueue lq0 = this.levelQueueLists[shard].get(LEVEL0);
-						lq0.getWriteLock().lock();
-						try {
-							lq0.addFirst(this.activeInMemTables[shard]);
-						} finally {
-							lq0.getWriteLock().unlock();
-						}
-
-						@SuppressWarnings("resource")
-						HashMapTable tempTable = new HashMapTable(dir, shard, LEVEL0, System.nanoTime());
-						tempTable.markUsable(true);
-						tempTable.markImmutable(false); //mutable
+						HashMapTable tempTable = this.createActiveInMemTable(shard, 1);
 						tempTable.put(key, value, timeToLive, createdTime, isDelete);
 						// switch on
 						this.activeInMemTables[shard] = tempTable;
@@ -266,6 +376,199 @@ public class SDB implements Closeable {
 		}
 	}
 
+	/**
+	 * Apply a batch of put/delete operations, operations are grouped by shard,
+	 * each shard group is appended to the active map table as a whole and found by readers all or nothing.
+	 *
+	 * Groups of different shards are applied one after another, readers may see the group of one shard
+	 * before the group of another. Groups too large for one map table are rejected before any group is applied,
+	 * but an IOException may still leave the groups of the shards applied before it.
+	 *
+	 * @param batch the write batch
+	 * @throws IllegalArgumentException if the group of a shard is too large to fit in one map table
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public void write(WriteBatch batch) {
+		Preconditions.checkNotNull(batch, "batch is null");
+		ensureNotClosed();
+		if (batch.isEmpty()) return;
+		long start = System.nanoTime();
+		try {
+			List<WriteBatch.Entry>[] shardEntries = new List[this.config.getShardNumber()];
+			for(WriteBatch.Entry entry : batch.getEntries()) {
+				short shard = this.getShard(entry.getKey());
+				if (shardEntries[shard] == null) {
+					shardEntries[shard] = new ArrayList<WriteBatch.Entry>();
+				}
+				shardEntries[shard].add(entry);
+			}
+
+			// a new table switched on takes any group passing the check
+			for(short shard = 0; shard < shardEntries.length; shard++) {
+				List<WriteBatch.Entry> entries = shardEntries[shard];
+				if (entries == null) continue;
+				if (entries.size() > HashMapTable.MAX_ENTRIES_PER_TABLE
+						|| HashMapTable.getMaxDataLength(entries, this.config.isCompressionEnabled()) > this.config.getMemTableDataFileSize()) {
+					throw new IllegalArgumentException("Batch of shard " + shard + " is too large to fit in one map table");
+				}
+			}
+
+			long createdTime = System.currentTimeMillis();
+			for(short shard = 0; shard < shardEntries.length; shard++) {
+				List<WriteBatch.Entry> entries = shardEntries[shard];
+				if (entries == null) continue;
+				this.makeRoomForWrite(shard);
+				boolean success = this.activeInMemTables[shard].put(entries, createdTime);
+
+				if (!success) { // overflow
+					synchronized(activeInMemTableCreationLocks[shard]) {
+						success = this.activeInMemTables[shard].put(entries, createdTime); // other thread may have done the creation work
+						if (!success) { // move to level queue 0
+							HashMapTable tempTable = this.createActiveInMemTable(shard, entries.size());
+							success = tempTable.put(entries, createdTime);
+							// switch on
+							this.activeInMemTables[shard] = tempTable;
+							if (!success) {
+								throw new IllegalStateException("Batch of shard " + shard + " does not fit in a new map table");
+							}
+						}
+					}
+				}
+			}
+		} catch(IOException ioe) {
+			stats.recordDBError(Operations.WRITE);
+			throw new RuntimeException("Fail to write batch, IOException occurr", ioe);
+		} finally {
+			stats.recordDBOperation(Operations.WRITE, INMEM_LEVEL, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Delay or block writers of the shard while level 0 or level 1 merging falls behind,
+	 * a write is delayed once when a queue reaches its slowdown trigger, and blocked until the queue
+	 * drops below its stop trigger, or at most max stall time, when the queue reaches its stop trigger.
+	 *
+	 * @param shard the shard to write
+	 */
+	private void makeRoomForWrite(short shard) {
+		VersionSet versionSet = this.versionSets[shard];
+		if (versionSet.size(LEVEL0) < this.config.getLevel0SlowdownTrigger() && versionSet.size(LEVEL1) < this.config.getLevel1SlowdownTrigger()) {
+			return;
+		}
+
+		long start = System.nanoTime();
+		try {
+			if (versionSet.size(LEVEL0) < this.config.getLevel0StopTrigger() && versionSet.size(LEVEL1) < this.config.getLevel1StopTrigger()) {
+				Thread.sleep(this.config.getSlowdownDelay());
+				stats.recordWriteSlowdown(System.nanoTime() - start);
+				return;
+			}
+
+			long deadline = start + TimeUnit.MILLISECONDS.toNanos(this.config.getMaxStallTime());
+			while(versionSet.size(LEVEL0) >= this.config.getLevel0StopTrigger() || versionSet.size(LEVEL1) >= this.config.getLevel1StopTrigger()) {
+				if (System.nanoTime() >= deadline || closed) {
+					stats.recordWriteStallTimeout();
+					log.warn("Shard " + shard + " writes stalled for " + this.config.getMaxStallTime() + " ms, level 0 queue size "
+							+ versionSet.size(LEVEL0) + ", level 1 queue size " + versionSet.size(LEVEL1) + ", stop waiting");
+					break;
+				}
+				Thread.sleep(STALL_CHECK_INTERVAL);
+			}
+			stats.recordWriteStop(System.nanoTime() - start);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// mark current active table immutable, move it to level queue 0 and switch on a new one holding at least
+	// min entries, caller must hold the creation lock
+	private HashMapTable createActiveInMemTable(short shard, int minEntries) throws IOException {
+		long start = System.nanoTime();
+		HashMapTable activeTable = this.activeInMemTables[shard];
+		activeTable.markImmutable(true);
+		this.versionSets[shard].apply(new VersionSet.Edit(MAX_LEVEL + 1).addFirst(LEVEL0, activeTable));
+		if (this.compactionScheduler != null) {
+			this.compactionScheduler.signal();
+		}
+
+		if (this.config.isMemTableAdaptiveSizingEnabled()) {
+			this.memTableMaxEntries.set(shard, estimateMaxEntries(activeTable, this.config.getMemTableDataFileSize()));
+		}
+
+		HashMapTable tempTable = null;
+		if (this.standbyTableAllocator != null) {
+			tempTable = this.standbyTableAllocator.poll(shard);
+			// tables are ordered by created time on load, never switch on one older than the previous active table,
+			// nor one sized far away from the current estimation
+			while(tempTable != null && (tempTable.getCreatedTime() <= activeTable.getCreatedTime() || !this.isSizeMatched(tempTable, shard)
+					|| tempTable.getIndexItemsCapacity() < minEntries)) {
+				this.standbyTableAllocator.discardLater(tempTable);
+				tempTable = this.standbyTableAllocator.poll(shard);
+			}
+			if (tempTable == null) {
+				stats.recordStandbyMiss();
+			}
+		}
+		if (tempTable == null) {
+			tempTable = this.newInMemTable(shard, minEntries);
+		}
+		tempTable.markUsable(true);
+		tempTable.markImmutable(false); //mutable
+		tempTable.setCompressionEnabled(this.config.isCompressionEnabled());
+		tempTable.setSyncEnabled(this.config.getDurabilityMode() == DBConfig.DurabilityMode.SYNC);
+		stats.recordSwitching(System.nanoTime() - start);
+		return tempTable;
+	}
+
+	/**
+	 * Force all in memory tables, active or waiting for level 0 merging, to the storage device
+	 *
+	 * @throws IOException
+	 */
+	void syncInMemTables() throws IOException {
+		for(int i = 0; i < this.config.getShardNumber(); i++) {
+			this.activeInMemTables[i].sync();
+
+			// tables of the pinned version are not closed by merging in between
+			LevelVersion version = this.versionSets[i].acquire();
+			try {
+				for(AbstractMapTable table : version.getTables(LEVEL0)) {
+					((HashMapTable) table).sync();
+				}
+			} finally {
+				version.release();
+			}
+		}
+	}
+
+	// create a new in memory table with the current size settings of the shard, not switched on yet
+	HashMapTable newInMemTable(short shard) throws IOException {
+		return this.newInMemTable(shard, 1);
+	}
+
+	private HashMapTable newInMemTable(short shard, int minEntries) throws IOException {
+		int maxEntries = Math.max(this.memTableMaxEntries.get(shard), minEntries);
+		return new HashMapTable(dir, shard, LEVEL0, System.nanoTime(), maxEntries, this.config.getMemTableDataFileSize());
+	}
+
+	private boolean isSizeMatched(HashMapTable table, short shard) {
+		int maxEntries = this.memTableMaxEntries.get(shard);
+		return table.getDataFileCapacity() == this.config.getMemTableDataFileSize() &&
+				Math.abs(table.getIndexItemsCapacity() - maxEntries) <= maxEntries / 4;
+	}
+
+	// max entries to fill the data file with entries of the average size in the full table, with some headroom
+	static int estimateMaxEntries(HashMapTable fullTable, int dataFileSize) {
+		int entries = fullTable.getAppendedSize();
+		long dataSize = fullTable.getAppendedDataSize();
+		if (entries == 0 || dataSize == 0) {
+			return fullTable.getIndexItemsCapacity();
+		}
+		double averageEntrySize = 1.0d * dataSize / entries;
+		long maxEntries = (long) (dataFileSize / averageEntrySize * 1.25d);
+		return (int) Math.max(MIN_MEM_TABLE_MAX_ENTRIES, Math.min(maxEntries, HashMapTable.MAX_ENTRIES_PER_TABLE));
+	}
+
 	/**
 	 * Get value in the DB with specific key
 	 *
@@ -289,62 +592,110 @@ public class SDB implements Closeable {
 					return null; // deleted or expired
 				}
 			} else {
-				// check level0 hashmap tables
-				reachedLevel = LEVEL0;
-				LevelQueue lq0 = levelQueueLists[shard].get(LEVEL0);
-				lq0.getReadLock().lock();
+				// check level 0-2 tables of the pinned version, level 0 hashmap tables first
+				LevelVersion version = versionSets[shard].acquire();
 				try {
-					if (lq0 != null && lq0.size() > 0) {
-						for(AbstractMapTable table : lq0) {
+					searchLevels: {
+						reachedLevel = LEVEL0;
+						for(AbstractMapTable table : version.getTables(LEVEL0)) {
 							result = table.get(key);
-							if (result.isFound()) break;
+							if (result.isFound()) break searchLevels;
+						}
+						// hashes of the key for all sorted tables
+						int keyHash = Arrays.hashCode(key);
+						long filterHash = KeyFilter.hash(key);
+						for(int level = LEVEL1; level <= MAX_LEVEL; level++) {
+							reachedLevel = level;
+							for(AbstractMapTable table : version.getTables(level)) {
+								result = ((AbstractSortedMapTable) table).get(key, keyHash, filterHash);
+								if (result.isFound()) break searchLevels;
+							}
 						}
 					}
 				} finally {
-					lq0.getReadLock().unlock();
+					version.release();
 				}
 
 				if (result.isFound()) {
 					if (!result.isDeleted() && !result.isExpired()) {
 						if (result.getLevel() == SDB.LEVEL2 && this.config.isLocalityEnabled()) { // keep locality
-							this.put(key, result.getValue(), result.getTimeToLive(), result.getCreatedTime(), false);
+							this.put(key, result.getValue(), result.getTimeToLive(), result.getCreatedTime(), false, false);
 						}
 						return result.getValue();
 					} else {
 						return null; // deleted or expired
 					}
 				}
+			}
+		}
+		catch(IOException ioe) {
+			stats.recordDBError(Operations.GET);
+			throw new RuntimeException("Fail to get value by key, IOException occurr", ioe);
+		} finally {
+			stats.recordDBOperation(Operations.GET, reachedLevel, System.nanoTime() - start);
+		}
+
+		return null; // no luck
+	}
 
-				// check level 1-2 on disk sorted tables
-				searchLevel12: {
-					for(int level = 1; level <= MAX_LEVEL; level++) {
+	/**
+	 * Get value in the DB with specific key into a caller supplied buffer,
+	 * no intermediate value arrays or results are allocated on the read path.
+	 *
+	 * @param key map entry key
+	 * @param dst the value is written at the current position of the buffer, and the position is advanced by the value length
+	 * @return value length if the entry exists, not deleted or expired,
+	 * GetResult.NOT_FOUND, GetResult.DELETED or GetResult.EXPIRED otherwise.
+	 * @throws java.nio.BufferOverflowException if the buffer has not enough room for the value
+	 */
+	public int get(byte[] key, ByteBuffer dst) {
+		Preconditions.checkArgument(key != null && key.length > 0, "key is empty");
+		Preconditions.checkNotNull(dst, "dst is null");
+		ensureNotClosed();
+		long start = System.nanoTime();
+		int reachedLevel = INMEM_LEVEL;
+		GetResult result = localGetResult.get();
+		try {
+			short shard = this.getShard(key);
+			// check active hashmap table first
+			int length = this.activeInMemTables[shard].get(key, dst, result);
+			if (result.isFound()) return length;
+
+			// check level 0-2 tables of the pinned version, level 0 hashmap tables first
+			LevelVersion version = versionSets[shard].acquire();
+			try {
+				searchLevels: {
+					reachedLevel = LEVEL0;
+					for(AbstractMapTable table : version.getTables(LEVEL0)) {
+						length = table.get(key, dst, result);
+						if (result.isFound()) break searchLevels;
+					}
+					// hashes of the key for all sorted tables
+					int keyHash = Arrays.hashCode(key);
+					long filterHash = KeyFilter.hash(key);
+					for(int level = LEVEL1; level <= MAX_LEVEL; level++) {
 						reachedLevel = level;
-						LevelQueue lq = levelQueueLists[shard].get(level);
-						lq.getReadLock().lock();
-						try {
-							if (lq.size() > 0) {
-								for(AbstractMapTable table : lq) {
-									result = table.get(key);
-									if (result.isFound()) break searchLevel12;
-								}
-							}
-						} finally {
-							lq.getReadLock().unlock();
+						for(AbstractMapTable table : version.getTables(level)) {
+							length = ((AbstractSortedMapTable) table).get(key, keyHash, filterHash, dst, result);
+							if (result.isFound()) break searchLevels;
 						}
 					}
 				}
+			} finally {
+				version.release();
+			}
 
-				if (result.isFound()) {
-					if (!result.isDeleted() && !result.isExpired()) {
-						if (result.getLevel() == SDB.LEVEL2 && this.config.isLocalityEnabled()) { // keep locality
-							this.put(key, result.getValue(), result.getTimeToLive(), result.getCreatedTime(), false);
-						}
-						return result.getValue();
-					} else {
-						return null; // deleted or expired
-					}
+			if (!result.isFound()) return GetResult.NOT_FOUND; // no luck
+
+			if (length >= 0 && result.getLevel() == SDB.LEVEL2 && this.config.isLocalityEnabled()) { // keep locality
+				byte[] value = new byte[length];
+				int valueStart = dst.position() - length;
+				for(int i = 0; i < length; i++) {
+					value[i] = dst.get(valueStart + i);
 				}
+				this.put(key, value, result.getTimeToLive(), result.getCreatedTime(), false, false);
 			}
+			return length;
 		}
 		catch(IOException ioe) {
 			stats.recordDBError(Operations.GET);
@@ -352,8 +703,157 @@ public class SDB implements Closeable {
 		} finally {
 			stats.recordDBOperation(Operations.GET, reachedLevel, System.nanoTime() - start);
 		}
+	}
 
-		return null; // no luck
+	/**
+	 * Get values in the DB with a group of keys, keys are bucketed by shard and
+	 * the level version of a shard is pinned only once for the whole group.
+	 *
+	 * @param keys map entry keys
+	 * @return values in the same order as the keys, a value is null if
+	 * the entry does not exist, or exists but deleted or expired.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public List<byte[]> multiGet(List<byte[]> keys) {
+		Preconditions.checkNotNull(keys, "keys is null");
+		for(byte[] key : keys) {
+			Preconditions.checkArgument(key != null && key.length > 0, "key is empty");
+		}
+		ensureNotClosed();
+		long start = System.nanoTime();
+		int reachedLevel = INMEM_LEVEL;
+		byte[][] values = new byte[keys.size()][];
+		try {
+			List<Integer>[] shardPositions = new List[this.config.getShardNumber()];
+			int[] keyHashes = new int[keys.size()];
+			for(int i = 0; i < keys.size(); i++) {
+				keyHashes[i] = Arrays.hashCode(keys.get(i));
+				short shard = this.getShard(keys.get(i));
+				if (shardPositions[shard] == null) {
+					shardPositions[shard] = new ArrayList<Integer>();
+				}
+				shardPositions[shard].add(i);
+			}
+
+			GetResult[] results = new GetResult[keys.size()];
+			for(short shard = 0; shard < shardPositions.length; shard++) {
+				if (shardPositions[shard] == null) continue;
+				int level = this.multiGet(shard, keys, keyHashes, shardPositions[shard], results);
+				if (level > reachedLevel) reachedLevel = level;
+			}
+
+			for(int i = 0; i < keys.size(); i++) {
+				GetResult result = results[i];
+				if (result == null || !result.isFound() || result.isDeleted() || result.isExpired()) continue;
+				if (result.getLevel() == SDB.LEVEL2 && this.config.isLocalityEnabled()) { // keep locality
+					this.put(keys.get(i), result.getValue(), result.getTimeToLive(), result.getCreatedTime(), false, false);
+				}
+				values[i] = result.getValue();
+			}
+		}
+		catch(IOException ioe) {
+			stats.recordDBError(Operations.MULTI_GET);
+			throw new RuntimeException("Fail to get values by keys, IOException occurr", ioe);
+		} finally {
+			stats.recordDBOperation(Operations.MULTI_GET, reachedLevel, System.nanoTime() - start);
+		}
+
+		return Arrays.asList(values);
+	}
+
+	// probe the levels of one shard with keys not resolved yet, return the reached level
+	private int multiGet(short shard, List<byte[]> keys, final int[] keyHashes, List<Integer> positions, GetResult[] results) throws IOException {
+		List<Integer> unresolved = new ArrayList<Integer>(positions.size());
+		// check active hashmap table first
+		HashMapTable activeTable = this.activeInMemTables[shard];
+		for(Integer position : positions) {
+			GetResult result = activeTable.get(keys.get(position));
+			if (result.isFound()) {
+				results[position] = result;
+			} else {
+				unresolved.add(position);
+			}
+		}
+		stats.recordProbes(Operations.MULTI_GET, INMEM_LEVEL, positions.size());
+		if (unresolved.isEmpty()) return INMEM_LEVEL;
+
+		LevelVersion version = versionSets[shard].acquire();
+		try {
+			return this.multiGet(version, keys, keyHashes, unresolved, results);
+		} finally {
+			version.release();
+		}
+	}
+
+	// probe the levels of a pinned version with keys not found in the active table
+	private int multiGet(LevelVersion version, List<byte[]> keys, final int[] keyHashes, List<Integer> unresolved, GetResult[] results) throws IOException {
+		// check level0 hashmap tables
+		int probes = 0;
+		for(AbstractMapTable table : version.getTables(LEVEL0)) {
+			Iterator<Integer> iter = unresolved.iterator();
+			while(iter.hasNext()) {
+				Integer position = iter.next();
+				GetResult result = table.get(keys.get(position));
+				probes++;
+				if (result.isFound()) {
+					results[position] = result;
+					iter.remove();
+				}
+			}
+			if (unresolved.isEmpty()) break;
+		}
+		stats.recordProbes(Operations.MULTI_GET, LEVEL0, probes);
+		if (unresolved.isEmpty()) return LEVEL0;
+
+		// check level 1-2 on disk sorted tables with keys sorted by hash
+		long[] filterHashes = new long[keys.size()];
+		for(Integer position : unresolved) {
+			filterHashes[position] = KeyFilter.hash(keys.get(position));
+		}
+		Collections.sort(unresolved, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer p1, Integer p2) {
+				int hash1 = keyHashes[p1];
+				int hash2 = keyHashes[p2];
+				if (hash1 < hash2) return -1;
+				else if (hash1 > hash2) return 1;
+				else return 0;
+			}
+
+		});
+		int reachedLevel = LEVEL0;
+		for(int level = 1; level <= MAX_LEVEL && !unresolved.isEmpty(); level++) {
+			reachedLevel = level;
+			probes = 0;
+			for(AbstractMapTable table : version.getTables(level)) {
+				if (table.isEmpty()) continue;
+				byte[][] sortedKeys = new byte[unresolved.size()][];
+				int[] sortedKeyHashes = new int[unresolved.size()];
+				long[] sortedFilterHashes = new long[unresolved.size()];
+				for(int i = 0; i < unresolved.size(); i++) {
+					sortedKeys[i] = keys.get(unresolved.get(i));
+					sortedKeyHashes[i] = keyHashes[unresolved.get(i)];
+					sortedFilterHashes[i] = filterHashes[unresolved.get(i)];
+				}
+				GetResult[] tableResults = ((AbstractSortedMapTable) table).get(sortedKeys, sortedKeyHashes, sortedFilterHashes);
+				probes += sortedKeys.length;
+
+				List<Integer> stillUnresolved = new ArrayList<Integer>(unresolved.size());
+				for(int i = 0; i < tableResults.length; i++) {
+					if (tableResults[i].isFound()) {
+						results[unresolved.get(i)] = tableResults[i];
+					} else {
+						stillUnresolved.add(unresolved.get(i));
+					}
+				}
+				unresolved = stillUnresolved;
+				if (unresolved.isEmpty()) break;
+			}
+			stats.recordProbes(Operations.MULTI_GET, level, probes);
+		}
+
+		return reachedLevel;
 	}
 
 	@Override
@@ -362,29 +862,51 @@ public class SDB implements Closeable {
 
 		fileStatsCollector.setStop();
 
+		if (this.standbyTableAllocator != null) {
+			this.standbyTableAllocator.setStop();
+		}
+
+		if (this.inMemTableSyncer != null) {
+			this.inMemTableSyncer.setStop();
+			try {
+				this.inMemTableSyncer.join();
+			} catch (InterruptedException e) {
+				// ignore;
+			}
+		}
+
+		if (this.config.getDurabilityMode() != DBConfig.DurabilityMode.NONE) {
+			this.syncInMemTables();
+		}
+
 		for(int i = 0; i < config.getShardNumber(); i++) {
+			saveHashIndexSnapshot(this.activeInMemTables[i]);
 			this.activeInMemTables[i].close();
 		}
 
-		for(int i = 0; i < config.getShardNumber(); i++) {
-			this.level0Mergers[i].setStop();
-			this.level1Mergers[i].setStop();
+		this.compactionScheduler.setStop();
+		try {
+			log.info("Waiting running merges and the compaction scheduler thread to exit...");
+			this.compactionScheduler.awaitStop();
+		} catch (InterruptedException e) {
+			// ignore;
 		}
 
-		for(int i = 0; i < config.getShardNumber(); i++) {
+		if (this.standbyTableAllocator != null) {
 			try {
-				log.info("Shard " + i + " waiting level 0 & 1 merge threads to exit...");
-				this.countDownLatches[i].await();
+				log.info("Waiting standby table allocator thread to exit...");
+				this.standbyTableAllocator.awaitStop();
 			} catch (InterruptedException e) {
 				// ignore;
 			}
-
 		}
 
 		for(int i = 0; i < config.getShardNumber(); i++) {
 			for(int j = 0; j <= MAX_LEVEL; j++) {
-				LevelQueue lq = this.levelQueueLists[i].get(j);
-				for(AbstractMapTable table : lq) {
+				for(AbstractMapTable table : this.versionSets[i].current().getTables(j)) {
+					if (table instanceof HashMapTable) {
+						saveHashIndexSnapshot((HashMapTable) table);
+					}
 					table.close();
 				}
 
@@ -395,6 +917,15 @@ public class SDB implements Closeable {
 		log.info("DB Closed.");
 	}
 
+	// a missing snapshot only slows down the next load
+	private static void saveHashIndexSnapshot(HashMapTable table) {
+		try {
+			table.saveHashIndexSnapshot();
+		} catch (IOException e) {
+			log.warn("Fail to save hash index snapshot of table " + table.getFileName(), e);
+		}
+	}
+
 	/**
 	 * Delete all back files;
 	 *
@@ -408,8 +939,7 @@ public class SDB implements Closeable {
 
 		for(int i = 0; i < config.getShardNumber(); i++) {
 			for(int j = 0; j <= MAX_LEVEL; j++) {
-				LevelQueue lq = this.levelQueueLists[i].get(j);
-				for(AbstractMapTable table : lq) {
+				for(AbstractMapTable table : this.versionSets[i].current().getTables(j)) {
 					table.delete();
 				}
 
@@ -0,0 +1,151 @@
+package com.ctriposs.sdb;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ctriposs.sdb.table.HashMapTable;
+
+/**
+ * Background thread keeping ready(created, mapped and optionally pre-faulted) HashMapTables per shard,
+ * so switching the active in memory table is a pointer swap instead of file creation and mmap
+ * while all writers of the shard wait.
+ *
+ * Standby tables are not marked usable until they are switched on, left over ones are
+ * treated as garbage on the next load.
+ */
+public class StandbyTableAllocator extends Thread {
+
+	static final Logger log = LoggerFactory.getLogger(StandbyTableAllocator.class);
+
+	private static final int MAX_SLEEP_TIME = 2 * 1000; // 2 seconds
+
+	private final SDB sdb;
+	private final int standbyNumber;
+	private final boolean prefaultEnabled;
+	private final BlockingQueue<HashMapTable>[] standbyQueues;
+	// tables given up by writers, closed and deleted here rather than under the table creation lock of a shard
+	private final ConcurrentLinkedQueue<HashMapTable> discardQueue = new ConcurrentLinkedQueue<HashMapTable>();
+
+	private volatile boolean stop = false;
+	private final CountDownLatch countDownLatch = new CountDownLatch(1);
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public StandbyTableAllocator(SDB sdb) {
+		this.sdb = sdb;
+		this.standbyNumber = sdb.getConfig().getStandbyTableNumber();
+		this.prefaultEnabled = sdb.getConfig().isStandbyTablePrefaultEnabled();
+		this.standbyQueues = new BlockingQueue[sdb.getConfig().getShardNumber()];
+		for(int i = 0; i < standbyQueues.length; i++) {
+			standbyQueues[i] = new LinkedBlockingQueue<HashMapTable>(standbyNumber);
+		}
+		this.setDaemon(true);
+	}
+
+	@Override
+	public void run() {
+		while(!stop) {
+			try {
+				this.discardAll();
+				for(short shard = 0; shard < standbyQueues.length && !stop; shard++) {
+					while(!stop && standbyQueues[shard].size() < standbyNumber) {
+						HashMapTable table = sdb.newInMemTable(shard);
+						if (prefaultEnabled) {
+							table.prefault();
+						}
+						if (!standbyQueues[shard].offer(table)) {
+							discard(table);
+						}
+					}
+				}
+
+				synchronized(this) {
+					if (!stop && this.isAllFull() && discardQueue.isEmpty()) {
+						this.wait(MAX_SLEEP_TIME);
+					}
+				}
+			} catch (Exception ex) {
+				log.error("Error occured in the standby table allocator", ex);
+			}
+		}
+
+		for(BlockingQueue<HashMapTable> queue : standbyQueues) {
+			HashMapTable table;
+			while((table = queue.poll()) != null) {
+				discard(table);
+			}
+		}
+		this.discardAll();
+
+		this.countDownLatch.countDown();
+		log.info("Stopped standby table allocator thread " + this.getName());
+	}
+
+	private boolean isAllFull() {
+		for(BlockingQueue<HashMapTable> queue : standbyQueues) {
+			if (queue.size() < standbyNumber) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Take a ready table of the shard and wake up the allocator to replace it
+	 *
+	 * @param shard the shard
+	 * @return a ready table, or null if there is none
+	 */
+	public HashMapTable poll(short shard) {
+		HashMapTable table = standbyQueues[shard].poll();
+		synchronized(this) {
+			this.notify();
+		}
+		return table;
+	}
+
+	/**
+	 * Hand a standby table which will never be switched on to the allocator thread to close and delete,
+	 * one handed over after the thread stopped is left as garbage for the next load
+	 *
+	 * @param table the standby table
+	 */
+	public void discardLater(HashMapTable table) {
+		discardQueue.offer(table);
+		synchronized(this) {
+			this.notify();
+		}
+	}
+
+	private void discardAll() {
+		HashMapTable table;
+		while((table = discardQueue.poll()) != null) {
+			discard(table);
+		}
+	}
+
+	// close and delete a standby table which will never be switched on
+	private void discard(HashMapTable table) {
+		try {
+			table.close();
+			table.delete();
+		} catch (IOException ex) {
+			log.warn("Fail to discard standby table " + table.getFileName(), ex);
+		}
+	}
+
+	public void setStop() {
+		this.stop = true;
+		synchronized(this) {
+			this.notify();
+		}
+		log.info("Stopping standby table allocator thread " + this.getName());
+	}
+
+	public void awaitStop() throws InterruptedException {
+		this.countDownLatch.await();
+	}
+}
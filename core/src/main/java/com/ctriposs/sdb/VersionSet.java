@@ -0,0 +1,184 @@
+package com.ctriposs.sdb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ctriposs.sdb.table.AbstractMapTable;
+import com.google.common.base.Preconditions;
+
+/**
+ * Level versions of a shard, copy on write.
+ *
+ * Merges and table switching apply edits which publish a new current version, readers acquire the current version
+ * and release it when done. A table removed by an edit is closed and deleted once no version refers to it any more,
+ * a removed table must be marked unusable before the edit is applied.
+ */
+public class VersionSet {
+
+	static final Logger log = LoggerFactory.getLogger(VersionSet.class);
+
+	private final int levelNumber;
+	private volatile LevelVersion current;
+	// number of versions referring to each table, guarded by this
+	private final Map<AbstractMapTable, Integer> tableRefs = new IdentityHashMap<AbstractMapTable, Integer>();
+
+	public VersionSet() {
+		this(SDB.MAX_LEVEL + 1);
+	}
+
+	public VersionSet(int levelNumber) {
+		Preconditions.checkArgument(levelNumber > 0, "levelNumber (%s) must be positive", levelNumber);
+		this.levelNumber = levelNumber;
+		AbstractMapTable[][] levels = new AbstractMapTable[levelNumber][];
+		for(int i = 0; i < levelNumber; i++) {
+			levels[i] = new AbstractMapTable[0];
+		}
+		this.current = new LevelVersion(this, levels);
+	}
+
+	/**
+	 * Pin the current version, the caller must release it
+	 *
+	 * @return the current version
+	 */
+	public LevelVersion acquire() {
+		while(true) {
+			LevelVersion version = current;
+			// fails only if the version was replaced and released in between
+			if (version.retain()) return version;
+		}
+	}
+
+	/**
+	 * Unpinned current version, only for table counts, its tables may be closed any time
+	 *
+	 * @return the current version
+	 */
+	public LevelVersion current() {
+		return current;
+	}
+
+	public int size(int level) {
+		return current.size(level);
+	}
+
+	/**
+	 * Publish a new current version with the edit applied, edits are applied one at a time
+	 *
+	 * @param edit tables removed and added
+	 * @throws IllegalArgumentException if a removed table is not in its level
+	 */
+	public synchronized void apply(Edit edit) {
+		Preconditions.checkArgument(edit.levelNumber == levelNumber, "edit has %s levels, %s expected", edit.levelNumber, levelNumber);
+		LevelVersion base = current;
+		AbstractMapTable[][] levels = new AbstractMapTable[levelNumber][];
+		for(int level = 0; level < levelNumber; level++) {
+			List<AbstractMapTable> tables = new ArrayList<AbstractMapTable>(edit.firstAdded[level]);
+			for(AbstractMapTable table : base.getTables(level)) {
+				if (!containsTable(edit.removed[level], table)) {
+					tables.add(table);
+				}
+			}
+			tables.addAll(edit.lastAdded[level]);
+			for(AbstractMapTable table : edit.removed[level]) {
+				Preconditions.checkArgument(base.contains(level, table), "table %s is not in level %s", table.getFileName(), level);
+			}
+			levels[level] = tables.toArray(new AbstractMapTable[tables.size()]);
+		}
+
+		LevelVersion version = new LevelVersion(this, levels);
+		for(AbstractMapTable[] tables : levels) {
+			for(AbstractMapTable table : tables) {
+				Integer count = tableRefs.get(table);
+				tableRefs.put(table, count == null ? 1 : count + 1);
+			}
+		}
+		current = version;
+		base.release();
+	}
+
+	private static boolean containsTable(List<AbstractMapTable> tables, AbstractMapTable table) {
+		for(AbstractMapTable t : tables) {
+			if (t == table) return true;
+		}
+		return false;
+	}
+
+	// the version is neither current nor pinned any more, close and delete the tables it referred to last
+	void releaseTables(LevelVersion version) {
+		List<AbstractMapTable> obsolete = new ArrayList<AbstractMapTable>();
+		synchronized(this) {
+			for(int level = 0; level < version.getLevelNumber(); level++) {
+				for(AbstractMapTable table : version.getTables(level)) {
+					int count = tableRefs.get(table) - 1;
+					if (count == 0) {
+						tableRefs.remove(table);
+						obsolete.add(table);
+					} else {
+						tableRefs.put(table, count);
+					}
+				}
+			}
+		}
+		for(AbstractMapTable table : obsolete) {
+			try {
+				table.close();
+				table.delete();
+			} catch (IOException e) {
+				log.warn("Fail to delete obsolete table " + table.getFileName(), e);
+			}
+		}
+	}
+
+	/**
+	 * Tables removed from and added to levels, applied at once
+	 */
+	public static class Edit {
+
+		private final int levelNumber;
+		private final List<AbstractMapTable>[] removed;
+		private final List<AbstractMapTable>[] firstAdded;
+		private final List<AbstractMapTable>[] lastAdded;
+
+		public Edit() {
+			this(SDB.MAX_LEVEL + 1);
+		}
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		public Edit(int levelNumber) {
+			this.levelNumber = levelNumber;
+			this.removed = new List[levelNumber];
+			this.firstAdded = new List[levelNumber];
+			this.lastAdded = new List[levelNumber];
+			for(int i = 0; i < levelNumber; i++) {
+				removed[i] = new ArrayList<AbstractMapTable>();
+				firstAdded[i] = new ArrayList<AbstractMapTable>();
+				lastAdded[i] = new ArrayList<AbstractMapTable>();
+			}
+		}
+
+		public Edit remove(int level, AbstractMapTable table) {
+			removed[level].add(table);
+			return this;
+		}
+
+		/**
+		 * Add the table before the tables of the level, tables added first keep the order they are added in
+		 */
+		public Edit addFirst(int level, AbstractMapTable table) {
+			firstAdded[level].add(table);
+			return this;
+		}
+
+		public Edit addLast(int level, AbstractMapTable table) {
+			lastAdded[level].add(table);
+			return this;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package com.ctriposs.sdb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.ctriposs.sdb.table.AbstractMapTable;
+import com.google.common.base.Preconditions;
+
+/**
+ * A group of put/delete operations applied together by {@link SDB#write(WriteBatch)}.
+ *
+ * Operations are grouped by shard on write, all operations of one shard land in the
+ * same active HashMapTable with a single append reservation, later operations on the same key win.
+ */
+public class WriteBatch {
+
+	private final List<Entry> entries;
+
+	public WriteBatch() {
+		this.entries = new ArrayList<Entry>();
+	}
+
+	public WriteBatch(int expectedSize) {
+		this.entries = new ArrayList<Entry>(expectedSize);
+	}
+
+	/**
+	 * Add a put operation with no timeout
+	 *
+	 * @param key the map entry key
+	 * @param value the map entry value
+	 * @return this batch
+	 */
+	public WriteBatch put(byte[] key, byte[] value) {
+		return this.put(key, value, AbstractMapTable.NO_TIMEOUT);
+	}
+
+	/**
+	 * Add a put operation with specific timeToLive
+	 *
+	 * @param key the map entry key
+	 * @param value the map entry value
+	 * @param timeToLive time to live
+	 * @return this batch
+	 */
+	public WriteBatch put(byte[] key, byte[] value, long timeToLive) {
+		Preconditions.checkArgument(key != null && key.length > 0, "key is empty");
+		Preconditions.checkArgument(value != null && value.length > 0, "value is empty");
+		entries.add(new Entry(key, value, timeToLive, false));
+		return this;
+	}
+
+	/**
+	 * Add a delete operation
+	 *
+	 * @param key the map entry key
+	 * @return this batch
+	 */
+	public WriteBatch delete(byte[] key) {
+		Preconditions.checkArgument(key != null && key.length > 0, "key is empty");
+		entries.add(new Entry(key, new byte[] {0}, AbstractMapTable.NO_TIMEOUT, true));
+		return this;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	public static class Entry {
+
+		private final byte[] key;
+		private final byte[] value;
+		private final long timeToLive;
+		private final boolean delete;
+
+		Entry(byte[] key, byte[] value, long timeToLive, boolean delete) {
+			this.key = key;
+			this.value = value;
+			this.timeToLive = timeToLive;
+			this.delete = delete;
+		}
+
+		public byte[] getKey() {
+			return key;
+		}
+
+		public byte[] getValue() {
+			return value;
+		}
+
+		public long getTimeToLive() {
+			return timeToLive;
+		}
+
+		public boolean isDelete() {
+			return delete;
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package com.ctriposs.sdb.merge;
+
+import com.ctriposs.sdb.stats.SDBStats;
+
+/**
+ * Token bucket limiting the bytes read and written by merges of all shards.
+ *
+ * Tokens refill at the configured rate up to a burst of 100 milliseconds. A caller takes the bytes it is about to
+ * read or write up front, running the bucket into debt if needed, then sleeps until the debt would be paid off,
+ * so concurrent merges queue up behind each other and the rate holds across compaction threads.
+ */
+public class CompactionRateLimiter {
+
+	private static final long NANOS_PER_SECOND = 1000L * 1000 * 1000;
+	private static final long BURST_TIME = 100L * 1000 * 1000; // 100 milliseconds
+
+	private final long bytesPerSecond;
+	private final long maxTokens;
+	private final SDBStats stats;
+
+	// guarded by this
+	private long tokens;
+	private long lastRefillTime;
+
+	/**
+	 * @param bytesPerSecond max merge I/O rate, 0 for unlimited
+	 * @param stats where throttled time is reported
+	 */
+	public CompactionRateLimiter(long bytesPerSecond, SDBStats stats) {
+		this.bytesPerSecond = bytesPerSecond;
+		this.maxTokens = Math.max(bytesPerSecond * BURST_TIME / NANOS_PER_SECOND, 1);
+		this.stats = stats;
+		this.tokens = this.maxTokens;
+		this.lastRefillTime = System.nanoTime();
+	}
+
+	public boolean isEnabled() {
+		return bytesPerSecond > 0;
+	}
+
+	/**
+	 * Take the bytes to be read or written by a merge, blocking while the rate is exceeded
+	 *
+	 * @param level the level being merged
+	 * @param bytes number of bytes
+	 * @return nanoseconds throttled
+	 */
+	public long acquire(int level, long bytes) {
+		if (bytesPerSecond <= 0 || bytes <= 0) return 0;
+
+		long waitTime;
+		synchronized(this) {
+			long now = System.nanoTime();
+			long elapsed = now - lastRefillTime;
+			if (elapsed > 0) {
+				// no overflow, elapsed is capped to the time filling up the bucket
+				long refill = Math.min(elapsed, maxTokens * NANOS_PER_SECOND / bytesPerSecond + 1) * bytesPerSecond / NANOS_PER_SECOND;
+				if (refill > 0) {
+					tokens = Math.min(tokens + refill, maxTokens);
+					lastRefillTime = now;
+				}
+			}
+			tokens -= bytes;
+			waitTime = tokens < 0 ? -tokens * NANOS_PER_SECOND / bytesPerSecond : 0;
+		}
+		if (waitTime <= 0) return 0;
+
+		long start = System.nanoTime();
+		try {
+			Thread.sleep(waitTime / 1000000, (int) (waitTime % 1000000));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		long throttled = System.nanoTime() - start;
+		stats.recordCompactionThrottled(level, throttled);
+		return throttled;
+	}
+}
@@ -0,0 +1,141 @@
+package com.ctriposs.sdb.merge;
+
+import java.util.BitSet;
+import java.util.Calendar;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Cron like schedule of major compactions, five fields separated by white space:
+ * minute(0-59) hour(0-23) day of month(1-31) month(1-12) day of week(0-7, 0 and 7 are Sunday).
+ *
+ * A field is *, a number, a range a-b, or a list of them separated by commas, * and ranges may have a step
+ * like 0-30/10. As in cron, if both day fields are restricted a day matching either of them matches.
+ * Times are in the local time zone.
+ */
+public class CompactionSchedule {
+
+	// enough to step over several years of month/day/hour/minute mismatches
+	private static final int MAX_STEPS = 10000;
+
+	private final String expression;
+	private final BitSet minutes;
+	private final BitSet hours;
+	private final BitSet daysOfMonth;
+	private final BitSet months;
+	private final BitSet daysOfWeek;
+	private final boolean anyDayOfMonth;
+	private final boolean anyDayOfWeek;
+
+	private CompactionSchedule(String expression, String[] fields) {
+		this.expression = expression;
+		this.minutes = parseField(fields[0], 0, 59, "minute");
+		this.hours = parseField(fields[1], 0, 23, "hour");
+		this.daysOfMonth = parseField(fields[2], 1, 31, "day of month");
+		this.months = parseField(fields[3], 1, 12, "month");
+		this.daysOfWeek = parseField(fields[4], 0, 7, "day of week");
+		if (this.daysOfWeek.get(7)) {
+			this.daysOfWeek.set(0);
+		}
+		this.anyDayOfMonth = fields[2].startsWith("*");
+		this.anyDayOfWeek = fields[4].startsWith("*");
+	}
+
+	/**
+	 * @param expression cron like expression, e.g. "30 2 * * *" for 2:30 every night
+	 * @return the schedule
+	 * @throws IllegalArgumentException if the expression is malformed
+	 */
+	public static CompactionSchedule parse(String expression) {
+		Preconditions.checkNotNull(expression);
+		String[] fields = expression.trim().split("\\s+");
+		Preconditions.checkArgument(fields.length == 5, "Schedule (%s) must have 5 fields: minute hour day-of-month month day-of-week", expression);
+		return new CompactionSchedule(expression.trim(), fields);
+	}
+
+	private static BitSet parseField(String field, int min, int max, String name) {
+		BitSet values = new BitSet(max + 1);
+		for(String part : field.split(",")) {
+			int step = 1;
+			int slash = part.indexOf('/');
+			if (slash >= 0) {
+				step = parseNumber(part.substring(slash + 1), 1, max, name);
+				part = part.substring(0, slash);
+			}
+			int from, to;
+			if (part.equals("*")) {
+				from = min;
+				to = max;
+			} else {
+				int dash = part.indexOf('-');
+				if (dash >= 0) {
+					from = parseNumber(part.substring(0, dash), min, max, name);
+					to = parseNumber(part.substring(dash + 1), from, max, name);
+				} else {
+					from = parseNumber(part, min, max, name);
+					to = slash >= 0 ? max : from;
+				}
+			}
+			for(int value = from; value <= to; value += step) {
+				values.set(value);
+			}
+		}
+		return values;
+	}
+
+	private static int parseNumber(String text, int min, int max, String name) {
+		int value;
+		try {
+			value = Integer.parseInt(text);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid " + name + " (" + text + ") in schedule");
+		}
+		Preconditions.checkArgument(value >= min && value <= max, "%s (%s) must be between %s and %s", name, value, min, max);
+		return value;
+	}
+
+	private boolean isDayMatched(Calendar calendar) {
+		boolean dayOfMonth = daysOfMonth.get(calendar.get(Calendar.DAY_OF_MONTH));
+		boolean dayOfWeek = daysOfWeek.get(calendar.get(Calendar.DAY_OF_WEEK) - 1);
+		if (anyDayOfMonth) return dayOfWeek;
+		if (anyDayOfWeek) return dayOfMonth;
+		return dayOfMonth || dayOfWeek;
+	}
+
+	/**
+	 * @param time time in milliseconds
+	 * @return the first scheduled minute after the time in milliseconds, Long.MAX_VALUE if it never comes
+	 */
+	public long getNextTime(long time) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		calendar.add(Calendar.MINUTE, 1);
+		for(int i = 0; i < MAX_STEPS; i++) {
+			if (!months.get(calendar.get(Calendar.MONTH) + 1)) {
+				calendar.set(Calendar.DAY_OF_MONTH, 1);
+				calendar.add(Calendar.MONTH, 1);
+				calendar.set(Calendar.HOUR_OF_DAY, 0);
+				calendar.set(Calendar.MINUTE, 0);
+			} else if (!this.isDayMatched(calendar)) {
+				calendar.add(Calendar.DAY_OF_MONTH, 1);
+				calendar.set(Calendar.HOUR_OF_DAY, 0);
+				calendar.set(Calendar.MINUTE, 0);
+			} else if (!hours.get(calendar.get(Calendar.HOUR_OF_DAY))) {
+				calendar.add(Calendar.HOUR_OF_DAY, 1);
+				calendar.set(Calendar.MINUTE, 0);
+			} else if (!minutes.get(calendar.get(Calendar.MINUTE))) {
+				calendar.add(Calendar.MINUTE, 1);
+			} else {
+				return calendar.getTimeInMillis();
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+	@Override
+	public String toString() {
+		return expression;
+	}
+}
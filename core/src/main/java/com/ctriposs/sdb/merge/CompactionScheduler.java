@@ -0,0 +1,385 @@
+package com.ctriposs.sdb.merge;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ctriposs.sdb.SDB;
+import com.ctriposs.sdb.VersionSet;
+import com.ctriposs.sdb.stats.SDBStats;
+import com.google.common.base.Preconditions;
+
+/**
+ * Schedules level 0 and level 1 merges of all shards on a fixed size compaction pool.
+ *
+ * Memory table switches and finished merges signal the scheduler, which hands free workers the pending
+ * merges with the highest score(queue size relative to the slowdown trigger) across shards,
+ * at most one merge of each shard and level runs at a time.
+ *
+ * Major compactions requested or fired by the configured schedule take free workers first, a shard being
+ * major compacted runs no regular merge of the level being compacted.
+ */
+public class CompactionScheduler extends Thread {
+
+	static final Logger log = LoggerFactory.getLogger(CompactionScheduler.class);
+
+	private static final int MAX_SLEEP_TIME = 2 * 1000; // 2 seconds
+	private static final int LEVELS = 2; // level 0 and level 1 merges
+
+	private final SDBStats stats;
+	private final Level0Merger[] level0Mergers;
+	private final Level1Merger[] level1Mergers;
+	private final int threadNumber;
+	private final ExecutorService compactionPool;
+	private final ExecutorService subCompactionPool;
+
+	// guarded by this
+	private final boolean[][] running;
+	private final long[][] pendingSince;
+	private int runningNumber = 0;
+	private boolean signaled = false;
+	private final List<MajorCompaction> majorCompactions = new LinkedList<MajorCompaction>();
+	private final CompactionSchedule schedule;
+	private long nextScheduledTime = Long.MAX_VALUE;
+	private MajorCompaction scheduledCompaction;
+
+	private volatile boolean stop = false;
+	private final CountDownLatch countDownLatch = new CountDownLatch(1);
+
+	public CompactionScheduler(SDB sdb, VersionSet[] versionSets, int threadNumber, SDBStats stats) {
+		this.stats = stats;
+		this.threadNumber = threadNumber;
+		int shardNumber = versionSets.length;
+		this.level0Mergers = new Level0Merger[shardNumber];
+		this.level1Mergers = new Level1Merger[shardNumber];
+		// one bucket shared by the merges of all shards
+		CompactionRateLimiter rateLimiter = new CompactionRateLimiter(sdb.getConfig().getCompactionRateLimit(), stats);
+		// workers of sub compactions, a merge runs one of its sub compactions in its own thread
+		int subCompactionNumber = sdb.getConfig().getSubCompactionNumber();
+		this.subCompactionPool = subCompactionNumber > 1 ? newPool("sdb-subcompaction-", subCompactionNumber - 1) : null;
+		for(short i = 0; i < shardNumber; i++) {
+			level0Mergers[i] = new Level0Merger(sdb, versionSets[i], i, stats, rateLimiter, subCompactionPool);
+			level1Mergers[i] = new Level1Merger(sdb, versionSets[i], i, stats, rateLimiter, subCompactionPool);
+		}
+		this.running = new boolean[shardNumber][LEVELS];
+		this.pendingSince = new long[shardNumber][LEVELS];
+		this.compactionPool = newPool("sdb-compaction-", threadNumber);
+		this.stats.recordCompactionThreads(threadNumber);
+		this.schedule = sdb.getConfig().getCompactionSchedule();
+		if (this.schedule != null) {
+			this.nextScheduledTime = this.schedule.getNextTime(System.currentTimeMillis());
+		}
+		this.setDaemon(true);
+	}
+
+	private static ExecutorService newPool(final String namePrefix, int threadNumber) {
+		return Executors.newFixedThreadPool(threadNumber, new ThreadFactory() {
+
+			private final AtomicInteger count = new AtomicInteger(0);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, namePrefix + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		});
+	}
+
+	@Override
+	public void run() {
+		while(!stop) {
+			try {
+				synchronized(this) {
+					this.schedule();
+					if (!signaled && !stop) {
+						this.wait(MAX_SLEEP_TIME);
+					}
+					signaled = false;
+				}
+			} catch (Exception ex) {
+				log.error("Error occured in the compaction scheduler", ex);
+			}
+		}
+
+		// running merges finish their current round
+		compactionPool.shutdown();
+		try {
+			while(!compactionPool.awaitTermination(MAX_SLEEP_TIME, TimeUnit.MILLISECONDS)) {
+				log.info("Waiting running merges to finish...");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// no merge is running any more
+		if (subCompactionPool != null) {
+			subCompactionPool.shutdown();
+		}
+		synchronized(this) {
+			for(MajorCompaction compaction : majorCompactions) {
+				while(!compaction.pendingShards.isEmpty()) {
+					compaction.pendingShards.poll();
+					compaction.shardDone(MajorCompaction.STEPS_PER_SHARD, null);
+				}
+			}
+			majorCompactions.clear();
+		}
+
+		this.countDownLatch.countDown();
+		log.info("Stopped compaction scheduler thread " + this.getName());
+	}
+
+	// caller must hold the lock of this
+	private void schedule() {
+		if (System.currentTimeMillis() >= nextScheduledTime && !stop) {
+			if (scheduledCompaction == null || scheduledCompaction.isDone()) {
+				log.info("Starting scheduled major compaction of all shards, schedule " + schedule);
+				scheduledCompaction = this.compactShards(allShards());
+			} else {
+				log.warn("Skipped scheduled major compaction since the last one is still running");
+			}
+			nextScheduledTime = schedule.getNextTime(System.currentTimeMillis());
+		}
+		this.scheduleMajorCompactions();
+
+		long now = System.nanoTime();
+		int[] pending = new int[level0Mergers.length];
+		double[][] scores = new double[level0Mergers.length][LEVELS];
+		for(int shard = 0; shard < level0Mergers.length; shard++) {
+			scores[shard][SDB.LEVEL0] = level0Mergers[shard].getScore();
+			scores[shard][SDB.LEVEL1] = level1Mergers[shard].getScore();
+			for(int level = 0; level < LEVELS; level++) {
+				if (running[shard][level] || scores[shard][level] <= 0) {
+					pendingSince[shard][level] = 0;
+				} else if (pendingSince[shard][level] == 0) {
+					pendingSince[shard][level] = now;
+				}
+			}
+		}
+
+		while(runningNumber < threadNumber && !stop) {
+			int bestShard = -1, bestLevel = -1;
+			double bestScore = 0;
+			for(int shard = 0; shard < scores.length; shard++) {
+				for(int level = 0; level < LEVELS; level++) {
+					if (!running[shard][level] && scores[shard][level] > bestScore) {
+						bestScore = scores[shard][level];
+						bestShard = shard;
+						bestLevel = level;
+					}
+				}
+			}
+			if (bestShard < 0) break;
+
+			stats.recordCompactionWait(now - pendingSince[bestShard][bestLevel]);
+			pendingSince[bestShard][bestLevel] = 0;
+			running[bestShard][bestLevel] = true;
+			runningNumber++;
+			compactionPool.execute(new MergeTask(bestShard, bestLevel));
+		}
+
+		for(int shard = 0; shard < scores.length; shard++) {
+			for(int level = 0; level < LEVELS; level++) {
+				if (!running[shard][level] && scores[shard][level] > 0) {
+					pending[shard]++;
+				}
+			}
+			stats.recordCompactionPending(shard, pending[shard]);
+		}
+		stats.recordCompactionRunning(runningNumber);
+	}
+
+	// caller must hold the lock of this, hands pending shards of major compactions to free workers
+	private void scheduleMajorCompactions() {
+		Iterator<MajorCompaction> iter = majorCompactions.iterator();
+		while(iter.hasNext()) {
+			MajorCompaction compaction = iter.next();
+			Iterator<Short> shardIter = compaction.pendingShards.iterator();
+			while(shardIter.hasNext()) {
+				short shard = shardIter.next();
+				if (compaction.isCancelled()) {
+					shardIter.remove();
+					compaction.shardDone(MajorCompaction.STEPS_PER_SHARD, null);
+				} else if (runningNumber < threadNumber && !stop && !running[shard][SDB.LEVEL0] && !running[shard][SDB.LEVEL1]) {
+					shardIter.remove();
+					running[shard][SDB.LEVEL0] = true;
+					running[shard][SDB.LEVEL1] = true;
+					runningNumber++;
+					compactionPool.execute(new MajorCompactionTask(compaction, shard));
+				}
+			}
+			if (compaction.pendingShards.isEmpty()) {
+				iter.remove();
+			}
+		}
+	}
+
+	private short[] allShards() {
+		short[] shards = new short[level0Mergers.length];
+		for(short i = 0; i < shards.length; i++) {
+			shards[i] = i;
+		}
+		return shards;
+	}
+
+	/**
+	 * Start a major compaction of the shards in the background
+	 *
+	 * @param shards shards to compact
+	 * @return handle of the compaction
+	 */
+	public MajorCompaction compactShards(short[] shards) {
+		for(short shard : shards) {
+			Preconditions.checkArgument(shard >= 0 && shard < level0Mergers.length, "shard (%s) must be between 0 and %s", shard, level0Mergers.length - 1);
+		}
+		MajorCompaction compaction = new MajorCompaction(this, shards);
+		synchronized(this) {
+			if (stop) { // nothing will be scheduled any more
+				compaction.cancel();
+				while(!compaction.pendingShards.isEmpty()) {
+					compaction.pendingShards.poll();
+					compaction.shardDone(MajorCompaction.STEPS_PER_SHARD, null);
+				}
+				return compaction;
+			}
+			majorCompactions.add(compaction);
+			signaled = true;
+			this.notify();
+		}
+		return compaction;
+	}
+
+	/**
+	 * Start a major compaction of all shards in the background
+	 *
+	 * @return handle of the compaction
+	 */
+	public MajorCompaction compactAll() {
+		return this.compactShards(allShards());
+	}
+
+	// the level 0 step of a major compaction is done, regular level 0 merges of the shard may run again
+	private void releaseLevel0(int shard) {
+		synchronized(this) {
+			running[shard][SDB.LEVEL0] = false;
+			signaled = true;
+			this.notify();
+		}
+	}
+
+	/**
+	 * Wake up the scheduler to look for pending merges, called when a memory table is moved to level 0
+	 */
+	public void signal() {
+		synchronized(this) {
+			signaled = true;
+			this.notify();
+		}
+	}
+
+	private class MergeTask implements Runnable {
+
+		private final int shard;
+		private final int level;
+
+		MergeTask(int shard, int level) {
+			this.shard = shard;
+			this.level = level;
+		}
+
+		@Override
+		public void run() {
+			boolean failed = false;
+			try {
+				if (level == SDB.LEVEL0) {
+					level0Mergers[shard].merge();
+				} else {
+					level1Mergers[shard].merge();
+				}
+			} catch (Exception ex) {
+				failed = true;
+				log.error("Error occured in the level " + level + " merging of shard " + shard, ex);
+			} finally {
+				synchronized(CompactionScheduler.this) {
+					running[shard][level] = false;
+					runningNumber--;
+					if (!failed) { // a failed merge is retried on the next periodic check
+						signaled = true;
+						CompactionScheduler.this.notify();
+					}
+				}
+			}
+		}
+	}
+
+	private class MajorCompactionTask implements Runnable {
+
+		private final MajorCompaction compaction;
+		private final short shard;
+
+		MajorCompactionTask(MajorCompaction compaction, short shard) {
+			this.compaction = compaction;
+			this.shard = shard;
+		}
+
+		@Override
+		public void run() {
+			int steps = 0;
+			boolean level0Released = false;
+			Exception failure = null;
+			try {
+				log.info("Start major compaction of shard " + shard);
+				level0Mergers[shard].mergeAll(compaction);
+				releaseLevel0(shard);
+				level0Released = true;
+				compaction.stepDone();
+				steps++;
+				level1Mergers[shard].mergeAll(compaction);
+				compaction.stepDone();
+				steps++;
+				level1Mergers[shard].purgeLevel2(compaction);
+				compaction.stepDone();
+				steps++;
+				log.info("End major compaction of shard " + shard);
+			} catch (Exception ex) {
+				failure = ex;
+				log.error("Error occured in the major compaction of shard " + shard, ex);
+			} finally {
+				synchronized(CompactionScheduler.this) {
+					if (!level0Released) {
+						running[shard][SDB.LEVEL0] = false;
+					}
+					running[shard][SDB.LEVEL1] = false;
+					runningNumber--;
+					signaled = true;
+					CompactionScheduler.this.notify();
+				}
+				compaction.shardDone(MajorCompaction.STEPS_PER_SHARD - steps, failure);
+			}
+		}
+	}
+
+	public void setStop() {
+		this.stop = true;
+		for(int i = 0; i < level0Mergers.length; i++) {
+			level0Mergers[i].setStop();
+			level1Mergers[i].setStop();
+		}
+		this.signal();
+		log.info("Stopping compaction scheduler thread " + this.getName());
+	}
+
+	public void awaitStop() throws InterruptedException {
+		this.countDownLatch.await();
+	}
+}
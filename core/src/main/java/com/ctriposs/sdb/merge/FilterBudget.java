@@ -0,0 +1,101 @@
+package com.ctriposs.sdb.merge;
+
+import com.ctriposs.sdb.DBConfig;
+import com.ctriposs.sdb.LevelVersion;
+import com.ctriposs.sdb.SDB;
+import com.ctriposs.sdb.table.AbstractMapTable;
+import com.ctriposs.sdb.table.FilterPolicy;
+
+/**
+ * Spreads the filter memory budget of a shard across the sorted levels.
+ *
+ * A lookup of a missing key probes every level 1 table and the one level 2 table owning its key hash, a false
+ * positive costs a search of the table. With a bloom filter of b bits per key the false positive rate is about
+ * e^(-b ln2^2), and the expected cost of false positives per lookup, the sum over levels of probes * cost * rate,
+ * is smallest for a given memory when the rate of every level is proportional to entries / (probes * cost).
+ * Levels of many entries get fewer bits per key, and a level whose rate would reach 1 gets no filter.
+ *
+ * Tables keep the filter they were written with, the allocation is worked out from the current shape of the
+ * shard whenever a merge writes new tables.
+ */
+public class FilterBudget {
+
+	private static final double LN2_SQUARED = Math.log(2) * Math.log(2);
+	private static final double MAX_BITS_PER_KEY = 64;
+
+	/**
+	 * Filter policy of new tables of a level, the configured policy of the level unless a filter memory budget is set
+	 *
+	 * @param version current version of the shard
+	 * @param level level of the new tables
+	 * @param movedEntries entries of the merged tables moving into the level, they leave level 1 if merged into level 2
+	 * @return the filter policy
+	 */
+	public static FilterPolicy getFilterPolicy(DBConfig config, LevelVersion version, int level, long movedEntries) {
+		if (config.getFilterMemoryBudget() <= 0) return config.getFilterPolicy(level);
+
+		long[] entries = new long[SDB.MAX_LEVEL + 1];
+		double[] probes = new double[SDB.MAX_LEVEL + 1];
+		double[] costs = new double[SDB.MAX_LEVEL + 1];
+		for(int i = SDB.LEVEL1; i <= SDB.MAX_LEVEL; i++) {
+			for(AbstractMapTable table : version.getTables(i)) {
+				entries[i] += table.getAppendedSize();
+			}
+			costs[i] = config.getFilterLookupCost(i);
+		}
+		entries[level] += movedEntries;
+		if (level == SDB.LEVEL1) {
+			probes[SDB.LEVEL1] = version.size(SDB.LEVEL1) + 1;
+		} else {
+			entries[SDB.LEVEL1] = Math.max(entries[SDB.LEVEL1] - movedEntries, 0);
+			probes[SDB.LEVEL1] = version.size(SDB.LEVEL1);
+		}
+		// level 2 tables cover disjoint key hash ranges
+		probes[SDB.LEVEL2] = 1;
+
+		long budgetBits = config.getFilterMemoryBudget() * 8 / config.getShardNumber();
+		double bitsPerKey = allocate(budgetBits, entries, probes, costs)[level];
+		return bitsPerKey > 0 ? FilterPolicy.blockedBloom(Math.min(bitsPerKey, MAX_BITS_PER_KEY)) : FilterPolicy.none();
+	}
+
+	/**
+	 * @param budgetBits bits of all filters
+	 * @param entries entries by level
+	 * @param probes tables probed by a lookup of a missing key by level
+	 * @param costs relative cost of a false positive by level
+	 * @return bits per key by level, 0 for no filter
+	 */
+	static double[] allocate(long budgetBits, long[] entries, double[] probes, double[] costs) {
+		double[] bitsPerKey = new double[entries.length];
+		boolean[] filtered = new boolean[entries.length];
+		for(int i = 0; i < entries.length; i++) {
+			filtered[i] = entries[i] > 0 && probes[i] > 0 && costs[i] > 0;
+		}
+
+		// the rate of a level is lambda * entries / (probes * cost), lambda is set by the budget
+		boolean dropped = true;
+		while(dropped) {
+			dropped = false;
+			double totalEntries = 0;
+			double weightedLog = 0;
+			for(int i = 0; i < entries.length; i++) {
+				if (!filtered[i]) continue;
+				totalEntries += entries[i];
+				weightedLog += entries[i] * Math.log(entries[i] / (probes[i] * costs[i]));
+			}
+			if (totalEntries == 0) break;
+			double logLambda = -(budgetBits * LN2_SQUARED + weightedLog) / totalEntries;
+			for(int i = 0; i < entries.length; i++) {
+				if (!filtered[i]) continue;
+				bitsPerKey[i] = -(logLambda + Math.log(entries[i] / (probes[i] * costs[i]))) / LN2_SQUARED;
+				if (bitsPerKey[i] <= 0) {
+					// the rate would reach 1, its memory goes to the other levels
+					filtered[i] = false;
+					bitsPerKey[i] = 0;
+					dropped = true;
+				}
+			}
+		}
+		return bitsPerKey;
+	}
+}
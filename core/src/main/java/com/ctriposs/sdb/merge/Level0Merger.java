@@ -2,224 +2,341 @@ package com.ctriposs.sdb.merge;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.PriorityQueue;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import com.ctriposs.sdb.stats.SDBStats;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.ctriposs.sdb.LevelQueue;
+import com.ctriposs.sdb.LevelVersion;
 import com.ctriposs.sdb.SDB;
+import com.ctriposs.sdb.VersionSet;
 import com.ctriposs.sdb.table.AbstractMapTable;
-import com.ctriposs.sdb.table.ByteArrayWrapper;
+import com.ctriposs.sdb.table.AbstractSortedMapTable.IndexType;
+import com.ctriposs.sdb.table.FilterPolicy;
 import com.ctriposs.sdb.table.HashMapTable;
 import com.ctriposs.sdb.table.IMapEntry;
-import com.ctriposs.sdb.table.InMemIndex;
-import com.ctriposs.sdb.table.MMFMapTable;
+import com.ctriposs.sdb.table.PackedMapTable;
+import com.ctriposs.sdb.table.SortedMapTableBuilder;
 import com.ctriposs.sdb.utils.BytesUtil;
 import com.ctriposs.sdb.utils.DateFormatter;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 /**
- * Level 0 to 1 merge sorting thread
+ * Level 0 to 1 merge sorting of a shard, run by the compaction scheduler
  *
  * @author bulldog
  *
  */
-public class Level0Merger extends Thread {
+public class Level0Merger {
 
 	static final Logger log = LoggerFactory.getLogger(Level0Merger.class);
 
-	private static final int MAX_SLEEP_TIME = 2 * 1000; // 2 seconds
 	public static final int DEFAULT_MERGE_WAYS = 2; // 2 way merge
+	// bytes written between two takes from the rate limiter
+	private static final int WRITE_BATCH_BYTES = 64 * 1024;
+	// milliseconds between two checks of writers still copying into a table to merge
+	private static final long WRITE_CHECK_INTERVAL = 1;
 
-	private List<LevelQueue> levelQueueList;
+	private VersionSet versionSet;
 	private SDB sdb;
     private final SDBStats stats;
+	private final CompactionRateLimiter rateLimiter;
+	private final ExecutorService subCompactionExecutor;
 
 	private volatile boolean stop = false;
-	private CountDownLatch countDownLatch;
 	private short shard;
 
-	public Level0Merger(SDB sdb, List<LevelQueue> levelQueueList, CountDownLatch countDownLatch, short shard,
-                        SDBStats stats) {
+	public Level0Merger(SDB sdb, VersionSet versionSet, short shard, SDBStats stats, CompactionRateLimiter rateLimiter,
+			ExecutorService subCompactionExecutor) {
 		this.sdb = sdb;
-		this.levelQueueList = levelQueueList;
-		this.countDownLatch = countDownLatch;
+		this.versionSet = versionSet;
 		this.shard = shard;
         this.stats = stats;
+		this.rateLimiter = rateLimiter;
+		this.subCompactionExecutor = subCompactionExecutor;
 	}
 
-	@Override
-	public void run() {
-		while(!stop) {
-			try {
-				LevelQueue levelQueue0 = levelQueueList.get(SDB.LEVEL0);
-				if (levelQueue0 != null && levelQueue0.size() >= DEFAULT_MERGE_WAYS) {
-					log.info("Start running level 0 merge thread at " + DateFormatter.formatCurrentDate());
-					log.info("Current queue size at level 0 is " + levelQueue0.size());
+	/**
+	 * Urgency of merging, the level 0 queue size relative to its slowdown trigger,
+	 * a tiny score if only hash index snapshots are to be saved
+	 *
+	 * @return score, 0 if there is nothing to do
+	 */
+	public double getScore() {
+		int size = versionSet.size(SDB.LEVEL0);
+		if (size >= DEFAULT_MERGE_WAYS) {
+			return (double) size / sdb.getConfig().getLevel0SlowdownTrigger();
+		}
+		for(HashMapTable table : getSnapshotTables(versionSet.current(), DEFAULT_MERGE_WAYS)) {
+			if (!table.isHashIndexSnapshotSaved()) return Double.MIN_VALUE;
+		}
+		return 0;
+	}
 
-					long start = System.nanoTime();
-					LevelQueue levelQueue1 = levelQueueList.get(SDB.LEVEL1);
-					mergeSort(levelQueue0, levelQueue1, DEFAULT_MERGE_WAYS, sdb.getDir(), shard);
-					stats.recordMerging(SDB.LEVEL0, System.nanoTime() - start);
+	/**
+	 * Run one round, save hash index snapshots of waiting tables then merge the oldest tables if there are enough
+	 *
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public void merge() throws IOException, ClassNotFoundException {
+		for(HashMapTable table : getSnapshotTables(versionSet.current(), DEFAULT_MERGE_WAYS)) {
+			if (stop) return;
+			table.saveHashIndexSnapshot();
+		}
+		if (!stop && versionSet.size(SDB.LEVEL0) >= DEFAULT_MERGE_WAYS) {
+			log.info("Start running level 0 merging of shard " + shard + " at " + DateFormatter.formatCurrentDate());
+			log.info("Current queue size at level 0 is " + versionSet.size(SDB.LEVEL0));
 
-					log.info("Stopped running level 0 merge thread at " + DateFormatter.formatCurrentDate());
+			long start = System.nanoTime();
+			mergeSort(versionSet, DEFAULT_MERGE_WAYS, sdb.getDir(), shard, rateLimiter,
+					subCompactionExecutor, sdb.getConfig().getSubCompactionNumber(), this.getFilterPolicy(DEFAULT_MERGE_WAYS),
+					sdb.getConfig().getIndexType(SDB.LEVEL1));
+			stats.recordMerging(SDB.LEVEL0, System.nanoTime() - start);
 
-				} else {
-					Thread.sleep(MAX_SLEEP_TIME);
-				}
+			log.info("Stopped running level 0 merging of shard " + shard + " at " + DateFormatter.formatCurrentDate());
+		}
+	}
 
-			} catch (Exception ex) {
-				log.error("Error occured in the level0 merge dumper", ex);
+	/**
+	 * Merge all level 0 tables of the shard into level 1 for a major compaction, tables added meanwhile are left out
+	 *
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	void mergeAll(MajorCompaction compaction) throws IOException, ClassNotFoundException {
+		int remaining = versionSet.size(SDB.LEVEL0);
+		while(remaining > 0 && !stop && !compaction.isCancelled()) {
+			int ways = getMajorMergeWays(versionSet.current(), remaining);
+			log.info("Start major compaction of " + ways + " level 0 tables of shard " + shard);
+
+			long start = System.nanoTime();
+			mergeSort(versionSet, ways, sdb.getDir(), shard, rateLimiter,
+					subCompactionExecutor, sdb.getConfig().getSubCompactionNumber(), this.getFilterPolicy(ways),
+					sdb.getConfig().getIndexType(SDB.LEVEL1));
+			stats.recordMerging(SDB.LEVEL0, System.nanoTime() - start);
+			remaining -= ways;
+		}
+	}
+
+	// number of the oldest tables whose data fits in one mapped level 1 table, at least one,
+	// level 0 tables are only removed by this merger so the version needs no pin
+	private static int getMajorMergeWays(LevelVersion version, int maxWays) {
+		AbstractMapTable[] tables = version.getTables(SDB.LEVEL0);
+		int ways = 0;
+		long dataSize = 0;
+		while(ways < maxWays && ways < tables.length) {
+			dataSize += tables[tables.length - 1 - ways].getAppendedDataSize();
+			if (ways > 0 && dataSize > Integer.MAX_VALUE) break;
+			ways++;
+		}
+		return Math.max(ways, 1);
+	}
+
+	// sort the entries of every table by key hash, in parallel up to the number of sub compactions
+	private static List<long[]> sortEntries(List<HashMapTable> tables, ExecutorService executor, int subCompactions) throws IOException {
+		int parallelism = executor != null ? Math.max(Math.min(subCompactions, tables.size()), 1) : 1;
+		List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+		for(int i = 1; i < parallelism; i++) {
+			futures.add(executor.submit(new SortTask(tables.get(i))));
+		}
+		List<long[]> sortedEntriesList = new ArrayList<long[]>(tables.size());
+		sortedEntriesList.add(tables.get(0).getSortedEntries());
+		for(Future<long[]> future : futures) {
+			try {
+				sortedEntriesList.add(Uninterruptibles.getUninterruptibly(future));
+			} catch (ExecutionException e) {
+				Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+				throw Throwables.propagate(e.getCause());
 			}
+		}
+		// the calling thread sorts the tables beyond the parallelism
+		for(int i = parallelism; i < tables.size(); i++) {
+			sortedEntriesList.add(tables.get(i).getSortedEntries());
+		}
+		return sortedEntriesList;
+	}
+
+	static class SortTask implements Callable<long[]> {
+
+		private final HashMapTable hmTable;
+
+		SortTask(HashMapTable hmTable) {
+			this.hmTable = hmTable;
+		}
+
+		@Override
+		public long[] call() throws IOException {
+			return hmTable.getSortedEntries();
+		}
+	}
+
+	// filter of the level 1 table merged from the oldest level 0 tables
+	private FilterPolicy getFilterPolicy(int ways) {
+		LevelVersion version = versionSet.current();
+		AbstractMapTable[] level0Tables = version.getTables(SDB.LEVEL0);
+		long entries = 0;
+		for(int i = 0; i < ways && i < level0Tables.length; i++) {
+			entries += level0Tables[level0Tables.length - 1 - i].getAppendedSize();
+		}
+		return FilterBudget.getFilterPolicy(sdb.getConfig(), version, SDB.LEVEL1, entries);
+	}
 
+	// immutable tables waiting in level 0 are loaded from their hash index snapshots after a restart,
+	// the oldest tables about to be merged are skipped
+	private static List<HashMapTable> getSnapshotTables(LevelVersion version, int ways) {
+		List<HashMapTable> tables = new ArrayList<HashMapTable>();
+		int size = version.size(SDB.LEVEL0);
+		int count = size >= ways ? size - ways : size;
+		for(int i = 0; i < count; i++) {
+			tables.add((HashMapTable) version.getTables(SDB.LEVEL0)[i]);
 		}
+		return tables;
+	}
+
+	public static void mergeSort(VersionSet versionSet, int ways, String dir, short shard) throws IOException, ClassNotFoundException {
+		mergeSort(versionSet, ways, dir, shard, null, null, 1);
+	}
 
-		this.countDownLatch.countDown();
-		log.info("Stopped level 0 merge thread " + this.getName());
+	public static void mergeSort(VersionSet versionSet, int ways, String dir, short shard, CompactionRateLimiter rateLimiter,
+			ExecutorService executor, int subCompactions) throws IOException, ClassNotFoundException {
+		mergeSort(versionSet, ways, dir, shard, rateLimiter, executor, subCompactions, FilterPolicy.DEFAULT, IndexType.SORTED);
 	}
 
-	public static void mergeSort(LevelQueue source, LevelQueue target, int ways, String dir, short shard) throws IOException, ClassNotFoundException {
+	/**
+	 * Merge the oldest level 0 tables into a new level 1 table, the merged tables are deleted
+	 * once no pinned version refers to them.
+	 *
+	 * Level 0 tables are only removed by this merge, so the merged tables need no pin meanwhile.
+	 *
+	 * @param rateLimiter limits bytes written to the level 1 table, null for unlimited
+	 * @param executor sorts source tables besides the calling thread, null to sort in the calling thread only
+	 * @param subCompactions max number of source tables sorted in parallel
+	 * @param filterPolicy key filter of the level 1 table
+	 * @param indexType index of the level 1 table
+	 */
+	public static void mergeSort(VersionSet versionSet, int ways, String dir, short shard, CompactionRateLimiter rateLimiter,
+			ExecutorService executor, int subCompactions, FilterPolicy filterPolicy, IndexType indexType)
+			throws IOException, ClassNotFoundException {
 		List<HashMapTable> tables = new ArrayList<HashMapTable>(ways);
-		source.getReadLock().lock();
-		try {
-			Iterator<AbstractMapTable> iter = source.descendingIterator();
-			for(int i = 0; i < ways; i++) {
-				tables.add((HashMapTable) iter.next());
+		AbstractMapTable[] level0Tables = versionSet.current().getTables(SDB.LEVEL0);
+		for(int i = 0; i < ways; i++) {
+			tables.add((HashMapTable) level0Tables[level0Tables.length - 1 - i]);
+		}
+		// writers of a table just switched off may still be copying into the space they reserved
+		for(HashMapTable table : tables) {
+			while(!table.isWriteCompleted()) {
+				Uninterruptibles.sleepUninterruptibly(WRITE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
 			}
-		} finally {
-			source.getReadLock().unlock();
 		}
 
 		int expectedInsertions = 0;
+		long dataFileSize = 0;
 		for(HashMapTable table : tables) {
 			expectedInsertions += table.getRealSize();
+			dataFileSize += table.getAppendedDataSize();
 		}
 		// target table
-		MMFMapTable sortedMapTable = new MMFMapTable(dir, shard, SDB.LEVEL1, System.nanoTime(), expectedInsertions, ways);
+		PackedMapTable sortedMapTable = new PackedMapTable(dir, shard, SDB.LEVEL1, System.nanoTime(), Math.max(expectedInsertions, 1), Math.max(dataFileSize, 1L),
+				filterPolicy, indexType);
+		SortedMapTableBuilder builder = new SortedMapTableBuilder(SortedMapTableBuilder.DEFAULT_BUFFER_SIZE);
+		builder.open(sortedMapTable);
+
+		List<long[]> sortedEntriesList = sortEntries(tables, executor, subCompactions);
 
 		PriorityQueue<QueueElement> pq = new PriorityQueue<QueueElement>();
 		// build initial heap
-		for(HashMapTable table : tables) {
+		for(int i = 0; i < tables.size(); i++) {
 			QueueElement qe = new QueueElement();
-			final HashMapTable hmTable = table;
-			qe.hashMapTable = hmTable;
-			List<Map.Entry<ByteArrayWrapper, InMemIndex>> list = new ArrayList<Map.Entry<ByteArrayWrapper, InMemIndex>>(qe.hashMapTable.getEntrySet());
-			Collections.sort(list, new Comparator<Map.Entry<ByteArrayWrapper, InMemIndex>>() {
-
-				@Override
-				public int compare(
-						Entry<ByteArrayWrapper, InMemIndex> o1,
-						Entry<ByteArrayWrapper, InMemIndex> o2) {
-					IMapEntry mapEntry1 = hmTable.getMapEntry(o1.getValue().getIndex());
-					IMapEntry mapEntry2 = hmTable.getMapEntry(o2.getValue().getIndex());
-					try {
-						int hash1 = mapEntry1.getKeyHash();
-						int hash2 = mapEntry2.getKeyHash();
-						if (hash1 < hash2) return -1;
-						else if (hash1 > hash2) return 1;
-						else {
-							return o1.getKey().compareTo(o2.getKey());
-					    }
-					} catch (IOException e) {
-						throw new RuntimeException("Fail to get hash code in map entry", e);
-					}
-
-				}
-
-			});
-			qe.iterator = list.iterator();
-			if (qe.iterator.hasNext()) {
-				Map.Entry<ByteArrayWrapper, InMemIndex> me = qe.iterator.next();
-				qe.key = me.getKey().getData();
-				qe.inMemIndex = me.getValue();
-				IMapEntry mapEntry = table.getMapEntry(qe.inMemIndex.getIndex());
-				qe.keyHash = mapEntry.getKeyHash();
+			qe.hashMapTable = tables.get(i);
+			qe.sortedEntries = sortedEntriesList.get(i);
+			if (qe.next()) {
 				pq.add(qe);
 			}
 		}
 
+		boolean rateLimited = rateLimiter != null && rateLimiter.isEnabled();
+		long unacquiredBytes = 0;
 		// merge sort
 		while(pq.size() > 0) {
 			QueueElement qe1 = pq.poll();
 			// remove old/stale entries
 			while(pq.peek() != null && qe1.keyHash == pq.peek().keyHash && BytesUtil.compare(qe1.key, pq.peek().key) == 0) {
 				QueueElement qe2 = pq.poll();
-				if (qe2.iterator.hasNext()) {
-					Map.Entry<ByteArrayWrapper, InMemIndex> me = qe2.iterator.next();
-					qe2.key = me.getKey().getData();
-					qe2.inMemIndex = me.getValue();
-					IMapEntry mapEntry = qe2.hashMapTable.getMapEntry(qe2.inMemIndex.getIndex());
-					qe2.keyHash = mapEntry.getKeyHash();
+				if (qe2.next()) {
 					pq.add(qe2);
 				}
 			}
 
-			IMapEntry mapEntry = qe1.hashMapTable.getMapEntry(qe1.inMemIndex.getIndex());
+			IMapEntry mapEntry = qe1.hashMapTable.getMapEntry(qe1.index);
 			byte[] value = mapEntry.getValue();
 			// disk space optimization
 			if (mapEntry.isDeleted() || mapEntry.isExpired()) {
 				value = new byte[] {0};
 			}
-			sortedMapTable.appendNew(mapEntry.getKey(), mapEntry.getKeyHash(), value, mapEntry.getTimeToLive(), mapEntry.getCreatedTime(), mapEntry.isDeleted(), mapEntry.isCompressed());
-
-			if (qe1.iterator.hasNext()) {
-				Map.Entry<ByteArrayWrapper, InMemIndex> me = qe1.iterator.next();
-				qe1.key = me.getKey().getData();
-				qe1.inMemIndex = me.getValue();
-				IMapEntry mEntry = qe1.hashMapTable.getMapEntry(qe1.inMemIndex.getIndex());
-				qe1.keyHash = mEntry.getKeyHash();
+			if (rateLimited) {
+				unacquiredBytes += qe1.key.length + value.length + AbstractMapTable.INDEX_ITEM_LENGTH;
+				if (unacquiredBytes >= WRITE_BATCH_BYTES) {
+					rateLimiter.acquire(SDB.LEVEL0, unacquiredBytes);
+					unacquiredBytes = 0;
+				}
+			}
+			builder.append(qe1.key, qe1.keyHash, value, mapEntry.getTimeToLive(), mapEntry.getCreatedTime(), mapEntry.isDeleted(), mapEntry.isCompressed());
+
+			if (qe1.next()) {
 				pq.add(qe1);
 			}
 		}
 
-		// persist metadata
+		if (rateLimited && unacquiredBytes > 0) {
+			rateLimiter.acquire(SDB.LEVEL0, unacquiredBytes);
+		}
+
+		// persist metadata, the target table is usable on device before any source table is marked unusable
+		builder.finish();
 		sortedMapTable.reMap();
+		sortedMapTable.markUsable(true);
 		sortedMapTable.saveMetadata();
 
 		// dump to level 1
-		source.getWriteLock().lock();
-		target.getWriteLock().lock();
-		try {
-			for(int i = 0; i < ways; i++) {
-				source.removeLast();
-			}
-			for(HashMapTable table : tables) {
-				table.markUsable(false);
-			}
-
-			sortedMapTable.markUsable(true);
-			target.addFirst(sortedMapTable);
-
-		} finally {
-			target.getWriteLock().unlock();
-			source.getWriteLock().unlock();
-		}
-
+		VersionSet.Edit edit = new VersionSet.Edit();
 		for(HashMapTable table : tables) {
-			table.close();
-			table.delete();
+			table.markUsable(false);
+			edit.remove(SDB.LEVEL0, table);
 		}
+		edit.addFirst(SDB.LEVEL1, sortedMapTable);
+		versionSet.apply(edit);
 	}
 
 	public void setStop() {
 		this.stop = true;
-		log.info("Stopping level 0 merge thread " + this.getName());
 	}
 
 	static class QueueElement implements Comparable<QueueElement> {
 		HashMapTable hashMapTable;
-		Iterator<Map.Entry<ByteArrayWrapper, InMemIndex>> iterator;
+		long[] sortedEntries;
+		int position;
 		int keyHash;
 		byte[] key;
-		InMemIndex inMemIndex;
+		int index;
+
+		// move to the next sorted entry
+		boolean next() throws IOException {
+			if (position >= sortedEntries.length) return false;
+			long sortedEntry = sortedEntries[position++];
+			index = HashMapTable.getSortedIndex(sortedEntry);
+			keyHash = HashMapTable.getSortedKeyHash(sortedEntry);
+			key = hashMapTable.getMapEntry(index).getKey();
+			return true;
+		}
 
 		@Override
 		public int compareTo(QueueElement other) {
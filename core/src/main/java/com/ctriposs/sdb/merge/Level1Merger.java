@@ -2,256 +2,779 @@ package com.ctriposs.sdb.merge;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.PriorityQueue;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.ctriposs.sdb.stats.SDBStats;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.ctriposs.sdb.LevelQueue;
+import com.ctriposs.sdb.LevelVersion;
 import com.ctriposs.sdb.SDB;
+import com.ctriposs.sdb.VersionSet;
 import com.ctriposs.sdb.table.AbstractMapTable;
 import com.ctriposs.sdb.table.AbstractSortedMapTable;
-import com.ctriposs.sdb.table.FCMapTable;
+import com.ctriposs.sdb.table.AbstractSortedMapTable.IndexType;
+import com.ctriposs.sdb.table.FilterPolicy;
 import com.ctriposs.sdb.table.IMapEntry;
+import com.ctriposs.sdb.table.PackedMapTable;
+import com.ctriposs.sdb.table.SortedMapTableBuilder;
+import com.ctriposs.sdb.table.SortedMapTableScanner;
 import com.ctriposs.sdb.utils.BytesUtil;
 import com.ctriposs.sdb.utils.DateFormatter;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 /**
- * Level 1 to 2 merge sorting thread
+ * Level 1 to 2 merge sorting of a shard, run by the compaction scheduler
  *
  * @author bulldog
  *
  */
-public class Level1Merger extends Thread {
+public class Level1Merger {
 
 	static final Logger log = LoggerFactory.getLogger(Level1Merger.class);
 
-	private static final int MAX_SLEEP_TIME = 5 * 1000; // 5 seconds
 	private static final int DEFAULT_MERGE_WAYS = 4; // 4 way merge
-	private static final int CACHED_MAP_ENTRIES = 32;
+	// bytes written between two takes from the rate limiter
+	private static final int WRITE_BATCH_BYTES = 64 * 1024;
+	// key hashes sampled to split a merge into sub ranges
+	private static final int KEY_HASH_SAMPLES = 1024;
+	private static final AtomicLong LAST_CREATED_TIME = new AtomicLong();
+	// reclaiming expired entries runs when compaction threads are otherwise idle
+	private static final double EXPIRY_SCORE = 0.01;
 
-	private List<LevelQueue> levelQueueList;
+	private VersionSet versionSet;
 	private SDB sdb;
     private final SDBStats stats;
+	private final CompactionRateLimiter rateLimiter;
+	private final ExecutorService subCompactionExecutor;
 
 	private volatile boolean stop = false;
-	private CountDownLatch countDownLatch;
 	private short shard;
 
-	public Level1Merger(SDB sdb, List<LevelQueue> levelQueueList, CountDownLatch countDownLatch, short shard,
-                        SDBStats stats) {
+	public Level1Merger(SDB sdb, VersionSet versionSet, short shard, SDBStats stats, CompactionRateLimiter rateLimiter,
+			ExecutorService subCompactionExecutor) {
 		this.sdb = sdb;
-		this.levelQueueList = levelQueueList;
-		this.countDownLatch = countDownLatch;
+		this.versionSet = versionSet;
 		this.shard = shard;
         this.stats = stats;
+		this.rateLimiter = rateLimiter;
+		this.subCompactionExecutor = subCompactionExecutor;
 	}
 
-	@Override
-	public void run() {
-		while(!stop) {
-			try {
-				boolean merged = false;
-
-				LevelQueue lq1 = levelQueueList.get(SDB.LEVEL1);
-				LevelQueue lq2 = levelQueueList.get(SDB.LEVEL2);
-				boolean hasLevel2MapTable = lq2.size() > 0;
-				if ((!hasLevel2MapTable && lq1.size() >= DEFAULT_MERGE_WAYS) ||
-					(hasLevel2MapTable && lq1.size() >= DEFAULT_MERGE_WAYS - 1)) {
-					log.info("Start running level 1 merging at " + DateFormatter.formatCurrentDate());
-					log.info("Current queue size at level 1 is " + lq1.size());
-					log.info("Current queue size at level 2 is " + lq2.size());
-
-					long start = System.nanoTime();
-					mergeSort(lq1, lq2, DEFAULT_MERGE_WAYS, sdb.getDir(), shard);
-					stats.recordMerging(SDB.LEVEL1, System.nanoTime() - start);
-
-					merged = true;
-					log.info("End running level 1 to 2 merging at " + DateFormatter.formatCurrentDate());
-				}
+	private boolean isMergeNeeded() {
+		LevelVersion version = versionSet.current();
+		boolean hasLevel2MapTable = version.size(SDB.LEVEL2) > 0;
+		return (!hasLevel2MapTable && version.size(SDB.LEVEL1) >= DEFAULT_MERGE_WAYS) ||
+			(hasLevel2MapTable && version.size(SDB.LEVEL1) >= DEFAULT_MERGE_WAYS - 1) ||
+			this.isLevel1Expired();
+	}
 
-				if (!merged) {
-					Thread.sleep(MAX_SLEEP_TIME);
-				}
+	// the level 1 tables to be merged next have mostly expired, merging them early frees the space,
+	// they can't be just dropped since older entries of their keys in level 2 would show up again
+	private boolean isLevel1Expired() {
+		double threshold = sdb.getConfig().getExpiryCompactionThreshold();
+		long now = System.currentTimeMillis();
+		// level 1 tables are only removed by this merger, the version needs no pin
+		AbstractMapTable[] tables = versionSet.current().getTables(SDB.LEVEL1);
+		for(int i = 0; i < DEFAULT_MERGE_WAYS - 1 && i < tables.length; i++) {
+			if (((AbstractSortedMapTable) tables[tables.length - 1 - i]).getEstimatedExpiredFraction(now) >= threshold) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Urgency of merging, the level 1 queue size relative to its slowdown trigger,
+	 * a small score if only expired entries are to be reclaimed
+	 *
+	 * @return score, 0 if there is nothing to do
+	 */
+	public double getScore() {
+		double score = 0;
+		if (isMergeNeeded()) {
+			score = Math.max((double) versionSet.size(SDB.LEVEL1) / sdb.getConfig().getLevel1SlowdownTrigger(), EXPIRY_SCORE);
+		} else if (findExpiredTable(versionSet, System.currentTimeMillis(), sdb.getConfig().getExpiryCompactionThreshold()) != null) {
+			score = EXPIRY_SCORE;
+		}
+		return score;
+	}
+
+	/**
+	 * Run one round, drop level 2 tables whose entries have all expired, then merge the oldest level 1 tables into level 2
+	 * if there are enough or they have mostly expired, otherwise rewrite a level 2 table having mostly expired
+	 *
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public void merge() throws IOException, ClassNotFoundException {
+		if (stop) return;
+
+		int dropped = versionSet.size(SDB.LEVEL2);
+		long reclaimed = dropExpiredTables(versionSet, System.currentTimeMillis());
+		dropped -= versionSet.size(SDB.LEVEL2);
+		if (dropped > 0) {
+			log.info("Dropped " + dropped + " expired level 2 tables of shard " + shard);
+			stats.recordExpiryReclaimed(SDB.LEVEL2, dropped, reclaimed);
+		}
+
+		if (isMergeNeeded()) {
+			log.info("Start running level 1 merging of shard " + shard + " at " + DateFormatter.formatCurrentDate());
+			log.info("Current queue size at level 1 is " + versionSet.size(SDB.LEVEL1));
+			log.info("Current queue size at level 2 is " + versionSet.size(SDB.LEVEL2));
+
+			long start = System.nanoTime();
+			reclaimed = mergeSort(versionSet, DEFAULT_MERGE_WAYS, sdb.getDir(), shard, sdb.getConfig().getLevel2TableSize(), rateLimiter,
+					subCompactionExecutor, sdb.getConfig().getSubCompactionNumber(), sdb.getConfig().getCompactionReadAheadSize(),
+					sdb.getConfig().isCompactionPrefetchEnabled(), this.getFilterPolicy(DEFAULT_MERGE_WAYS),
+					sdb.getConfig().getIndexType(SDB.LEVEL2));
+			stats.recordMerging(SDB.LEVEL1, System.nanoTime() - start);
+			stats.recordExpiryReclaimed(SDB.LEVEL1, 0, reclaimed);
+
+			log.info("End running level 1 to 2 merging of shard " + shard + " at " + DateFormatter.formatCurrentDate());
+			return;
+		}
+
+		AbstractSortedMapTable table = findExpiredTable(versionSet, System.currentTimeMillis(), sdb.getConfig().getExpiryCompactionThreshold());
+		if (table != null && !stop) {
+			log.info("Rewriting level 2 table " + table.getFileName() + " of shard " + shard + " to reclaim expired entries");
+			reclaimed = rewriteExpiredTable(versionSet, table, sdb.getDir(), shard, sdb.getConfig().getLevel2TableSize(), rateLimiter,
+					sdb.getConfig().getCompactionReadAheadSize(), sdb.getConfig().isCompactionPrefetchEnabled(),
+					this.getFilterPolicy(0), sdb.getConfig().getIndexType(SDB.LEVEL2));
+			stats.recordExpiryReclaimed(SDB.LEVEL2, 0, reclaimed);
+		}
+	}
 
-			} catch (Exception ex) {
-				log.error("Error occured in the level 1 to 2 merger", ex);
+	/**
+	 * Merge all level 1 tables of the shard into level 2 for a major compaction, tables added meanwhile are left out
+	 *
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	void mergeAll(MajorCompaction compaction) throws IOException, ClassNotFoundException {
+		int count = versionSet.size(SDB.LEVEL1);
+		if (count == 0 || stop || compaction.isCancelled()) return;
+		log.info("Start major compaction of " + count + " level 1 tables of shard " + shard);
+
+		long start = System.nanoTime();
+		// the ways count a level 2 table
+		int ways = versionSet.size(SDB.LEVEL2) > 0 ? count + 1 : count;
+		long reclaimed = mergeSort(versionSet, ways, sdb.getDir(), shard, sdb.getConfig().getLevel2TableSize(),
+				rateLimiter, subCompactionExecutor, sdb.getConfig().getSubCompactionNumber(), sdb.getConfig().getCompactionReadAheadSize(),
+				sdb.getConfig().isCompactionPrefetchEnabled(), this.getFilterPolicy(ways), sdb.getConfig().getIndexType(SDB.LEVEL2));
+		stats.recordMerging(SDB.LEVEL1, System.nanoTime() - start);
+		stats.recordExpiryReclaimed(SDB.LEVEL1, 0, reclaimed);
+	}
+
+	/**
+	 * Drop or rewrite every level 2 table of the shard having expired entries for a major compaction
+	 *
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	void purgeLevel2(MajorCompaction compaction) throws IOException, ClassNotFoundException {
+		if (stop || compaction.isCancelled()) return;
+		long now = System.currentTimeMillis();
+		int dropped = versionSet.size(SDB.LEVEL2);
+		long reclaimed = dropExpiredTables(versionSet, now);
+		dropped -= versionSet.size(SDB.LEVEL2);
+		if (dropped > 0) {
+			stats.recordExpiryReclaimed(SDB.LEVEL2, dropped, reclaimed);
+		}
+
+		List<AbstractSortedMapTable> expired = new ArrayList<AbstractSortedMapTable>();
+		for(AbstractMapTable table : versionSet.current().getTables(SDB.LEVEL2)) {
+			if (((AbstractSortedMapTable) table).getEstimatedExpiredFraction(now) > 0) {
+				expired.add((AbstractSortedMapTable) table);
 			}
+		}
+		for(AbstractSortedMapTable table : expired) {
+			if (stop || compaction.isCancelled()) return;
+			log.info("Rewriting level 2 table " + table.getFileName() + " of shard " + shard + " for major compaction");
+			reclaimed = rewriteExpiredTable(versionSet, table, sdb.getDir(), shard, sdb.getConfig().getLevel2TableSize(), rateLimiter,
+					sdb.getConfig().getCompactionReadAheadSize(), sdb.getConfig().isCompactionPrefetchEnabled(),
+					this.getFilterPolicy(0), sdb.getConfig().getIndexType(SDB.LEVEL2));
+			stats.recordExpiryReclaimed(SDB.LEVEL2, 0, reclaimed);
+		}
+	}
 
+	// filter of the level 2 tables merged from the oldest level 1 tables, 0 ways for a rewrite of a level 2 table
+	private FilterPolicy getFilterPolicy(int ways) {
+		LevelVersion version = versionSet.current();
+		AbstractMapTable[] level1Tables = version.getTables(SDB.LEVEL1);
+		int merged = version.size(SDB.LEVEL2) > 0 ? ways - 1 : ways;
+		long entries = 0;
+		for(int i = 0; i < merged && i < level1Tables.length; i++) {
+			entries += level1Tables[level1Tables.length - 1 - i].getAppendedSize();
 		}
+		return FilterBudget.getFilterPolicy(sdb.getConfig(), version, SDB.LEVEL2, entries);
+	}
 
-		this.countDownLatch.countDown();
-		log.info("Stopped level 1 to 2 merge thread " + this.getName());
+	/**
+	 * Drop level 2 tables whose entries have all expired without merging, nothing is below level 2
+	 * whose entries could show up again
+	 *
+	 * @return bytes of the entries dropped
+	 */
+	static long dropExpiredTables(VersionSet versionSet, long now) throws IOException {
+		VersionSet.Edit edit = new VersionSet.Edit();
+		long reclaimed = 0;
+		for(AbstractMapTable table : versionSet.current().getTables(SDB.LEVEL2)) {
+			if (((AbstractSortedMapTable) table).isAllExpired(now)) {
+				reclaimed += getEntryBytes(table);
+				table.markUsable(false);
+				edit.remove(SDB.LEVEL2, table);
+			}
+		}
+		if (reclaimed > 0) {
+			versionSet.apply(edit);
+		}
+		return reclaimed;
 	}
 
-	public static void mergeSort(LevelQueue lq1, LevelQueue lq2, int ways, String dir, short shard)
-			throws IOException, ClassNotFoundException {
-		boolean hasLevel2MapTable = lq2.size() > 0;
-		List<AbstractMapTable> tables = new ArrayList<AbstractMapTable>(ways);
-		lq1.getReadLock().lock();
+	// bytes of the appended index items and keys/values
+	private static long getEntryBytes(AbstractMapTable table) {
+		return (long) table.getAppendedSize() * AbstractMapTable.INDEX_ITEM_LENGTH + table.getAppendedDataSize();
+	}
+
+	// the level 2 table with the biggest estimated expired fraction at or above the threshold, null if none
+	static AbstractSortedMapTable findExpiredTable(VersionSet versionSet, long now, double threshold) {
+		AbstractSortedMapTable found = null;
+		double maxFraction = 0;
+		// also called by the scheduler while the shard is being merged
+		LevelVersion version = versionSet.acquire();
 		try {
-			Iterator<AbstractMapTable> iter = lq1.descendingIterator();
-			for(int i = 0; i < ways - 1; i++) {
-				tables.add(iter.next());
-			}
-			if (hasLevel2MapTable) {
-				tables.add(lq2.get(0));
-			} else {
-				tables.add(iter.next());
+			for(AbstractMapTable table : version.getTables(SDB.LEVEL2)) {
+				double fraction = ((AbstractSortedMapTable) table).getEstimatedExpiredFraction(now);
+				if (fraction >= threshold && fraction > maxFraction) {
+					found = (AbstractSortedMapTable) table;
+					maxFraction = fraction;
+				}
 			}
 		} finally {
-			lq1.getReadLock().unlock();
+			version.release();
 		}
+		return found;
+	}
 
-		long expectedInsertions = 0;
-		for(AbstractMapTable table : tables) {
-			expectedInsertions += table.getAppendedSize();
+	/**
+	 * Rewrite a level 2 table without its expired entries, the new tables cover a part of its key hash range
+	 *
+	 * @return bytes of the expired entries dropped
+	 */
+	static long rewriteExpiredTable(VersionSet versionSet, AbstractSortedMapTable table, String dir, short shard, long level2TableSize,
+			CompactionRateLimiter rateLimiter, int readAheadSize, boolean prefetch, FilterPolicy filterPolicy, IndexType indexType)
+			throws IOException, ClassNotFoundException {
+		List<AbstractSortedMapTable> tables = new ArrayList<AbstractSortedMapTable>(1);
+		tables.add(table);
+		SubCompaction subCompaction = new SubCompaction(tables, Integer.MIN_VALUE, Integer.MAX_VALUE, dir, shard, level2TableSize,
+				table.getAppendedSize(), table.getAppendedDataSize(), new int[0], rateLimiter, readAheadSize, prefetch, filterPolicy,
+				indexType);
+		Level2TableWriter writer = subCompaction.call();
+
+		// switching
+		table.markUsable(false);
+		VersionSet.Edit edit = new VersionSet.Edit().remove(SDB.LEVEL2, table);
+		for(AbstractMapTable newTable : writer.getTables()) {
+			edit.addFirst(SDB.LEVEL2, newTable);
 		}
-		if (expectedInsertions > Integer.MAX_VALUE) expectedInsertions = Integer.MAX_VALUE;
-		// target table
-		AbstractSortedMapTable sortedMapTable = new FCMapTable(dir, shard, SDB.LEVEL2, System.nanoTime(), (int)expectedInsertions);
+		versionSet.apply(edit);
+		return subCompaction.getExpiredBytes();
+	}
+
+	// no target size, the output is only split around level 2 tables which are kept
+	public static long mergeSort(VersionSet versionSet, int ways, String dir, short shard)
+			throws IOException, ClassNotFoundException {
+		return mergeSort(versionSet, ways, dir, shard, Long.MAX_VALUE, null, null, 1);
+	}
+
+	public static long mergeSort(VersionSet versionSet, int ways, String dir, short shard, long level2TableSize,
+			CompactionRateLimiter rateLimiter, ExecutorService executor, int subCompactions) throws IOException, ClassNotFoundException {
+		return mergeSort(versionSet, ways, dir, shard, level2TableSize, rateLimiter, executor, subCompactions,
+				SortedMapTableScanner.DEFAULT_READ_AHEAD_SIZE, true);
+	}
+
+	public static long mergeSort(VersionSet versionSet, int ways, String dir, short shard, long level2TableSize,
+			CompactionRateLimiter rateLimiter, ExecutorService executor, int subCompactions, int readAheadSize, boolean prefetch)
+			throws IOException, ClassNotFoundException {
+		return mergeSort(versionSet, ways, dir, shard, level2TableSize, rateLimiter, executor, subCompactions,
+				readAheadSize, prefetch, FilterPolicy.DEFAULT, IndexType.SORTED);
+	}
+
+	/**
+	 * Merge the oldest level 1 tables into level 2.
+	 *
+	 * Level 2 tables cover disjoint key hash ranges, the table with the smallest max key hash at or above a key hash
+	 * (the last table for hashes above all) owns it. Only the level 2 tables owning any key hash of the merged level 1 tables
+	 * are rewritten, other level 2 tables are kept as is. The output is split into tables of about the target size.
+	 * The merged and rewritten tables are deleted once no pinned version refers to them, level 1 and level 2 tables
+	 * are only removed by this merge, so they need no pin meanwhile.
+	 *
+	 * @param level2TableSize target data file size of level 2 tables
+	 * @param rateLimiter limits bytes read from the merged tables and written to level 2, null for unlimited
+	 * @param executor runs sub compactions besides the calling thread, null to merge in the calling thread only
+	 * @param subCompactions max number of key hash sub ranges merged in parallel, a sub range has at least
+	 * about one level 2 table of data
+	 * @param readAheadSize bytes read at a time from each merged table
+	 * @param prefetch whether the next chunk of each merged table is read in the background
+	 * @param filterPolicy key filter of the level 2 tables
+	 * @param indexType index of the level 2 tables
+	 * @return bytes of the expired entries dropped
+	 */
+	public static long mergeSort(VersionSet versionSet, int ways, String dir, short shard, long level2TableSize,
+			CompactionRateLimiter rateLimiter, ExecutorService executor, int subCompactions, int readAheadSize, boolean prefetch,
+			FilterPolicy filterPolicy, IndexType indexType) throws IOException, ClassNotFoundException {
+		LevelVersion version = versionSet.current();
+		AbstractMapTable[] level1Tables = version.getTables(SDB.LEVEL1);
+		boolean hasLevel2MapTable = version.size(SDB.LEVEL2) > 0;
+		List<AbstractSortedMapTable> sources = new ArrayList<AbstractSortedMapTable>(ways);
+		List<AbstractSortedMapTable> partitions = new ArrayList<AbstractSortedMapTable>();
+		List<AbstractSortedMapTable> rewritten = new ArrayList<AbstractSortedMapTable>();
+		// fewer tables if the merge is for expired entries
+		for(int i = 0; i < (hasLevel2MapTable ? ways - 1 : ways) && i < level1Tables.length; i++) {
+			sources.add((AbstractSortedMapTable) level1Tables[level1Tables.length - 1 - i]);
+		}
+		for(AbstractMapTable table : version.getTables(SDB.LEVEL2)) {
+			if (table.getAppendedSize() > 0) {
+				partitions.add((AbstractSortedMapTable) table);
+			} else { // nothing left, just drop it
+				rewritten.add((AbstractSortedMapTable) table);
+			}
+		}
+		Collections.sort(partitions, new Comparator<AbstractSortedMapTable>() {
+
+			@Override
+			public int compare(AbstractSortedMapTable t1, AbstractSortedMapTable t2) {
+				return t1.getMaxKeyHash() < t2.getMaxKeyHash() ? -1 : (t1.getMaxKeyHash() > t2.getMaxKeyHash() ? 1 : 0);
+			}
 
-		PriorityQueue<QueueElement> pq = new PriorityQueue<QueueElement>();
-		// build initial heap
+		});
+		int[] partitionMaxKeyHashes = new int[partitions.size()];
+		for(int i = 0; i < partitions.size(); i++) {
+			partitionMaxKeyHashes[i] = partitions.get(i).getMaxKeyHash();
+		}
+
+		long totalEntries = 0;
+		long totalDataSize = 0;
+		List<AbstractSortedMapTable> tables = new ArrayList<AbstractSortedMapTable>(sources);
+		for(int i = 0; i < partitions.size(); i++) {
+			int fromKeyHash = i == 0 ? Integer.MIN_VALUE : partitionMaxKeyHashes[i - 1] + 1;
+			int toKeyHash = i == partitions.size() - 1 ? Integer.MAX_VALUE : partitionMaxKeyHashes[i];
+			for(AbstractSortedMapTable source : sources) {
+				if (fromKeyHash <= toKeyHash && source.hasKeyHashBetween(fromKeyHash, toKeyHash)) {
+					tables.add(partitions.get(i));
+					rewritten.add(partitions.get(i));
+					break;
+				}
+			}
+		}
 		for(AbstractMapTable table : tables) {
-			QueueElement qe = new QueueElement();
-			qe.sortedMapTable = table;
-			qe.size = qe.sortedMapTable.getAppendedSize();
-			qe.index = 0;
-			qe.queue = new LinkedList<IMapEntry>();
-			IMapEntry me = qe.getNextMapEntry();
-			if (me != null) {
-				qe.key = me.getKey();
-				qe.mapEntry = me;
-				qe.keyHash = me.getKeyHash();
-				pq.add(qe);
+			totalEntries += table.getAppendedSize();
+			totalDataSize += table.getAppendedDataSize();
+		}
+
+		// large merges are split into key hash sub ranges merged in parallel, each into its own level 2 tables
+		int subCompactionNumber = 1;
+		if (executor != null && subCompactions > 1) {
+			subCompactionNumber = (int) Math.min(subCompactions, Math.max(totalDataSize / level2TableSize, 1));
+		}
+		int[] upperKeyHashes = splitKeyHashRange(tables, totalEntries, subCompactionNumber);
+		List<SubCompaction> subCompactionList = new ArrayList<SubCompaction>(upperKeyHashes.length);
+		for(int i = 0; i < upperKeyHashes.length; i++) {
+			int fromKeyHash = i == 0 ? Integer.MIN_VALUE : upperKeyHashes[i - 1] + 1;
+			subCompactionList.add(new SubCompaction(tables, fromKeyHash, upperKeyHashes[i], dir, shard, level2TableSize,
+					totalEntries, totalDataSize, partitionMaxKeyHashes, rateLimiter, readAheadSize, prefetch, filterPolicy, indexType));
+		}
+
+		List<Future<Level2TableWriter>> futures = new ArrayList<Future<Level2TableWriter>>();
+		List<Level2TableWriter> writers = new ArrayList<Level2TableWriter>();
+		Throwable failure = null;
+		for(int i = 1; i < subCompactionList.size(); i++) {
+			futures.add(executor.submit(subCompactionList.get(i)));
+		}
+		try {
+			writers.add(subCompactionList.get(0).call());
+		} catch (Throwable t) {
+			failure = t;
+		}
+		// wait all workers even on failure, their tables are discarded together
+		for(Future<Level2TableWriter> future : futures) {
+			try {
+				writers.add(Uninterruptibles.getUninterruptibly(future));
+			} catch (ExecutionException e) {
+				if (failure == null) failure = e.getCause();
 			}
 		}
+		if (failure != null) {
+			for(Level2TableWriter writer : writers) {
+				writer.discard();
+			}
+			Throwables.propagateIfInstanceOf(failure, IOException.class);
+			Throwables.propagateIfInstanceOf(failure, ClassNotFoundException.class);
+			throw Throwables.propagate(failure);
+		}
 
-		LinkedList<IMapEntry> targetCacheQueue = new LinkedList<IMapEntry>();
-		// merge sort
-		while(pq.size() > 0) {
-			QueueElement qe1 = pq.poll();
-			// remove old/stale entries
-			while(pq.peek() != null && qe1.keyHash == pq.peek().keyHash && BytesUtil.compare(qe1.key, pq.peek().key) == 0) {
-				QueueElement qe2 = pq.poll();
-				IMapEntry me = qe2.getNextMapEntry();
-				if (me != null) {
-					qe2.key = me.getKey();
-					qe2.mapEntry = me;
-					qe2.keyHash = me.getKeyHash();
-					pq.add(qe2);
+		// switching
+		VersionSet.Edit edit = new VersionSet.Edit();
+		for(AbstractMapTable table : sources) {
+			table.markUsable(false);
+			edit.remove(SDB.LEVEL1, table);
+		}
+		for(AbstractMapTable table : rewritten) {
+			table.markUsable(false);
+			edit.remove(SDB.LEVEL2, table);
+		}
+		for(Level2TableWriter writer : writers) {
+			for(AbstractMapTable table : writer.getTables()) {
+				edit.addFirst(SDB.LEVEL2, table);
+			}
+		}
+		versionSet.apply(edit);
+
+		long expiredBytes = 0;
+		for(SubCompaction subCompaction : subCompactionList) {
+			expiredBytes += subCompaction.getExpiredBytes();
+		}
+		return expiredBytes;
+	}
+
+	/**
+	 * Split the key hash range into sub ranges of about the same number of entries, sampled from the sorted tables
+	 *
+	 * @return the highest key hash(inclusive) of every sub range in ascending order, the last one is Integer.MAX_VALUE
+	 */
+	static int[] splitKeyHashRange(List<AbstractSortedMapTable> tables, long totalEntries, int number) {
+		List<Integer> upperKeyHashes = new ArrayList<Integer>();
+		if (number > 1 && totalEntries > 0) {
+			List<Integer> samples = new ArrayList<Integer>();
+			for(AbstractSortedMapTable table : tables) {
+				int size = table.getAppendedSize();
+				if (size == 0) continue;
+				// samples in proportion to the entries of the table
+				int count = (int) Math.max((long) KEY_HASH_SAMPLES * size / totalEntries, 1);
+				for(int i = 0; i < count; i++) {
+					samples.add(table.getKeyHash((int) ((long) size * i / count)));
 				}
 			}
-			// remove deleted or expired entries in final merge sorting
-			if (!qe1.mapEntry.isDeleted() && !qe1.mapEntry.isExpired()) {
-				targetCacheQueue.add(qe1.mapEntry);
+			Collections.sort(samples);
+			for(int i = 1; i < number && samples.size() > 0; i++) {
+				int keyHash = samples.get(samples.size() * i / number);
+				if (keyHash == Integer.MIN_VALUE) continue;
+				// the sampled key hash starts the next sub range
+				if (upperKeyHashes.isEmpty() || keyHash - 1 > upperKeyHashes.get(upperKeyHashes.size() - 1)) {
+					upperKeyHashes.add(keyHash - 1);
+				}
 			}
-			if (targetCacheQueue.size() >= CACHED_MAP_ENTRIES * DEFAULT_MERGE_WAYS) {
-				while(targetCacheQueue.size() > 0) {
-					IMapEntry mapEntry = targetCacheQueue.poll();
-					byte[] value = mapEntry.getValue();
-					// disk space optimization
-					if (mapEntry.isExpired()) {
-						continue;
+		}
+		upperKeyHashes.add(Integer.MAX_VALUE);
+		int[] result = new int[upperKeyHashes.size()];
+		for(int i = 0; i < result.length; i++) {
+			result[i] = upperKeyHashes.get(i);
+		}
+		return result;
+	}
+
+	// merges the entries of a key hash range into level 2 tables of its own
+	static class SubCompaction implements Callable<Level2TableWriter> {
+
+		private final List<AbstractSortedMapTable> tables;
+		private final int fromKeyHash;
+		private final int toKeyHash;
+		private final CompactionRateLimiter rateLimiter;
+		private final int readAheadSize;
+		private final boolean prefetch;
+		private final Level2TableWriter writer;
+		private final int[] startIndexes;
+		private final int[] endIndexes;
+		private long expiredBytes;
+
+		SubCompaction(List<AbstractSortedMapTable> tables, int fromKeyHash, int toKeyHash, String dir, short shard, long level2TableSize,
+				long totalEntries, long totalDataSize, int[] partitionMaxKeyHashes, CompactionRateLimiter rateLimiter,
+				int readAheadSize, boolean prefetch, FilterPolicy filterPolicy, IndexType indexType) {
+			this.tables = tables;
+			this.fromKeyHash = fromKeyHash;
+			this.toKeyHash = toKeyHash;
+			this.rateLimiter = rateLimiter;
+			this.readAheadSize = readAheadSize;
+			this.prefetch = prefetch;
+			this.startIndexes = new int[tables.size()];
+			this.endIndexes = new int[tables.size()];
+			long entries = 0;
+			for(int i = 0; i < tables.size(); i++) {
+				AbstractSortedMapTable table = tables.get(i);
+				startIndexes[i] = table.indexOfKeyHash(fromKeyHash);
+				endIndexes[i] = toKeyHash == Integer.MAX_VALUE ? table.getAppendedSize() : table.indexOfKeyHash(toKeyHash + 1);
+				entries += endIndexes[i] - startIndexes[i];
+			}
+			long dataSize = totalEntries > 0 ? (long) ((double) totalDataSize * entries / totalEntries) : 0;
+			this.writer = new Level2TableWriter(dir, shard, level2TableSize, entries, dataSize, partitionMaxKeyHashes, filterPolicy,
+					indexType);
+		}
+
+		@Override
+		public Level2TableWriter call() throws IOException, ClassNotFoundException {
+			try {
+				this.merge();
+				// persist metadata, the target tables are usable on device before any source table is marked unusable
+				writer.finish();
+			} catch (IOException e) {
+				writer.discard();
+				throw e;
+			} catch (ClassNotFoundException e) {
+				writer.discard();
+				throw e;
+			} catch (RuntimeException e) {
+				writer.discard();
+				throw e;
+			}
+			return writer;
+		}
+
+		private void merge() throws IOException, ClassNotFoundException {
+			List<SortedMapTableScanner> scanners = new ArrayList<SortedMapTableScanner>(tables.size());
+			try {
+				PriorityQueue<QueueElement> pq = new PriorityQueue<QueueElement>();
+				// build initial heap
+				for(int i = 0; i < tables.size(); i++) {
+					// no scanner, nor its read ahead buffer, for a table with nothing in the key hash range
+					if (startIndexes[i] == endIndexes[i]) continue;
+					QueueElement qe = new QueueElement();
+					qe.sortedMapTable = tables.get(i);
+					qe.scanner = new SortedMapTableScanner(tables.get(i), startIndexes[i], endIndexes[i], readAheadSize, prefetch);
+					qe.rateLimiter = rateLimiter;
+					scanners.add(qe.scanner);
+					if (qe.next()) {
+						pq.add(qe);
 					}
-					sortedMapTable.appendNew(mapEntry.getKey(), mapEntry.getKeyHash(), value, mapEntry.getTimeToLive(),
-							mapEntry.getCreatedTime(), mapEntry.isDeleted(), mapEntry.isCompressed());
 				}
-			}
-			IMapEntry me = qe1.getNextMapEntry();
-			if (me != null) {
-				qe1.key = me.getKey();
-				qe1.mapEntry = me;
-				qe1.keyHash = me.getKeyHash();
-				pq.add(qe1);
+
+				// entries are views into the read chunks, they are written before their scanner moves on
+				long unacquiredBytes = 0;
+				// merge sort
+				while(pq.size() > 0) {
+					QueueElement qe1 = pq.poll();
+					// remove old/stale entries
+					while(pq.peek() != null && qe1.keyHash == pq.peek().keyHash && BytesUtil.compare(qe1.key, pq.peek().key) == 0) {
+						QueueElement qe2 = pq.poll();
+						if (qe2.next()) {
+							pq.add(qe2);
+						}
+					}
+					// remove deleted or expired entries in final merge sorting
+					if (qe1.mapEntry.isDeleted()) {
+						// no entry of the key is left below
+					} else if (qe1.mapEntry.isExpired()) {
+						expiredBytes += qe1.key.length + qe1.mapEntry.getValue().length + AbstractMapTable.INDEX_ITEM_LENGTH;
+					} else {
+						writer.append(qe1.mapEntry);
+						unacquiredBytes += qe1.key.length + qe1.mapEntry.getValue().length + AbstractMapTable.INDEX_ITEM_LENGTH;
+						if (unacquiredBytes >= WRITE_BATCH_BYTES) {
+							acquire(rateLimiter, unacquiredBytes);
+							unacquiredBytes = 0;
+						}
+					}
+					if (qe1.next()) {
+						pq.add(qe1);
+					}
+				}
+				acquire(rateLimiter, unacquiredBytes);
+			} finally {
+				for(SortedMapTableScanner scanner : scanners) {
+					scanner.close();
+				}
 			}
 		}
 
-		// remaining cached entries
-		while(targetCacheQueue.size() > 0) {
-			IMapEntry mapEntry = targetCacheQueue.poll();
-			byte[] value = mapEntry.getValue();
+		// bytes of the expired entries dropped
+		long getExpiredBytes() {
+			return expiredBytes;
+		}
+
+		@Override
+		public String toString() {
+			return "key hash range [" + fromKeyHash + ", " + toKeyHash + "]";
+		}
+	}
+
+	// take the bytes read or written from the rate limiter
+	private static void acquire(CompactionRateLimiter rateLimiter, long bytes) {
+		if (rateLimiter == null || !rateLimiter.isEnabled()) return;
+		rateLimiter.acquire(SDB.LEVEL1, bytes);
+	}
+
+	// distinct file names of level 2 tables written concurrently
+	private static long nextCreatedTime() {
+		while(true) {
+			long last = LAST_CREATED_TIME.get();
+			long createdTime = Math.max(System.nanoTime(), last + 1);
+			if (LAST_CREATED_TIME.compareAndSet(last, createdTime)) return createdTime;
+		}
+	}
+
+	// writes merged entries into level 2 tables, a table is only ever cut between different key hashes
+	static class Level2TableWriter {
+
+		// entries sharing a key hash beyond the cut count of a table
+		private static final int SAME_KEY_HASH_SLACK = 1024;
+
+		private final String dir;
+		private final short shard;
+		private final long tableSize;
+		private final int[] partitionMaxKeyHashes;
+		private final FilterPolicy filterPolicy;
+		private final IndexType indexType;
+		private final long totalEntries;
+		private final long totalDataSize;
+		private final long maxEntriesPerTable;
+		private final List<AbstractSortedMapTable> tables = new ArrayList<AbstractSortedMapTable>();
+		// writes the current table, reused by the next one
+		private final SortedMapTableBuilder builder = new SortedMapTableBuilder(SortedMapTableBuilder.DEFAULT_BUFFER_SIZE);
+
+		private AbstractSortedMapTable current;
+		private long currentEntries;
+		private int currentPartition;
+		private int lastKeyHash;
+		private long writtenEntries;
+		private long writtenDataSize;
+
+		Level2TableWriter(String dir, short shard, long tableSize, long totalEntries, long totalDataSize, int[] partitionMaxKeyHashes,
+				FilterPolicy filterPolicy, IndexType indexType) {
+			this.dir = dir;
+			this.shard = shard;
+			this.tableSize = tableSize;
+			this.totalEntries = totalEntries;
+			this.totalDataSize = totalDataSize;
+			this.partitionMaxKeyHashes = partitionMaxKeyHashes;
+			this.filterPolicy = filterPolicy;
+			this.indexType = indexType;
+			long averageEntrySize = totalEntries > 0 ? Math.max(totalDataSize / totalEntries, 1) : 1;
+			this.maxEntriesPerTable = Math.max(Math.min(tableSize / averageEntrySize, AbstractSortedMapTable.MAX_ALLOWED_NUMBER_OF_ENTRIES), 1) * 2;
+		}
+
+		// index of the level 2 table owning the key hash, -1 if there is no level 2 table
+		private int partitionOf(int keyHash) {
+			if (partitionMaxKeyHashes.length == 0) return -1;
+			int index = Arrays.binarySearch(partitionMaxKeyHashes, keyHash);
+			if (index < 0) index = -index - 1;
+			return Math.min(index, partitionMaxKeyHashes.length - 1);
+		}
+
+		void append(IMapEntry mapEntry) throws IOException, ClassNotFoundException {
 			// disk space optimization
 			if (mapEntry.isExpired()) {
-				continue;
+				return;
+			}
+			int keyHash = mapEntry.getKeyHash();
+			int partition = this.partitionOf(keyHash);
+			if (current != null && this.isCut(keyHash, partition)) {
+				this.finishCurrent();
 			}
-			sortedMapTable.appendNew(mapEntry.getKey(), mapEntry.getKeyHash(), value, mapEntry.getTimeToLive(),
+			if (current == null) {
+				this.newCurrent(partition);
+			}
+			byte[] key = mapEntry.getKey();
+			byte[] value = mapEntry.getValue();
+			builder.append(key, keyHash, value, mapEntry.getTimeToLive(),
 					mapEntry.getCreatedTime(), mapEntry.isDeleted(), mapEntry.isCompressed());
+			currentEntries++;
+			writtenEntries++;
+			writtenDataSize += key.length + value.length;
+			lastKeyHash = keyHash;
 		}
 
-		// persist metadata
-		sortedMapTable.reMap();
-		sortedMapTable.saveMetadata();
+		private boolean isCut(int keyHash, int partition) {
+			if (partition != currentPartition) {
+				// never span a kept level 2 table, and don't leave small tables behind
+				return partition > currentPartition + 1 || current.getAppendedDataSize() >= tableSize / 2;
+			}
+			if (keyHash == lastKeyHash) return false;
+			return current.getAppendedDataSize() >= tableSize || currentEntries >= maxEntriesPerTable;
+		}
 
-		// switching
-		lq1.getWriteLock().lock();
-		lq2.getWriteLock().lock();
-		try {
-			for(int i = 0; i < ways - 1; i++) {
-				lq1.removeLast();
+		private void newCurrent(int partition) throws IOException, ClassNotFoundException {
+			long remaining = totalEntries - writtenEntries;
+			long expectedInsertions = Math.min(remaining, maxEntriesPerTable + SAME_KEY_HASH_SLACK);
+			expectedInsertions = Math.min(expectedInsertions, AbstractSortedMapTable.MAX_ALLOWED_NUMBER_OF_ENTRIES);
+			// preallocated for the estimated remaining data, trimmed when finished
+			long dataFileCapacity = Math.max(Math.min(totalDataSize - writtenDataSize, tableSize), 1);
+			long createdTime = nextCreatedTime();
+			current = new PackedMapTable(dir, shard, SDB.LEVEL2, createdTime, (int) Math.max(expectedInsertions, 1), dataFileCapacity,
+					filterPolicy, indexType);
+			builder.open(current);
+			currentEntries = 0;
+			currentPartition = partition;
+		}
+
+		private void finishCurrent() throws IOException {
+			builder.finish();
+			current.reMap();
+			current.markUsable(true);
+			current.saveMetadata();
+			tables.add(current);
+			current = null;
+		}
+
+		void finish() throws IOException {
+			if (current != null) {
+				this.finishCurrent();
 			}
-			if (hasLevel2MapTable) {
-				lq2.removeLast();
-			} else {
-				lq1.removeLast();
+		}
+
+		// merge failed, written tables must never be loaded
+		void discard() {
+			if (current != null) {
+				tables.add(current);
+				current = null;
 			}
-			for(AbstractMapTable table : tables) {
-				table.markUsable(false);
+			for(AbstractSortedMapTable table : tables) {
+				try {
+					table.markUsable(false);
+					table.close();
+					table.delete();
+				} catch (IOException e) {
+					log.warn("Fail to discard level 2 table " + table.getFileName(), e);
+				}
 			}
-
-			sortedMapTable.markUsable(true);
-			lq2.addFirst(sortedMapTable);
-		} finally {
-			lq2.getWriteLock().unlock();
-			lq1.getWriteLock().unlock();
+			tables.clear();
 		}
 
-		for(AbstractMapTable table : tables) {
-			table.close();
-			table.delete();
+		List<AbstractSortedMapTable> getTables() {
+			return tables;
 		}
 	}
 
 	public void setStop() {
 		this.stop = true;
-		log.info("Stopping level 1 to 2 merge thread " + this.getName());
 	}
 
 	static class QueueElement implements Comparable<QueueElement> {
 
 		AbstractMapTable sortedMapTable;
-		long size;
-		int index;
+		SortedMapTableScanner scanner;
 		byte[] key;
 		int keyHash;
 		IMapEntry mapEntry;
-		LinkedList<IMapEntry> queue;
-
-		// cache optimization
-		public IMapEntry getNextMapEntry() throws IOException {
-			IMapEntry me = queue.poll();
-			if (me != null) return me;
-			if (me == null) {
-				int count = 0;
-				while(index < size && count < CACHED_MAP_ENTRIES) {
-					IMapEntry mapEntry = sortedMapTable.getMapEntry(index);
-					// eager loading
-					mapEntry.getKey();
-					mapEntry.getValue();
-					mapEntry.getTimeToLive();
-					mapEntry.getCreatedTime();
-					queue.add(mapEntry);
-					index++;
-					count++;
-				}
-			}
-			return queue.poll();
+		CompactionRateLimiter rateLimiter;
+		long acquiredBytes;
+
+		// move to the next entry of the scanned range, false if there is none left
+		boolean next() throws IOException {
+			mapEntry = scanner.next();
+			// whole chunks are taken from the rate limiter as they are read
+			acquire(rateLimiter, scanner.getReadBytes() - acquiredBytes);
+			acquiredBytes = scanner.getReadBytes();
+			if (mapEntry == null) return false;
+			key = mapEntry.getKey();
+			keyHash = mapEntry.getKeyHash();
+			return true;
 		}
 
 		@Override
@@ -0,0 +1,113 @@
+package com.ctriposs.sdb.merge;
+
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handle of a major compaction of some shards running in the background.
+ *
+ * A shard is compacted by merging all its level 0 tables into level 1, then all its level 1 tables into level 2,
+ * then rewriting the level 2 tables having expired entries, deleted and expired entries are purged on the way.
+ * Tables added while the shard is being compacted are left to regular merges. Cancelling takes effect
+ * between merge rounds, shards not started yet are skipped.
+ */
+public class MajorCompaction {
+
+	// level 0, level 1 and level 2 steps of a shard
+	static final int STEPS_PER_SHARD = 3;
+
+	private final CompactionScheduler scheduler;
+	private final int shardNumber;
+	// guarded by the scheduler
+	final LinkedList<Short> pendingShards = new LinkedList<Short>();
+
+	private final AtomicInteger completedSteps = new AtomicInteger(0);
+	private final AtomicInteger completedShards = new AtomicInteger(0);
+	private final CountDownLatch countDownLatch = new CountDownLatch(1);
+	private final long startTime = System.currentTimeMillis();
+	private volatile boolean cancelled = false;
+	private volatile Throwable failure;
+
+	MajorCompaction(CompactionScheduler scheduler, short[] shards) {
+		this.scheduler = scheduler;
+		this.shardNumber = shards.length;
+		for(short shard : shards) {
+			pendingShards.add(shard);
+		}
+		if (shards.length == 0) {
+			countDownLatch.countDown();
+		}
+	}
+
+	// a level of a shard has been compacted
+	void stepDone() {
+		completedSteps.incrementAndGet();
+	}
+
+	// a shard has been compacted, cancelled or failed
+	void shardDone(int skippedSteps, Throwable t) {
+		completedSteps.addAndGet(skippedSteps);
+		if (t != null && failure == null) {
+			failure = t;
+		}
+		if (completedShards.incrementAndGet() == shardNumber) {
+			CompactionScheduler.log.info("Major compaction of " + shardNumber + " shards " + (cancelled ? "cancelled" : "finished") +
+					" in " + (System.currentTimeMillis() - startTime) + " ms");
+			countDownLatch.countDown();
+		}
+	}
+
+	/**
+	 * @return fraction from 0 to 1 of the level steps done, skipped steps of cancelled or failed shards count as done
+	 */
+	public double getProgress() {
+		return shardNumber == 0 ? 1 : (double) completedSteps.get() / (shardNumber * STEPS_PER_SHARD);
+	}
+
+	public int getShardNumber() {
+		return shardNumber;
+	}
+
+	/**
+	 * @return number of shards compacted, cancelled or failed
+	 */
+	public int getCompletedShards() {
+		return completedShards.get();
+	}
+
+	public boolean isDone() {
+		return countDownLatch.getCount() == 0;
+	}
+
+	/**
+	 * Stop after the running merge rounds, the tables already merged stay merged
+	 */
+	public void cancel() {
+		this.cancelled = true;
+		scheduler.signal();
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return the first error of a failed shard, null if none has failed
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	public void await() throws InterruptedException {
+		countDownLatch.await();
+	}
+
+	/**
+	 * @return true if done, false if the timeout elapsed first
+	 */
+	public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+		return countDownLatch.await(timeout, unit);
+	}
+}
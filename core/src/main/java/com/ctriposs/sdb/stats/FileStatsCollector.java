@@ -1,13 +1,13 @@
 package com.ctriposs.sdb.stats;
 
-import com.ctriposs.sdb.LevelQueue;
+import com.ctriposs.sdb.LevelVersion;
 import com.ctriposs.sdb.SDB;
+import com.ctriposs.sdb.VersionSet;
 import com.ctriposs.sdb.table.AbstractMapTable;
+import com.ctriposs.sdb.table.AbstractSortedMapTable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.List;
-
 /**
  * @author yqdong
  */
@@ -17,12 +17,12 @@ public class FileStatsCollector extends Thread {
     private static final int MAX_SLEEP_TIME = 10 * 1000; // 10 second
 
     private final SDBStats stats;
-    private final List<LevelQueue>[] levelQueueLists;
+    private final VersionSet[] versionSets;
     private volatile Boolean stop = false;
 
-    public FileStatsCollector(SDBStats stats, List<LevelQueue>[] levelQueueLists) {
+    public FileStatsCollector(SDBStats stats, VersionSet[] versionSets) {
         this.stats = stats;
-        this.levelQueueLists = levelQueueLists;
+        this.versionSets = versionSets;
     }
 
     @Override
@@ -32,19 +32,35 @@ public class FileStatsCollector extends Thread {
                 for (int level = 0; level <= SDB.MAX_LEVEL; ++level) {
                     long fileSize = 0;
                     int fileCount = 0;
-                    for (int shard = 0; shard < levelQueueLists.length; ++shard) {
-                        LevelQueue queue = levelQueueLists[shard].get(level);
-                        queue.getReadLock().lock();
+                    long filterSize = 0;
+                    long filterRejects = 0;
+                    long filterFalsePositives = 0;
+                    double filterFalsePositiveRate = 0; // weighted by entries
+                    long entries = 0;
+                    for (int shard = 0; shard < versionSets.length; ++shard) {
+                        LevelVersion version = versionSets[shard].acquire();
                         try {
-                            for (AbstractMapTable table : queue) {
+                            for (AbstractMapTable table : version.getTables(level)) {
                                 fileSize += table.getBackFileSize();
+                                if (table instanceof AbstractSortedMapTable) {
+                                    AbstractSortedMapTable sortedTable = (AbstractSortedMapTable) table;
+                                    filterSize += sortedTable.getFilterSize();
+                                    filterRejects += sortedTable.getFilterRejects();
+                                    filterFalsePositives += sortedTable.getFilterFalsePositives();
+                                    filterFalsePositiveRate += sortedTable.getFilterFalsePositiveRate() * table.getAppendedSize();
+                                    entries += table.getAppendedSize();
+                                }
                             }
-                            fileCount += queue.size();
+                            fileCount += version.size(level);
                         } finally {
-                            queue.getReadLock().unlock();
+                            version.release();
                         }
                     }
                     stats.recordFileStats(level, fileCount, fileSize);
+                    if (level > SDB.LEVEL0) {
+                        stats.recordFilterStats(level, filterSize, filterRejects, filterFalsePositives,
+                                entries > 0 ? filterFalsePositiveRate / entries : 0);
+                    }
                 }
 
                 Thread.sleep(MAX_SLEEP_TIME);
@@ -14,6 +14,8 @@ public class SDBStats {
 
     private final ConcurrentHashMap<String, AtomicReference<SingleStats>> singleStatsMap = new ConcurrentHashMap<String, AtomicReference<SingleStats>>();
 
+    private final ConcurrentHashMap<String, String[]> costKeysMap = new ConcurrentHashMap<String, String[]>();
+
     public SDBStats() {
         initStats();
     }
@@ -27,12 +29,33 @@ public class SDBStats {
     }
 
     public void recordDBOperation(String operation, int reachedLevel, long cost) {
-        String prefix = operation + (reachedLevel != SDB.INMEM_LEVEL ?  ".level" + reachedLevel : ".inMem");
-
-        AtomicReference<AvgStats> avgRef = getAvgStats(prefix + ".cost");
+        AtomicReference<AvgStats> avgRef = getAvgStats(getCostKey(operation, reachedLevel));
         avgRef.get().addValue(cost);
     }
 
+    // cost keys are cached per operation and level, so no strings are built on the read/write path
+    private String getCostKey(String operation, int reachedLevel) {
+        String[] keys = costKeysMap.get(operation);
+        if (keys == null) {
+            keys = new String[SDB.MAX_LEVEL + 2];
+            for (int level = SDB.INMEM_LEVEL; level <= SDB.MAX_LEVEL; level++) {
+                keys[level + 1] = operation + (level != SDB.INMEM_LEVEL ?  ".level" + level : ".inMem") + ".cost";
+            }
+            String[] found = costKeysMap.putIfAbsent(operation, keys);
+            if (found != null) {
+                keys = found;
+            }
+        }
+        return keys[reachedLevel + 1];
+    }
+
+    public void recordProbes(String operation, int level, long probes) {
+        String prefix = operation + (level != SDB.INMEM_LEVEL ?  ".level" + level : ".inMem");
+
+        AtomicReference<AvgStats> avgRef = getAvgStats(prefix + ".probes");
+        avgRef.get().addValue(probes);
+    }
+
     public void recordDBError(String operation) {
         AtomicReference<SingleStats> ref = getSingleStats(operation + ".error");
         ref.get().increaseValue();
@@ -45,6 +68,66 @@ public class SDBStats {
         avgRef.get().addValue(cost);
     }
 
+    public void recordSwitching(long cost) {
+        AtomicReference<AvgStats> avgRef = getAvgStats("switching.inMem.cost");
+        avgRef.get().addValue(cost);
+    }
+
+    public void recordStandbyMiss() {
+        AtomicReference<SingleStats> ref = getSingleStats("switching.inMem.standbyMiss");
+        ref.get().increaseValue();
+    }
+
+    public void recordWriteSlowdown(long cost) {
+        AtomicReference<AvgStats> avgRef = getAvgStats("stall.slowdown.cost");
+        avgRef.get().addValue(cost);
+    }
+
+    public void recordWriteStop(long cost) {
+        AtomicReference<AvgStats> avgRef = getAvgStats("stall.stop.cost");
+        avgRef.get().addValue(cost);
+    }
+
+    public void recordWriteStallTimeout() {
+        AtomicReference<SingleStats> ref = getSingleStats("stall.stop.timeout");
+        ref.get().increaseValue();
+    }
+
+    public void recordCompactionThreads(int threadNumber) {
+        AtomicReference<SingleStats> ref = getSingleStats("compaction.threads");
+        ref.get().setValue(threadNumber);
+    }
+
+    public void recordCompactionRunning(int runningNumber) {
+        AtomicReference<SingleStats> ref = getSingleStats("compaction.running");
+        ref.get().setValue(runningNumber);
+    }
+
+    public void recordCompactionPending(int shard, int pendingNumber) {
+        AtomicReference<SingleStats> ref = getSingleStats("compaction.shard" + shard + ".pending");
+        ref.get().setValue(pendingNumber);
+    }
+
+    public void recordCompactionWait(long cost) {
+        AtomicReference<AvgStats> avgRef = getAvgStats("compaction.wait.cost");
+        avgRef.get().addValue(cost);
+    }
+
+    public void recordCompactionThrottled(int level, long cost) {
+        AtomicReference<AvgStats> avgRef = getAvgStats("compaction.level" + level + ".throttled.cost");
+        avgRef.get().addValue(cost);
+    }
+
+    public void recordExpiryReclaimed(int level, int droppedTables, long reclaimedBytes) {
+        String prefix = "expiry.level" + level;
+
+        AtomicReference<SingleStats> singleRef = getSingleStats(prefix + ".droppedTables");
+        singleRef.get().addValue(droppedTables);
+
+        singleRef = getSingleStats(prefix + ".reclaimedBytes");
+        singleRef.get().addValue(reclaimedBytes);
+    }
+
     public void recordFileStats(int level, int fileCount, long fileSize) {
         String prefix = "storage.level" + level;
 
@@ -55,6 +138,35 @@ public class SDBStats {
         singleRef.get().setValue(fileSize);
     }
 
+    /**
+     * Key filters of the live tables of a level, counted since the tables were loaded or written
+     *
+     * @param filterSize bytes of the filters
+     * @param rejects lookups of keys the filters ruled out
+     * @param falsePositives lookups of keys the filters let through but not found in the tables
+     * @param projectedRate false positive rate the filters were sized for, from 0 to 1
+     */
+    public void recordFilterStats(int level, long filterSize, long rejects, long falsePositives, double projectedRate) {
+        String prefix = "filter.level" + level;
+
+        AtomicReference<SingleStats> singleRef = getSingleStats(prefix + ".size");
+        singleRef.get().setValue(filterSize);
+
+        singleRef = getSingleStats(prefix + ".negatives");
+        singleRef.get().setValue(rejects);
+
+        singleRef = getSingleStats(prefix + ".falsePositives");
+        singleRef.get().setValue(falsePositives);
+
+        // false positives per million lookups of keys not in the tables
+        long negatives = rejects + falsePositives;
+        singleRef = getSingleStats(prefix + ".falsePositivePpm");
+        singleRef.get().setValue(negatives > 0 ? falsePositives * 1000000 / negatives : 0);
+
+        singleRef = getSingleStats(prefix + ".projectedFalsePositivePpm");
+        singleRef.get().setValue(Math.round(projectedRate * 1000000));
+    }
+
     private AtomicReference<AvgStats> getAvgStats(String key) {
         AtomicReference<AvgStats> ref = avgStatsMap.get(key);
         if (ref == null) {
@@ -89,9 +201,37 @@ public class SDBStats {
 
         getAvgStats(Operations.DELETE + ".inMem.cost");
 
+        getAvgStats(Operations.WRITE + ".inMem.cost");
+
+        getAvgStats(Operations.MULTI_GET + ".inMem.cost");
+        getAvgStats(Operations.MULTI_GET + ".level0.cost");
+        getAvgStats(Operations.MULTI_GET + ".level1.cost");
+        getAvgStats(Operations.MULTI_GET + ".level2.cost");
+        getAvgStats(Operations.MULTI_GET + ".inMem.probes");
+        getAvgStats(Operations.MULTI_GET + ".level0.probes");
+        getAvgStats(Operations.MULTI_GET + ".level1.probes");
+        getAvgStats(Operations.MULTI_GET + ".level2.probes");
+
         getAvgStats("merging.level0.cost");
         getAvgStats("merging.level1.cost");
 
+        getAvgStats("switching.inMem.cost");
+        getSingleStats("switching.inMem.standbyMiss");
+
+        getAvgStats("stall.slowdown.cost");
+        getAvgStats("stall.stop.cost");
+        getSingleStats("stall.stop.timeout");
+
+        getSingleStats("compaction.threads");
+        getSingleStats("compaction.running");
+        getAvgStats("compaction.wait.cost");
+        getAvgStats("compaction.level0.throttled.cost");
+        getAvgStats("compaction.level1.throttled.cost");
+
+        getSingleStats("expiry.level1.reclaimedBytes");
+        getSingleStats("expiry.level2.droppedTables");
+        getSingleStats("expiry.level2.reclaimedBytes");
+
         getSingleStats("storage.level0.fileCount");
         getSingleStats("storage.level0.fileSize");
         getSingleStats("storage.level1.fileCount");
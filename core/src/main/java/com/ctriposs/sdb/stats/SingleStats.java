@@ -13,6 +13,10 @@ public class SingleStats {
         value.getAndIncrement();
     }
 
+    public void addValue(long val) {
+        value.addAndGet(val);
+    }
+
     public void setValue(long val) {
         value.set(val);
     }
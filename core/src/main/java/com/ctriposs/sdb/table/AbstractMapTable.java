@@ -4,6 +4,7 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -13,6 +14,7 @@ import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xerial.snappy.Snappy;
 
 import com.ctriposs.sdb.utils.FileUtil;
 import com.google.common.base.Preconditions;
@@ -26,14 +28,22 @@ public abstract class AbstractMapTable implements Closeable, Comparable<Abstract
 
 	public final static int INIT_INDEX_ITEMS_PER_TABLE = 128 * 1024;
 	// length in bytes of an index item
-	final static int INDEX_ITEM_LENGTH = 40;
+	public final static int INDEX_ITEM_LENGTH = 40;
 	// size in bytes of initial index file
 	final static int INIT_INDEX_FILE_SIZE = INDEX_ITEM_LENGTH * INIT_INDEX_ITEMS_PER_TABLE;
 	// size in bytes of initial data file
-	final static int INIT_DATA_FILE_SIZE = 128 * 1024 * 1024;
-	final static int META_FILE_SIZE = 1 + SIZE_OF_INT_IN_BYTES + SIZE_OF_LONG_IN_BYTES;
+	public final static int INIT_DATA_FILE_SIZE = 128 * 1024 * 1024;
 	final static int TO_APPEND_INDEX_OFFSET = 1;
 	final static int TO_APPEND_DATA_FILE_OFFSET = 1 + SIZE_OF_INT_IN_BYTES;
+	// initial index items and data file size the table was created with, zero in tables created before they were recorded
+	final static int INDEX_ITEMS_CAPACITY_OFFSET = TO_APPEND_DATA_FILE_OFFSET + SIZE_OF_LONG_IN_BYTES;
+	final static int DATA_FILE_CAPACITY_OFFSET = INDEX_ITEMS_CAPACITY_OFFSET + SIZE_OF_INT_IN_BYTES;
+	// number of entries having a time to live and their earliest and latest expiry time in sorted tables,
+	// zero in tables created before they were recorded
+	final static int EXPIRING_ENTRIES_OFFSET = DATA_FILE_CAPACITY_OFFSET + SIZE_OF_LONG_IN_BYTES;
+	final static int MIN_EXPIRY_TIME_OFFSET = EXPIRING_ENTRIES_OFFSET + SIZE_OF_INT_IN_BYTES;
+	final static int MAX_EXPIRY_TIME_OFFSET = MIN_EXPIRY_TIME_OFFSET + SIZE_OF_LONG_IN_BYTES;
+	final static int META_FILE_SIZE = MAX_EXPIRY_TIME_OFFSET + SIZE_OF_LONG_IN_BYTES;
 
 	public final static int NO_TIMEOUT = -1;
 
@@ -58,6 +68,9 @@ public abstract class AbstractMapTable implements Closeable, Comparable<Abstract
 	protected AtomicLong toAppendDataFileOffset;
 	protected final Lock appendLock = new ReentrantLock();
 
+	protected int indexItemsCapacity = INIT_INDEX_ITEMS_PER_TABLE;
+	protected long dataFileCapacity = INIT_DATA_FILE_SIZE;
+
 	// the level of the map store, start from 0, incremental.
 	private int level;
 	// the shard of the map store, start form 0, incremental.
@@ -70,7 +83,15 @@ public abstract class AbstractMapTable implements Closeable, Comparable<Abstract
 	public static final String META_FILE_SUFFIX = ".meta";
 
 	public AbstractMapTable(String dir, int shard, int level, long createdTime) throws IOException {
-		this.commonInit(dir, shard + "-" + level + "-" + createdTime);
+		this(dir, shard, level, createdTime, INIT_INDEX_ITEMS_PER_TABLE, INIT_DATA_FILE_SIZE);
+	}
+
+	public AbstractMapTable(String dir, int shard, int level, long createdTime, int indexItemsCapacity, long dataFileCapacity) throws IOException {
+		Preconditions.checkArgument(indexItemsCapacity > 0, "indexItemsCapacity (%s) must be greater than 0", indexItemsCapacity);
+		Preconditions.checkArgument(dataFileCapacity > 0, "dataFileCapacity (%s) must be greater than 0", dataFileCapacity);
+		this.indexItemsCapacity = indexItemsCapacity;
+		this.dataFileCapacity = dataFileCapacity;
+		this.commonInit(dir, shard + "-" + level + "-" + createdTime, true);
 	}
 
 	public AbstractMapTable(String dir, int level, long createdTime) throws IOException {
@@ -78,10 +99,17 @@ public abstract class AbstractMapTable implements Closeable, Comparable<Abstract
 	}
 
 	public AbstractMapTable(String dir, String fileName) throws IOException {
-		this.commonInit(dir, fileName);
+		this(dir, fileName, true);
 	}
 
-	private void commonInit(String dir, String fileName) throws IOException {
+	/**
+	 * @param openFiles false for tables kept in a single file, which open it themselves
+	 */
+	protected AbstractMapTable(String dir, String fileName, boolean openFiles) throws IOException {
+		this.commonInit(dir, fileName, openFiles);
+	}
+
+	private void commonInit(String dir, String fileName, boolean openFiles) throws IOException {
 		Preconditions.checkNotNull(dir);
 		Preconditions.checkNotNull(fileName);
 
@@ -97,11 +125,17 @@ public abstract class AbstractMapTable implements Closeable, Comparable<Abstract
 		if (!this.dir.endsWith(File.separator)) {
 			this.dir += File.separator;
 		}
+		if (!openFiles) return;
 
 		this.metaFile = this.dir + this.fileName + META_FILE_SUFFIX;
 		metaRaf = new RandomAccessFile(metaFile, "rw");
-		if (metaRaf.length() <= 0) metaRaf.setLength(META_FILE_SIZE);
 		metaChannel = metaRaf.getChannel();
+		if (metaRaf.length() <= 0) {
+			metaRaf.setLength(META_FILE_SIZE);
+			this.persistCapacity();
+		} else {
+			this.loadCapacity();
+		}
 		ByteBuffer byteBuf = ByteBuffer.allocate(1);
 		metaChannel.read(byteBuf, 0);
 		usable = (byteBuf.get(0) & 2) == 2;
@@ -109,6 +143,26 @@ public abstract class AbstractMapTable implements Closeable, Comparable<Abstract
 		initIndexAndDataChannel(this.fileName);
 	}
 
+	private void persistCapacity() throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(SIZE_OF_INT_IN_BYTES + SIZE_OF_LONG_IN_BYTES);
+		buf.putInt(this.indexItemsCapacity);
+		buf.putLong(this.dataFileCapacity);
+		buf.flip();
+		this.metaChannel.write(buf, INDEX_ITEMS_CAPACITY_OFFSET);
+	}
+
+	// tables created before the capacity was recorded have default capacity
+	private void loadCapacity() throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(SIZE_OF_INT_IN_BYTES + SIZE_OF_LONG_IN_BYTES);
+		this.metaChannel.read(buf, INDEX_ITEMS_CAPACITY_OFFSET);
+		int indexItems = buf.getInt(0);
+		long dataFileSize = buf.getLong(SIZE_OF_INT_IN_BYTES);
+		if (indexItems > 0 && dataFileSize > 0) {
+			this.indexItemsCapacity = indexItems;
+			this.dataFileCapacity = dataFileSize;
+		}
+	}
+
 	private void initLevelAndCreatedTime(String fileName) {
 		String[] parts = fileName.split("-");
 		shard = Short.parseShort(parts[0]);
@@ -119,12 +173,12 @@ public abstract class AbstractMapTable implements Closeable, Comparable<Abstract
 	private void initIndexAndDataChannel(String fileName) throws IOException {
 		this.indexFile = this.dir + fileName + INDEX_FILE_SUFFIX;
 		indexRaf = new RandomAccessFile(indexFile, "rw");
-		if (indexRaf.length() <= 0) indexRaf.setLength(INIT_INDEX_FILE_SIZE + INDEX_ITEM_LENGTH); // plus one padding
+		if (indexRaf.length() <= 0) indexRaf.setLength((long) INDEX_ITEM_LENGTH * this.indexItemsCapacity + INDEX_ITEM_LENGTH); // plus one padding
 		indexChannel = indexRaf.getChannel();
 
 		this.dataFile = this.dir + fileName + DATA_FILE_SUFFIX;
 		dataRaf = new RandomAccessFile(dataFile, "rw");
-		if (dataRaf.length() <= 0) dataRaf.setLength(INIT_DATA_FILE_SIZE);
+		if (dataRaf.length() <= 0) dataRaf.setLength(this.dataFileCapacity);
 		dataChannel = dataRaf.getChannel();
 	}
 
@@ -134,10 +188,31 @@ public abstract class AbstractMapTable implements Closeable, Comparable<Abstract
 		return this.fileName;
 	}
 
+	/**
+	 * @return number of index items the table was created with
+	 */
+	public int getIndexItemsCapacity() {
+		return this.indexItemsCapacity;
+	}
+
+	/**
+	 * @return size in bytes of the data file the table was created with
+	 */
+	public long getDataFileCapacity() {
+		return this.dataFileCapacity;
+	}
+
 	public int getAppendedSize() {
 		return toAppendIndex.get();
 	}
 
+	/**
+	 * @return number of bytes appended to the data file
+	 */
+	public long getAppendedDataSize() {
+		return toAppendDataFileOffset.get();
+	}
+
 	public long getBackFileSize() throws IOException {
 		ensureNotClosed();
 		return this.indexChannel.size() + this.dataChannel.size();
@@ -232,6 +307,86 @@ public abstract class AbstractMapTable implements Closeable, Comparable<Abstract
 
 	public abstract GetResult get(byte[] key) throws IOException;
 
+	/**
+	 * Get the value of the key into the buffer without allocating intermediate arrays,
+	 * the value is written at the current position of the buffer and the position is advanced.
+	 *
+	 * @param key map entry key
+	 * @param dst target buffer
+	 * @param result reusable result, filled with entry metadata only
+	 * @return value length, or GetResult.NOT_FOUND, GetResult.DELETED or GetResult.EXPIRED
+	 * @throws IOException
+	 * @throws BufferOverflowException if the buffer has not enough room for the value
+	 */
+	public abstract int get(byte[] key, ByteBuffer dst, GetResult result) throws IOException;
+
+	// copy (or uncompress) the value at the offset in data file into dst
+	protected abstract int readValue(long offsetInDataFile, int length, boolean compressed, ByteBuffer dst) throws IOException;
+
+	// fill result metadata of the entry at the index and read its value into dst
+	protected int readEntry(int index, ByteBuffer indexBuffer, ByteBuffer dst, GetResult result) throws IOException {
+		int offsetInIndexFile = INDEX_ITEM_LENGTH * index;
+		byte status = indexBuffer.get(offsetInIndexFile + IMapEntry.INDEX_ITEM_STATUS);
+		result.setFound(true);
+		if ((status & (1 << 1)) != 0) {
+			result.setDeleted(true);
+			return GetResult.DELETED;
+		}
+		long timeToLive = indexBuffer.getLong(offsetInIndexFile + IMapEntry.INDEX_ITEM_TIME_TO_LIVE_OFFSET);
+		long createdTime = indexBuffer.getLong(offsetInIndexFile + IMapEntry.INDEX_ITEM_CREATED_TIME_OFFSET);
+		if (timeToLive > 0 && System.currentTimeMillis() - createdTime > timeToLive) {
+			result.setExpired(true);
+			return GetResult.EXPIRED;
+		}
+		result.setLevel(this.getLevel());
+		result.setTimeToLive(timeToLive);
+		result.setCreatedTime(createdTime);
+
+		long offsetInDataFile = indexBuffer.getLong(offsetInIndexFile + IMapEntry.INDEX_ITEM_IN_DATA_FILE_OFFSET_OFFSET);
+		int keyLength = indexBuffer.getInt(offsetInIndexFile + IMapEntry.INDEX_ITEM_KEY_LENGTH_OFFSET);
+		int valueLength = indexBuffer.getInt(offsetInIndexFile + IMapEntry.INDEX_ITEM_VALUE_LENGTH_OFFSET);
+		return this.readValue(offsetInDataFile + keyLength, valueLength, (status & (1 << 2)) != 0, dst);
+	}
+
+	// per thread scratch for compressed values when the target buffer is on heap
+	private static final ThreadLocal<byte[]> localScratchBytes = new ThreadLocal<byte[]>();
+
+	/**
+	 * Copy or uncompress a value from a thread private duplicate of a mapped buffer into dst
+	 */
+	protected static int copyValue(ByteBuffer dataBuffer, int offset, int length, boolean compressed, ByteBuffer dst) throws IOException {
+		dataBuffer.limit(offset + length);
+		dataBuffer.position(offset);
+		try {
+			if (!compressed) {
+				if (dst.remaining() < length) throw new BufferOverflowException();
+				dst.put(dataBuffer);
+				return length;
+			}
+
+			int uncompressedLength = Snappy.uncompressedLength(dataBuffer);
+			if (dst.remaining() < uncompressedLength) throw new BufferOverflowException();
+			int position = dst.position();
+			if (dst.isDirect()) {
+				int limit = dst.limit();
+				Snappy.uncompress(dataBuffer, dst);
+				dst.limit(limit);
+			} else {
+				byte[] scratch = localScratchBytes.get();
+				if (scratch == null || scratch.length < length) {
+					scratch = new byte[Math.max(length, 4 * 1024)];
+					localScratchBytes.set(scratch);
+				}
+				dataBuffer.get(scratch, 0, length);
+				Snappy.uncompress(scratch, 0, length, dst.array(), dst.arrayOffset() + position);
+			}
+			dst.position(position + uncompressedLength);
+			return uncompressedLength;
+		} finally {
+			dataBuffer.limit(dataBuffer.capacity());
+		}
+	}
+
 	protected void ensureNotClosed() {
 		if (closed) {
 			throw new IllegalStateException("You can't work on a closed map table.");
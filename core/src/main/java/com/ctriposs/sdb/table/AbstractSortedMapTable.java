@@ -19,6 +19,7 @@ import org.xerial.snappy.Snappy;
 import com.ctriposs.sdb.utils.BytesUtil;
 import com.ctriposs.sdb.utils.FileUtil;
 import com.ctriposs.sdb.utils.MMFUtil;
+import com.ctriposs.sdb.utils.StripedCounter;
 import com.google.common.base.Preconditions;
 import com.google.common.hash.BloomFilter;
 import com.google.common.hash.Funnels;
@@ -28,6 +29,22 @@ public abstract class AbstractSortedMapTable extends AbstractMapTable {
 	public static final String BLOOM_FLITER_FILE_SUFFIX = ".bloom";
 	public static final float FALSE_POSITIVE_PROBABILITY = 0.001F;
 	public static final int MAX_ALLOWED_NUMBER_OF_ENTRIES = Integer.MAX_VALUE / INDEX_ITEM_LENGTH;
+	// meta, index, data and bloom filter files
+	public static final int LEGACY_FORMAT_VERSION = 0;
+
+	/**
+	 * How a point lookup finds the index item of its key
+	 */
+	public enum IndexType {
+		// search of the index items sorted by key hash, through the hash directory or the block index
+		SORTED,
+		// minimal perfect hash index of the keys built when the table is sealed, one slot read per lookup,
+		// sorted search if the index can't be built
+		PERFECT_HASH
+	}
+
+	// returned by lookupHashIndex() of tables without a perfect hash index
+	protected static final int NO_HASH_INDEX = -2;
 
 	protected final ByteBuffer indexBuf = ByteBuffer.allocate(INDEX_ITEM_LENGTH);
 
@@ -36,6 +53,30 @@ public abstract class AbstractSortedMapTable extends AbstractMapTable {
 
 	protected MappedByteBuffer indexMappedByteBuffer;
 
+	// entries per bucket of the hash directory aimed at, a bucket of index items spans a page or so
+	private static final int DIRECTORY_BUCKET_ENTRIES = 64;
+	// at most 1M of directory per table
+	private static final int MAX_DIRECTORY_BITS = 18;
+
+	// disabled by tests and benchmarks for comparison
+	static boolean hashDirectoryEnabled = true;
+
+	// first index of every key hash prefix, null if lookups search the whole index
+	private int[] hashDirectory;
+
+	// lookups of keys the filter ruled out, and of keys it let through but the table doesn't have
+	private final StripedCounter filterRejects = new StripedCounter();
+	private final StripedCounter filterFalsePositives = new StripedCounter();
+
+	// key hash range of the entries, a key out of the range is skipped without checking the bloom filter
+	protected volatile int minKeyHash = Integer.MAX_VALUE;
+	protected volatile int maxKeyHash = Integer.MIN_VALUE;
+
+	// expiry time(created time plus time to live) of the entries having a time to live
+	protected volatile int expiringEntries = 0;
+	protected volatile long minExpiryTime = Long.MAX_VALUE;
+	protected volatile long maxExpiryTime = Long.MIN_VALUE;
+
 	public AbstractSortedMapTable(String dir, int level, long createdTime, int expectedInsertions)
 			throws IOException {
 		this(dir, (short)0, level, createdTime, expectedInsertions);
@@ -54,7 +95,16 @@ public abstract class AbstractSortedMapTable extends AbstractMapTable {
 	}
 
 	public AbstractSortedMapTable(String dir, String fileName) throws IOException, ClassNotFoundException {
-		super(dir, fileName);
+		this(dir, fileName, true);
+	}
+
+	/**
+	 * @param openFiles false for tables kept in a single file, which open it and load their filter themselves
+	 */
+	protected AbstractSortedMapTable(String dir, String fileName, boolean openFiles) throws IOException, ClassNotFoundException {
+		super(dir, fileName, openFiles);
+		if (!openFiles) return;
+
 		this.bloomFilterFile = this.dir + this.fileName + BLOOM_FLITER_FILE_SUFFIX;
 		this.reloadSavedBloomFilter();
 
@@ -62,6 +112,161 @@ public abstract class AbstractSortedMapTable extends AbstractMapTable {
 
 		int mapIndexFileSize = (int) this.indexChannel.size();
 		indexMappedByteBuffer = this.indexChannel.map(MapMode.READ_WRITE, 0, mapIndexFileSize);
+		initKeyHashRange();
+		loadExpiryTime();
+		buildHashDirectory();
+	}
+
+	// entries are sorted by key hash, the range is given by the first and the last entry
+	protected void initKeyHashRange() {
+		int size = this.getAppendedSize();
+		if (size > 0) {
+			this.minKeyHash = this.getKeyHash(0);
+			this.maxKeyHash = this.getKeyHash(size - 1);
+		}
+	}
+
+	/**
+	 * Directory of the first index of every bucket of key hashes sharing their top bits, a lookup goes straight
+	 * to the bucket of its key hash, about DIRECTORY_BUCKET_ENTRIES index items. Built once all entries are in.
+	 */
+	protected void buildHashDirectory() {
+		this.hashDirectory = null;
+		int size = this.getAppendedSize();
+		if (!hashDirectoryEnabled || size < DIRECTORY_BUCKET_ENTRIES * 2) return;
+		int bits = Math.min(32 - Integer.numberOfLeadingZeros(size / DIRECTORY_BUCKET_ENTRIES - 1), MAX_DIRECTORY_BITS);
+		int buckets = 1 << bits;
+		int[] directory = new int[buckets + 1];
+		int index = 0;
+		for(int bucket = 0; bucket < buckets; bucket++) {
+			// key hashes are signed, buckets go from the most negative one up
+			index = this.lowerBound((bucket << (32 - bits)) ^ Integer.MIN_VALUE, index, size);
+			directory[bucket] = index;
+		}
+		directory[buckets] = size;
+		this.hashDirectory = directory;
+	}
+
+	protected boolean hasHashDirectory() {
+		return this.hashDirectory != null;
+	}
+
+	// called on every append, under the append lock
+	protected void updateKeyHashRange(int keyHash) {
+		if (keyHash < this.minKeyHash) this.minKeyHash = keyHash;
+		if (keyHash > this.maxKeyHash) this.maxKeyHash = keyHash;
+	}
+
+	// called on every append, under the append lock
+	protected void updateExpiryTime(long timeToLive, long createdTime) {
+		if (timeToLive <= 0) return; // never expires
+		long expiryTime = createdTime + timeToLive;
+		if (expiryTime < this.minExpiryTime) this.minExpiryTime = expiryTime;
+		if (expiryTime > this.maxExpiryTime) this.maxExpiryTime = expiryTime;
+		this.expiringEntries++;
+	}
+
+	// an entry has been buffered by a table builder, its index item and key/value are written to the files later
+	void commitBuiltEntry(byte[] key, int keyHash, int valueLength, long timeToLive, long createdTime) {
+		appendLock.lock();
+		try {
+			this.addKeyToFilter(key);
+			this.updateKeyHashRange(keyHash);
+			this.updateExpiryTime(timeToLive, createdTime);
+			toAppendDataFileOffset.addAndGet(key.length + valueLength);
+			toAppendIndex.incrementAndGet();
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	private void loadExpiryTime() throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(SIZE_OF_INT_IN_BYTES + SIZE_OF_LONG_IN_BYTES * 2);
+		this.metaChannel.read(buf, EXPIRING_ENTRIES_OFFSET); // nothing is read from meta files of older tables
+		int expiring = buf.getInt(0);
+		if (expiring > 0) {
+			this.expiringEntries = expiring;
+			this.minExpiryTime = buf.getLong(SIZE_OF_INT_IN_BYTES);
+			this.maxExpiryTime = buf.getLong(SIZE_OF_INT_IN_BYTES + SIZE_OF_LONG_IN_BYTES);
+		}
+	}
+
+	private void persistExpiryTime() throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(SIZE_OF_INT_IN_BYTES + SIZE_OF_LONG_IN_BYTES * 2);
+		buf.putInt(this.expiringEntries);
+		buf.putLong(this.minExpiryTime);
+		buf.putLong(this.maxExpiryTime);
+		buf.flip();
+		this.metaChannel.write(buf, EXPIRING_ENTRIES_OFFSET);
+	}
+
+	/**
+	 * @return latest expiry time of the entries, Long.MAX_VALUE if any entry never expires or the table is empty
+	 */
+	public long getMaxExpiryTime() {
+		int size = this.getAppendedSize();
+		return size > 0 && this.expiringEntries == size ? this.maxExpiryTime : Long.MAX_VALUE;
+	}
+
+	/**
+	 * @param now current time in milliseconds
+	 * @return true if all entries have expired
+	 */
+	public boolean isAllExpired(long now) {
+		return now > this.getMaxExpiryTime();
+	}
+
+	/**
+	 * Estimated fraction of expired entries, expiry times are taken as evenly spread between the earliest and the latest
+	 *
+	 * @param now current time in milliseconds
+	 * @return fraction from 0 to 1
+	 */
+	public double getEstimatedExpiredFraction(long now) {
+		int size = this.getAppendedSize();
+		int expiring = this.expiringEntries;
+		if (size == 0 || expiring == 0 || now <= this.minExpiryTime) return 0;
+		double expired = now > this.maxExpiryTime ? 1 : (double) (now - this.minExpiryTime) / (this.maxExpiryTime - this.minExpiryTime);
+		return expired * expiring / size;
+	}
+
+	/**
+	 * @return key hash of the first entry, Integer.MAX_VALUE if the table is empty
+	 */
+	public int getMinKeyHash() {
+		return this.minKeyHash;
+	}
+
+	/**
+	 * @return key hash of the last entry, Integer.MIN_VALUE if the table is empty
+	 */
+	public int getMaxKeyHash() {
+		return this.maxKeyHash;
+	}
+
+	public boolean isInKeyHashRange(int keyHash) {
+		return keyHash >= this.minKeyHash && keyHash <= this.maxKeyHash;
+	}
+
+	/**
+	 * @param fromKeyHash lowest key hash, inclusive
+	 * @param toKeyHash highest key hash, inclusive
+	 * @return true if any entry has a key hash in the range
+	 */
+	public boolean hasKeyHashBetween(int fromKeyHash, int toKeyHash) {
+		ensureNotClosed();
+		int size = this.getAppendedSize();
+		int index = this.lowerBound(fromKeyHash, 0, size);
+		return index < size && this.getKeyHash(index) <= toKeyHash;
+	}
+
+	/**
+	 * @param keyHash key hash to look for
+	 * @return index of the first entry whose key hash is not less than the key hash, the appended size if there is none
+	 */
+	public int indexOfKeyHash(int keyHash) {
+		ensureNotClosed();
+		return this.lowerBound(keyHash, 0, this.getAppendedSize());
 	}
 
 	void initToAppendIndexAndOffset() throws IOException {
@@ -110,87 +315,300 @@ public abstract class AbstractSortedMapTable extends AbstractMapTable {
 			oos = new ObjectOutputStream(fos);
 			oos.writeObject(this.bloomFilter);
 			oos.flush();
+			fos.getFD().sync();
 		} finally {
 			oos.close();
 			fos.close();
 		}
 	}
 
-	// Search the key in the hashcode sorted array
-	private IMapEntry binarySearch(byte[] key) throws IOException {
-		int hashCode = Arrays.hashCode(key);
-		int lo = 0; int slo = lo;
-		int hi = this.getAppendedSize() - 1; int shi = hi;
-		while (lo <= hi) {
-			int mid = lo + (hi - lo) / 2;
-			IMapEntry mapEntry = this.getMapEntry(mid);
-			int midHashCode = mapEntry.getKeyHash();
-			if (hashCode < midHashCode) hi = mid - 1;
-			else if (hashCode > midHashCode) lo = mid + 1;
-			else {
-				if (BytesUtil.compare(key, mapEntry.getKey()) == 0) {
-					return mapEntry;
-				}
-				// find left
-				int index = mid - 1;
-				while(index >= slo) {
-					mapEntry = this.getMapEntry(index);
-					if (hashCode != mapEntry.getKeyHash()) break;
-					if (BytesUtil.compare(key, mapEntry.getKey()) == 0) {
-						return mapEntry;
-					}
-					index--;
-				}
-				// find right
-				index = mid + 1;
-				while(index <= shi) {
-					mapEntry = this.getMapEntry(index);
-					if (hashCode != mapEntry.getKeyHash()) break;
-					if (BytesUtil.compare(key, mapEntry.getKey()) == 0) {
-						return mapEntry;
-					}
-					index++;
-				}
+	// called for every entry committed by a table builder
+	protected void addKeyToFilter(byte[] key) {
+		this.bloomFilter.put(key);
+	}
 
-				return null;
-			}
+	/**
+	 * @param key the key
+	 * @param filterHash 64 bit hash of the key
+	 * @return false if the key is definitely not in the table
+	 */
+	protected boolean mightContain(byte[] key, long filterHash) {
+		// the bloom filter of tables written before key filters hashes the key itself
+		return this.bloomFilter.mightContain(key);
+	}
+
+	/**
+	 * @return bytes of the key filter
+	 */
+	public long getFilterSize() {
+		return new File(this.bloomFilterFile).length();
+	}
+
+	/**
+	 * @return projected false positive rate of the key filter from 0 to 1
+	 */
+	public double getFilterFalsePositiveRate() {
+		return FALSE_POSITIVE_PROBABILITY;
+	}
+
+	/**
+	 * @return lookups of keys the filter ruled out
+	 */
+	public long getFilterRejects() {
+		return this.filterRejects.get();
+	}
+
+	/**
+	 * @return lookups of keys the filter let through but not found in the table
+	 */
+	public long getFilterFalsePositives() {
+		return this.filterFalsePositives.get();
+	}
+
+	// key hash range and filter check, counted for the false positive rate of the filter
+	private boolean isCandidate(byte[] key, int keyHash, long filterHash) {
+		if (!this.isInKeyHashRange(keyHash)) return false;
+		if (!this.mightContain(key, filterHash)) {
+			this.filterRejects.increment();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return PERFECT_HASH if lookups go through a perfect hash index
+	 */
+	public IndexType getIndexType() {
+		return IndexType.SORTED;
+	}
+
+	/**
+	 * @param key the key
+	 * @param hashCode Arrays.hashCode of the key
+	 * @param filterHash KeyFilter.hash of the key
+	 * @return index of the key found by a perfect hash index, -1 if not in the table, NO_HASH_INDEX if the table has no such index
+	 */
+	protected int lookupHashIndex(byte[] key, int hashCode, long filterHash) throws IOException {
+		return NO_HASH_INDEX;
+	}
+
+	// whether the entry at the index has the key, compared in place
+	protected boolean isKeyAt(int index, byte[] key, int hashCode) throws IOException {
+		int offsetInIndexFile = INDEX_ITEM_LENGTH * index;
+		if (this.indexMappedByteBuffer.getInt(offsetInIndexFile + IMapEntry.INDEX_ITEM_KEY_HASH_CODE_OFFSET) != hashCode) return false;
+		long offsetInDataFile = this.indexMappedByteBuffer.getLong(offsetInIndexFile + IMapEntry.INDEX_ITEM_IN_DATA_FILE_OFFSET_OFFSET);
+		int keyLength = this.indexMappedByteBuffer.getInt(offsetInIndexFile + IMapEntry.INDEX_ITEM_KEY_LENGTH_OFFSET);
+		return keyLength == key.length && this.isKeyEqual(offsetInDataFile, key);
+	}
+
+	// index of the key through the perfect hash index if any, else searched in the hashcode sorted array, -1 if not found
+	private int indexOf(byte[] key, int hashCode, long filterHash) throws IOException {
+		int index = this.lookupHashIndex(key, hashCode, filterHash);
+		if (index != NO_HASH_INDEX) return index;
+		int size = this.getAppendedSize();
+		for(index = this.lowerBound(hashCode, 0, size); index < size && this.getKeyHash(index) == hashCode; index++) {
+			if (this.isKeyAt(index, key, hashCode)) return index;
 		}
-		return null;
+		return -1;
 	}
 
 	@Override
 	public GetResult get(byte[] key) throws IOException {
+		Preconditions.checkArgument(key != null && key.length > 0, "Key is empty");
+		return this.get(key, Arrays.hashCode(key), KeyFilter.hash(key));
+	}
+
+	/**
+	 * Get with the hashes of the key computed once by the caller for all tables
+	 *
+	 * @param key the key
+	 * @param hashCode Arrays.hashCode of the key
+	 * @param filterHash KeyFilter.hash of the key
+	 * @return the result
+	 * @throws IOException
+	 */
+	public GetResult get(byte[] key, int hashCode, long filterHash) throws IOException {
 		ensureNotClosed();
 		Preconditions.checkArgument(key != null && key.length > 0, "Key is empty");
 		Preconditions.checkArgument(this.getAppendedSize() >= 1, "the map table is empty");
 		GetResult result = new GetResult();
 
-		// leverage bloom filter for guarded condition
-		if (!this.bloomFilter.mightContain(key)) return result;
+		// leverage key hash range and filter for guarded condition
+		if (!this.isCandidate(key, hashCode, filterHash)) return result;
+
+		int index = this.indexOf(key, hashCode, filterHash);
+		if (index < 0) {
+			this.filterFalsePositives.increment();
+			return result;
+		} else {
+			this.fillResult(result, this.getMapEntry(index));
+			return result;
+		}
+	}
 
-		IMapEntry mapEntry = this.binarySearch(key);
-		if (mapEntry == null) return result;
-		else {
-			if (mapEntry.isCompressed()) {
-				result.setValue(Snappy.uncompress(mapEntry.getValue()));
-			} else {
-				result.setValue(mapEntry.getValue());
+	@Override
+	public int get(byte[] key, ByteBuffer dst, GetResult result) throws IOException {
+		Preconditions.checkArgument(key != null && key.length > 0, "Key is empty");
+		return this.get(key, Arrays.hashCode(key), KeyFilter.hash(key), dst, result);
+	}
+
+	/**
+	 * Get into a buffer with the hashes of the key computed once by the caller for all tables
+	 *
+	 * @param hashCode Arrays.hashCode of the key
+	 * @param filterHash KeyFilter.hash of the key
+	 * @see AbstractMapTable#get(byte[], ByteBuffer, GetResult)
+	 */
+	public int get(byte[] key, int hashCode, long filterHash, ByteBuffer dst, GetResult result) throws IOException {
+		ensureNotClosed();
+		Preconditions.checkArgument(key != null && key.length > 0, "Key is empty");
+		Preconditions.checkArgument(this.getAppendedSize() >= 1, "the map table is empty");
+		result.reset();
+
+		// leverage key hash range and filter for guarded condition
+		if (!this.isCandidate(key, hashCode, filterHash)) return GetResult.NOT_FOUND;
+		int index = this.indexOf(key, hashCode, filterHash);
+		if (index >= 0) {
+			return this.readEntry(index, this.indexMappedByteBuffer, dst, result);
+		}
+		this.filterFalsePositives.increment();
+		return GetResult.NOT_FOUND;
+	}
+
+	// compare the key in place with the key stored at the offset in data file
+	protected abstract boolean isKeyEqual(long offsetInDataFile, byte[] key) throws IOException;
+
+	/**
+	 * Get a group of keys sorted by key hash in ascending order,
+	 * every search starts from where the previous key hash was positioned,
+	 * so the mapped index is walked forward in one pass.
+	 *
+	 * @param keys keys sorted by key hash
+	 * @param keyHashes hash code of the keys
+	 * @return results in the same order as the keys
+	 * @throws IOException
+	 */
+	public GetResult[] get(byte[][] keys, int[] keyHashes) throws IOException {
+		long[] filterHashes = new long[keys.length];
+		for(int i = 0; i < keys.length; i++) {
+			filterHashes[i] = KeyFilter.hash(keys[i]);
+		}
+		return this.get(keys, keyHashes, filterHashes);
+	}
+
+	/**
+	 * @param filterHashes KeyFilter.hash of the keys
+	 * @see #get(byte[][], int[])
+	 */
+	public GetResult[] get(byte[][] keys, int[] keyHashes, long[] filterHashes) throws IOException {
+		ensureNotClosed();
+		Preconditions.checkArgument(keys.length == keyHashes.length && keys.length == filterHashes.length, "keys and key hashes don't match");
+		Preconditions.checkArgument(this.getAppendedSize() >= 1, "the map table is empty");
+		GetResult[] results = new GetResult[keys.length];
+		int size = this.getAppendedSize();
+		int lo = 0;
+		for(int i = 0; i < keys.length; i++) {
+			Preconditions.checkArgument(i == 0 || keyHashes[i - 1] <= keyHashes[i], "keys must be sorted by key hash");
+			results[i] = new GetResult();
+
+			// leverage key hash range and filter for guarded condition
+			if (!this.isCandidate(keys[i], keyHashes[i], filterHashes[i])) continue;
+
+			int entry = this.lookupHashIndex(keys[i], keyHashes[i], filterHashes[i]);
+			if (entry != NO_HASH_INDEX) {
+				if (entry >= 0) {
+					this.fillResult(results[i], this.getMapEntry(entry));
+				} else {
+					this.filterFalsePositives.increment();
+				}
+				continue;
 			}
-			if (mapEntry.isDeleted()) {
-				result.setDeleted(true);
-				return result;
+			lo = this.lowerBound(keyHashes[i], lo, size);
+			for(int index = lo; index < size && this.getKeyHash(index) == keyHashes[i]; index++) {
+				IMapEntry mapEntry = this.getMapEntry(index);
+				if (BytesUtil.compare(keys[i], mapEntry.getKey()) == 0) {
+					this.fillResult(results[i], mapEntry);
+					break;
+				}
 			}
-			if (mapEntry.isExpired()) {
-				result.setExpired(true);
-				return result;
+			if (!results[i].isFound()) {
+				this.filterFalsePositives.increment();
 			}
-			// hint for locality
-			result.setLevel(this.getLevel());
-			result.setTimeToLive(mapEntry.getTimeToLive());
-			result.setCreatedTime(mapEntry.getCreatedTime());
+		}
+		return results;
+	}
 
-			return result;
+	// first index in [lo, hi) whose key hash is not less than the hash code
+	protected int lowerBound(int hashCode, int lo, int hi) {
+		int[] directory = this.hashDirectory;
+		if (directory == null) return this.binaryLowerBound(hashCode, lo, hi);
+		int shift = 32 - Integer.numberOfTrailingZeros(directory.length - 1);
+		int bucket = (hashCode ^ Integer.MIN_VALUE) >>> shift;
+		int index = this.interpolationLowerBound(hashCode, directory[bucket], directory[bucket + 1], shift);
+		return Math.min(Math.max(index, lo), hi);
+	}
+
+	// key hashes are spread about evenly over the hash range of a bucket, so the position of a key hash is guessed
+	// from its offset in the range without reading the index, then the search gallops from the guess
+	private int interpolationLowerBound(int hashCode, int lo, int hi, int shift) {
+		if (lo >= hi) return lo;
+		long offset = (hashCode ^ Integer.MIN_VALUE) & ((1L << shift) - 1);
+		int guess = lo + (int) ((offset * (hi - lo)) >>> shift);
+		int step = 1;
+		if (this.getKeyHash(guess) < hashCode) {
+			// the bound is after the guess
+			int from = guess + 1;
+			while(from + step - 1 < hi && this.getKeyHash(from + step - 1) < hashCode) {
+				from += step;
+				step <<= 1;
+			}
+			return this.binaryLowerBound(hashCode, from, Math.min(from + step - 1, hi));
 		}
+		// the bound is at or before the guess
+		int to = guess;
+		while(to - step >= lo && this.getKeyHash(to - step) >= hashCode) {
+			to -= step;
+			step <<= 1;
+		}
+		return this.binaryLowerBound(hashCode, Math.max(to - step + 1, lo), to);
+	}
+
+	// first index in [lo, hi) whose key hash is not less than the hash code, by bisection
+	protected final int binaryLowerBound(int hashCode, int lo, int hi) {
+		while (lo < hi) {
+			int mid = lo + (hi - lo) / 2;
+			if (this.getKeyHash(mid) < hashCode) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * @param index index item number, less than the appended size
+	 * @return key hash of the entry
+	 */
+	public int getKeyHash(int index) {
+		return this.indexMappedByteBuffer.getInt(INDEX_ITEM_LENGTH * index + IMapEntry.INDEX_ITEM_KEY_HASH_CODE_OFFSET);
+	}
+
+	private void fillResult(GetResult result, IMapEntry mapEntry) throws IOException {
+		if (mapEntry.isCompressed()) {
+			result.setValue(Snappy.uncompress(mapEntry.getValue()));
+		} else {
+			result.setValue(mapEntry.getValue());
+		}
+		if (mapEntry.isDeleted()) {
+			result.setDeleted(true);
+			return;
+		}
+		if (mapEntry.isExpired()) {
+			result.setExpired(true);
+			return;
+		}
+		// hint for locality
+		result.setLevel(this.getLevel());
+		result.setTimeToLive(mapEntry.getTimeToLive());
+		result.setCreatedTime(mapEntry.getCreatedTime());
 	}
 
 	public void persistToAppendIndex() throws IOException {
@@ -207,11 +625,16 @@ public abstract class AbstractSortedMapTable extends AbstractMapTable {
 		this.metaChannel.write(longBuf, TO_APPEND_DATA_FILE_OFFSET);
 	}
 
+	// force data, index and metadata to the storage device, so source tables can be safely deleted after
 	public void saveMetadata() throws IOException {
 		ensureNotClosed();
 		this.persistToAppendIndex();
 		this.persistToAppendDataFileOffset();
+		this.persistExpiryTime();
 		this.persistBloomFilter();
+		this.dataChannel.force(false);
+		this.indexChannel.force(false);
+		this.metaChannel.force(true);
 	}
 
 	public void reMap() throws IOException {
@@ -219,9 +642,20 @@ public abstract class AbstractSortedMapTable extends AbstractMapTable {
 		MMFUtil.unmap(indexMappedByteBuffer);
 		this.indexChannel.truncate(INDEX_ITEM_LENGTH * toAppendIndex.get());
 		indexMappedByteBuffer = this.indexChannel.map(MapMode.READ_ONLY, 0, this.indexChannel.size());
+		buildHashDirectory();
 	}
 
-	public abstract IMapEntry appendNew(byte[] key, int keyHash, byte[] value, long timeToLive, long lastAccessedTime, boolean markDelete, boolean compressed) throws IOException;
+	/**
+	 * @return version of the on disk format, LEGACY_FORMAT_VERSION for tables kept in four files
+	 */
+	public int getFormatVersion() {
+		return LEGACY_FORMAT_VERSION;
+	}
+
+	// offset of the first index item in the index channel
+	long getIndexChannelOffset() {
+		return 0;
+	}
 
 	@Override
 	public void delete() {
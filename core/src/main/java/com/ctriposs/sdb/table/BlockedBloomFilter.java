@@ -0,0 +1,110 @@
+package com.ctriposs.sdb.table;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bloom filter split into blocks of one cache line, all bits of a key are set in the block selected by
+ * the high half of its hash, so a probe touches a single cache line and never hashes the key again.
+ */
+public class BlockedBloomFilter extends KeyFilter {
+
+	static final int BLOCK_BYTES = 64;
+	static final int BLOCK_BITS = BLOCK_BYTES * 8;
+	static final int MAX_PROBES = 16;
+	// a probe takes the top bits of the low half of the hash, remixed by a multiplication for the next probe
+	private static final int BIT_SHIFT = 32 - 9;
+	private static final int PROBE_MULTIPLIER = 0x9E3779B9;
+
+	private final ByteBuffer bits;
+	private final int blocks;
+	private final int probes;
+
+	BlockedBloomFilter(ByteBuffer bits, int blocks, int probes) {
+		this.bits = bits;
+		this.blocks = blocks;
+		this.probes = probes;
+	}
+
+	/**
+	 * @param bitsPerKey bits of the filter per key, greater than 0
+	 * @return probes per key minimizing false positives
+	 */
+	static int getProbes(double bitsPerKey) {
+		return (int) Math.max(1, Math.min(MAX_PROBES, Math.round(bitsPerKey * Math.log(2))));
+	}
+
+	/**
+	 * Projected false positive rate, the keys per block follow a Poisson distribution
+	 *
+	 * @param bitsPerKey bits of the filter per key, greater than 0
+	 * @return false positive rate from 0 to 1
+	 */
+	static double getFalsePositiveRate(double bitsPerKey) {
+		return getFalsePositiveRate(bitsPerKey, getProbes(bitsPerKey));
+	}
+
+	private static double getFalsePositiveRate(double bitsPerKey, int probes) {
+		double keysPerBlock = BLOCK_BITS / bitsPerKey;
+		int maxKeys = (int) (keysPerBlock + 10 * Math.sqrt(keysPerBlock) + 10);
+		double rate = 0;
+		double poisson = Math.exp(-keysPerBlock); // probability of a block of 0 keys
+		for(int keys = 0; keys <= maxKeys; keys++) {
+			rate += poisson * Math.pow(1 - Math.exp(-(double) probes * keys / BLOCK_BITS), probes);
+			poisson *= keysPerBlock / (keys + 1);
+		}
+		return Math.min(rate, 1);
+	}
+
+	/**
+	 * @param hashes 64 bit hashes of the keys, the first count ones
+	 * @param count number of keys
+	 * @param bitsPerKey bits of the filter per key, greater than 0
+	 * @return filter block
+	 */
+	static ByteBuffer build(long[] hashes, int count, double bitsPerKey) {
+		int blocks = (int) Math.max(1, Math.min(Integer.MAX_VALUE / BLOCK_BYTES - 1, Math.ceil(count * bitsPerKey / BLOCK_BITS)));
+		int probes = getProbes(bitsPerKey);
+		ByteBuffer block = newBlock(TYPE_BLOCKED_BLOOM, blocks, probes, 0, blocks * BLOCK_BYTES);
+		ByteBuffer bits = payload(block);
+		for(int i = 0; i < count; i++) {
+			long hash = hashes[i];
+			int offset = getBlockOffset(hash, blocks);
+			int h = (int) hash;
+			for(int j = 0; j < probes; j++) {
+				int bit = h >>> BIT_SHIFT;
+				int index = offset + (bit >>> 6) * 8;
+				bits.putLong(index, bits.getLong(index) | (1L << (bit & 63)));
+				h *= PROBE_MULTIPLIER;
+			}
+		}
+		return block;
+	}
+
+	// the block of a key is picked by the high half of its hash, the bits by the low half
+	private static int getBlockOffset(long hash, int blocks) {
+		return (int) (((hash >>> 32) * blocks) >>> 32) * BLOCK_BYTES;
+	}
+
+	@Override
+	public boolean mightContain(long hash) {
+		int offset = getBlockOffset(hash, blocks);
+		int h = (int) hash;
+		for(int j = 0; j < probes; j++) {
+			int bit = h >>> BIT_SHIFT;
+			if ((bits.getLong(offset + (bit >>> 6) * 8) & (1L << (bit & 63))) == 0) return false;
+			h *= PROBE_MULTIPLIER;
+		}
+		return true;
+	}
+
+	@Override
+	public long getSizeInBytes() {
+		return HEADER_LENGTH + (long) blocks * BLOCK_BYTES;
+	}
+
+	@Override
+	public double getFalsePositiveRate(long keys) {
+		if (keys <= 0) return 0;
+		return getFalsePositiveRate((double) blocks * BLOCK_BITS / keys, probes);
+	}
+}
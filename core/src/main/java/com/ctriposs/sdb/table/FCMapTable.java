@@ -1,7 +1,9 @@
 package com.ctriposs.sdb.table;
 
 import java.io.IOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 
 import com.google.common.base.Preconditions;
@@ -15,6 +17,9 @@ import com.google.common.base.Preconditions;
  */
 public class FCMapTable extends AbstractSortedMapTable {
 
+	// per thread direct buffer for in place key comparison and compressed values
+	private static final ThreadLocal<ByteBuffer> localScratchBuffer = new ThreadLocal<ByteBuffer>();
+
 	// Create new
 	public FCMapTable(String dir, int level, long createdTime, int expectedInsertions)
 			throws IOException, ClassNotFoundException {
@@ -38,7 +43,6 @@ public class FCMapTable extends AbstractSortedMapTable {
 		return this.appendNew(key, Arrays.hashCode(key), value, timeToLive, System.currentTimeMillis(), false, false);
 	}
 
-	@Override
 	public IMapEntry appendNew(byte[] key, int keyHash, byte[] value, long timeToLive, long createdTime, boolean deleted, boolean compressed) throws IOException {
 		ensureNotClosed();
 		Preconditions.checkArgument(key != null && key.length > 0, "Key is empty");
@@ -86,6 +90,8 @@ public class FCMapTable extends AbstractSortedMapTable {
 
 			// update guarded condition
 			this.bloomFilter.put(key);
+			this.updateKeyHashRange(keyHash);
+			this.updateExpiryTime(timeToLive, createdTime);
 
 			// commit/update offset & index
 			toAppendDataFileOffset.addAndGet(dataLength);
@@ -98,6 +104,57 @@ public class FCMapTable extends AbstractSortedMapTable {
 		}
 	}
 
+	static ByteBuffer getScratchBuffer(int length) {
+		ByteBuffer scratch = localScratchBuffer.get();
+		if (scratch == null || scratch.capacity() < length) {
+			scratch = ByteBuffer.allocateDirect(Math.max(length, 4 * 1024));
+			localScratchBuffer.set(scratch);
+		}
+		scratch.clear();
+		scratch.limit(length);
+		return scratch;
+	}
+
+	private void readFully(ByteBuffer buf, long offsetInDataFile) throws IOException {
+		readFully(this.dataChannel, buf, offsetInDataFile, this.dataFile);
+	}
+
+	static void readFully(FileChannel channel, ByteBuffer buf, long position, String file) throws IOException {
+		while(buf.hasRemaining()) {
+			int read = channel.read(buf, position);
+			if (read < 0) throw new IOException("Unexpected end of file " + file);
+			position += read;
+		}
+	}
+
+	@Override
+	protected boolean isKeyEqual(long offsetInDataFile, byte[] key) throws IOException {
+		ByteBuffer scratch = getScratchBuffer(key.length);
+		this.readFully(scratch, offsetInDataFile);
+		for(int i = 0; i < key.length; i++) {
+			if (scratch.get(i) != key[i]) return false;
+		}
+		return true;
+	}
+
+	@Override
+	protected int readValue(long offsetInDataFile, int length, boolean compressed, ByteBuffer dst) throws IOException {
+		if (!compressed) {
+			if (dst.remaining() < length) throw new BufferOverflowException();
+			int limit = dst.limit();
+			dst.limit(dst.position() + length);
+			try {
+				this.readFully(dst, offsetInDataFile);
+			} finally {
+				dst.limit(limit);
+			}
+			return length;
+		}
+		ByteBuffer scratch = getScratchBuffer(length);
+		this.readFully(scratch, offsetInDataFile);
+		return copyValue(scratch, 0, length, compressed, dst);
+	}
+
 	@Override
 	public IMapEntry getMapEntry(int index) {
 		ensureNotClosed();
@@ -0,0 +1,105 @@
+package com.ctriposs.sdb.table;
+
+import java.nio.ByteBuffer;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Kind and size of the key filters of new sorted tables, tables keep the filter they were written with.
+ */
+public class FilterPolicy {
+
+	public enum Type {
+		// cache line blocked bloom filter, any number of bits per key
+		BLOCKED_BLOOM,
+		// xor filter of 8 or 16 bit fingerprints, smaller than a bloom filter of the same false positive rate
+		XOR,
+		// no filter, every lookup searches the index
+		NONE
+	}
+
+	// about the false positive rate of the former bloom filters
+	public static final FilterPolicy DEFAULT = blockedBloom(14);
+
+	private final Type type;
+	private final double bitsPerKey;
+	private final int fingerprintBits;
+
+	private FilterPolicy(Type type, double bitsPerKey, int fingerprintBits) {
+		this.type = type;
+		this.bitsPerKey = bitsPerKey;
+		this.fingerprintBits = fingerprintBits;
+	}
+
+	/**
+	 * @param bitsPerKey bits of the filter per key, greater than 0
+	 * @return blocked bloom filter policy
+	 */
+	public static FilterPolicy blockedBloom(double bitsPerKey) {
+		Preconditions.checkArgument(bitsPerKey > 0 && bitsPerKey <= 64, "bitsPerKey (%s) must be greater than 0 and not greater than 64", bitsPerKey);
+		return new FilterPolicy(Type.BLOCKED_BLOOM, bitsPerKey, 0);
+	}
+
+	/**
+	 * @param fingerprintBits 8 for about 0.4% false positives at 9.84 bits per key, 16 for about 0.0015% at 19.68 bits per key
+	 * @return xor filter policy
+	 */
+	public static FilterPolicy xor(int fingerprintBits) {
+		Preconditions.checkArgument(fingerprintBits == 8 || fingerprintBits == 16, "fingerprintBits (%s) must be 8 or 16", fingerprintBits);
+		return new FilterPolicy(Type.XOR, XorFilter.getBitsPerKey(fingerprintBits), fingerprintBits);
+	}
+
+	public static FilterPolicy none() {
+		return new FilterPolicy(Type.NONE, 0, 0);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public double getBitsPerKey() {
+		return bitsPerKey;
+	}
+
+	/**
+	 * @return projected false positive rate from 0 to 1
+	 */
+	public double getFalsePositiveRate() {
+		switch(type) {
+		case BLOCKED_BLOOM:
+			return BlockedBloomFilter.getFalsePositiveRate(bitsPerKey);
+		case XOR:
+			return XorFilter.getFalsePositiveRate(fingerprintBits);
+		default:
+			return 1;
+		}
+	}
+
+	/**
+	 * @param hashes 64 bit hashes of the keys, the first count ones
+	 * @param count number of keys
+	 * @return filter block
+	 */
+	ByteBuffer build(long[] hashes, int count) {
+		switch(type) {
+		case BLOCKED_BLOOM:
+			return BlockedBloomFilter.build(hashes, count, bitsPerKey);
+		case XOR:
+			return XorFilter.build(hashes, count, fingerprintBits);
+		default:
+			return KeyFilter.newBlock(KeyFilter.TYPE_NONE, 0, 0, 0, 0);
+		}
+	}
+
+	@Override
+	public String toString() {
+		switch(type) {
+		case BLOCKED_BLOOM:
+			return "blocked bloom of " + bitsPerKey + " bits per key";
+		case XOR:
+			return "xor of " + fingerprintBits + " bit fingerprints";
+		default:
+			return "no filter";
+		}
+	}
+}
@@ -2,8 +2,16 @@ package com.ctriposs.sdb.table;
 
 public class GetResult {
 	
+	// return codes of the get into buffer variant
+	public static final int NOT_FOUND = -1;
+	public static final int DELETED = -2;
+	public static final int EXPIRED = -3;
+	
 	private byte[] value;
 	
+	// found without value materialized, set by the get into buffer variant
+	private boolean found;
+	
 	private boolean deleted;
 	
 	private boolean expired;
@@ -15,7 +23,24 @@ public class GetResult {
 	private long createdTime;
 
 	public boolean isFound() {
-		return value != null;
+		return value != null || found;
+	}
+	
+	void setFound(boolean found) {
+		this.found = found;
+	}
+	
+	/**
+	 * Clear the result so it can be reused for another lookup
+	 */
+	public void reset() {
+		this.value = null;
+		this.found = false;
+		this.deleted = false;
+		this.expired = false;
+		this.Level = 0;
+		this.timeToLive = 0;
+		this.createdTime = 0;
 	}
 	
 	public boolean isDeleted() {
@@ -1,19 +1,24 @@
 package com.ctriposs.sdb.table;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.util.Arrays;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.BitSet;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.xerial.snappy.Snappy;
 
+import com.ctriposs.sdb.WriteBatch;
+import com.ctriposs.sdb.utils.BytesUtil;
+import com.ctriposs.sdb.utils.FileUtil;
 import com.ctriposs.sdb.utils.MMFUtil;
 import com.google.common.base.Preconditions;
 
@@ -25,14 +30,52 @@ import com.google.common.base.Preconditions;
  */
 public class HashMapTable extends AbstractMapTable {
 
+	private static final int PAGE_SIZE = 4 * 1024;
+
+	public static final String HASH_INDEX_SNAPSHOT_FILE_SUFFIX = ".hashindex";
+	// magic, slot count, key count, appended index items(ints) and appended data size(long)
+	private static final int HASH_INDEX_SNAPSHOT_MAGIC = 0x53444248;
+	private static final int HASH_INDEX_SNAPSHOT_HEADER_LENGTH = 24;
+
 	private AtomicBoolean immutable = new AtomicBoolean(true);
 
-	private ConcurrentHashMap<ByteArrayWrapper, InMemIndex> hashMap;
+	private OffHeapHashIndex hashIndex;
+	// append cursor covered by the saved hash index snapshot, -1 if none
+	private volatile long snapshotCursor = -1;
+
+	// append cursor, the next index item number(high 24 bits) and data file offset(low 40 bits) packed
+	// in one long, so an append reserves its index item and data space with a single CAS
+	private static final int CURSOR_OFFSET_BITS = 40;
+	private static final long CURSOR_OFFSET_MASK = (1L << CURSOR_OFFSET_BITS) - 1;
+	private final AtomicLong appendCursor = new AtomicLong(0);
+	public static final int MAX_ENTRIES_PER_TABLE = (1 << (64 - CURSOR_OFFSET_BITS)) - 1;
+	// entries whose key/value, index item and hash index slot are all written, or given up by a failed writer,
+	// the append cursor also counts entries reserved by writers still copying
+	private final AtomicLong completedEntries = new AtomicLong(0);
+	// writers from before their check of the sealed flag to the end of their write, a table marked immutable
+	// is sealed, no writer reserves space in it after that, so it is complete once no writer is left
+	private final AtomicInteger writers = new AtomicInteger(0);
+	private volatile boolean sealed = false;
+	// group puts turn it odd while publishing their hash index slots and even again after,
+	// lookups overlapping a publish retry, so a group is found all or nothing
+	private final Object publishLock = new Object();
+	private volatile long publishSequence = 0;
+
 	protected ThreadLocalByteBuffer localDataMappedByteBuffer;
 	protected ThreadLocalByteBuffer localIndexMappedByteBuffer;
 
 	private boolean compressionEnabled = true;
 
+	// group commit, writers of the table wait on one shared force started after their writes
+	private boolean syncEnabled = false;
+	private final Object syncLock = new Object();
+	private volatile long startedForces = 0;
+	private long completedForces = 0;
+	private boolean forcing = false;
+	private boolean closing = false;
+	// completed entries covered by the last force
+	private long forcedEntries = 0;
+
 	// Create new
 	public HashMapTable(String dir, int level, long createdTime)
 			throws IOException {
@@ -48,6 +91,13 @@ public class HashMapTable extends AbstractMapTable {
 		initToAppendIndexAndOffset();
 	}
 
+	public HashMapTable(String dir, short shard, int level, long createdTime, int maxEntries, int dataFileSize)
+			throws IOException {
+		super(dir, shard, level, createdTime, checkMaxEntries(maxEntries), dataFileSize);
+		mapIndexAndDataFiles();
+		initToAppendIndexAndOffset();
+	}
+
 	// Load existing
 	public HashMapTable(String dir, String fileName)
 			throws IOException {
@@ -60,6 +110,57 @@ public class HashMapTable extends AbstractMapTable {
 		this.compressionEnabled = enabled;
 	}
 
+	/**
+	 * Force every write to the storage device before the write returns, concurrent writers share one force.
+	 *
+	 * @param enabled
+	 */
+	public void setSyncEnabled(boolean enabled) {
+		this.syncEnabled = enabled;
+	}
+
+	/**
+	 * Force all writes appended so far to the storage device, one force is shared by
+	 * concurrent callers, and a table with no write completed since the last force is skipped.
+	 *
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		// any force started after this point covers all writes done by the caller
+		long neededForce = startedForces + 1;
+		long force;
+		synchronized(syncLock) {
+			try {
+				while(forcing && completedForces < neededForce) {
+					syncLock.wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (completedForces >= neededForce || closing) return;
+			forcing = true;
+			force = ++startedForces;
+		}
+
+		try {
+			// read before the force, every write counted is in the mapping by then
+			long completed = completedEntries.get();
+			if (completed != forcedEntries) {
+				// data first, an index item on device always points to data on device
+				((MappedByteBuffer)this.localDataMappedByteBuffer.getSourceBuffer()).force();
+				((MappedByteBuffer)this.localIndexMappedByteBuffer.getSourceBuffer()).force();
+				forcedEntries = completed;
+			}
+		} finally {
+			synchronized(syncLock) {
+				forcing = false;
+				completedForces = force;
+				syncLock.notifyAll();
+			}
+		}
+	}
+
 	private void mapIndexAndDataFiles() throws IOException {
 		MappedByteBuffer indexMappedByteBuffer = this.indexChannel.map(MapMode.READ_WRITE, 0, this.indexChannel.size());
 		localIndexMappedByteBuffer = new ThreadLocalByteBuffer(indexMappedByteBuffer);
@@ -67,29 +168,340 @@ public class HashMapTable extends AbstractMapTable {
 		localDataMappedByteBuffer = new ThreadLocalByteBuffer(dataMappedByteBuffer);
 	}
 
-	public Set<Map.Entry<ByteArrayWrapper, InMemIndex>> getEntrySet() {
+	/**
+	 * Touch every page of the mapped index and data files, so appends to a new table don't page fault,
+	 * only safe before the table is in use.
+	 */
+	public void prefault() {
+		ensureNotClosed();
+		prefault(this.localIndexMappedByteBuffer.get());
+		prefault(this.localDataMappedByteBuffer.get());
+	}
+
+	private static void prefault(ByteBuffer buffer) {
+		for(int i = 0; i < buffer.capacity(); i += PAGE_SIZE) {
+			buffer.put(i, buffer.get(i));
+		}
+	}
+
+	/**
+	 * Live entries sorted by key hash then key, built for merging without a comparator on the mapped files.
+	 *
+	 * Every entry packs the key hash with the sign bit flipped(high 32 bits), so the unsigned order of the
+	 * packed entries is the order of the key hashes, and the index item number(low 32 bits). Key hashes are read
+	 * sequentially from the index file and radix sorted, only keys sharing a key hash are compared.
+	 *
+	 * @return packed entries, see {@link #getSortedKeyHash(long)} and {@link #getSortedIndex(long)}
+	 */
+	public long[] getSortedEntries() throws IOException {
 		ensureNotClosed();
-		return this.hashMap.entrySet();
+		int[] indexes = this.hashIndex.getIndexes();
+		BitSet live = new BitSet(this.getAppendedSize());
+		for(int index : indexes) {
+			live.set(index);
+		}
+		long[] entries = new long[indexes.length];
+		ByteBuffer indexBuffer = this.localIndexMappedByteBuffer.get();
+		int count = 0;
+		for(int index = live.nextSetBit(0); index >= 0 && count < entries.length; index = live.nextSetBit(index + 1)) {
+			int keyHash = indexBuffer.getInt(INDEX_ITEM_LENGTH * index + IMapEntry.INDEX_ITEM_KEY_HASH_CODE_OFFSET);
+			entries[count++] = ((long) (keyHash ^ Integer.MIN_VALUE) << 32) | index;
+		}
+		radixSortByKeyHash(entries);
+
+		// keys sharing a key hash are ordered by key
+		int start = 0;
+		while(start < entries.length) {
+			int end = start + 1;
+			while(end < entries.length && (entries[end] >>> 32) == (entries[start] >>> 32)) end++;
+			if (end - start > 1) this.sortByKey(entries, start, end);
+			start = end;
+		}
+		return entries;
+	}
+
+	public static int getSortedKeyHash(long sortedEntry) {
+		return (int) (sortedEntry >>> 32) ^ Integer.MIN_VALUE;
+	}
+
+	public static int getSortedIndex(long sortedEntry) {
+		return (int) sortedEntry;
+	}
+
+	// LSD radix sort on the high 32 bits, a byte per pass, stable so entries keep the index order within a key hash
+	static void radixSortByKeyHash(long[] entries) {
+		if (entries.length < 2) return;
+		long[] from = entries;
+		long[] to = new long[entries.length];
+		int[] counts = new int[256];
+		for(int shift = 32; shift < 64; shift += 8) {
+			Arrays.fill(counts, 0);
+			for(long entry : from) {
+				counts[(int) (entry >>> shift) & 0xFF]++;
+			}
+			if (counts[(int) (from[0] >>> shift) & 0xFF] == from.length) continue; // same byte everywhere
+			int sum = 0;
+			for(int i = 0; i < counts.length; i++) {
+				int count = counts[i];
+				counts[i] = sum;
+				sum += count;
+			}
+			for(long entry : from) {
+				to[counts[(int) (entry >>> shift) & 0xFF]++] = entry;
+			}
+			long[] swap = from;
+			from = to;
+			to = swap;
+		}
+		if (from != entries) {
+			System.arraycopy(from, 0, entries, 0, entries.length);
+		}
+	}
+
+	// insertion sort of a run sharing a key hash, such runs are short
+	private void sortByKey(long[] entries, int from, int to) throws IOException {
+		byte[][] keys = new byte[to - from][];
+		for(int i = 0; i < keys.length; i++) {
+			keys[i] = this.getMapEntry(getSortedIndex(entries[from + i])).getKey();
+		}
+		for(int i = 1; i < keys.length; i++) {
+			byte[] key = keys[i];
+			long entry = entries[from + i];
+			int j = i - 1;
+			while(j >= 0 && BytesUtil.compare(keys[j], key) > 0) {
+				keys[j + 1] = keys[j];
+				entries[from + j + 1] = entries[from + j];
+				j--;
+			}
+			keys[j + 1] = key;
+			entries[from + j + 1] = entry;
+		}
+	}
+
+	// compare the key in place with the key of the index item in the mapped data file
+	boolean isKeyEqual(int index, byte[] key) {
+		ByteBuffer indexBuffer = this.localIndexMappedByteBuffer.get();
+		int offsetInIndexFile = INDEX_ITEM_LENGTH * index;
+		if (indexBuffer.getInt(offsetInIndexFile + IMapEntry.INDEX_ITEM_KEY_LENGTH_OFFSET) != key.length) return false;
+		int offsetInDataFile = (int) indexBuffer.getLong(offsetInIndexFile + IMapEntry.INDEX_ITEM_IN_DATA_FILE_OFFSET_OFFSET);
+		ByteBuffer dataBuffer = this.localDataMappedByteBuffer.get();
+		for(int i = 0; i < key.length; i++) {
+			if (dataBuffer.get(offsetInDataFile + i) != key[i]) return false;
+		}
+		return true;
+	}
+
+	boolean isKeyEqual(int index1, int index2) {
+		ByteBuffer indexBuffer = this.localIndexMappedByteBuffer.get();
+		int offsetInIndexFile1 = INDEX_ITEM_LENGTH * index1;
+		int offsetInIndexFile2 = INDEX_ITEM_LENGTH * index2;
+		int keyLength = indexBuffer.getInt(offsetInIndexFile1 + IMapEntry.INDEX_ITEM_KEY_LENGTH_OFFSET);
+		if (indexBuffer.getInt(offsetInIndexFile2 + IMapEntry.INDEX_ITEM_KEY_LENGTH_OFFSET) != keyLength) return false;
+		int offsetInDataFile1 = (int) indexBuffer.getLong(offsetInIndexFile1 + IMapEntry.INDEX_ITEM_IN_DATA_FILE_OFFSET_OFFSET);
+		int offsetInDataFile2 = (int) indexBuffer.getLong(offsetInIndexFile2 + IMapEntry.INDEX_ITEM_IN_DATA_FILE_OFFSET_OFFSET);
+		ByteBuffer dataBuffer = this.localDataMappedByteBuffer.get();
+		for(int i = 0; i < keyLength; i++) {
+			if (dataBuffer.get(offsetInDataFile1 + i) != dataBuffer.get(offsetInDataFile2 + i)) return false;
+		}
+		return true;
 	}
 
 	private void initToAppendIndexAndOffset() throws IOException {
-		this.hashMap = new ConcurrentHashMap<ByteArrayWrapper, InMemIndex>(INIT_INDEX_ITEMS_PER_TABLE);
-		toAppendIndex = new AtomicInteger(0);
-		toAppendDataFileOffset = new AtomicLong(0);
-		int index = 0;
-		MMFMapEntryImpl mapEntry = new MMFMapEntryImpl(index, this.localIndexMappedByteBuffer.get(), this.localDataMappedByteBuffer.get());
-		while(mapEntry.isInUse()) {
-			toAppendIndex.incrementAndGet();
-			long nextOffset = mapEntry.getItemOffsetInDataFile() + mapEntry.getKeyLength() + mapEntry.getValueLength();
-			toAppendDataFileOffset.set(nextOffset);
-			InMemIndex inMemIndex = new InMemIndex(index);
-			// populate in memory skip list
-			hashMap.put(new ByteArrayWrapper(mapEntry.getKey()), inMemIndex);
-			index++;
-			mapEntry = new MMFMapEntryImpl(index, this.localIndexMappedByteBuffer.get(), this.localDataMappedByteBuffer.get());
+		this.hashIndex = new OffHeapHashIndex(this, this.indexItemsCapacity);
+		if (this.loadHashIndexSnapshot()) return;
+
+		// no valid snapshot, scan all index items, keys are compared in place. Writers reserve index items
+		// concurrently, an item reserved by a writer not done before a crash is left as a hole between
+		// completed ones, so the scan goes on to the capacity and the cursor is restarted past the last completed item
+		ByteBuffer indexBuffer = this.localIndexMappedByteBuffer.get();
+		int appendedSize = 0;
+		long dataFileOffset = 0;
+		for(int index = 0; index < this.indexItemsCapacity; index++) {
+			if (!isInUse(indexBuffer, index)) continue; // hole
+			int offsetInIndexFile = INDEX_ITEM_LENGTH * index;
+			dataFileOffset = indexBuffer.getLong(offsetInIndexFile + IMapEntry.INDEX_ITEM_IN_DATA_FILE_OFFSET_OFFSET)
+					+ indexBuffer.getInt(offsetInIndexFile + IMapEntry.INDEX_ITEM_KEY_LENGTH_OFFSET)
+					+ indexBuffer.getInt(offsetInIndexFile + IMapEntry.INDEX_ITEM_VALUE_LENGTH_OFFSET);
+			// populate off heap hash index
+			hashIndex.put(indexBuffer.getInt(offsetInIndexFile + IMapEntry.INDEX_ITEM_KEY_HASH_CODE_OFFSET), index);
+			appendedSize = index + 1;
+		}
+		appendCursor.set(cursor(appendedSize, dataFileOffset));
+		// holes are never completed, they are counted as done
+		completedEntries.set(appendedSize);
+	}
+
+	// the index file has one more item than the capacity, which is never in use
+	private static boolean isInUse(ByteBuffer indexBuffer, int index) {
+		return (indexBuffer.get(INDEX_ITEM_LENGTH * index + IMapEntry.INDEX_ITEM_STATUS) & 1) == 1;
+	}
+
+	private String getHashIndexSnapshotFile() {
+		return this.dir + this.fileName + HASH_INDEX_SNAPSHOT_FILE_SUFFIX;
+	}
+
+	/**
+	 * Persist the hash index, so the table is loaded without scanning all keys, only for a table
+	 * no more written to. Nothing is saved if an append is found running, the table is then scanned on load.
+	 *
+	 * @return true if the snapshot is saved
+	 * @throws IOException
+	 */
+	public boolean saveHashIndexSnapshot() throws IOException {
+		ensureNotClosed();
+		long cursor = appendCursor.get();
+		if (cursor == snapshotCursor) return true; // nothing appended since
+		int appendedSize = cursorIndex(cursor);
+		// an entry is in the hash index once completed, its status byte is written before
+		if (completedEntries.get() != appendedSize) return false; // reserved but not completed yet
+
+		File snapshotFile = new File(this.getHashIndexSnapshotFile());
+		File tempFile = new File(snapshotFile.getPath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HASH_INDEX_SNAPSHOT_HEADER_LENGTH);
+			header.putInt(HASH_INDEX_SNAPSHOT_MAGIC);
+			header.putInt(this.hashIndex.getSlotCount());
+			header.putInt(this.hashIndex.size());
+			header.putInt(appendedSize);
+			header.putLong(cursorOffset(cursor));
+			header.flip();
+			while(header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+			this.hashIndex.writeTo(channel, HASH_INDEX_SNAPSHOT_HEADER_LENGTH);
+			channel.force(true);
+		} finally {
+			raf.close();
+		}
+
+		if (appendCursor.get() != cursor) { // appended while saving
+			FileUtil.deleteFile(tempFile);
+			return false;
+		}
+		if (!FileUtil.deleteFile(snapshotFile) || !tempFile.renameTo(snapshotFile)) {
+			log.warn("fail to save hash index snapshot file " + snapshotFile);
+			FileUtil.deleteFile(tempFile);
+			return false;
+		}
+		snapshotCursor = cursor;
+		return true;
+	}
+
+	/**
+	 * @return true if the saved hash index snapshot covers all appended entries
+	 */
+	public boolean isHashIndexSnapshotSaved() {
+		return appendCursor.get() == snapshotCursor;
+	}
+
+	// load the hash index from a snapshot matching the index items, return false to fall back to scanning
+	private boolean loadHashIndexSnapshot() {
+		File snapshotFile = new File(this.getHashIndexSnapshotFile());
+		if (!snapshotFile.exists()) return false;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(snapshotFile, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				ByteBuffer header = ByteBuffer.allocate(HASH_INDEX_SNAPSHOT_HEADER_LENGTH);
+				while(header.hasRemaining()) {
+					if (channel.read(header, header.position()) < 0) return false;
+				}
+				header.flip();
+				if (header.getInt() != HASH_INDEX_SNAPSHOT_MAGIC) return false;
+				if (header.getInt() != this.hashIndex.getSlotCount()) return false;
+				int size = header.getInt();
+				int appendedSize = header.getInt();
+				long dataFileOffset = header.getLong();
+				if (!this.isAppendCursor(appendedSize, dataFileOffset)) return false; // appended after the snapshot
+
+				this.hashIndex.readFrom(channel, HASH_INDEX_SNAPSHOT_HEADER_LENGTH, size);
+				appendCursor.set(cursor(appendedSize, dataFileOffset));
+				completedEntries.set(appendedSize);
+				snapshotCursor = appendCursor.get();
+				return true;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			log.warn("fail to load hash index snapshot file " + snapshotFile + ", scan index items instead", e);
+			this.hashIndex.clear(); // may be partially read
+			return false;
+		}
+	}
+
+	// the last written index item ends at the data file offset, and the next one is not in use
+	private boolean isAppendCursor(int appendedSize, long dataFileOffset) {
+		if (appendedSize < 0 || appendedSize > this.indexItemsCapacity) return false;
+		ByteBuffer indexBuffer = this.localIndexMappedByteBuffer.get();
+		if (isInUse(indexBuffer, appendedSize)) return false;
+		if (appendedSize == 0) return dataFileOffset == 0;
+		int offsetInIndexFile = INDEX_ITEM_LENGTH * (appendedSize - 1);
+		return isInUse(indexBuffer, appendedSize - 1) &&
+				indexBuffer.getLong(offsetInIndexFile + IMapEntry.INDEX_ITEM_IN_DATA_FILE_OFFSET_OFFSET)
+				+ indexBuffer.getInt(offsetInIndexFile + IMapEntry.INDEX_ITEM_KEY_LENGTH_OFFSET)
+				+ indexBuffer.getInt(offsetInIndexFile + IMapEntry.INDEX_ITEM_VALUE_LENGTH_OFFSET) == dataFileOffset;
+	}
+
+	private static int checkMaxEntries(int maxEntries) {
+		Preconditions.checkArgument(maxEntries > 0 && maxEntries <= MAX_ENTRIES_PER_TABLE,
+				"maxEntries (%s) must be between 1 and %s", maxEntries, MAX_ENTRIES_PER_TABLE);
+		return maxEntries;
+	}
+
+	private static long cursor(int index, long dataFileOffset) {
+		return ((long) index << CURSOR_OFFSET_BITS) | dataFileOffset;
+	}
+
+	private static int cursorIndex(long cursor) {
+		return (int) (cursor >>> CURSOR_OFFSET_BITS);
+	}
+
+	private static long cursorOffset(long cursor) {
+		return cursor & CURSOR_OFFSET_MASK;
+	}
+
+	/**
+	 * Reserve index items and data space with one CAS
+	 *
+	 * @param count number of index items
+	 * @param dataLength number of data bytes
+	 * @return the cursor before the reservation, or -1 if there is no enough space
+	 */
+	long reserve(int count, long dataLength) {
+		while(true) {
+			long current = appendCursor.get();
+			int index = cursorIndex(current);
+			long dataFileOffset = cursorOffset(current);
+			if (index + count > this.indexItemsCapacity) { // index overflow
+				return -1;
+			}
+			if (dataFileOffset + dataLength > this.dataFileCapacity) { // data overflow
+				return -1;
+			}
+			if (appendCursor.compareAndSet(current, cursor(index + count, dataFileOffset + dataLength))) {
+				return current;
+			}
 		}
 	}
 
+	@Override
+	public int getAppendedSize() {
+		return cursorIndex(appendCursor.get());
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return this.getAppendedSize() == 0;
+	}
+
+	@Override
+	public long getAppendedDataSize() {
+		return cursorOffset(appendCursor.get());
+	}
+
 	// for testing
 	public IMapEntry appendNew(byte[] key, byte[] value, long timeToLive, long createdTime) throws IOException {
 		Preconditions.checkArgument(key != null && key.length > 0, "Key is empty");
@@ -111,34 +523,52 @@ public class HashMapTable extends AbstractMapTable {
 	private IMapEntry appendNew(byte[] key, int keyHash, byte[] value, long timeToLive, long createdTime, boolean markDelete, boolean compressed) throws IOException {
 		ensureNotClosed();
 		
-		long tempToAppendIndex;
-		long tempToAppendDataFileOffset;
-		
-		appendLock.lock();
+		writers.incrementAndGet();
 		try {
-
-			if (toAppendIndex.get() == INIT_INDEX_ITEMS_PER_TABLE) { // index overflow
+			if (sealed) { // switched off, go on with the new active table
 				return null;
 			}
-			int dataLength = key.length + value.length;
-			if (toAppendDataFileOffset.get() + dataLength > INIT_DATA_FILE_SIZE) { // data overflow
+			long reserved = this.reserve(1, key.length + value.length);
+			if (reserved < 0) { // no space
 				return null;
 			}
-			
-			tempToAppendIndex = toAppendIndex.get();
-			tempToAppendDataFileOffset = toAppendDataFileOffset.get();
+			return this.appendReserved(reserved, key, keyHash, value, timeToLive, createdTime, markDelete, compressed);
+		} finally {
+			writers.decrementAndGet();
+		}
+	}
+
+	// write an entry into the space reserved for it, tests hold a reservation to play a writer still copying
+	IMapEntry appendReserved(long reserved, byte[] key, int keyHash, byte[] value, long timeToLive, long createdTime, boolean markDelete, boolean compressed) throws IOException {
+		int tempToAppendIndex = cursorIndex(reserved);
+		long tempToAppendDataFileOffset = cursorOffset(reserved);
 
-			// commit/update offset & index
-			toAppendDataFileOffset.addAndGet(dataLength);
-			toAppendIndex.incrementAndGet();
+		try {
+			this.writeIndexAndData(tempToAppendIndex, tempToAppendDataFileOffset, key, keyHash, value, timeToLive, createdTime, markDelete, compressed);
+			this.hashIndex.put(key, keyHash, tempToAppendIndex);
+		} finally {
+			// a failed write leaves a hole, never waited for
+			completedEntries.incrementAndGet();
 		}
-		finally {
-			appendLock.unlock();
+		if (this.syncEnabled) {
+			this.sync();
 		}
-		
+
+		return new MMFMapEntryImpl(tempToAppendIndex, this.localIndexMappedByteBuffer.get(), this.localDataMappedByteBuffer.get());
+	}
+
+	// key/value first, then the index item, the in use status byte last, so recovery never sees a half written entry
+	private void writeIndexAndData(int index, long dataFileOffset, byte[] key, int keyHash, byte[] value, long timeToLive, long createdTime, boolean markDelete, boolean compressed) {
+		// write key/value
+		ByteBuffer localDataBuffer = this.localDataMappedByteBuffer.get();
+		localDataBuffer.position((int)dataFileOffset);
+		localDataBuffer.put(ByteBuffer.wrap(key));
+		localDataBuffer.position((int)dataFileOffset + key.length);
+		localDataBuffer.put(ByteBuffer.wrap(value));
+
 		// write index metadata
 		ByteBuffer tempIndexBuf = ByteBuffer.allocate(INDEX_ITEM_LENGTH);
-		tempIndexBuf.putLong(IMapEntry.INDEX_ITEM_IN_DATA_FILE_OFFSET_OFFSET, tempToAppendDataFileOffset);
+		tempIndexBuf.putLong(IMapEntry.INDEX_ITEM_IN_DATA_FILE_OFFSET_OFFSET, dataFileOffset);
 		tempIndexBuf.putInt(IMapEntry.INDEX_ITEM_KEY_LENGTH_OFFSET, key.length);
 		tempIndexBuf.putInt(IMapEntry.INDEX_ITEM_VALUE_LENGTH_OFFSET, value.length);
 		tempIndexBuf.putLong(IMapEntry.INDEX_ITEM_TIME_TO_LIVE_OFFSET, timeToLive);
@@ -151,24 +581,105 @@ public class HashMapTable extends AbstractMapTable {
 		if (compressed && !markDelete) {
 			status = (byte) (status + 4);
 		}
-		tempIndexBuf.put(IMapEntry.INDEX_ITEM_STATUS, status); // mark in use
 
-		int offsetInIndexFile = INDEX_ITEM_LENGTH * (int)tempToAppendIndex;
+		int offsetInIndexFile = INDEX_ITEM_LENGTH * index;
 		ByteBuffer localIndexBuffer = this.localIndexMappedByteBuffer.get();
 		localIndexBuffer.position(offsetInIndexFile);
-		//indexBuf.rewind();
 		localIndexBuffer.put(tempIndexBuf);
+		localIndexBuffer.put(offsetInIndexFile + IMapEntry.INDEX_ITEM_STATUS, status); // mark in use
+	}
 
-		// write key/value
-		ByteBuffer localDataBuffer = this.localDataMappedByteBuffer.get();
-		localDataBuffer.position((int)tempToAppendDataFileOffset);
-		localDataBuffer.put(ByteBuffer.wrap(key));
-		localDataBuffer.position((int)tempToAppendDataFileOffset + key.length);
-		localDataBuffer.put(ByteBuffer.wrap(value));
+	/**
+	 * Data bytes a group of entries takes at most, compressed values may be a little longer than the raw ones
+	 *
+	 * @param entries batch entries of a shard
+	 * @param compressionEnabled whether values are compressed
+	 * @return max data length of the group
+	 */
+	public static long getMaxDataLength(List<WriteBatch.Entry> entries, boolean compressionEnabled) {
+		long dataLength = 0;
+		for(WriteBatch.Entry entry : entries) {
+			int valueLength = entry.getValue().length;
+			if (compressionEnabled && !entry.isDelete()) {
+				valueLength = Snappy.maxCompressedLength(valueLength);
+			}
+			dataLength += entry.getKey().length + valueLength;
+		}
+		return dataLength;
+	}
 
-		this.hashMap.put(new ByteArrayWrapper(key), new InMemIndex((int)tempToAppendIndex));
-		
-		return new MMFMapEntryImpl((int)tempToAppendIndex, localIndexBuffer, localDataBuffer);
+	/**
+	 * Append a group of entries with one index and data space reservation,
+	 * either all entries are appended or none of them(no space),
+	 * readers find the group in the hash index only after all its entries are written.
+	 *
+	 * @param entries batch entries of this shard
+	 * @param createdTime created time of all entries
+	 * @return true if all entries are appended, false if there is no enough space
+	 * @throws IOException
+	 */
+	public boolean put(List<WriteBatch.Entry> entries, long createdTime) throws IOException {
+		ensureNotClosed();
+		int count = entries.size();
+		if (count == 0) return true;
+
+		byte[][] values = new byte[count][];
+		int[] keyHashes = new int[count];
+		long dataLength = 0;
+		for(int i = 0; i < count; i++) {
+			WriteBatch.Entry entry = entries.get(i);
+			if (entry.isDelete()) {
+				values[i] = entry.getValue();
+			} else {
+				values[i] = this.compressionEnabled ? Snappy.compress(entry.getValue()) : entry.getValue();
+			}
+			keyHashes[i] = Arrays.hashCode(entry.getKey());
+			dataLength += entry.getKey().length + values[i].length;
+		}
+
+		writers.incrementAndGet();
+		try {
+			if (sealed) { // switched off, go on with the new active table
+				return false;
+			}
+			// one reservation for the whole group
+			long reserved = this.reserve(count, dataLength);
+			if (reserved < 0) { // no space
+				return false;
+			}
+			int tempToAppendIndex = cursorIndex(reserved);
+			long tempToAppendDataFileOffset = cursorOffset(reserved);
+
+			try {
+				for(int i = 0; i < count; i++) {
+					WriteBatch.Entry entry = entries.get(i);
+					byte[] key = entry.getKey();
+					this.writeIndexAndData(tempToAppendIndex + i, tempToAppendDataFileOffset, key, keyHashes[i], values[i],
+							entry.getTimeToLive(), createdTime, entry.isDelete(), this.compressionEnabled && !entry.isDelete());
+					tempToAppendDataFileOffset += key.length + values[i].length;
+				}
+				synchronized(publishLock) {
+					publishSequence++;
+					try {
+						for(int i = 0; i < count; i++) {
+							this.hashIndex.put(entries.get(i).getKey(), keyHashes[i], tempToAppendIndex + i);
+						}
+					} finally {
+						publishSequence++;
+					}
+				}
+			} finally {
+				// a failed write leaves holes, never waited for
+				completedEntries.addAndGet(count);
+			}
+		} finally {
+			writers.decrementAndGet();
+		}
+		if (this.syncEnabled) {
+			this.sync();
+		}
+
+		return true;
 	}
 
 	@Override
@@ -179,15 +690,28 @@ public class HashMapTable extends AbstractMapTable {
 		return new MMFMapEntryImpl(index, this.localIndexMappedByteBuffer.get(), this.localDataMappedByteBuffer.get());
 	}
 
+	// index item number of the key in the hash index, -1 if not found, never a part of a group being published
+	private int lookup(byte[] key) {
+		int keyHash = Arrays.hashCode(key);
+		while(true) {
+			long sequence = publishSequence;
+			if ((sequence & 1) == 0) {
+				int index = this.hashIndex.get(key, keyHash);
+				if (publishSequence == sequence) return index;
+			}
+			Thread.yield();
+		}
+	}
+
 	@Override
 	public GetResult get(byte[] key) throws IOException {
 		ensureNotClosed();
 		Preconditions.checkArgument(key != null && key.length > 0, "Key is empty");
 		GetResult result = new GetResult();
-		InMemIndex inMemIndex = this.hashMap.get(new ByteArrayWrapper(key));
-		if (inMemIndex == null) return result;
+		int index = this.lookup(key);
+		if (index < 0) return result;
 		
-		IMapEntry mapEntry = this.getMapEntry(inMemIndex.getIndex());
+		IMapEntry mapEntry = this.getMapEntry(index);
 		if (mapEntry.isCompressed()) {
 			result.setValue(Snappy.uncompress(mapEntry.getValue()));
 		} else {
@@ -208,8 +732,40 @@ public class HashMapTable extends AbstractMapTable {
 		return result;
 	}
 
+	@Override
+	public int get(byte[] key, ByteBuffer dst, GetResult result) throws IOException {
+		ensureNotClosed();
+		Preconditions.checkArgument(key != null && key.length > 0, "Key is empty");
+		result.reset();
+		int index = this.lookup(key);
+		if (index < 0) return GetResult.NOT_FOUND;
+
+		return this.readEntry(index, this.localIndexMappedByteBuffer.get(), dst, result);
+	}
+
+	@Override
+	protected int readValue(long offsetInDataFile, int length, boolean compressed, ByteBuffer dst) throws IOException {
+		return copyValue(this.localDataMappedByteBuffer.get(), (int)offsetInDataFile, length, compressed, dst);
+	}
+
+	/**
+	 * Mark the table immutable or mutable, a table marked immutable is sealed, writers take no more space
+	 * in it and go on with the next active table
+	 *
+	 * @param immutable
+	 */
 	public void markImmutable(boolean immutable) {
 		this.immutable.set(immutable);
+		if (immutable) {
+			this.sealed = true;
+		}
+	}
+
+	/**
+	 * @return true if no writer is running and every reserved entry is completed, a sealed table stays so
+	 */
+	public boolean isWriteCompleted() {
+		return writers.get() == 0 && completedEntries.get() == this.getAppendedSize();
 	}
 
 	public boolean isImmutable() {
@@ -245,12 +801,40 @@ public class HashMapTable extends AbstractMapTable {
 		this.appendTombstone(key);
 	}
 
+	// completed entries covered by the last force
+	long getForcedEntries() {
+		synchronized(syncLock) {
+			return forcedEntries;
+		}
+	}
+
 	public int getRealSize() {
-		return this.hashMap.size();
-}
+		return this.hashIndex.size();
+	}
+
+	/**
+	 * @return off heap bytes held by the hash index
+	 */
+	public long getIndexCapacityInBytes() {
+		return this.hashIndex.getCapacityInBytes();
+	}
 
 	@Override
 	public void close() throws IOException {
+		// never unmap under a running force
+		synchronized(syncLock) {
+			closing = true;
+			try {
+				while(forcing) {
+					syncLock.wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (this.hashIndex != null) {
+			this.hashIndex.free();
+		}
 		if (this.localIndexMappedByteBuffer == null) return;
 		if (this.localDataMappedByteBuffer == null) return;
 		MMFUtil.unmap((MappedByteBuffer)this.localIndexMappedByteBuffer.getSourceBuffer());
@@ -259,4 +843,13 @@ public class HashMapTable extends AbstractMapTable {
 		this.localDataMappedByteBuffer = null;
 		super.close();
 	}
+
+	@Override
+	public void delete() {
+		super.delete();
+		String snapshotFile = this.getHashIndexSnapshotFile();
+		if (!FileUtil.deleteFile(snapshotFile)) {
+			log.warn("fail to delete hash index snapshot file " + snapshotFile + ", please delete it manully");
+		}
+	}
 }
@@ -1,18 +0,0 @@
-package com.ctriposs.sdb.table;
-
-public class InMemIndex {
-	
-	private int index;
-	
-	public InMemIndex(int index) {
-		this.index = index;
-	}
-	
-	public int getIndex() {
-		return this.index;
-	}
-
-	public void setIndex(int index) {
-		this.index = index;
-	}
-}
@@ -0,0 +1,124 @@
+package com.ctriposs.sdb.table;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Filter of the keys of a sorted table probed with a 64 bit key hash, a negative answer is always right.
+ *
+ * A filter is kept as a filter block, a header followed by the payload, written in the table file and
+ * probed in place through the mapping of the file, nothing is deserialized when the table is loaded.
+ */
+public abstract class KeyFilter {
+
+	static final int TYPE_NONE = 0;
+	static final int TYPE_BLOCKED_BLOOM = 1;
+	static final int TYPE_XOR = 2;
+
+	// type, two type specific parameters, reserved, seed
+	static final int HEADER_TYPE = 0;
+	static final int HEADER_PARAM1 = HEADER_TYPE + 4;
+	static final int HEADER_PARAM2 = HEADER_PARAM1 + 4;
+	static final int HEADER_SEED = HEADER_PARAM2 + 8;
+	static final int HEADER_LENGTH = HEADER_SEED + 8;
+
+	private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+	/**
+	 * @param key the key
+	 * @return 64 bit hash of the key filters are probed with, computed once per lookup for all tables
+	 */
+	public static long hash(byte[] key) {
+		return HASH_FUNCTION.hashBytes(key).asLong();
+	}
+
+	/**
+	 * @param hash 64 bit hash of the key
+	 * @return false if the key is definitely not in the table
+	 */
+	public abstract boolean mightContain(long hash);
+
+	/**
+	 * @return bytes of the filter block
+	 */
+	public abstract long getSizeInBytes();
+
+	/**
+	 * @param keys number of keys the filter was built from
+	 * @return projected false positive rate from 0 to 1
+	 */
+	public abstract double getFalsePositiveRate(long keys);
+
+	// header of a filter block, the payload follows
+	static ByteBuffer newBlock(int type, int param1, int param2, long seed, int payloadLength) {
+		ByteBuffer block = ByteBuffer.allocate(HEADER_LENGTH + payloadLength);
+		block.putInt(HEADER_TYPE, type);
+		block.putInt(HEADER_PARAM1, param1);
+		block.putInt(HEADER_PARAM2, param2);
+		block.putLong(HEADER_SEED, seed);
+		return block;
+	}
+
+	// payload of a filter block, shares the content of the block
+	static ByteBuffer payload(ByteBuffer block) {
+		ByteBuffer duplicate = block.duplicate();
+		duplicate.position(HEADER_LENGTH);
+		return duplicate.slice();
+	}
+
+	/**
+	 * Filter probed in place in the filter block
+	 *
+	 * @param block filter block from position 0 to the limit, mapped or on heap
+	 * @param file file of the block for error messages
+	 * @return the filter
+	 * @throws IOException if the block is corrupted or of an unknown type
+	 */
+	static KeyFilter read(ByteBuffer block, String file) throws IOException {
+		if (block.limit() < HEADER_LENGTH) throw new IOException("Filter block of table file " + file + " is corrupted");
+		int type = block.getInt(HEADER_TYPE);
+		int param1 = block.getInt(HEADER_PARAM1);
+		int param2 = block.getInt(HEADER_PARAM2);
+		long seed = block.getLong(HEADER_SEED);
+		ByteBuffer payload = payload(block);
+		switch(type) {
+		case TYPE_NONE:
+			return NONE;
+		case TYPE_BLOCKED_BLOOM:
+			if ((long) param1 * BlockedBloomFilter.BLOCK_BYTES != payload.limit()) {
+				throw new IOException("Filter block of table file " + file + " is corrupted");
+			}
+			return new BlockedBloomFilter(payload, param1, param2);
+		case TYPE_XOR:
+			if ((long) param1 * 3 * (param2 / 8) != payload.limit()) {
+				throw new IOException("Filter block of table file " + file + " is corrupted");
+			}
+			return new XorFilter(payload, param1, param2, seed);
+		default:
+			throw new IOException("Unknown filter type " + type + " of table file " + file);
+		}
+	}
+
+	// no filter, every key might be in the table
+	static final KeyFilter NONE = new KeyFilter() {
+
+		@Override
+		public boolean mightContain(long hash) {
+			return true;
+		}
+
+		@Override
+		public long getSizeInBytes() {
+			return HEADER_LENGTH;
+		}
+
+		@Override
+		public double getFalsePositiveRate(long keys) {
+			return 1;
+		}
+
+	};
+}
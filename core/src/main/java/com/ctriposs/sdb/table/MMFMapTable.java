@@ -19,6 +19,7 @@ import com.google.common.base.Preconditions;
 public class MMFMapTable extends AbstractSortedMapTable {
 
 	protected MappedByteBuffer dataMappedByteBuffer;
+	protected ThreadLocalByteBuffer localDataMappedByteBuffer;
 
 	// Create new
 	public MMFMapTable(String dir, int level, long createdTime, int expectedInsertions, int mergeWays)
@@ -32,6 +33,7 @@ public class MMFMapTable extends AbstractSortedMapTable {
 
 		int mapDataFileSize = INIT_DATA_FILE_SIZE * mergeWays;
 		dataMappedByteBuffer = this.dataChannel.map(MapMode.READ_WRITE, 0, mapDataFileSize);
+		localDataMappedByteBuffer = new ThreadLocalByteBuffer(dataMappedByteBuffer);
 	}
 
 	// Load existing
@@ -41,6 +43,7 @@ public class MMFMapTable extends AbstractSortedMapTable {
 
 		int mapDataFileSize = (int) this.dataChannel.size();
 		dataMappedByteBuffer = this.dataChannel.map(MapMode.READ_WRITE, 0, mapDataFileSize);
+		localDataMappedByteBuffer = new ThreadLocalByteBuffer(dataMappedByteBuffer);
 	}
 
 	public void reMap() throws IOException {
@@ -48,6 +51,21 @@ public class MMFMapTable extends AbstractSortedMapTable {
 		MMFUtil.unmap(dataMappedByteBuffer);
 		this.dataChannel.truncate(toAppendDataFileOffset.get());
 		dataMappedByteBuffer = this.dataChannel.map(MapMode.READ_ONLY, 0, this.dataChannel.size());
+		localDataMappedByteBuffer = new ThreadLocalByteBuffer(dataMappedByteBuffer);
+	}
+
+	@Override
+	protected boolean isKeyEqual(long offsetInDataFile, byte[] key) {
+		int offset = (int) offsetInDataFile;
+		for(int i = 0; i < key.length; i++) {
+			if (this.dataMappedByteBuffer.get(offset + i) != key[i]) return false;
+		}
+		return true;
+	}
+
+	@Override
+	protected int readValue(long offsetInDataFile, int length, boolean compressed, ByteBuffer dst) throws IOException {
+		return copyValue(this.localDataMappedByteBuffer.get(), (int)offsetInDataFile, length, compressed, dst);
 	}
 
 	// for testing
@@ -55,7 +73,6 @@ public class MMFMapTable extends AbstractSortedMapTable {
 		return this.appendNew(key, Arrays.hashCode(key), value, timeToLive, System.currentTimeMillis(), false, false);
 	}
 
-	@Override
 	public IMapEntry appendNew(byte[] key, int keyHash, byte[] value, long timeToLive, long createdTime, boolean markDelete, boolean compressed) throws IOException {
 		ensureNotClosed();
 		Preconditions.checkArgument(key != null && key.length > 0, "Key is empty");
@@ -95,6 +112,8 @@ public class MMFMapTable extends AbstractSortedMapTable {
 
 			// update guarded condition
 			this.bloomFilter.put(key);
+			this.updateKeyHashRange(keyHash);
+			this.updateExpiryTime(timeToLive, createdTime);
 
 			int dataLength = key.length + value.length;
 			// commit/update offset & index
@@ -121,6 +140,7 @@ public class MMFMapTable extends AbstractSortedMapTable {
 	public void close() throws IOException {
 		MMFUtil.unmap(dataMappedByteBuffer);
 		dataMappedByteBuffer = null;
+		localDataMappedByteBuffer = null;
 		super.close();
 	}
 }
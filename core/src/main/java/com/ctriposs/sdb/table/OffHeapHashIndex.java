@@ -0,0 +1,316 @@
+package com.ctriposs.sdb.table;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Throwables;
+
+/**
+ * Off heap open addressing hash index of a HashMapTable.
+ *
+ * Every slot is one long packing the key hash(high 32 bits) and the index item number plus one(low 32 bits),
+ * zero means empty. Keys are not copied, they are compared in place against the memory mapped data file,
+ * so lookups don't allocate and heap cost per entry is zero.
+ *
+ * Slots are claimed and updated with CAS, a slot is published only after the index item and key/value
+ * have been written, so readers never see a half written entry.
+ *
+ * Memory is accessed through sun.misc.Unsafe, looked up by reflection and called through constant
+ * method handles, so nothing here is compiled against the internal class.
+ */
+final class OffHeapHashIndex {
+
+	private static final int SLOT_LENGTH = 8;
+	// slots per read/write of a snapshot
+	private static final int CHUNK_SLOTS = 8 * 1024;
+
+	private static final MethodHandle ALLOCATE_MEMORY;
+	private static final MethodHandle FREE_MEMORY;
+	private static final MethodHandle SET_MEMORY;
+	private static final MethodHandle GET_LONG;
+	private static final MethodHandle PUT_LONG;
+	private static final MethodHandle GET_LONG_VOLATILE;
+	private static final MethodHandle COMPARE_AND_SWAP_LONG;
+
+	static {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			Object unsafe = field.get(null);
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			ALLOCATE_MEMORY = lookup.findVirtual(unsafeClass, "allocateMemory",
+					MethodType.methodType(long.class, long.class)).bindTo(unsafe);
+			FREE_MEMORY = lookup.findVirtual(unsafeClass, "freeMemory",
+					MethodType.methodType(void.class, long.class)).bindTo(unsafe);
+			SET_MEMORY = lookup.findVirtual(unsafeClass, "setMemory",
+					MethodType.methodType(void.class, long.class, long.class, byte.class)).bindTo(unsafe);
+			GET_LONG = lookup.findVirtual(unsafeClass, "getLong",
+					MethodType.methodType(long.class, long.class)).bindTo(unsafe);
+			PUT_LONG = lookup.findVirtual(unsafeClass, "putLong",
+					MethodType.methodType(void.class, long.class, long.class)).bindTo(unsafe);
+			GET_LONG_VOLATILE = lookup.findVirtual(unsafeClass, "getLongVolatile",
+					MethodType.methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+			COMPARE_AND_SWAP_LONG = lookup.findVirtual(unsafeClass, "compareAndSwapLong",
+					MethodType.methodType(boolean.class, Object.class, long.class, long.class, long.class)).bindTo(unsafe);
+		} catch (Exception e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final HashMapTable table;
+	private final int mask;
+	private final AtomicInteger size = new AtomicInteger(0);
+	private volatile long address;
+
+	/**
+	 * @param table the table whose data file keys are compared against
+	 * @param maxEntries max number of entries, the slot number is the next power of two of twice this number
+	 */
+	OffHeapHashIndex(HashMapTable table, int maxEntries) {
+		this.table = table;
+		int slots = Integer.highestOneBit(Math.max(maxEntries, 1) * 2 - 1) << 1;
+		this.mask = slots - 1;
+		long bytes = (long) slots * SLOT_LENGTH;
+		this.address = allocateMemory(bytes);
+		setMemory(this.address, bytes, (byte) 0);
+	}
+
+	private static long allocateMemory(long bytes) {
+		try {
+			return (long) ALLOCATE_MEMORY.invokeExact(bytes);
+		} catch (Throwable t) {
+			throw Throwables.propagate(t);
+		}
+	}
+
+	private static void freeMemory(long address) {
+		try {
+			FREE_MEMORY.invokeExact(address);
+		} catch (Throwable t) {
+			throw Throwables.propagate(t);
+		}
+	}
+
+	private static void setMemory(long address, long bytes, byte value) {
+		try {
+			SET_MEMORY.invokeExact(address, bytes, value);
+		} catch (Throwable t) {
+			throw Throwables.propagate(t);
+		}
+	}
+
+	private static long getLong(long address) {
+		try {
+			return (long) GET_LONG.invokeExact(address);
+		} catch (Throwable t) {
+			throw Throwables.propagate(t);
+		}
+	}
+
+	private static void putLong(long address, long value) {
+		try {
+			PUT_LONG.invokeExact(address, value);
+		} catch (Throwable t) {
+			throw Throwables.propagate(t);
+		}
+	}
+
+	private static long getLongVolatile(long address) {
+		try {
+			return (long) GET_LONG_VOLATILE.invokeExact((Object) null, address);
+		} catch (Throwable t) {
+			throw Throwables.propagate(t);
+		}
+	}
+
+	private static boolean compareAndSwapLong(long address, long expected, long value) {
+		try {
+			return (boolean) COMPARE_AND_SWAP_LONG.invokeExact((Object) null, address, expected, value);
+		} catch (Throwable t) {
+			throw Throwables.propagate(t);
+		}
+	}
+
+	private static long slot(int keyHash, int index) {
+		return ((long) keyHash << 32) | ((index + 1) & 0xFFFFFFFFL);
+	}
+
+	private static int slotHash(long slot) {
+		return (int) (slot >>> 32);
+	}
+
+	private static int slotIndex(long slot) {
+		return (int) slot - 1;
+	}
+
+	// spread Arrays.hashCode, whose low bits are poor for linear probing
+	private static int mix(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+		return hash;
+	}
+
+	/**
+	 * Find the index item number of the key
+	 *
+	 * @return index item number, or -1 if not found
+	 */
+	int get(byte[] key, int keyHash) {
+		long base = this.address;
+		int position = mix(keyHash) & mask;
+		while(true) {
+			long slot = getLongVolatile(base + (long) position * SLOT_LENGTH);
+			if (slot == 0) return -1;
+			if (slotHash(slot) == keyHash && table.isKeyEqual(slotIndex(slot), key)) {
+				return slotIndex(slot);
+			}
+			position = (position + 1) & mask;
+		}
+	}
+
+	/**
+	 * Point the key to the index item number, an existing mapping is only replaced by a newer(bigger) item number.
+	 * The index item and the key must have been written to the mapped files before calling this.
+	 */
+	void put(byte[] key, int keyHash, int index) {
+		this.put(key, keyHash, index, -1);
+	}
+
+	/**
+	 * Same as put, but the key is compared in place with the key of the index item, used on load
+	 */
+	void put(int keyHash, int index) {
+		this.put(null, keyHash, index, index);
+	}
+
+	private void put(byte[] key, int keyHash, int index, int keyIndex) {
+		long base = this.address;
+		long newSlot = slot(keyHash, index);
+		int position = mix(keyHash) & mask;
+		while(true) {
+			long slotAddress = base + (long) position * SLOT_LENGTH;
+			long slot = getLongVolatile(slotAddress);
+			if (slot == 0) {
+				if (compareAndSwapLong(slotAddress, 0L, newSlot)) {
+					size.incrementAndGet();
+					return;
+				}
+				continue; // lost the race, re-check the same slot
+			}
+			if (slotHash(slot) == keyHash &&
+					(key != null ? table.isKeyEqual(slotIndex(slot), key) : table.isKeyEqual(slotIndex(slot), keyIndex))) {
+				while(slotIndex(slot) < index) {
+					if (compareAndSwapLong(slotAddress, slot, newSlot)) return;
+					slot = getLongVolatile(slotAddress);
+				}
+				return; // a newer entry is already there
+			}
+			position = (position + 1) & mask;
+		}
+	}
+
+	/**
+	 * @return number of distinct keys
+	 */
+	int size() {
+		return size.get();
+	}
+
+	/**
+	 * @return index item numbers of all distinct keys, in slot order
+	 */
+	int[] getIndexes() {
+		long base = this.address;
+		int[] indexes = new int[size.get()];
+		int count = 0;
+		for(int position = 0; position <= mask && count < indexes.length; position++) {
+			long slot = getLongVolatile(base + (long) position * SLOT_LENGTH);
+			if (slot != 0) {
+				indexes[count++] = slotIndex(slot);
+			}
+		}
+		return indexes;
+	}
+
+	/**
+	 * @return off heap bytes held by the index
+	 */
+	long getCapacityInBytes() {
+		return (long) (mask + 1) * SLOT_LENGTH;
+	}
+
+	/**
+	 * @return number of slots, a power of two
+	 */
+	int getSlotCount() {
+		return mask + 1;
+	}
+
+	/**
+	 * Write all slots to the channel from the position, only when no put is running
+	 */
+	void writeTo(FileChannel channel, long position) throws IOException {
+		long base = this.address;
+		ByteBuffer buf = ByteBuffer.allocateDirect(CHUNK_SLOTS * SLOT_LENGTH);
+		for(int slotPosition = 0; slotPosition <= mask; slotPosition += CHUNK_SLOTS) {
+			buf.clear();
+			for(int i = 0; i < CHUNK_SLOTS && slotPosition + i <= mask; i++) {
+				buf.putLong(getLong(base + (long) (slotPosition + i) * SLOT_LENGTH));
+			}
+			buf.flip();
+			while(buf.hasRemaining()) {
+				position += channel.write(buf, position);
+			}
+		}
+	}
+
+	/**
+	 * Replace all slots with the ones written by writeTo, only before the index is used
+	 *
+	 * @param size number of distinct keys in the slots
+	 */
+	void readFrom(FileChannel channel, long position, int size) throws IOException {
+		long base = this.address;
+		ByteBuffer buf = ByteBuffer.allocateDirect(CHUNK_SLOTS * SLOT_LENGTH);
+		for(int slotPosition = 0; slotPosition <= mask; slotPosition += CHUNK_SLOTS) {
+			buf.clear();
+			buf.limit(Math.min(CHUNK_SLOTS, mask + 1 - slotPosition) * SLOT_LENGTH);
+			while(buf.hasRemaining()) {
+				int read = channel.read(buf, position);
+				if (read < 0) throw new EOFException("Hash index snapshot is truncated");
+				position += read;
+			}
+			buf.flip();
+			for(int i = 0; buf.hasRemaining(); i++) {
+				putLong(base + (long) (slotPosition + i) * SLOT_LENGTH, buf.getLong());
+			}
+		}
+		this.size.set(size);
+	}
+
+	/**
+	 * Remove all keys, only before the index is used
+	 */
+	void clear() {
+		setMemory(this.address, this.getCapacityInBytes(), (byte) 0);
+		this.size.set(0);
+	}
+
+	synchronized void free() {
+		if (this.address != 0) {
+			freeMemory(this.address);
+			this.address = 0;
+		}
+	}
+}
@@ -0,0 +1,534 @@
+package com.ctriposs.sdb.table;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ctriposs.sdb.utils.FileUtil;
+import com.ctriposs.sdb.utils.MMFUtil;
+import com.google.common.base.Preconditions;
+
+/**
+ * Sorted map table kept in a single file, opened with one file descriptor and one memory mapping.
+ *
+ * The file holds the key/values, the index items, a block index with the key hash of the first entry of every
+ * BLOCK_ENTRIES entries, the key filter block, and a footer locating them and ending with the format version and a
+ * magic number. A perfect hash index block, if any, lies between the filter block and the footer, readers finding no
+ * room there look keys up through the block index. Only FORMAT_VERSION is accepted, tables written before it in meta,
+ * index, data and bloom filter files are still loaded by MMFMapTable and FCMapTable.
+ *
+ * A new table is written by SortedMapTableBuilder, its index items go to a side file until reMap() seals the table,
+ * a table file without a footer is an unfinished table and is never usable.
+ */
+public class PackedMapTable extends AbstractSortedMapTable {
+
+	public static final String TABLE_FILE_SUFFIX = ".table";
+	// index items of a table being built
+	public static final String BUILDING_FILE_SUFFIX = ".building";
+
+	public static final int FORMAT_VERSION = 2;
+	static final long MAGIC = 0x5344425441424c45L; // "SDBTABLE"
+
+	// entries per block of the block index
+	static final int BLOCK_ENTRIES = 128;
+	// index items copied at a time when sealed, a multiple of the block entries
+	private static final int COPY_ENTRIES = BLOCK_ENTRIES * 64;
+
+	// version and magic number end the file whatever the version
+	static final int TRAILER_LENGTH = SIZE_OF_INT_IN_BYTES + SIZE_OF_LONG_IN_BYTES;
+
+	// footer, the filter is a key filter block
+	static final int FOOTER_INDEX_OFFSET = 0;
+	static final int FOOTER_ENTRIES = FOOTER_INDEX_OFFSET + SIZE_OF_LONG_IN_BYTES;
+	static final int FOOTER_BLOCK_INDEX_OFFSET = FOOTER_ENTRIES + SIZE_OF_INT_IN_BYTES;
+	static final int FOOTER_BLOCK_ENTRIES = FOOTER_BLOCK_INDEX_OFFSET + SIZE_OF_LONG_IN_BYTES;
+	static final int FOOTER_FILTER_OFFSET = FOOTER_BLOCK_ENTRIES + SIZE_OF_INT_IN_BYTES;
+	static final int FOOTER_FILTER_LENGTH = FOOTER_FILTER_OFFSET + SIZE_OF_LONG_IN_BYTES;
+	static final int FOOTER_EXPIRING_ENTRIES = FOOTER_FILTER_LENGTH + SIZE_OF_INT_IN_BYTES;
+	static final int FOOTER_MIN_EXPIRY_TIME = FOOTER_EXPIRING_ENTRIES + SIZE_OF_INT_IN_BYTES;
+	static final int FOOTER_MAX_EXPIRY_TIME = FOOTER_MIN_EXPIRY_TIME + SIZE_OF_LONG_IN_BYTES;
+	// usable bit as in meta files, the only byte written after the table is sealed
+	static final int FOOTER_STATUS = FOOTER_MAX_EXPIRY_TIME + SIZE_OF_LONG_IN_BYTES;
+	static final int FOOTER_VERSION = FOOTER_STATUS + SIZE_OF_INT_IN_BYTES;
+	static final int FOOTER_MAGIC = FOOTER_VERSION + SIZE_OF_INT_IN_BYTES;
+	static final int FOOTER_LENGTH = FOOTER_MAGIC + SIZE_OF_LONG_IN_BYTES;
+
+	// files bigger than this map the index only and read key/values from the file, lowered by tests
+	static long maxMappedFileSize = Integer.MAX_VALUE;
+
+	private String tableFile;
+	private String buildingFile;
+
+	private int formatVersion = FORMAT_VERSION;
+	// where the blocks start in the file, set when sealed
+	private long indexOffset;
+	private long blockIndexOffset;
+	private int blockEntries = BLOCK_ENTRIES;
+	private long footerOffset = -1;
+	private long filterOffset;
+	private int filterLength;
+	// perfect hash index block after the filter block, 0 bytes if the table has none
+	private long hashIndexOffset;
+	private long hashIndexLength;
+
+	// policy, index type and 64 bit key hashes of the filter and the perfect hash index of a table being built
+	private FilterPolicy filterPolicy;
+	private IndexType indexType = IndexType.SORTED;
+	private long[] filterHashes;
+	// probed in place in the mapping, null until the table is sealed
+	private KeyFilter keyFilter;
+	// probed in place in the mapping, null if lookups search the index items
+	private PerfectHashIndex perfectHashIndex;
+
+	// the whole file, or the index items and the block index of a file too big to map
+	private MappedByteBuffer mappedByteBuffer;
+	private ByteBuffer blockIndexBuffer;
+	// null if key/values are read from the file
+	private ByteBuffer dataMappedByteBuffer;
+	private ThreadLocalByteBuffer localDataMappedByteBuffer;
+
+	// Create new
+	public PackedMapTable(String dir, short shard, int level, long createdTime, int expectedInsertions, long dataFileCapacity)
+			throws IOException, ClassNotFoundException {
+		this(dir, shard, level, createdTime, expectedInsertions, dataFileCapacity, FilterPolicy.DEFAULT);
+	}
+
+	/**
+	 * @param filterPolicy kind and size of the key filter written when the table is sealed
+	 */
+	public PackedMapTable(String dir, short shard, int level, long createdTime, int expectedInsertions, long dataFileCapacity,
+			FilterPolicy filterPolicy) throws IOException, ClassNotFoundException {
+		this(dir, shard, level, createdTime, expectedInsertions, dataFileCapacity, filterPolicy, IndexType.SORTED);
+	}
+
+	/**
+	 * @param filterPolicy kind and size of the key filter written when the table is sealed
+	 * @param indexType PERFECT_HASH for a perfect hash index of the keys written when the table is sealed
+	 */
+	public PackedMapTable(String dir, short shard, int level, long createdTime, int expectedInsertions, long dataFileCapacity,
+			FilterPolicy filterPolicy, IndexType indexType) throws IOException, ClassNotFoundException {
+		super(dir, shard + "-" + level + "-" + createdTime, false);
+		Preconditions.checkNotNull(filterPolicy, "filterPolicy");
+		Preconditions.checkNotNull(indexType, "indexType");
+		Preconditions.checkArgument(expectedInsertions > 0, "expectedInsertions (%s) must be greater than 0", expectedInsertions);
+		Preconditions.checkArgument(dataFileCapacity > 0, "dataFileCapacity (%s) must be greater than 0", dataFileCapacity);
+		this.indexItemsCapacity = expectedInsertions;
+		this.dataFileCapacity = dataFileCapacity;
+		this.initFileNames();
+
+		// created before the side file, so a side file is never left without its table file
+		this.dataRaf = new RandomAccessFile(this.tableFile, "rw");
+		this.dataRaf.setLength(dataFileCapacity);
+		this.dataChannel = this.dataRaf.getChannel();
+		this.indexRaf = new RandomAccessFile(this.buildingFile, "rw");
+		this.indexChannel = this.indexRaf.getChannel();
+
+		this.filterPolicy = filterPolicy;
+		this.indexType = indexType;
+		this.filterHashes = new long[this.isKeyHashed() ? expectedInsertions : 0];
+		this.toAppendIndex = new AtomicInteger(0);
+		this.toAppendDataFileOffset = new AtomicLong(0);
+		this.usable = false;
+	}
+
+	// Load existing
+	public PackedMapTable(String dir, String fileName) throws IOException, ClassNotFoundException {
+		super(dir, fileName, false);
+		this.initFileNames();
+
+		this.dataRaf = new RandomAccessFile(this.tableFile, "rw");
+		this.dataChannel = this.dataRaf.getChannel();
+		this.indexChannel = this.dataChannel;
+		this.toAppendIndex = new AtomicInteger(0);
+		this.toAppendDataFileOffset = new AtomicLong(0);
+		this.usable = false;
+		try {
+			this.load();
+		} catch (IOException e) {
+			this.close();
+			throw e;
+		}
+	}
+
+	private void initFileNames() {
+		this.tableFile = this.dir + this.fileName + TABLE_FILE_SUFFIX;
+		this.buildingFile = this.dir + this.fileName + BUILDING_FILE_SUFFIX;
+		this.dataFile = this.tableFile;
+		this.indexFile = this.buildingFile;
+	}
+
+	// check the format version, an unfinished table is left unusable
+	private void load() throws IOException {
+		long fileSize = this.dataChannel.size();
+		if (fileSize < TRAILER_LENGTH) return;
+		ByteBuffer trailer = ByteBuffer.allocate(TRAILER_LENGTH);
+		FCMapTable.readFully(this.dataChannel, trailer, fileSize - TRAILER_LENGTH, this.tableFile);
+		if (trailer.getLong(SIZE_OF_INT_IN_BYTES) != MAGIC) {
+			log.warn("Table file " + this.tableFile + " has no footer, it was never finished");
+			return;
+		}
+		this.formatVersion = trailer.getInt(0);
+		if (this.formatVersion != FORMAT_VERSION) {
+			throw new IOException("Unsupported format version " + this.formatVersion + " of table file " + this.tableFile);
+		}
+		this.loadFooter(fileSize);
+		this.indexFile = this.tableFile;
+		this.map();
+		this.initKeyHashRange();
+		this.buildHashDirectory();
+	}
+
+	private void loadFooter(long fileSize) throws IOException {
+		if (fileSize < FOOTER_LENGTH) throw new IOException("Table file " + this.tableFile + " is corrupted");
+		this.footerOffset = fileSize - FOOTER_LENGTH;
+		ByteBuffer footer = ByteBuffer.allocate(FOOTER_LENGTH);
+		FCMapTable.readFully(this.dataChannel, footer, this.footerOffset, this.tableFile);
+		this.indexOffset = footer.getLong(FOOTER_INDEX_OFFSET);
+		this.toAppendIndex.set(footer.getInt(FOOTER_ENTRIES));
+		this.toAppendDataFileOffset.set(this.indexOffset);
+		this.blockIndexOffset = footer.getLong(FOOTER_BLOCK_INDEX_OFFSET);
+		this.blockEntries = footer.getInt(FOOTER_BLOCK_ENTRIES);
+		this.expiringEntries = footer.getInt(FOOTER_EXPIRING_ENTRIES);
+		this.minExpiryTime = footer.getLong(FOOTER_MIN_EXPIRY_TIME);
+		this.maxExpiryTime = footer.getLong(FOOTER_MAX_EXPIRY_TIME);
+		this.usable = (footer.get(FOOTER_STATUS) & 2) == 2;
+		this.indexItemsCapacity = Math.max(this.getAppendedSize(), 1);
+		this.dataFileCapacity = Math.max(this.indexOffset, 1);
+		this.filterOffset = footer.getLong(FOOTER_FILTER_OFFSET);
+		this.filterLength = footer.getInt(FOOTER_FILTER_LENGTH);
+		if (this.filterOffset < this.blockIndexOffset || this.filterOffset + this.filterLength > this.footerOffset) {
+			throw new IOException("Table file " + this.tableFile + " is corrupted");
+		}
+		this.hashIndexOffset = this.filterOffset + this.filterLength;
+		this.hashIndexLength = this.footerOffset - this.hashIndexOffset;
+	}
+
+	private int getBlockNumber() {
+		return (this.getAppendedSize() + this.blockEntries - 1) / this.blockEntries;
+	}
+
+	private void map() throws IOException {
+		long fileSize = this.dataChannel.size();
+		long indexLength = (long) INDEX_ITEM_LENGTH * this.getAppendedSize();
+		long blockIndexLength = (long) SIZE_OF_INT_IN_BYTES * this.getBlockNumber();
+		if (fileSize <= maxMappedFileSize) {
+			this.mappedByteBuffer = this.dataChannel.map(MapMode.READ_ONLY, 0, fileSize);
+			this.dataMappedByteBuffer = this.mappedByteBuffer;
+			this.localDataMappedByteBuffer = new ThreadLocalByteBuffer(this.dataMappedByteBuffer);
+			this.indexMappedByteBuffer = slice(this.mappedByteBuffer, this.indexOffset, indexLength);
+			this.blockIndexBuffer = slice(this.mappedByteBuffer, this.blockIndexOffset, blockIndexLength);
+		} else {
+			// the filter and the hash index blocks follow the block index
+			this.mappedByteBuffer = this.dataChannel.map(MapMode.READ_ONLY, this.indexOffset, this.footerOffset - this.indexOffset);
+			this.indexMappedByteBuffer = slice(this.mappedByteBuffer, 0, indexLength);
+			this.blockIndexBuffer = slice(this.mappedByteBuffer, this.blockIndexOffset - this.indexOffset, blockIndexLength);
+		}
+		long offset = this.dataMappedByteBuffer != null ? this.filterOffset : this.filterOffset - this.indexOffset;
+		this.keyFilter = KeyFilter.read(slice(this.mappedByteBuffer, offset, this.filterLength), this.tableFile);
+		if (this.hashIndexLength > 0) {
+			offset = this.dataMappedByteBuffer != null ? this.hashIndexOffset : this.hashIndexOffset - this.indexOffset;
+			this.perfectHashIndex = PerfectHashIndex.read(slice(this.mappedByteBuffer, offset, this.hashIndexLength), this.tableFile);
+			if (this.perfectHashIndex.getKeys() != this.getAppendedSize()) {
+				throw new IOException("Hash index block of table file " + this.tableFile + " is corrupted");
+			}
+		}
+	}
+
+	// slices of a mapped buffer are mapped buffers too, unmapped with the whole mapping
+	private static MappedByteBuffer slice(MappedByteBuffer buffer, long offset, long length) {
+		ByteBuffer duplicate = buffer.duplicate();
+		duplicate.limit((int) (offset + length));
+		duplicate.position((int) offset);
+		return (MappedByteBuffer) duplicate.slice();
+	}
+
+	/**
+	 * Seal the table once SortedMapTableBuilder has finished, the index items are moved after the key/values and
+	 * the block index, the key filter, the perfect hash index if asked for and the footer are written, then the file
+	 * is mapped for reading
+	 */
+	@Override
+	public void reMap() throws IOException {
+		ensureNotClosed();
+		Preconditions.checkState(this.footerOffset < 0, "Table %s is already sealed", this.tableFile);
+		int entries = this.getAppendedSize();
+		long position = this.toAppendDataFileOffset.get();
+		if (this.dataChannel.size() > position) {
+			this.dataChannel.truncate(position);
+		}
+
+		// index items, the block index is taken along
+		ByteBuffer blockIndex = ByteBuffer.allocate(SIZE_OF_INT_IN_BYTES * this.getBlockNumber());
+		ByteBuffer copyBuffer = ByteBuffer.allocate(INDEX_ITEM_LENGTH * Math.min(Math.max(entries, 1), COPY_ENTRIES));
+		this.indexOffset = position;
+		for(int index = 0; index < entries; ) {
+			int items = Math.min(COPY_ENTRIES, entries - index);
+			copyBuffer.clear();
+			copyBuffer.limit(INDEX_ITEM_LENGTH * items);
+			FCMapTable.readFully(this.indexChannel, copyBuffer, (long) INDEX_ITEM_LENGTH * index, this.buildingFile);
+			for(int i = 0; i < items; i += BLOCK_ENTRIES) {
+				blockIndex.putInt(copyBuffer.getInt(INDEX_ITEM_LENGTH * i + IMapEntry.INDEX_ITEM_KEY_HASH_CODE_OFFSET));
+			}
+			copyBuffer.flip();
+			position += SortedMapTableBuilder.writeFully(this.dataChannel, copyBuffer, position);
+			index += items;
+		}
+
+		this.blockIndexOffset = position;
+		blockIndex.flip();
+		position += SortedMapTableBuilder.writeFully(this.dataChannel, blockIndex, position);
+
+		ByteBuffer filter = this.filterPolicy.build(this.filterHashes, entries);
+		this.filterOffset = position;
+		this.filterLength = filter.remaining();
+		position += SortedMapTableBuilder.writeFully(this.dataChannel, filter, position);
+
+		this.hashIndexOffset = position;
+		this.hashIndexLength = 0;
+		if (this.indexType == IndexType.PERFECT_HASH && entries > 0) {
+			ByteBuffer hashIndex = PerfectHashIndex.build(this.filterHashes, entries);
+			if (hashIndex != null) {
+				this.hashIndexLength = hashIndex.remaining();
+				position += SortedMapTableBuilder.writeFully(this.dataChannel, hashIndex, position);
+			} else {
+				log.warn("Keys of table file " + this.tableFile + " share a 64 bit hash, no perfect hash index is built");
+			}
+		}
+		this.filterHashes = null;
+
+		ByteBuffer footer = ByteBuffer.allocate(FOOTER_LENGTH);
+		footer.putLong(FOOTER_INDEX_OFFSET, this.indexOffset);
+		footer.putInt(FOOTER_ENTRIES, entries);
+		footer.putLong(FOOTER_BLOCK_INDEX_OFFSET, this.blockIndexOffset);
+		footer.putInt(FOOTER_BLOCK_ENTRIES, BLOCK_ENTRIES);
+		footer.putLong(FOOTER_FILTER_OFFSET, this.filterOffset);
+		footer.putInt(FOOTER_FILTER_LENGTH, this.filterLength);
+		footer.putInt(FOOTER_EXPIRING_ENTRIES, this.expiringEntries);
+		footer.putLong(FOOTER_MIN_EXPIRY_TIME, this.minExpiryTime);
+		footer.putLong(FOOTER_MAX_EXPIRY_TIME, this.maxExpiryTime);
+		footer.put(FOOTER_STATUS, (byte) 0); // marked usable after the rest is on the device
+		footer.putInt(FOOTER_VERSION, this.formatVersion);
+		footer.putLong(FOOTER_MAGIC, MAGIC);
+		SortedMapTableBuilder.writeFully(this.dataChannel, footer, position);
+		this.footerOffset = position;
+		this.dataChannel.force(false);
+
+		// done with the side file
+		this.indexChannel.close();
+		this.indexRaf.close();
+		this.indexRaf = null;
+		this.indexChannel = this.dataChannel;
+		this.indexFile = this.tableFile;
+		if (!FileUtil.deleteFile(this.buildingFile)) {
+			log.warn("fail to delete building file " + this.buildingFile + ", please delete it manully");
+		}
+
+		this.map();
+		this.buildHashDirectory();
+	}
+
+	@Override
+	public void markUsable(boolean usable) throws IOException {
+		ensureNotClosed();
+		if (this.footerOffset >= 0) {
+			byte status = usable ? (byte) 2 : (byte) 0;
+			SortedMapTableBuilder.writeFully(this.dataChannel, ByteBuffer.wrap(new byte[] { status }), this.footerOffset + FOOTER_STATUS);
+		}
+		this.usable = usable;
+	}
+
+	// force the usable status to the storage device, everything else was forced when sealed
+	@Override
+	public void saveMetadata() throws IOException {
+		ensureNotClosed();
+		Preconditions.checkState(this.footerOffset >= 0, "Table %s is not sealed", this.tableFile);
+		this.dataChannel.force(false);
+	}
+
+	// the counters, expiry time and key filter are written in the footer when sealed
+	@Override
+	public void persistToAppendIndex() {
+	}
+
+	@Override
+	public void persistToAppendDataFileOffset() {
+	}
+
+	@Override
+	public void persistBloomFilter() {
+	}
+
+	// the filter or the perfect hash index of the table is built from the 64 bit key hashes
+	private boolean isKeyHashed() {
+		return this.filterPolicy.getType() != FilterPolicy.Type.NONE || this.indexType == IndexType.PERFECT_HASH;
+	}
+
+	// the hashes are kept until the filter and the perfect hash index are built at once when sealed
+	@Override
+	protected void addKeyToFilter(byte[] key) {
+		if (!this.isKeyHashed()) return;
+		int index = this.getAppendedSize();
+		if (index >= this.filterHashes.length) {
+			this.filterHashes = Arrays.copyOf(this.filterHashes, Math.max(index + 1, this.filterHashes.length * 2));
+		}
+		this.filterHashes[index] = KeyFilter.hash(key);
+	}
+
+	@Override
+	protected boolean mightContain(byte[] key, long filterHash) {
+		if (this.keyFilter != null) return this.keyFilter.mightContain(filterHash);
+		return super.mightContain(key, filterHash);
+	}
+
+	@Override
+	public IndexType getIndexType() {
+		return this.perfectHashIndex != null ? IndexType.PERFECT_HASH : IndexType.SORTED;
+	}
+
+	/**
+	 * @return bytes of the perfect hash index, 0 if the table has none
+	 */
+	public long getHashIndexSize() {
+		return this.hashIndexLength;
+	}
+
+	// the slot of a key not in the table holds another entry, told apart by the key
+	@Override
+	protected int lookupHashIndex(byte[] key, int hashCode, long filterHash) throws IOException {
+		PerfectHashIndex index = this.perfectHashIndex;
+		if (index == null) return NO_HASH_INDEX;
+		int entry = index.get(filterHash);
+		return entry >= 0 && this.isKeyAt(entry, key, hashCode) ? entry : -1;
+	}
+
+	@Override
+	public long getFilterSize() {
+		return this.filterLength;
+	}
+
+	@Override
+	public double getFilterFalsePositiveRate() {
+		if (this.keyFilter != null) return this.keyFilter.getFalsePositiveRate(this.getAppendedSize());
+		return super.getFilterFalsePositiveRate();
+	}
+
+	@Override
+	public int getFormatVersion() {
+		return this.formatVersion;
+	}
+
+	@Override
+	long getIndexChannelOffset() {
+		return this.indexOffset;
+	}
+
+	@Override
+	public long getBackFileSize() throws IOException {
+		ensureNotClosed();
+		long size = this.dataChannel.size();
+		if (this.indexChannel != this.dataChannel) {
+			size += this.indexChannel.size();
+		}
+		return size;
+	}
+
+	// the block index narrows the search down to one block before the index items are touched, the hash directory
+	// is built with it and used instead once built
+	@Override
+	protected int lowerBound(int hashCode, int lo, int hi) {
+		if (this.hasHashDirectory()) return super.lowerBound(hashCode, lo, hi);
+		int blockLo = 0, blockHi = this.getBlockNumber();
+		while (blockLo < blockHi) {
+			int mid = blockLo + (blockHi - blockLo) / 2;
+			if (this.blockIndexBuffer.getInt(SIZE_OF_INT_IN_BYTES * mid) < hashCode) blockLo = mid + 1;
+			else blockHi = mid;
+		}
+		// blocks before blockLo start with smaller key hashes, the block at blockLo doesn't
+		int from = Math.max(blockLo - 1, 0) * this.blockEntries;
+		int to = (int) Math.min((long) blockLo * this.blockEntries, this.getAppendedSize());
+		int index = this.binaryLowerBound(hashCode, from, to);
+		return Math.min(Math.max(index, lo), hi);
+	}
+
+	@Override
+	protected boolean isKeyEqual(long offsetInDataFile, byte[] key) throws IOException {
+		if (this.dataMappedByteBuffer != null) {
+			int offset = (int) offsetInDataFile;
+			for(int i = 0; i < key.length; i++) {
+				if (this.dataMappedByteBuffer.get(offset + i) != key[i]) return false;
+			}
+			return true;
+		}
+		ByteBuffer scratch = FCMapTable.getScratchBuffer(key.length);
+		FCMapTable.readFully(this.dataChannel, scratch, offsetInDataFile, this.tableFile);
+		for(int i = 0; i < key.length; i++) {
+			if (scratch.get(i) != key[i]) return false;
+		}
+		return true;
+	}
+
+	@Override
+	protected int readValue(long offsetInDataFile, int length, boolean compressed, ByteBuffer dst) throws IOException {
+		if (this.dataMappedByteBuffer != null) {
+			return copyValue(this.localDataMappedByteBuffer.get(), (int) offsetInDataFile, length, compressed, dst);
+		}
+		if (!compressed) {
+			if (dst.remaining() < length) throw new BufferOverflowException();
+			int limit = dst.limit();
+			dst.limit(dst.position() + length);
+			try {
+				FCMapTable.readFully(this.dataChannel, dst, offsetInDataFile, this.tableFile);
+			} finally {
+				dst.limit(limit);
+			}
+			return length;
+		}
+		ByteBuffer scratch = FCMapTable.getScratchBuffer(length);
+		FCMapTable.readFully(this.dataChannel, scratch, offsetInDataFile, this.tableFile);
+		return copyValue(scratch, 0, length, compressed, dst);
+	}
+
+	@Override
+	public IMapEntry getMapEntry(int index) {
+		ensureNotClosed();
+		Preconditions.checkArgument(index >= 0, "index (%s) must be equal to or greater than 0", index);
+		Preconditions.checkArgument(!isEmpty(), "Can't get map entry since the map is empty");
+		if (this.dataMappedByteBuffer != null) {
+			return new MMFMapEntryImpl(index, this.indexMappedByteBuffer, this.dataMappedByteBuffer);
+		}
+		return new FCMapEntryImpl(index, this.indexMappedByteBuffer, this.dataChannel);
+	}
+
+	@Override
+	public void delete() {
+		Preconditions.checkArgument(closed, "Can't delete not closed map table!");
+		// the side file first, a table file left alone is found unfinished when loaded
+		if (new File(this.buildingFile).exists() && !FileUtil.deleteFile(this.buildingFile)) {
+			log.warn("fail to delete building file " + this.buildingFile + ", please delete it manully");
+		}
+		if (!FileUtil.deleteFile(this.tableFile)) {
+			log.warn("fail to delete table file " + this.tableFile + ", please delete it manully");
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		// the index buffers are slices of the mapping
+		this.indexMappedByteBuffer = null;
+		this.blockIndexBuffer = null;
+		this.keyFilter = null;
+		this.perfectHashIndex = null;
+		this.dataMappedByteBuffer = null;
+		this.localDataMappedByteBuffer = null;
+		MMFUtil.unmap(this.mappedByteBuffer);
+		this.mappedByteBuffer = null;
+		super.close();
+	}
+}
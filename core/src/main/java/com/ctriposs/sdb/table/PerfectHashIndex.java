@@ -0,0 +1,265 @@
+package com.ctriposs.sdb.table;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal perfect hash index of the keys of a sealed table, maps the 64 bit hash of every key to its own slot
+ * in [0, keys) and the slot to the index item of the key, a lookup reads a few words and one slot.
+ *
+ * Keys are placed in levels of bit arrays about GAMMA bits per remaining key, a key goes to the bit its hash
+ * picks in the first level where no other remaining key picks the same bit. The slot of a key is the number of
+ * bits set before its bit, counted from a rank kept every 512 bits, so every rank lookup stays in one cache line.
+ * About 3.5 bits per key, plus the index item numbers packed in as few bits as the table needs.
+ *
+ * Like a key filter the index is kept as a block written in the table file and probed in place through the
+ * mapping of the file. The index tells nothing about keys not in the table, their slot is checked by the key.
+ */
+public class PerfectHashIndex {
+
+	static final int TYPE_LAYERED = 1;
+
+	// type, keys, levels, bits per index item number, then the words of every level
+	static final int HEADER_TYPE = 0;
+	static final int HEADER_KEYS = HEADER_TYPE + 4;
+	static final int HEADER_LEVELS = HEADER_KEYS + 4;
+	static final int HEADER_ENTRY_BITS = HEADER_LEVELS + 4;
+	static final int HEADER_LENGTH = HEADER_ENTRY_BITS + 4;
+
+	// bits of a level per key left, more bits place more keys in the first levels
+	private static final double GAMMA = 2.0;
+	// keys sharing a 64 bit hash are never placed, the index is given up after so many levels
+	private static final int MAX_LEVELS = 64;
+	// words per rank, a cache line
+	private static final int RANK_WORDS = 8;
+
+	private final ByteBuffer block;
+	private final int keys;
+	private final int entryBits;
+	private final int[] levelWords;
+	private final int bitsOffset;
+	private final int ranksOffset;
+	private final int entriesOffset;
+
+	private PerfectHashIndex(ByteBuffer block, int keys, int entryBits, int[] levelWords) {
+		this.block = block;
+		this.keys = keys;
+		this.entryBits = entryBits;
+		this.levelWords = levelWords;
+		int totalWords = 0;
+		for(int words : levelWords) {
+			totalWords += words;
+		}
+		this.bitsOffset = getBitsOffset(levelWords.length);
+		this.ranksOffset = this.bitsOffset + 8 * totalWords;
+		this.entriesOffset = getEntriesOffset(this.ranksOffset, totalWords);
+	}
+
+	private static int getBitsOffset(int levels) {
+		return align(HEADER_LENGTH + 4 * levels);
+	}
+
+	private static int getEntriesOffset(int ranksOffset, int totalWords) {
+		return align(ranksOffset + 4 * ((totalWords + RANK_WORDS - 1) / RANK_WORDS));
+	}
+
+	private static int getEntryWords(int keys, int entryBits) {
+		// one more word, the number of the last slot is read as two words
+		return (int) (((long) keys * entryBits + 63) / 64) + 1;
+	}
+
+	private static int align(int offset) {
+		return (offset + 7) & ~7;
+	}
+
+	// bits of an index item number
+	private static int getEntryBits(int keys) {
+		return Math.max(32 - Integer.numberOfLeadingZeros(keys - 1), 1);
+	}
+
+	// murmur3 finalizer of the key hash, different for every level
+	private static long mix(long hash, int level) {
+		long h = hash + (level + 1) * 0x9E3779B97F4A7C15L;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	// bit of a level picked by the hash, words of the level times 64 bits is far below 2^32
+	private static long getBit(long hash, int level, int words) {
+		return ((mix(hash, level) >>> 32) * (words * 64L)) >>> 32;
+	}
+
+	/**
+	 * @param hashes 64 bit hashes of the keys in the order of their index items, the first count ones
+	 * @param count number of keys
+	 * @return index block, null if two keys share a hash and no index can be built
+	 */
+	static ByteBuffer build(long[] hashes, int count) {
+		long[] remaining = new long[count];
+		System.arraycopy(hashes, 0, remaining, 0, count);
+		int remainingCount = count;
+		List<long[]> levels = new ArrayList<long[]>();
+		int totalWords = 0;
+		while(remainingCount > 0) {
+			if (levels.size() == MAX_LEVELS) return null;
+			int level = levels.size();
+			int words = (int) Math.max((long) Math.ceil(remainingCount * GAMMA / 64), 1);
+			long[] placed = new long[words];
+			long[] collided = new long[words];
+			for(int i = 0; i < remainingCount; i++) {
+				long bit = getBit(remaining[i], level, words);
+				int word = (int) (bit >>> 6);
+				long mask = 1L << bit;
+				if ((placed[word] & mask) != 0) collided[word] |= mask;
+				placed[word] |= mask;
+			}
+			for(int word = 0; word < words; word++) {
+				placed[word] &= ~collided[word];
+			}
+			// keys whose bit collided go to the next level
+			int left = 0;
+			for(int i = 0; i < remainingCount; i++) {
+				long bit = getBit(remaining[i], level, words);
+				if ((collided[(int) (bit >>> 6)] & (1L << bit)) != 0) remaining[left++] = remaining[i];
+			}
+			remainingCount = left;
+			levels.add(placed);
+			totalWords += words;
+		}
+
+		int[] levelWords = new int[levels.size()];
+		int entryBits = getEntryBits(count);
+		int bitsOffset = getBitsOffset(levels.size());
+		int ranksOffset = bitsOffset + 8 * totalWords;
+		int entriesOffset = getEntriesOffset(ranksOffset, totalWords);
+		ByteBuffer block = ByteBuffer.allocate(entriesOffset + 8 * getEntryWords(count, entryBits));
+		block.putInt(HEADER_TYPE, TYPE_LAYERED);
+		block.putInt(HEADER_KEYS, count);
+		block.putInt(HEADER_LEVELS, levels.size());
+		block.putInt(HEADER_ENTRY_BITS, entryBits);
+		int word = 0;
+		int rank = 0;
+		for(int level = 0; level < levels.size(); level++) {
+			long[] bits = levels.get(level);
+			levelWords[level] = bits.length;
+			block.putInt(HEADER_LENGTH + 4 * level, bits.length);
+			for(long bitWord : bits) {
+				if (word % RANK_WORDS == 0) block.putInt(ranksOffset + 4 * (word / RANK_WORDS), rank);
+				block.putLong(bitsOffset + 8 * word, bitWord);
+				rank += Long.bitCount(bitWord);
+				word++;
+			}
+		}
+
+		// index item numbers by slot
+		PerfectHashIndex index = new PerfectHashIndex(block, count, entryBits, levelWords);
+		for(int i = 0; i < count; i++) {
+			index.putEntry(index.getSlot(hashes[i]), i);
+		}
+		return block;
+	}
+
+	/**
+	 * Index probed in place in the index block
+	 *
+	 * @param block index block from position 0 to the limit, mapped or on heap
+	 * @param file file of the block for error messages
+	 * @return the index
+	 * @throws IOException if the block is corrupted or of an unknown type
+	 */
+	static PerfectHashIndex read(ByteBuffer block, String file) throws IOException {
+		if (block.limit() < HEADER_LENGTH) throw new IOException("Hash index block of table file " + file + " is corrupted");
+		int type = block.getInt(HEADER_TYPE);
+		if (type != TYPE_LAYERED) throw new IOException("Unknown hash index type " + type + " of table file " + file);
+		int keys = block.getInt(HEADER_KEYS);
+		int levels = block.getInt(HEADER_LEVELS);
+		int entryBits = block.getInt(HEADER_ENTRY_BITS);
+		if (keys <= 0 || levels <= 0 || levels > MAX_LEVELS || entryBits != getEntryBits(keys)
+				|| block.limit() < getBitsOffset(levels)) {
+			throw new IOException("Hash index block of table file " + file + " is corrupted");
+		}
+		int[] levelWords = new int[levels];
+		long totalWords = 0;
+		for(int level = 0; level < levels; level++) {
+			levelWords[level] = block.getInt(HEADER_LENGTH + 4 * level);
+			if (levelWords[level] <= 0) throw new IOException("Hash index block of table file " + file + " is corrupted");
+			totalWords += levelWords[level];
+		}
+		if (totalWords > block.limit() / 8) throw new IOException("Hash index block of table file " + file + " is corrupted");
+		PerfectHashIndex index = new PerfectHashIndex(block, keys, entryBits, levelWords);
+		if ((long) index.entriesOffset + 8L * getEntryWords(keys, entryBits) != block.limit()) {
+			throw new IOException("Hash index block of table file " + file + " is corrupted");
+		}
+		return index;
+	}
+
+	// slot of the key of the hash, -1 if it is in no level, any slot if the key is not in the table
+	private int getSlot(long hash) {
+		int wordBase = 0;
+		for(int level = 0; level < levelWords.length; level++) {
+			int words = levelWords[level];
+			long bit = getBit(hash, level, words);
+			int word = wordBase + (int) (bit >>> 6);
+			long bitWord = block.getLong(bitsOffset + 8 * word);
+			if ((bitWord & (1L << bit)) != 0) {
+				int rank = block.getInt(ranksOffset + 4 * (word / RANK_WORDS));
+				for(int i = word - word % RANK_WORDS; i < word; i++) {
+					rank += Long.bitCount(block.getLong(bitsOffset + 8 * i));
+				}
+				return rank + Long.bitCount(bitWord & ((1L << bit) - 1));
+			}
+			wordBase += words;
+		}
+		return -1;
+	}
+
+	private void putEntry(int slot, int entry) {
+		long bitPosition = (long) slot * entryBits;
+		int offset = entriesOffset + 8 * (int) (bitPosition >>> 6);
+		int shift = (int) (bitPosition & 63);
+		block.putLong(offset, block.getLong(offset) | ((long) entry << shift));
+		if (shift + entryBits > 64) {
+			block.putLong(offset + 8, block.getLong(offset + 8) | ((long) entry >>> (64 - shift)));
+		}
+	}
+
+	private int getEntry(int slot) {
+		long bitPosition = (long) slot * entryBits;
+		int offset = entriesOffset + 8 * (int) (bitPosition >>> 6);
+		int shift = (int) (bitPosition & 63);
+		long value = block.getLong(offset) >>> shift;
+		if (shift + entryBits > 64) {
+			value |= block.getLong(offset + 8) << (64 - shift);
+		}
+		return (int) (value & ((1L << entryBits) - 1));
+	}
+
+	/**
+	 * @param hash KeyFilter.hash of the key
+	 * @return index item number of the key if it is in the table, otherwise -1 or the number of another entry
+	 */
+	public int get(long hash) {
+		int slot = this.getSlot(hash);
+		return slot < 0 ? -1 : this.getEntry(slot);
+	}
+
+	/**
+	 * @return number of keys
+	 */
+	public int getKeys() {
+		return this.keys;
+	}
+
+	/**
+	 * @return bytes of the index block
+	 */
+	public long getSizeInBytes() {
+		return this.block.limit();
+	}
+}
@@ -0,0 +1,137 @@
+package com.ctriposs.sdb.table;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Bulk writer of new sorted map tables, used by merges.
+ *
+ * Index items and key/values are gathered in direct buffers and written to the files with large sequential writes
+ * instead of a few small writes per entry, the bloom filter, key hash range and expiry time are updated as entries are
+ * appended. A builder writes one table at a time and its buffers are reused by the next table.
+ *
+ * The table must not be read before finish() is called.
+ */
+public class SortedMapTableBuilder {
+
+	public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024; // 1M
+
+	private final ByteBuffer indexBuffer;
+	private final ByteBuffer dataBuffer;
+
+	private AbstractSortedMapTable table;
+	// file offsets the buffers are written at
+	private long indexFileOffset;
+	private long dataFileOffset;
+
+	/**
+	 * @param bufferSize bytes of data buffered between writes, index items are buffered in a quarter of it
+	 */
+	public SortedMapTableBuilder(int bufferSize) {
+		Preconditions.checkArgument(bufferSize > 0, "bufferSize (%s) must be greater than 0", bufferSize);
+		int indexItems = Math.max(bufferSize / 4 / AbstractMapTable.INDEX_ITEM_LENGTH, 1);
+		this.indexBuffer = ByteBuffer.allocateDirect(indexItems * AbstractMapTable.INDEX_ITEM_LENGTH);
+		this.dataBuffer = ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	/**
+	 * Start building a new empty table, an unfinished table is abandoned
+	 *
+	 * @param table new table, not appended to by others
+	 */
+	public void open(AbstractSortedMapTable table) {
+		Preconditions.checkArgument(table.isEmpty(), "Table %s is not empty", table.getFileName());
+		this.table = table;
+		this.indexFileOffset = 0;
+		this.dataFileOffset = 0;
+		this.indexBuffer.clear();
+		this.dataBuffer.clear();
+	}
+
+	public void append(byte[] key, int keyHash, byte[] value, long timeToLive, long createdTime, boolean deleted, boolean compressed)
+			throws IOException {
+		Preconditions.checkState(table != null, "No table is being built");
+		table.ensureNotClosed();
+		Preconditions.checkArgument(key != null && key.length > 0, "Key is empty");
+		Preconditions.checkArgument(value != null && value.length > 0, "value is empty");
+		Preconditions.checkArgument(table.getAppendedSize() < AbstractSortedMapTable.MAX_ALLOWED_NUMBER_OF_ENTRIES,
+				"Exceeded max allowed number of entries(" + AbstractSortedMapTable.MAX_ALLOWED_NUMBER_OF_ENTRIES + ")!");
+
+		// index item
+		if (!indexBuffer.hasRemaining()) {
+			this.flushIndex();
+		}
+		int itemOffset = indexBuffer.position();
+		indexBuffer.putLong(itemOffset + IMapEntry.INDEX_ITEM_IN_DATA_FILE_OFFSET_OFFSET, table.getAppendedDataSize());
+		indexBuffer.putInt(itemOffset + IMapEntry.INDEX_ITEM_KEY_LENGTH_OFFSET, key.length);
+		indexBuffer.putInt(itemOffset + IMapEntry.INDEX_ITEM_VALUE_LENGTH_OFFSET, value.length);
+		indexBuffer.putLong(itemOffset + IMapEntry.INDEX_ITEM_TIME_TO_LIVE_OFFSET, timeToLive);
+		indexBuffer.putLong(itemOffset + IMapEntry.INDEX_ITEM_CREATED_TIME_OFFSET, createdTime);
+		indexBuffer.putInt(itemOffset + IMapEntry.INDEX_ITEM_KEY_HASH_CODE_OFFSET, keyHash);
+		byte status = 1; // mark in use
+		if (deleted) {
+			status = (byte) (status + 2); // binary 11
+		}
+		if (compressed && !deleted) {
+			status = (byte) (status + 4);
+		}
+		indexBuffer.put(itemOffset + IMapEntry.INDEX_ITEM_STATUS, status);
+		for(int i = IMapEntry.INDEX_ITEM_STATUS + 1; i < AbstractMapTable.INDEX_ITEM_LENGTH; i++) {
+			indexBuffer.put(itemOffset + i, (byte) 0); // padding
+		}
+		indexBuffer.position(itemOffset + AbstractMapTable.INDEX_ITEM_LENGTH);
+
+		// key/value
+		int dataLength = key.length + value.length;
+		if (dataBuffer.remaining() < dataLength) {
+			this.flushData();
+		}
+		if (dataBuffer.remaining() < dataLength) { // bigger than the buffer, written as is
+			dataFileOffset += writeFully(table.dataChannel, ByteBuffer.wrap(key), dataFileOffset);
+			dataFileOffset += writeFully(table.dataChannel, ByteBuffer.wrap(value), dataFileOffset);
+		} else {
+			dataBuffer.put(key);
+			dataBuffer.put(value);
+		}
+
+		table.commitBuiltEntry(key, keyHash, value.length, timeToLive, createdTime);
+	}
+
+	/**
+	 * Write the buffered entries and trim the preallocated data file, the table still needs
+	 * to be remapped and its metadata saved
+	 */
+	public void finish() throws IOException {
+		Preconditions.checkState(table != null, "No table is being built");
+		table.ensureNotClosed();
+		this.flushIndex();
+		this.flushData();
+		if (table.dataChannel.size() > dataFileOffset) {
+			table.dataChannel.truncate(dataFileOffset);
+		}
+		table = null;
+	}
+
+	private void flushIndex() throws IOException {
+		indexBuffer.flip();
+		indexFileOffset += writeFully(table.indexChannel, indexBuffer, indexFileOffset);
+		indexBuffer.clear();
+	}
+
+	private void flushData() throws IOException {
+		dataBuffer.flip();
+		dataFileOffset += writeFully(table.dataChannel, dataBuffer, dataFileOffset);
+		dataBuffer.clear();
+	}
+
+	static int writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		int written = 0;
+		while(buf.hasRemaining()) {
+			written += channel.write(buf, position + written);
+		}
+		return written;
+	}
+}
@@ -0,0 +1,339 @@
+package com.ctriposs.sdb.table;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Sequential scanner of a range of entries of a sorted map table, used by merges.
+ *
+ * Index items and data are read from the files in chunks of about the read ahead size instead of two small reads
+ * per entry, a chunk always holds whole entries. With prefetch enabled the next chunk is read by a background thread
+ * while the current one is consumed.
+ *
+ * The returned map entry is a flyweight view of the current entry in the chunk, it is only valid until the next call
+ * of next(), keys and values are copied out on access.
+ */
+public class SortedMapTableScanner implements Closeable {
+
+	public static final int DEFAULT_READ_AHEAD_SIZE = 1024 * 1024; // 1M
+
+	private static volatile ExecutorService prefetchPool;
+
+	private final FileChannel indexChannel;
+	private final long indexChannelOffset;
+	private final FileChannel dataChannel;
+	private final int toIndex;
+	private final int readAheadSize;
+	private final boolean prefetch;
+	// max entries of a chunk, bounds the index bytes of a chunk
+	private final int maxChunkEntries;
+
+	// touched by the thread loading chunks only, loads never overlap
+	private final ByteBuffer indexBuffer;
+	private int indexReadIndex;
+	private int loadIndex;
+
+	private Chunk current;
+	private Chunk spare;
+	private Future<Chunk> pending;
+	private long readBytes;
+	private final EntryView entryView = new EntryView();
+
+	/**
+	 * @param table a sorted table no longer appended to
+	 * @param fromIndex index of the first entry, inclusive
+	 * @param toIndex index of the last entry, exclusive
+	 * @param readAheadSize bytes of data read at a time, an entry bigger than this is read as a whole
+	 * @param prefetch whether to read the next chunk in a background thread
+	 */
+	public SortedMapTableScanner(AbstractSortedMapTable table, int fromIndex, int toIndex, int readAheadSize, boolean prefetch) {
+		Preconditions.checkArgument(fromIndex >= 0 && fromIndex <= toIndex && toIndex <= table.getAppendedSize(),
+				"range [%s, %s) is out of [0, %s)", fromIndex, toIndex, table.getAppendedSize());
+		Preconditions.checkArgument(readAheadSize > 0, "readAheadSize (%s) must be greater than 0", readAheadSize);
+		this.indexChannel = table.indexChannel;
+		this.indexChannelOffset = table.getIndexChannelOffset();
+		this.dataChannel = table.dataChannel;
+		this.toIndex = toIndex;
+		this.readAheadSize = readAheadSize;
+		this.prefetch = prefetch;
+		this.maxChunkEntries = Math.max(readAheadSize / 4 / AbstractMapTable.INDEX_ITEM_LENGTH, 1);
+		this.indexBuffer = ByteBuffer.allocate(maxChunkEntries * AbstractMapTable.INDEX_ITEM_LENGTH);
+		this.indexBuffer.flip(); // nothing read yet
+		this.indexReadIndex = fromIndex;
+		this.loadIndex = fromIndex;
+	}
+
+	/**
+	 * Move to the next entry
+	 *
+	 * @return view of the entry valid until the next call, null if all entries of the range have been scanned
+	 * @throws IOException
+	 */
+	public IMapEntry next() throws IOException {
+		if (current != null && current.position + 1 < current.count) {
+			current.position++;
+			return entryView;
+		}
+		return this.nextChunk() ? entryView : null;
+	}
+
+	/**
+	 * @return bytes of index items and data of the chunks handed out so far
+	 */
+	public long getReadBytes() {
+		return readBytes;
+	}
+
+	private boolean nextChunk() throws IOException {
+		Chunk chunk;
+		if (pending != null) {
+			chunk = this.awaitPending();
+		} else if (loadIndex < toIndex) {
+			chunk = this.load(spare != null ? spare : new Chunk());
+		} else {
+			return false;
+		}
+		spare = current;
+		current = chunk;
+		readBytes += chunk.bytes;
+
+		if (prefetch && loadIndex < toIndex) {
+			final Chunk target = spare != null ? spare : new Chunk();
+			spare = null;
+			pending = getPrefetchPool().submit(new Callable<Chunk>() {
+
+				@Override
+				public Chunk call() throws IOException {
+					return load(target);
+				}
+
+			});
+		}
+		return true;
+	}
+
+	private Chunk awaitPending() throws IOException {
+		Future<Chunk> future = pending;
+		pending = null;
+		try {
+			return Uninterruptibles.getUninterruptibly(future);
+		} catch (ExecutionException e) {
+			Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+			throw Throwables.propagate(e.getCause());
+		}
+	}
+
+	// read the index items and data of the entries following the last loaded one into the chunk
+	private Chunk load(Chunk chunk) throws IOException {
+		chunk.firstIndex = loadIndex;
+		chunk.count = 0;
+		chunk.position = 0;
+		long dataStart = 0;
+		long dataEnd = 0;
+		byte[] items = chunk.index.array();
+		while(loadIndex < toIndex && chunk.count < maxChunkEntries) {
+			if (!indexBuffer.hasRemaining()) {
+				this.readIndex();
+			}
+			int itemPosition = indexBuffer.position();
+			long offset = indexBuffer.getLong(itemPosition + IMapEntry.INDEX_ITEM_IN_DATA_FILE_OFFSET_OFFSET);
+			long end = offset + indexBuffer.getInt(itemPosition + IMapEntry.INDEX_ITEM_KEY_LENGTH_OFFSET) +
+					indexBuffer.getInt(itemPosition + IMapEntry.INDEX_ITEM_VALUE_LENGTH_OFFSET);
+			if (chunk.count == 0) {
+				dataStart = offset;
+			} else if (end - dataStart > readAheadSize) {
+				break;
+			}
+			dataEnd = Math.max(dataEnd, end);
+			System.arraycopy(indexBuffer.array(), itemPosition, items, chunk.count * AbstractMapTable.INDEX_ITEM_LENGTH,
+					AbstractMapTable.INDEX_ITEM_LENGTH);
+			indexBuffer.position(itemPosition + AbstractMapTable.INDEX_ITEM_LENGTH);
+			chunk.count++;
+			loadIndex++;
+		}
+
+		int length = (int) (dataEnd - dataStart);
+		if (chunk.data.length < length) { // a single entry bigger than the read ahead size
+			chunk.data = new byte[length];
+		}
+		readFully(dataChannel, ByteBuffer.wrap(chunk.data, 0, length), dataStart);
+		chunk.dataOffset = dataStart;
+		chunk.bytes = length + (long) chunk.count * AbstractMapTable.INDEX_ITEM_LENGTH;
+		return chunk;
+	}
+
+	private void readIndex() throws IOException {
+		int items = Math.min(maxChunkEntries, toIndex - indexReadIndex);
+		indexBuffer.clear();
+		indexBuffer.limit(items * AbstractMapTable.INDEX_ITEM_LENGTH);
+		readFully(indexChannel, indexBuffer, indexChannelOffset + (long) indexReadIndex * AbstractMapTable.INDEX_ITEM_LENGTH);
+		indexBuffer.flip();
+		indexReadIndex += items;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		while(buf.hasRemaining()) {
+			int read = channel.read(buf, position);
+			if (read < 0) throw new EOFException("Unexpected end of table file at " + position);
+			position += read;
+		}
+	}
+
+	private static ExecutorService getPrefetchPool() {
+		if (prefetchPool == null) {
+			synchronized(SortedMapTableScanner.class) {
+				if (prefetchPool == null) {
+					// idle threads go away after a minute
+					prefetchPool = Executors.newCachedThreadPool(new ThreadFactory() {
+
+						private final AtomicInteger count = new AtomicInteger(0);
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "sdb-prefetch-" + count.getAndIncrement());
+							thread.setDaemon(true);
+							return thread;
+						}
+
+					});
+				}
+			}
+		}
+		return prefetchPool;
+	}
+
+	/**
+	 * Wait for the running prefetch and release the buffers, the table is not closed
+	 */
+	@Override
+	public void close() {
+		if (pending != null) {
+			try {
+				Uninterruptibles.getUninterruptibly(pending);
+			} catch (ExecutionException e) {
+				// nothing to release
+			}
+			pending = null;
+		}
+		current = null;
+		spare = null;
+	}
+
+	// index items and data of consecutive entries
+	private class Chunk {
+
+		ByteBuffer index = ByteBuffer.allocate(maxChunkEntries * AbstractMapTable.INDEX_ITEM_LENGTH);
+		byte[] data = new byte[readAheadSize];
+		long dataOffset;
+		int firstIndex;
+		int count;
+		int position;
+		long bytes;
+	}
+
+	private class EntryView implements IMapEntry {
+
+		private int keyIndex = -1;
+		private byte[] key;
+		private int valueIndex = -1;
+		private byte[] value;
+
+		private int itemOffset() {
+			return current.position * AbstractMapTable.INDEX_ITEM_LENGTH;
+		}
+
+		private byte getStatus() {
+			return current.index.get(this.itemOffset() + IMapEntry.INDEX_ITEM_STATUS);
+		}
+
+		@Override
+		public int getIndex() {
+			return current.firstIndex + current.position;
+		}
+
+		@Override
+		public byte[] getKey() throws IOException {
+			int index = this.getIndex();
+			if (keyIndex != index) {
+				int itemOffset = this.itemOffset();
+				int offsetInChunk = (int) (current.index.getLong(itemOffset + IMapEntry.INDEX_ITEM_IN_DATA_FILE_OFFSET_OFFSET) - current.dataOffset);
+				key = new byte[current.index.getInt(itemOffset + IMapEntry.INDEX_ITEM_KEY_LENGTH_OFFSET)];
+				System.arraycopy(current.data, offsetInChunk, key, 0, key.length);
+				keyIndex = index;
+			}
+			return key;
+		}
+
+		@Override
+		public byte[] getValue() throws IOException {
+			int index = this.getIndex();
+			if (valueIndex != index) {
+				int itemOffset = this.itemOffset();
+				int offsetInChunk = (int) (current.index.getLong(itemOffset + IMapEntry.INDEX_ITEM_IN_DATA_FILE_OFFSET_OFFSET) - current.dataOffset);
+				offsetInChunk += current.index.getInt(itemOffset + IMapEntry.INDEX_ITEM_KEY_LENGTH_OFFSET);
+				value = new byte[current.index.getInt(itemOffset + IMapEntry.INDEX_ITEM_VALUE_LENGTH_OFFSET)];
+				System.arraycopy(current.data, offsetInChunk, value, 0, value.length);
+				valueIndex = index;
+			}
+			return value;
+		}
+
+		@Override
+		public int getKeyHash() throws IOException {
+			return current.index.getInt(this.itemOffset() + IMapEntry.INDEX_ITEM_KEY_HASH_CODE_OFFSET);
+		}
+
+		@Override
+		public long getTimeToLive() throws IOException {
+			return current.index.getLong(this.itemOffset() + IMapEntry.INDEX_ITEM_TIME_TO_LIVE_OFFSET);
+		}
+
+		@Override
+		public long getCreatedTime() throws IOException {
+			return current.index.getLong(this.itemOffset() + IMapEntry.INDEX_ITEM_CREATED_TIME_OFFSET);
+		}
+
+		@Override
+		public boolean isDeleted() throws IOException {
+			return (this.getStatus() & (1 << 1)) != 0;
+		}
+
+		@Override
+		public void markDeleted() throws IOException {
+			throw new UnsupportedOperationException("Scanned map entries are read only");
+		}
+
+		@Override
+		public boolean isInUse() throws IOException {
+			return (this.getStatus() & 1) != 0;
+		}
+
+		@Override
+		public boolean isExpired() throws IOException {
+			long ttl = this.getTimeToLive();
+			if (ttl > 0) {
+				if (System.currentTimeMillis() - this.getCreatedTime() > ttl) return true;
+			}
+			return false;
+		}
+
+		@Override
+		public boolean isCompressed() throws IOException {
+			return (this.getStatus() & (1 << 2)) != 0;
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package com.ctriposs.sdb.table;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Xor filter of 8 or 16 bit fingerprints, about 1.23 fingerprints per key.
+ *
+ * A key is in the table if its fingerprint equals the xor of the fingerprints at its three slots, one slot in
+ * each third of the filter, so a probe reads three bytes or shorts. The filter is built at once from the hashes
+ * of all keys, which suits tables sealed after they are written.
+ */
+public class XorFilter extends KeyFilter {
+
+	// extra slots, tiny filters fail to build more often
+	private static final int EXTRA_SLOTS = 32;
+	private static final double SLOTS_PER_KEY = 1.23;
+	private static final int MAX_ATTEMPTS = 100;
+
+	private final ByteBuffer fingerprints;
+	private final int blockLength;
+	private final int fingerprintBits;
+	private final long seed;
+
+	XorFilter(ByteBuffer fingerprints, int blockLength, int fingerprintBits, long seed) {
+		this.fingerprints = fingerprints;
+		this.blockLength = blockLength;
+		this.fingerprintBits = fingerprintBits;
+		this.seed = seed;
+	}
+
+	/**
+	 * @param fingerprintBits 8 or 16
+	 * @return bits of the filter per key
+	 */
+	static double getBitsPerKey(int fingerprintBits) {
+		return SLOTS_PER_KEY * fingerprintBits;
+	}
+
+	/**
+	 * @param fingerprintBits 8 or 16
+	 * @return false positive rate from 0 to 1
+	 */
+	static double getFalsePositiveRate(int fingerprintBits) {
+		return 1.0d / (1 << fingerprintBits);
+	}
+
+	/**
+	 * @param hashes 64 bit hashes of the keys, the first count ones, duplicates are allowed
+	 * @param count number of keys
+	 * @param fingerprintBits 8 or 16
+	 * @return filter block
+	 */
+	static ByteBuffer build(long[] hashes, int count, int fingerprintBits) {
+		long[] keys = Arrays.copyOf(hashes, count);
+		Arrays.sort(keys);
+		int size = 0;
+		for(int i = 0; i < keys.length; i++) {
+			if (i == 0 || keys[i] != keys[i - 1]) keys[size++] = keys[i];
+		}
+
+		int blockLength = (int) Math.min((EXTRA_SLOTS + (long) Math.ceil(SLOTS_PER_KEY * size)) / 3 + 1,
+				(Integer.MAX_VALUE - HEADER_LENGTH) / 3 / (fingerprintBits / 8));
+		int slots = blockLength * 3;
+		int[] counts = new int[slots];
+		long[] xorKeys = new long[slots];
+		int[] queue = new int[slots];
+		long[] peeledKeys = new long[size];
+		int[] peeledSlots = new int[size];
+
+		long seed = 0x9E3779B97F4A7C15L;
+		for(int attempt = 0; ; attempt++) {
+			if (attempt == MAX_ATTEMPTS) throw new IllegalStateException("Fail to build xor filter of " + size + " keys");
+			seed = mix(seed + attempt);
+			Arrays.fill(counts, 0);
+			Arrays.fill(xorKeys, 0);
+			for(int i = 0; i < size; i++) {
+				long h = mix(keys[i] + seed);
+				for(int j = 0; j < 3; j++) {
+					int slot = getSlot(h, j, blockLength);
+					counts[slot]++;
+					xorKeys[slot] ^= keys[i];
+				}
+			}
+
+			// peel keys alone in a slot until none is left
+			int queued = 0;
+			for(int slot = 0; slot < slots; slot++) {
+				if (counts[slot] == 1) queue[queued++] = slot;
+			}
+			int peeled = 0;
+			while(queued > 0) {
+				int slot = queue[--queued];
+				if (counts[slot] != 1) continue;
+				long key = xorKeys[slot];
+				peeledKeys[peeled] = key;
+				peeledSlots[peeled++] = slot;
+				long h = mix(key + seed);
+				for(int j = 0; j < 3; j++) {
+					int other = getSlot(h, j, blockLength);
+					counts[other]--;
+					xorKeys[other] ^= key;
+					if (counts[other] == 1) queue[queued++] = other;
+				}
+			}
+			if (peeled == size) break;
+		}
+
+		// fingerprints in the reverse order of peeling, the slot of a key is not used by keys peeled before
+		ByteBuffer block = newBlock(TYPE_XOR, blockLength, fingerprintBits, seed, slots * (fingerprintBits / 8));
+		ByteBuffer fingerprints = payload(block);
+		for(int i = size - 1; i >= 0; i--) {
+			long h = mix(peeledKeys[i] + seed);
+			int fingerprint = getFingerprint(h, fingerprintBits);
+			for(int j = 0; j < 3; j++) {
+				fingerprint ^= getFingerprintAt(fingerprints, getSlot(h, j, blockLength), fingerprintBits);
+			}
+			putFingerprintAt(fingerprints, peeledSlots[i], fingerprint, fingerprintBits);
+		}
+		return block;
+	}
+
+	// murmur3 finalizer
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static int getSlot(long h, int index, int blockLength) {
+		long r = Long.rotateLeft(h, 21 * index);
+		return (int) (((r & 0xffffffffL) * blockLength) >>> 32) + index * blockLength;
+	}
+
+	private static int getFingerprint(long h, int fingerprintBits) {
+		return (int) (h ^ (h >>> 32)) & ((1 << fingerprintBits) - 1);
+	}
+
+	private static int getFingerprintAt(ByteBuffer fingerprints, int slot, int fingerprintBits) {
+		if (fingerprintBits == 8) return fingerprints.get(slot) & 0xff;
+		return fingerprints.getShort(slot * 2) & 0xffff;
+	}
+
+	private static void putFingerprintAt(ByteBuffer fingerprints, int slot, int fingerprint, int fingerprintBits) {
+		if (fingerprintBits == 8) {
+			fingerprints.put(slot, (byte) fingerprint);
+		} else {
+			fingerprints.putShort(slot * 2, (short) fingerprint);
+		}
+	}
+
+	@Override
+	public boolean mightContain(long hash) {
+		long h = mix(hash + seed);
+		int fingerprint = getFingerprint(h, fingerprintBits);
+		for(int j = 0; j < 3; j++) {
+			fingerprint ^= getFingerprintAt(fingerprints, getSlot(h, j, blockLength), fingerprintBits);
+		}
+		return fingerprint == 0;
+	}
+
+	@Override
+	public long getSizeInBytes() {
+		return HEADER_LENGTH + (long) blockLength * 3 * (fingerprintBits / 8);
+	}
+
+	@Override
+	public double getFalsePositiveRate(long keys) {
+		if (keys <= 0) return 0;
+		return getFalsePositiveRate(fingerprintBits);
+	}
+}
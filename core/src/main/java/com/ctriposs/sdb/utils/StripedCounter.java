@@ -0,0 +1,28 @@
+package com.ctriposs.sdb.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter updated on the read path by many threads, threads add to different cache lines and the sum is taken
+ * when reported.
+ */
+public class StripedCounter {
+
+	private static final int STRIPES = 16;
+	// longs per cache line
+	private static final int PADDING = 8;
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	public void increment() {
+		cells.incrementAndGet(((int) Thread.currentThread().getId() & (STRIPES - 1)) * PADDING);
+	}
+
+	public long get() {
+		long sum = 0;
+		for(int i = 0; i < STRIPES; i++) {
+			sum += cells.get(i * PADDING);
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,62 @@
+package com.ctriposs.sdb;
+
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import com.ctriposs.sdb.utils.TestUtil;
+
+public class DBConfigTest {
+
+	private static String testDir = TestUtil.TEST_BASE_DIR + "sdb/unit/db_config_test";
+
+	@Test
+	public void testWriteStallSettings() {
+		DBConfig config = new DBConfig();
+		try {
+			config.setLevel0SlowdownTrigger(0);
+			fail();
+		} catch (IllegalArgumentException iae) {
+		}
+		try {
+			config.setLevel0StopTrigger(-1);
+			fail();
+		} catch (IllegalArgumentException iae) {
+		}
+		try {
+			config.setLevel1SlowdownTrigger(0);
+			fail();
+		} catch (IllegalArgumentException iae) {
+		}
+		try {
+			config.setLevel1StopTrigger(0);
+			fail();
+		} catch (IllegalArgumentException iae) {
+		}
+		try {
+			config.setSlowdownDelay(-1);
+			fail();
+		} catch (IllegalArgumentException iae) {
+		}
+		try {
+			config.setMaxStallTime(-1);
+			fail();
+		} catch (IllegalArgumentException iae) {
+		}
+
+		// triggers raised one by one pass in between
+		config.setLevel0SlowdownTrigger(20).setLevel0StopTrigger(30).setSlowdownDelay(0).setMaxStallTime(0);
+
+		// a stop trigger below its slowdown trigger is rejected on open
+		try {
+			new SDB(testDir, new DBConfig().setLevel0SlowdownTrigger(10).setLevel0StopTrigger(5));
+			fail();
+		} catch (IllegalArgumentException iae) {
+		}
+		try {
+			new SDB(testDir, new DBConfig().setLevel1SlowdownTrigger(10).setLevel1StopTrigger(5));
+			fail();
+		} catch (IllegalArgumentException iae) {
+		}
+	}
+}
@@ -1,15 +1,22 @@
 package com.ctriposs.sdb;
 
+import com.ctriposs.sdb.merge.MajorCompaction;
 import com.ctriposs.sdb.stats.AvgStats;
 import com.ctriposs.sdb.stats.SDBStats;
 import com.ctriposs.sdb.stats.SingleStats;
+import com.ctriposs.sdb.table.HashMapTable;
 import com.ctriposs.sdb.utils.TestUtil;
 import org.junit.After;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.*;
@@ -72,6 +79,318 @@ public class SDBTest {
 		outputStats(stats);
 	}
 
+	@Test
+	public void testWriteBatch() {
+		db = new SDB(testDir);
+
+		List<String> keys = new ArrayList<String>();
+		WriteBatch batch = new WriteBatch(100);
+		// enough entries to switch active map tables of every shard in the middle of batches
+		for (int i = 0; i < 600000 * STRESS_FACTOR; i++) {
+			String key = "key" + i;
+			keys.add(key);
+			batch.put(key.getBytes(), ("value" + i).getBytes());
+			if (batch.size() == 100) {
+				db.write(batch);
+				batch.clear();
+			}
+		}
+		db.write(batch);
+		batch.clear();
+
+		for (int i = 0; i < keys.size(); i++) {
+			byte[] value = db.get(keys.get(i).getBytes());
+			assertNotNull(value);
+			assertEquals("value" + i, new String(value));
+		}
+
+		// mixed put & delete on the same keys, later operation wins
+		for (int i = 0; i < keys.size(); i += 2) {
+			batch.put(keys.get(i).getBytes(), "updated".getBytes());
+			batch.delete(keys.get(i).getBytes());
+			batch.put(keys.get(i + 1).getBytes(), "updated".getBytes());
+			if (batch.size() >= 300) {
+				db.write(batch);
+				batch.clear();
+			}
+		}
+		db.write(batch);
+
+		for (int i = 0; i < keys.size(); i++) {
+			byte[] value = db.get(keys.get(i).getBytes());
+			if (i % 2 == 0) {
+				assertNull(value);
+			} else {
+				assertEquals("updated", new String(value));
+			}
+		}
+
+		assertTrue(getAvgStatsCount(db.getStats(), "write.inMem.cost") > 0);
+	}
+
+	@Test
+	public void testWriteBatchTooLarge() {
+		db = new SDB(testDir, new DBConfig().setMemTableMaxEntries(1000).setMemTableDataFileSize(DBConfig.MIN_MEM_TABLE_DATA_FILE_SIZE));
+
+		// groups of every shard bigger than the index of a table still fit in a new one
+		WriteBatch batch = new WriteBatch();
+		for (int i = 0; i < 20000; i++) {
+			batch.put(("key" + i).getBytes(), ("value" + i).getBytes());
+		}
+		db.write(batch);
+		for (int i = 0; i < 20000; i++) {
+			assertEquals("value" + i, new String(db.get(("key" + i).getBytes())));
+		}
+
+		// a group larger than a data file is rejected before the groups of other shards are applied
+		batch.clear();
+		for (int i = 0; i < 100; i++) {
+			batch.put(("other" + i).getBytes(), ("value" + i).getBytes());
+		}
+		batch.put("large".getBytes(), new byte[DBConfig.MIN_MEM_TABLE_DATA_FILE_SIZE]);
+		try {
+			db.write(batch);
+			fail();
+		} catch (IllegalArgumentException iae) {
+		}
+		for (int i = 0; i < 100; i++) {
+			assertNull(db.get(("other" + i).getBytes()));
+		}
+		assertNull(db.get("large".getBytes()));
+	}
+
+	@Test
+	public void testStandbyTableSwitch() throws IOException {
+		db = new SDB(testDir, new DBConfig().setStandbyTableNumber(2).setStandbyTablePrefaultEnabled(true));
+
+		// enough entries to switch active map tables of every shard
+		int count = (int) (600000 * STRESS_FACTOR);
+		for (int i = 0; i < count; i++) {
+			db.put(("key" + i).getBytes(), ("value" + i).getBytes());
+		}
+		assertTrue(getAvgStatsCount(db.getStats(), "switching.inMem.cost") > 0);
+
+		// standby tables never switched on are not loaded again
+		db.close();
+		db = new SDB(testDir);
+		for (int i = 0; i < count; i++) {
+			byte[] value = db.get(("key" + i).getBytes());
+			assertNotNull(value);
+			assertEquals("value" + i, new String(value));
+		}
+	}
+
+	@Test
+	public void testReopenWithHashIndexSnapshots() throws IOException {
+		db = new SDB(testDir);
+		int count = (int) (300000 * STRESS_FACTOR);
+		for (int i = 0; i < count; i++) {
+			db.put(("key" + i).getBytes(), ("value" + i).getBytes());
+		}
+		db.close();
+		String[] snapshots = new File(testDir).list(new FilenameFilter() {
+
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(HashMapTable.HASH_INDEX_SNAPSHOT_FILE_SUFFIX);
+			}
+
+		});
+		assertTrue(snapshots.length >= db.getConfig().getShardNumber());
+
+		// loaded from snapshots, then appended so the snapshots of active tables go stale
+		db = new SDB(testDir);
+		for (int i = 0; i < count; i += 2) {
+			db.put(("key" + i).getBytes(), ("updated" + i).getBytes());
+		}
+		db.close();
+
+		db = new SDB(testDir);
+		for (int i = 0; i < count; i++) {
+			byte[] value = db.get(("key" + i).getBytes());
+			assertNotNull(value);
+			assertEquals((i % 2 == 0 ? "updated" : "value") + i, new String(value));
+		}
+	}
+
+	@Test
+	public void testWriteStall() {
+		db = new SDB(testDir, new DBConfig().setLevel0SlowdownTrigger(1).setLevel0StopTrigger(2)
+				.setSlowdownDelay(0).setMaxStallTime(100).setCompactionThreadNumber(2));
+
+		// enough entries to move active map tables of every shard to level 0
+		int count = (int) (600000 * STRESS_FACTOR);
+		for (int i = 0; i < count; i++) {
+			db.put(("key" + i).getBytes(), ("value" + i).getBytes());
+		}
+		for (int i = 0; i < count; i++) {
+			byte[] value = db.get(("key" + i).getBytes());
+			assertNotNull(value);
+			assertEquals("value" + i, new String(value));
+		}
+
+		SDBStats stats = db.getStats();
+		assertTrue(getAvgStatsCount(stats, "stall.slowdown.cost") + getAvgStatsCount(stats, "stall.stop.cost") > 0);
+		// level 0 merges of all shards were scheduled on the shared compaction pool
+		assertEquals(2, stats.getSingleStatsMap().get("compaction.threads").get().getValue());
+		assertTrue(getAvgStatsCount(stats, "compaction.wait.cost") > 0);
+	}
+
+	@Test
+	public void testMajorCompaction() throws InterruptedException {
+		db = new SDB(testDir, new DBConfig().setMemTableMaxEntries(16 * 1024).setCompactionSchedule("0 3 * * *"));
+
+		int count = (int) (200000 * STRESS_FACTOR);
+		for (int i = 0; i < count; i++) {
+			db.put(("key" + i).getBytes(), ("value" + i).getBytes());
+		}
+		for (int i = 0; i < count; i += 4) {
+			db.delete(("key" + i).getBytes());
+		}
+		for (int i = 1; i < count; i += 4) {
+			db.put(("key" + i).getBytes(), ("expiring" + i).getBytes(), 500);
+		}
+		// move the deletes and expiring entries out of the active tables
+		for (int i = 0; i < count; i++) {
+			db.put(("filler" + i).getBytes(), ("value" + i).getBytes());
+		}
+		Thread.sleep(600);
+
+		MajorCompaction cancelled = db.compactShard(0);
+		cancelled.cancel();
+		assertTrue(cancelled.await(60, TimeUnit.SECONDS));
+		assertTrue(cancelled.isCancelled());
+
+		MajorCompaction compaction = db.compactAll();
+		assertTrue(compaction.await(120, TimeUnit.SECONDS));
+		assertTrue(compaction.isDone());
+		assertNull(compaction.getFailure());
+		assertEquals(db.getConfig().getShardNumber(), compaction.getCompletedShards());
+		assertEquals(1.0, compaction.getProgress(), 0);
+
+		// waiting tables all merged into level 2
+		String[] level1Files = new File(testDir).list(new FilenameFilter() {
+
+			@Override
+			public boolean accept(File dir, String name) {
+				String[] parts = name.split("-");
+				return parts.length == 3 && parts[1].equals(String.valueOf(SDB.LEVEL1));
+			}
+
+		});
+		assertEquals(0, level1Files.length);
+
+		for (int i = 0; i < count; i++) {
+			byte[] value = db.get(("key" + i).getBytes());
+			if (i % 4 == 0 || i % 4 == 1) {
+				assertNull(value);
+			} else {
+				assertEquals("value" + i, new String(value));
+			}
+		}
+		assertTrue(getAvgStatsCount(db.getStats(), "merging.level1.cost") > 0);
+
+		try {
+			db.compactShard(db.getConfig().getShardNumber());
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			new DBConfig().setCompactionSchedule("0 3 * *");
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void testAdaptiveMemTableSizing() throws IOException {
+		int dataFileSize = 4 * 1024 * 1024;
+		db = new SDB(testDir, new DBConfig().setCompressionEnabled(false).setMemTableDataFileSize(dataFileSize)
+				.setMemTableMaxEntries(1024 * 1024).setMemTableAdaptiveSizingEnabled(true));
+
+		// ~100 bytes per entry, the data file of the first tables runs out long before the index
+		int count = (int) (300000 * STRESS_FACTOR);
+		for (int i = 0; i < count; i++) {
+			String key = String.format("key%013d", i);
+			db.put(key.getBytes(), (key + TestUtil.randomString(80)).getBytes());
+		}
+		for (int i = 0; i < count; i++) {
+			String key = String.format("key%013d", i);
+			byte[] value = db.get(key.getBytes());
+			assertNotNull(value);
+			assertTrue(new String(value).startsWith(key));
+		}
+
+		for (short shard = 0; shard < db.getConfig().getShardNumber(); shard++) {
+			HashMapTable table = db.newInMemTable(shard);
+			int expected = (int) (dataFileSize / 112 * 1.25); // 16 bytes key, 96 bytes value
+			assertTrue(Math.abs(table.getIndexItemsCapacity() - expected) < expected / 10);
+			table.close();
+			table.delete();
+		}
+	}
+
+	@Test
+	public void testDurabilityModes() throws IOException {
+		for (DBConfig.DurabilityMode mode : DBConfig.DurabilityMode.values()) {
+			db = new SDB(testDir, new DBConfig().setDurabilityMode(mode).setSyncInterval(100));
+			for (int i = 0; i < 1000; i++) {
+				db.put(("key" + i).getBytes(), ("value" + i).getBytes());
+			}
+			TestUtil.sleepQuietly(300);
+			db.close();
+
+			db = new SDB(testDir);
+			for (int i = 0; i < 1000; i++) {
+				assertEquals("value" + i, new String(db.get(("key" + i).getBytes())));
+			}
+			db.close();
+			db.destory();
+			db = null;
+		}
+	}
+
+	@Test
+	public void testMultiGet() {
+		db = new SDB(testDir);
+
+		// enough entries to have level 0 tables merged into level 1
+		int count = (int) (1200000 * STRESS_FACTOR);
+		for (int i = 0; i < count; i++) {
+			db.put(("key" + i).getBytes(), ("value" + i).getBytes());
+		}
+		for (int i = 0; i < count; i += 3) {
+			db.delete(("key" + i).getBytes());
+		}
+		TestUtil.sleepQuietly(10 * 1000);
+
+		for (int start = 0; start < count; start += 100) {
+			List<byte[]> keys = new ArrayList<byte[]>();
+			for (int i = start; i < start + 100; i++) {
+				keys.add(("key" + i).getBytes());
+			}
+			keys.add("missing".getBytes());
+			List<byte[]> values = db.multiGet(keys);
+			assertEquals(keys.size(), values.size());
+			for (int i = 0; i < 100; i++) {
+				int k = start + i;
+				if (k >= count || k % 3 == 0) {
+					assertNull(values.get(i));
+				} else {
+					assertEquals("value" + k, new String(values.get(i)));
+				}
+			}
+			assertNull(values.get(100));
+		}
+
+		SDBStats stats = db.getStats();
+		assertEquals(count / 100, getAvgStatsCount(stats, "multiGet.inMem.cost") + getAvgStatsCount(stats, "multiGet.level0.cost")
+				+ getAvgStatsCount(stats, "multiGet.level1.cost") + getAvgStatsCount(stats, "multiGet.level2.cost"));
+		assertTrue(getAvgStatsCount(stats, "multiGet.inMem.probes") >= count / 100);
+		assertTrue(getAvgStatsCount(stats, "multiGet.level1.probes") > 0);
+		outputStats(stats);
+	}
+
 	@Test
 	public void operationAfterClosedTest() throws Exception {
 		db = new SDB(testDir);
@@ -96,6 +415,12 @@ public class SDBTest {
 			fail("Should not get here after the SDB is closed.");
 		} catch (IllegalStateException e) {
 		}
+
+		try {
+			db.write(new WriteBatch().put(testKey, testValue));
+			fail("Should not get here after the SDB is closed.");
+		} catch (IllegalStateException e) {
+		}
 	}
 
 	@After
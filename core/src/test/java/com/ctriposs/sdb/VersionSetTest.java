@@ -0,0 +1,108 @@
+package com.ctriposs.sdb;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.ctriposs.sdb.table.AbstractMapTable;
+import com.ctriposs.sdb.table.HashMapTable;
+import com.ctriposs.sdb.utils.FileUtil;
+import com.ctriposs.sdb.utils.TestUtil;
+
+public class VersionSetTest {
+
+	private static String testDir = TestUtil.TEST_BASE_DIR + "sdb/unit/version_set_test";
+
+	private VersionSet versionSet = new VersionSet();
+
+	@Test
+	public void testApply() throws IOException {
+		HashMapTable table1 = new HashMapTable(testDir, SDB.LEVEL0, System.nanoTime());
+		HashMapTable table2 = new HashMapTable(testDir, SDB.LEVEL0, System.nanoTime() + 1);
+		HashMapTable table3 = new HashMapTable(testDir, SDB.LEVEL0, System.nanoTime() + 2);
+		versionSet.apply(new VersionSet.Edit().addFirst(SDB.LEVEL0, table1));
+		versionSet.apply(new VersionSet.Edit().addFirst(SDB.LEVEL0, table2));
+		versionSet.apply(new VersionSet.Edit().addLast(SDB.LEVEL1, table3));
+
+		LevelVersion version = versionSet.current();
+		assertTrue(version.size(SDB.LEVEL0) == 2);
+		assertTrue(version.getTables(SDB.LEVEL0)[0] == table2);
+		assertTrue(version.getTables(SDB.LEVEL0)[1] == table1);
+		assertTrue(version.contains(SDB.LEVEL1, table3));
+		assertFalse(version.contains(SDB.LEVEL0, table3));
+		assertTrue(version.size(SDB.LEVEL2) == 0);
+
+		// a table not in its level
+		try {
+			versionSet.apply(new VersionSet.Edit().remove(SDB.LEVEL1, table1));
+			fail();
+		} catch (IllegalArgumentException iae) {
+
+		}
+		assertTrue(versionSet.current() == version);
+
+		// a table moved within one edit stays open
+		versionSet.apply(new VersionSet.Edit().remove(SDB.LEVEL1, table3).addFirst(SDB.LEVEL2, table3));
+		assertTrue(versionSet.size(SDB.LEVEL1) == 0);
+		assertTrue(versionSet.current().getTables(SDB.LEVEL2)[0] == table3);
+		assertTrue(table3.get("key".getBytes()) != null);
+	}
+
+	@Test
+	public void testPinnedVersion() throws IOException {
+		HashMapTable table1 = new HashMapTable(testDir, SDB.LEVEL0, System.nanoTime());
+		HashMapTable table2 = new HashMapTable(testDir, SDB.LEVEL0, System.nanoTime() + 1);
+		table1.put("key".getBytes(), "value1".getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis());
+		versionSet.apply(new VersionSet.Edit().addFirst(SDB.LEVEL0, table1).addFirst(SDB.LEVEL0, table2));
+		int files = new File(testDir).list().length;
+
+		LevelVersion pinned = versionSet.acquire();
+		table1.markUsable(false);
+		versionSet.apply(new VersionSet.Edit().remove(SDB.LEVEL0, table1));
+		assertTrue(versionSet.size(SDB.LEVEL0) == 1);
+		assertTrue(pinned.size(SDB.LEVEL0) == 2);
+
+		// tables of the pinned version are still readable
+		assertTrue(pinned.getTables(SDB.LEVEL0)[0] == table1);
+		assertTrue(table1.get("key".getBytes()).isFound());
+		assertTrue(new File(testDir).list().length == files);
+
+		// the removed table is closed and deleted by the last release
+		LevelVersion current = versionSet.acquire();
+		current.release();
+		assertTrue(new File(testDir).list().length == files);
+		pinned.release();
+		assertTrue(new File(testDir).list().length < files);
+		try {
+			pinned.release();
+			fail();
+		} catch (IllegalStateException ise) {
+
+		}
+
+		// a released version is never handed out again
+		LevelVersion version = versionSet.acquire();
+		assertTrue(version == versionSet.current());
+		assertTrue(version.contains(SDB.LEVEL0, table2));
+		assertFalse(version.contains(SDB.LEVEL0, table1));
+		version.release();
+	}
+
+	@After
+	public void clear() throws IOException {
+		LevelVersion version = versionSet.current();
+		for(int level = 0; level <= SDB.MAX_LEVEL; level++) {
+			for(AbstractMapTable table : version.getTables(level)) {
+				table.close();
+			}
+		}
+		FileUtil.deleteDirectory(new File(testDir));
+	}
+
+}
@@ -0,0 +1,51 @@
+package com.ctriposs.sdb.merge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Calendar;
+
+import org.junit.Test;
+
+public class CompactionScheduleTest {
+
+	private static long time(int year, int month, int day, int hour, int minute) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		calendar.set(year, month - 1, day, hour, minute);
+		return calendar.getTimeInMillis();
+	}
+
+	@Test
+	public void testNextTime() {
+		// 2015-03-10 is a Tuesday
+		long now = time(2015, 3, 10, 14, 20) + 30 * 1000;
+
+		assertEquals(time(2015, 3, 10, 14, 21), CompactionSchedule.parse("* * * * *").getNextTime(now));
+		assertEquals(time(2015, 3, 11, 2, 30), CompactionSchedule.parse("30 2 * * *").getNextTime(now));
+		assertEquals(time(2015, 3, 10, 14, 30), CompactionSchedule.parse("*/15 * * * *").getNextTime(now));
+		assertEquals(time(2015, 3, 10, 23, 0), CompactionSchedule.parse(" 0  1-5,23  * * * ").getNextTime(now));
+		// Sunday as 0 and 7
+		assertEquals(time(2015, 3, 15, 3, 0), CompactionSchedule.parse("0 3 * * 0").getNextTime(now));
+		assertEquals(time(2015, 3, 15, 3, 0), CompactionSchedule.parse("0 3 * * 7").getNextTime(now));
+		assertEquals(time(2015, 4, 1, 0, 0), CompactionSchedule.parse("0 0 1 * *").getNextTime(now));
+		assertEquals(time(2016, 2, 29, 0, 0), CompactionSchedule.parse("0 0 29 2 *").getNextTime(now));
+		// either day field matches if both are restricted
+		assertEquals(time(2015, 3, 13, 0, 0), CompactionSchedule.parse("0 0 20 * 5").getNextTime(now));
+		// never comes
+		assertEquals(Long.MAX_VALUE, CompactionSchedule.parse("0 0 30 2 *").getNextTime(now));
+	}
+
+	@Test
+	public void testInvalid() {
+		String[] expressions = { "", "* * * *", "* * * * * *", "60 * * * *", "* 24 * * *", "* * 0 * *",
+				"* * * 13 *", "* * * * 8", "5-1 * * * *", "*/0 * * * *", "a * * * *" };
+		for(String expression : expressions) {
+			try {
+				CompactionSchedule.parse(expression);
+				fail(expression);
+			} catch (IllegalArgumentException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package com.ctriposs.sdb.merge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.ctriposs.sdb.DBConfig;
+import com.ctriposs.sdb.SDB;
+import com.ctriposs.sdb.VersionSet;
+import com.ctriposs.sdb.table.FilterPolicy;
+
+public class FilterBudgetTest {
+
+	private static final double LN2_SQUARED = Math.log(2) * Math.log(2);
+
+	@Test
+	public void testAllocate() {
+		long[] entries = { 0, 10000000, 100000000 };
+		double[] probes = { 0, 10, 1 };
+		double[] costs = { 0, 1, 4 };
+		long budgetBits = 110000000L * 10;
+		double[] bitsPerKey = FilterBudget.allocate(budgetBits, entries, probes, costs);
+
+		// the whole budget is used, level 0 gets nothing
+		assertTrue(bitsPerKey[0] == 0);
+		assertEquals(budgetBits, entries[1] * bitsPerKey[1] + entries[2] * bitsPerKey[2], budgetBits * 1e-9);
+		// the big level gets fewer bits per key
+		assertTrue(bitsPerKey[1] > 10 && bitsPerKey[2] < 10);
+		// cheaper than the same bits per key everywhere
+		double[] uniform = { 0, 10, 10 };
+		assertTrue(getCost(bitsPerKey, probes, costs) < getCost(uniform, probes, costs));
+		// and than moving a bit per key either way
+		double[] moved = { 0, bitsPerKey[1] + 1, bitsPerKey[2] - 0.1 };
+		assertTrue(getCost(bitsPerKey, probes, costs) < getCost(moved, probes, costs));
+		moved = new double[] { 0, bitsPerKey[1] - 1, bitsPerKey[2] + 0.1 };
+		assertTrue(getCost(bitsPerKey, probes, costs) < getCost(moved, probes, costs));
+
+		// too small a budget for the big level, the small level gets it all
+		bitsPerKey = FilterBudget.allocate(entries[1] * 2, entries, probes, costs);
+		assertTrue(bitsPerKey[2] == 0);
+		assertEquals(2, bitsPerKey[1], 1e-9);
+
+		// nothing to filter
+		bitsPerKey = FilterBudget.allocate(budgetBits, new long[3], probes, costs);
+		assertTrue(bitsPerKey[1] == 0 && bitsPerKey[2] == 0);
+	}
+
+	// expected false positive cost of a lookup of a missing key
+	private static double getCost(double[] bitsPerKey, double[] probes, double[] costs) {
+		double cost = 0;
+		for(int i = 0; i < bitsPerKey.length; i++) {
+			cost += probes[i] * costs[i] * Math.exp(-bitsPerKey[i] * LN2_SQUARED);
+		}
+		return cost;
+	}
+
+	@Test
+	public void testGetFilterPolicy() {
+		VersionSet versionSet = new VersionSet();
+		DBConfig config = new DBConfig().setFilterPolicy(SDB.LEVEL2, FilterPolicy.xor(16));
+		assertTrue(FilterBudget.getFilterPolicy(config, versionSet.current(), SDB.LEVEL1, 1000) == FilterPolicy.DEFAULT);
+		assertTrue(FilterBudget.getFilterPolicy(config, versionSet.current(), SDB.LEVEL2, 1000).getType() == FilterPolicy.Type.XOR);
+
+		// 4 shards of 1000 entries in level 1 only
+		config.setFilterMemoryBudget(4 * 1000 * 12 / 8);
+		FilterPolicy policy = FilterBudget.getFilterPolicy(config, versionSet.current(), SDB.LEVEL1, 1000);
+		assertTrue(policy.getType() == FilterPolicy.Type.BLOCKED_BLOOM);
+		assertEquals(12, policy.getBitsPerKey(), 1e-9);
+		policy = FilterBudget.getFilterPolicy(config, versionSet.current(), SDB.LEVEL2, 1000);
+		assertEquals(12, policy.getBitsPerKey(), 1e-9);
+	}
+}
@@ -13,14 +13,16 @@ import java.util.Random;
 import org.junit.Test;
 import org.xerial.snappy.Snappy;
 
-import com.ctriposs.sdb.LevelQueue;
 import com.ctriposs.sdb.SDB;
+import com.ctriposs.sdb.VersionSet;
 import com.ctriposs.sdb.merge.Level0Merger;
+import com.ctriposs.sdb.stats.AvgStats;
+import com.ctriposs.sdb.stats.SDBStats;
 import com.ctriposs.sdb.table.AbstractMapTable;
 import com.ctriposs.sdb.table.GetResult;
 import com.ctriposs.sdb.table.HashMapTable;
 import com.ctriposs.sdb.table.IMapEntry;
-import com.ctriposs.sdb.table.MMFMapTable;
+import com.ctriposs.sdb.table.PackedMapTable;
 import com.ctriposs.sdb.utils.TestUtil;
 
 public class Level0MergerTest {
@@ -30,11 +32,11 @@ public class Level0MergerTest {
 	@Test
 	public void testCase02() throws IOException, ClassNotFoundException {
 		HashMapTable[] sourceTables = new HashMapTable[4];
-		LevelQueue lq0 = new LevelQueue();
+		VersionSet versionSet = new VersionSet();
 		for(int i = 0; i < 4; i++) {
 			sourceTables[i] = new HashMapTable(testDir, SDB.LEVEL0, System.nanoTime() + i);
 			sourceTables[i].setCompressionEnabled(true);
-			lq0.addFirst(sourceTables[i]);
+			versionSet.apply(new VersionSet.Edit().addFirst(SDB.LEVEL0, sourceTables[i]));
 			assertTrue(sourceTables[i].isImmutable());
 		}
 		
@@ -78,16 +80,15 @@ public class Level0MergerTest {
 			start = start + 1;
 		}
 		
-		LevelQueue lq1 = new LevelQueue();
 		
-		Level0Merger.mergeSort(lq0, lq1, 4, testDir, (short)0);
+		Level0Merger.mergeSort(versionSet, 4, testDir, (short)0);
 		
 		for(int i = 0; i < 4; i++) {
 			assertTrue(sourceTables[i].isImmutable());
 		}
 		
-		assertTrue(lq1.size() == 1);
-		MMFMapTable targetTable = (MMFMapTable) lq1.poll();
+		assertTrue(versionSet.size(SDB.LEVEL1) == 1);
+		PackedMapTable targetTable = (PackedMapTable) versionSet.current().getTables(SDB.LEVEL1)[0];
 		assertTrue(targetTable.getLevel() == SDB.LEVEL1);
 		assertTrue(targetTable.getAppendedSize() == max);
 		
@@ -177,11 +178,11 @@ public class Level0MergerTest {
 		String value = TestUtil.randomString(128);
 		
 		HashMapTable[] sourceTables = new HashMapTable[4];
-		LevelQueue lq0 = new LevelQueue();
+		VersionSet versionSet = new VersionSet();
 		for(int i = 0; i < 4; i++) {
 			sourceTables[i] = new HashMapTable(testDir, SDB.LEVEL0, System.nanoTime() + i);
 			sourceTables[i].setCompressionEnabled(true);
-			lq0.addFirst(sourceTables[i]);
+			versionSet.apply(new VersionSet.Edit().addFirst(SDB.LEVEL0, sourceTables[i]));
 			assertTrue(sourceTables[i].isImmutable());
 		}
 		
@@ -197,10 +198,9 @@ public class Level0MergerTest {
 			}
 		}
 		
-		LevelQueue lq1 = new LevelQueue();
 		
 		long start = System.currentTimeMillis();
-		Level0Merger.mergeSort(lq0, lq1, 4, testDir, (short)1);
+		Level0Merger.mergeSort(versionSet, 4, testDir, (short)1);
 		long end = System.currentTimeMillis();
 		System.out.println("Time spent to merge " + totalCount + " items in 4 ways  is " + (end - start) / 1000 + "s");
 		
@@ -208,8 +208,8 @@ public class Level0MergerTest {
 			assertTrue(sourceTables[i].isImmutable());
 		}
 		
-		assertTrue(lq1.size() == 1);
-		MMFMapTable targetTable = (MMFMapTable) lq1.poll();
+		assertTrue(versionSet.size(SDB.LEVEL1) == 1);
+		PackedMapTable targetTable = (PackedMapTable) versionSet.current().getTables(SDB.LEVEL1)[0];
 		assertTrue(targetTable.getLevel() == SDB.LEVEL1);
 		assertTrue(targetTable.getAppendedSize() == totalCount);
 		
@@ -251,4 +251,41 @@ public class Level0MergerTest {
 		targetTable.delete();
 	}
 
+	@Test
+	public void testRateLimitedMerge() throws IOException, ClassNotFoundException {
+		String value = TestUtil.randomString(128);
+		HashMapTable[] sourceTables = new HashMapTable[2];
+		VersionSet versionSet = new VersionSet();
+		for(int i = 0; i < 2; i++) {
+			sourceTables[i] = new HashMapTable(testDir, SDB.LEVEL0, System.nanoTime() + i);
+			versionSet.apply(new VersionSet.Edit().addFirst(SDB.LEVEL0, sourceTables[i]));
+		}
+		int count = 4000;
+		long bytes = 0;
+		for(int i = 0; i < count; i++) {
+			byte[] key = String.valueOf(i).getBytes();
+			sourceTables[i % 2].put(key, value.getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis());
+			bytes += key.length + value.length() + AbstractMapTable.INDEX_ITEM_LENGTH;
+		}
+		
+		SDBStats stats = new SDBStats();
+		long bytesPerSecond = 1024 * 1024;
+		CompactionRateLimiter rateLimiter = new CompactionRateLimiter(bytesPerSecond, stats);
+		long start = System.nanoTime();
+		Level0Merger.mergeSort(versionSet, 2, testDir, (short)2, rateLimiter, null, 1);
+		long elapsed = System.nanoTime() - start;
+		
+		// everything beyond the 100ms burst is throttled
+		long expected = (bytes - bytesPerSecond / 10) * 1000 * 1000 * 1000 / bytesPerSecond;
+		assertTrue(elapsed >= expected * 9 / 10);
+		AvgStats throttled = stats.getAvgStatsMap().get("compaction.level0.throttled.cost").get();
+		assertTrue(throttled.getCount() > 0);
+		assertTrue(throttled.getAvg() * throttled.getCount() >= expected * 8 / 10);
+		
+		PackedMapTable targetTable = (PackedMapTable) versionSet.current().getTables(SDB.LEVEL1)[0];
+		assertTrue(targetTable.getAppendedSize() == count);
+		targetTable.close();
+		targetTable.delete();
+	}
+
 }
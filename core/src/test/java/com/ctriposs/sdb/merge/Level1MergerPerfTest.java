@@ -0,0 +1,74 @@
+package com.ctriposs.sdb.merge;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import com.ctriposs.sdb.SDB;
+import com.ctriposs.sdb.VersionSet;
+import com.ctriposs.sdb.table.AbstractMapTable;
+import com.ctriposs.sdb.utils.TestUtil;
+
+public class Level1MergerPerfTest {
+
+	private static String testDir = TestUtil.TEST_BASE_DIR + "sdb/unit/level_1_merger_perf_test";
+
+	// You can set the SUB_COMPACTIONS system property to compare with more sub compactions.
+	private static final int SUB_COMPACTIONS = Integer.parseInt(System.getProperty("SUB_COMPACTIONS",
+			String.valueOf(Math.max(Runtime.getRuntime().availableProcessors(), 2))));
+
+	private static final int LEVEL2_TABLE_SIZE = 4 * 1024 * 1024;
+
+	@Test
+	public void testMerge() throws IOException, ClassNotFoundException {
+		int count = 200000;
+		String value = TestUtil.randomString(100);
+
+		long oneWay = this.merge(count, value, 1);
+		long parallel = this.merge(count, value, SUB_COMPACTIONS);
+		System.out.println("Time spent to merge " + count * 4 + " items in 4 ways is " + oneWay / 1000000 + "ms, " +
+				parallel / 1000000 + "ms with " + SUB_COMPACTIONS + " sub compactions");
+	}
+
+	// merge 4 level 1 tables into level 2 tables of the same keys, return the merging time
+	private long merge(int count, String value, int subCompactions) throws IOException, ClassNotFoundException {
+		VersionSet versionSet = new VersionSet();
+		for(int round = 0; round < 2; round++) {
+			int tableNumber = round == 0 ? 4 : 3;
+			for(int i = 0; i < tableNumber; i++) {
+				List<String> keyList = new ArrayList<String>();
+				for(int j = i; j < count * 4; j += tableNumber) {
+					keyList.add("key" + j);
+				}
+				versionSet.apply(new VersionSet.Edit().addFirst(SDB.LEVEL1, Level1MergerTest.createSortedTable(keyList, value, System.nanoTime() + i)));
+			}
+			if (round == 0) { // level 2 to be rewritten
+				Level1Merger.mergeSort(versionSet, 4, testDir, (short)1, LEVEL2_TABLE_SIZE, null, null, 1);
+			}
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(subCompactions);
+		long start = System.nanoTime();
+		try {
+			Level1Merger.mergeSort(versionSet, 4, testDir, (short)1, LEVEL2_TABLE_SIZE, null, executor, subCompactions);
+		} finally {
+			executor.shutdown();
+		}
+		long cost = System.nanoTime() - start;
+
+		int totalCount = 0;
+		for(AbstractMapTable table : versionSet.current().getTables(SDB.LEVEL2)) {
+			totalCount += table.getAppendedSize();
+			table.close();
+			table.delete();
+		}
+		assertTrue(totalCount == count * 4);
+		return cost;
+	}
+}
@@ -1,5 +1,6 @@
 package com.ctriposs.sdb.merge;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
@@ -9,17 +10,24 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.junit.Test;
 
-import com.ctriposs.sdb.LevelQueue;
 import com.ctriposs.sdb.SDB;
+import com.ctriposs.sdb.VersionSet;
 import com.ctriposs.sdb.merge.Level1Merger;
 import com.ctriposs.sdb.table.AbstractMapTable;
+import com.ctriposs.sdb.table.AbstractSortedMapTable;
+import com.ctriposs.sdb.table.AbstractSortedMapTable.IndexType;
+import com.ctriposs.sdb.table.FilterPolicy;
 import com.ctriposs.sdb.table.FCMapTable;
 import com.ctriposs.sdb.table.GetResult;
 import com.ctriposs.sdb.table.IMapEntry;
 import com.ctriposs.sdb.table.MMFMapTable;
+import com.ctriposs.sdb.table.PackedMapTable;
+import com.ctriposs.sdb.table.SortedMapTableScanner;
 import com.ctriposs.sdb.utils.TestUtil;
 
 public class Level1MergerTest {
@@ -32,10 +40,10 @@ public class Level1MergerTest {
 		//int maxSize = 1024;
 		
 		MMFMapTable[] sourceTables = new MMFMapTable[3];
-		LevelQueue lq1 = new LevelQueue();
+		VersionSet versionSet = new VersionSet();
 		for(int i = 0; i < 3; i++) {
 			sourceTables[i] = new MMFMapTable(testDir, SDB.LEVEL1, System.nanoTime() + i, maxSize / 4, 4);
-			lq1.addFirst(sourceTables[i]);
+			versionSet.apply(new VersionSet.Edit().addFirst(SDB.LEVEL1, sourceTables[i]));
 		}
 		
 		// delete
@@ -150,14 +158,13 @@ public class Level1MergerTest {
 			table4.appendNew(key.getBytes(), Arrays.hashCode(key.getBytes()), key.getBytes(), 1200 * 1000, System.currentTimeMillis(), false, false);
 		}
 		
-		LevelQueue lq2 = new LevelQueue();
-		lq2.add(table4);
+		versionSet.apply(new VersionSet.Edit().addLast(SDB.LEVEL2, table4));
 		
-		Level1Merger.mergeSort(lq1, lq2, 4, testDir, (short)2);
+		Level1Merger.mergeSort(versionSet, 4, testDir, (short)2);
 		
-		assertTrue(lq1.size() == 0);
-		assertTrue(lq2.size() == 1);
-		FCMapTable targetTable = (FCMapTable) lq2.poll();
+		assertTrue(versionSet.size(SDB.LEVEL1) == 0);
+		assertTrue(versionSet.size(SDB.LEVEL2) == 1);
+		PackedMapTable targetTable = (PackedMapTable) versionSet.current().getTables(SDB.LEVEL2)[0];
 
 		System.out.println(targetTable.getAppendedSize() + "==" + maxSize / 2);
 		assertTrue(targetTable.getAppendedSize() == maxSize / 2);
@@ -245,10 +252,10 @@ public class Level1MergerTest {
 		String value = TestUtil.randomString(1024 * 3);
 		
 		MMFMapTable[] sourceTables = new MMFMapTable[4];
-		LevelQueue lq1 = new LevelQueue();
+		VersionSet versionSet = new VersionSet();
 		for(int i = 0; i < 4; i++) {
 			sourceTables[i] = new MMFMapTable(testDir, SDB.LEVEL1, System.nanoTime() + i, maxSize, 4);
-			lq1.addFirst(sourceTables[i]);
+			versionSet.apply(new VersionSet.Edit().addFirst(SDB.LEVEL1, sourceTables[i]));
 		}
 		
 		int totalCount = 0;
@@ -281,16 +288,14 @@ public class Level1MergerTest {
 			}
 		}
 		
-		LevelQueue lq2 = new LevelQueue();
-		
 		long start = System.currentTimeMillis();
-		Level1Merger.mergeSort(lq1, lq2, 4, testDir, (short)3);
+		Level1Merger.mergeSort(versionSet, 4, testDir, (short)3);
 		long end = System.currentTimeMillis();
 		System.out.println("Time spent to merge " + totalCount + " items in 4 ways  is " + (end - start) / 1000 + "s");
 		
-		assertTrue(lq1.size() == 0);
-		assertTrue(lq2.size() == 1);
-		FCMapTable targetTable = (FCMapTable) lq2.poll();
+		assertTrue(versionSet.size(SDB.LEVEL1) == 0);
+		assertTrue(versionSet.size(SDB.LEVEL2) == 1);
+		PackedMapTable targetTable = (PackedMapTable) versionSet.current().getTables(SDB.LEVEL2)[0];
 		assertTrue(targetTable.getLevel() == SDB.LEVEL2);
 		assertTrue(targetTable.getAppendedSize() == totalCount);
 		assertTrue(totalCount == maxSize * 4);
@@ -333,4 +338,266 @@ public class Level1MergerTest {
 		targetTable.delete();
 	}
 
+	@Test
+	public void testPartitionedLevel2() throws IOException, ClassNotFoundException {
+		int count = 2000;
+		String value = TestUtil.randomString(100);
+		VersionSet versionSet = new VersionSet();
+		for(int i = 0; i < 4; i++) {
+			List<String> keyList = new ArrayList<String>();
+			for(int j = i; j < count * 4; j += 4) {
+				keyList.add("key" + j);
+			}
+			versionSet.apply(new VersionSet.Edit().addFirst(SDB.LEVEL1, createSortedTable(keyList, value, System.nanoTime() + i)));
+		}
+
+		// split into tables of ~50K
+		Level1Merger.mergeSort(versionSet, 4, testDir, (short)1, 50 * 1024, null, null, 1);
+		assertTrue(versionSet.size(SDB.LEVEL1) == 0);
+		assertTrue(versionSet.size(SDB.LEVEL2) > 4);
+		List<AbstractSortedMapTable> partitions = sortByKeyHash(versionSet.current().getTables(SDB.LEVEL2));
+		int totalCount = 0;
+		for(int i = 0; i < partitions.size(); i++) {
+			totalCount += partitions.get(i).getAppendedSize();
+			if (i > 0) {
+				assertTrue(partitions.get(i - 1).getMaxKeyHash() < partitions.get(i).getMinKeyHash());
+			}
+		}
+		assertTrue(totalCount == count * 4);
+
+		// update keys of one table in the middle, other tables are kept
+		AbstractSortedMapTable target = partitions.get(partitions.size() / 2);
+		List<String> updatedKeys = new ArrayList<String>();
+		for(int i = 0; i < target.getAppendedSize(); i += 2) {
+			updatedKeys.add(new String(target.getMapEntry(i).getKey()));
+		}
+		for(int i = 0; i < 3; i++) {
+			versionSet.apply(new VersionSet.Edit().addFirst(SDB.LEVEL1, createSortedTable(updatedKeys, "updated" + i, System.nanoTime() + i)));
+		}
+		Level1Merger.mergeSort(versionSet, 4, testDir, (short)1, 50 * 1024, null, null, 1);
+		assertTrue(versionSet.size(SDB.LEVEL1) == 0);
+		assertFalse(versionSet.current().contains(SDB.LEVEL2, target));
+		for(AbstractSortedMapTable partition : partitions) {
+			if (partition != target) {
+				assertTrue(versionSet.current().contains(SDB.LEVEL2, partition));
+			}
+		}
+
+		totalCount = 0;
+		for(AbstractMapTable table : versionSet.current().getTables(SDB.LEVEL2)) {
+			totalCount += table.getAppendedSize();
+		}
+		assertTrue(totalCount == count * 4);
+		for(String key : updatedKeys) {
+			GetResult result = null;
+			for(AbstractMapTable table : versionSet.current().getTables(SDB.LEVEL2)) {
+				result = table.get(key.getBytes());
+				if (result.isFound()) break;
+			}
+			assertTrue(result.isFound());
+			assertTrue(new String(result.getValue()).equals("updated2"));
+		}
+		for(int i = 0; i < count * 4; i += 7) {
+			int found = 0;
+			for(AbstractMapTable table : versionSet.current().getTables(SDB.LEVEL2)) {
+				if (table.get(("key" + i).getBytes()).isFound()) found++;
+			}
+			assertTrue(found == 1);
+		}
+
+		for(AbstractMapTable table : versionSet.current().getTables(SDB.LEVEL2)) {
+			table.close();
+			table.delete();
+		}
+	}
+
+	@Test
+	public void testSubCompactions() throws IOException, ClassNotFoundException {
+		int count = 4000;
+		String value = TestUtil.randomString(100);
+		VersionSet versionSet = new VersionSet();
+		for(int i = 0; i < 4; i++) {
+			List<String> keyList = new ArrayList<String>();
+			for(int j = i; j < count * 4; j += 4) {
+				keyList.add("key" + j);
+			}
+			versionSet.apply(new VersionSet.Edit().addFirst(SDB.LEVEL1, createSortedTable(keyList, value, System.nanoTime() + i)));
+		}
+		Level1Merger.mergeSort(versionSet, 4, testDir, (short)1, 200 * 1024, null, null, 1);
+
+		// rewrite every level 2 table with the keys updated, in 4 key hash sub ranges
+		List<String> updatedKeys = new ArrayList<String>();
+		for(int i = 0; i < count * 4; i += 2) {
+			updatedKeys.add("key" + i);
+		}
+		for(int i = 0; i < 3; i++) {
+			versionSet.apply(new VersionSet.Edit().addFirst(SDB.LEVEL1, createSortedTable(updatedKeys, "updated" + i, System.nanoTime() + i)));
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			Level1Merger.mergeSort(versionSet, 4, testDir, (short)1, 200 * 1024, null, executor, 4);
+		} finally {
+			executor.shutdown();
+		}
+		assertTrue(versionSet.size(SDB.LEVEL1) == 0);
+
+		List<AbstractSortedMapTable> partitions = sortByKeyHash(versionSet.current().getTables(SDB.LEVEL2));
+		int totalCount = 0;
+		for(int i = 0; i < partitions.size(); i++) {
+			totalCount += partitions.get(i).getAppendedSize();
+			if (i > 0) {
+				assertTrue(partitions.get(i - 1).getMaxKeyHash() < partitions.get(i).getMinKeyHash());
+			}
+		}
+		assertTrue(totalCount == count * 4);
+		for(int i = 0; i < count * 4; i++) {
+			GetResult result = null;
+			for(AbstractMapTable table : versionSet.current().getTables(SDB.LEVEL2)) {
+				result = table.get(("key" + i).getBytes());
+				if (result.isFound()) break;
+			}
+			assertTrue(result.isFound());
+			assertTrue(new String(result.getValue()).equals(i % 2 == 0 ? "updated2" : value));
+		}
+
+		for(AbstractMapTable table : versionSet.current().getTables(SDB.LEVEL2)) {
+			table.close();
+			table.delete();
+		}
+	}
+
+	@Test
+	public void testSplitKeyHashRange() throws IOException, ClassNotFoundException {
+		List<String> keyList = new ArrayList<String>();
+		for(int i = 0; i < 10000; i++) {
+			keyList.add("key" + i);
+		}
+		MMFMapTable table = createSortedTable(keyList, "value", System.nanoTime());
+		List<AbstractSortedMapTable> tables = new ArrayList<AbstractSortedMapTable>();
+		tables.add(table);
+		int[] upperKeyHashes = Level1Merger.splitKeyHashRange(tables, table.getAppendedSize(), 4);
+		assertTrue(upperKeyHashes.length == 4);
+		assertTrue(upperKeyHashes[3] == Integer.MAX_VALUE);
+		int from = 0;
+		for(int i = 0; i < upperKeyHashes.length; i++) {
+			int to = i == upperKeyHashes.length - 1 ? table.getAppendedSize() : table.indexOfKeyHash(upperKeyHashes[i] + 1);
+			// about a quarter of the entries in every sub range
+			assertTrue(Math.abs(to - from - 2500) < 250);
+			from = to;
+		}
+		assertTrue(Level1Merger.splitKeyHashRange(tables, table.getAppendedSize(), 1).length == 1);
+
+		table.close();
+		table.delete();
+	}
+
+	@Test
+	public void testExpiredLevel2Tables() throws IOException, ClassNotFoundException {
+		long now = System.currentTimeMillis();
+		VersionSet versionSet = new VersionSet();
+		// all expired, half expired and never expiring
+		FCMapTable expired = createLevel2Table(0, 1000, 1, now);
+		FCMapTable halfExpired = createLevel2Table(1000, 2000, 2, now);
+		FCMapTable live = createLevel2Table(2000, 3000, 3, now);
+		versionSet.apply(new VersionSet.Edit().addFirst(SDB.LEVEL2, expired));
+		versionSet.apply(new VersionSet.Edit().addFirst(SDB.LEVEL2, halfExpired));
+		versionSet.apply(new VersionSet.Edit().addFirst(SDB.LEVEL2, live));
+
+		// 500ms later
+		long later = now + 500;
+		long expiredBytes = (long) expired.getAppendedSize() * AbstractMapTable.INDEX_ITEM_LENGTH + expired.getAppendedDataSize();
+		long reclaimed = Level1Merger.dropExpiredTables(versionSet, later);
+		assertTrue(reclaimed == expiredBytes);
+		assertTrue(versionSet.size(SDB.LEVEL2) == 2);
+		assertFalse(versionSet.current().contains(SDB.LEVEL2, expired));
+
+		assertTrue(Level1Merger.findExpiredTable(versionSet, later, 0.9) == null);
+		assertTrue(Level1Merger.findExpiredTable(versionSet, later, 0.3) == halfExpired);
+		TestUtil.sleepQuietly(later - System.currentTimeMillis() + 10);
+		reclaimed = Level1Merger.rewriteExpiredTable(versionSet, halfExpired, testDir, (short)1, Long.MAX_VALUE, null,
+				SortedMapTableScanner.DEFAULT_READ_AHEAD_SIZE, true, FilterPolicy.DEFAULT, IndexType.PERFECT_HASH);
+		assertTrue(reclaimed > 0);
+		assertTrue(versionSet.size(SDB.LEVEL2) == 2);
+		assertFalse(versionSet.current().contains(SDB.LEVEL2, halfExpired));
+		int count = 0;
+		for(AbstractMapTable table : versionSet.current().getTables(SDB.LEVEL2)) {
+			count += table.getAppendedSize();
+			// the rewritten table is looked up through its perfect hash index
+			assertTrue((((AbstractSortedMapTable) table).getIndexType() == IndexType.PERFECT_HASH) == (table != live));
+		}
+		assertTrue(count == 1000 + 500);
+		for(int i = 1000; i < 2000; i++) {
+			GetResult result = null;
+			for(AbstractMapTable table : versionSet.current().getTables(SDB.LEVEL2)) {
+				result = table.get(("key" + i).getBytes());
+				if (result.isFound()) break;
+			}
+			assertTrue(result.isFound() == (i % 2 == 1));
+		}
+
+		for(AbstractMapTable table : versionSet.current().getTables(SDB.LEVEL2)) {
+			table.close();
+			table.delete();
+		}
+	}
+
+	// keys from start to end, expiring in 100ms with every key(mode 1), every other key(mode 2) or never(mode 3)
+	private static FCMapTable createLevel2Table(int start, int end, int mode, long now) throws IOException, ClassNotFoundException {
+		List<String> keyList = new ArrayList<String>();
+		for(int i = start; i < end; i++) {
+			keyList.add("key" + i);
+		}
+		FCMapTable table = new FCMapTable(testDir, (short)1, SDB.LEVEL2, System.nanoTime(), keyList.size());
+		sortKeysByHash(keyList);
+		for(String key : keyList) {
+			int i = Integer.parseInt(key.substring(3));
+			boolean expiring = mode == 1 || (mode == 2 && i % 2 == 0);
+			table.appendNew(key.getBytes(), Arrays.hashCode(key.getBytes()), "value".getBytes(),
+					expiring ? 100 : AbstractMapTable.NO_TIMEOUT, now, false, false);
+		}
+		table.reMap();
+		table.saveMetadata();
+		return table;
+	}
+
+	static MMFMapTable createSortedTable(List<String> keyList, String value, long createdTime) throws IOException, ClassNotFoundException {
+		sortKeysByHash(keyList);
+		MMFMapTable table = new MMFMapTable(testDir, SDB.LEVEL1, createdTime, keyList.size(), 4);
+		for(String key : keyList) {
+			table.appendNew(key.getBytes(), value.getBytes(), AbstractMapTable.NO_TIMEOUT);
+		}
+		return table;
+	}
+
+	private static void sortKeysByHash(List<String> keyList) {
+		Collections.sort(keyList, new Comparator<String>() {
+
+			@Override
+			public int compare(String arg0, String arg1) {
+				int hash0 = Arrays.hashCode(arg0.getBytes());
+				int hash1 = Arrays.hashCode(arg1.getBytes());
+				if (hash0 < hash1) return -1;
+				else if (hash0 > hash1) return 1;
+				else return 0;
+			}
+
+		});
+	}
+
+	static List<AbstractSortedMapTable> sortByKeyHash(AbstractMapTable[] level2Tables) {
+		List<AbstractSortedMapTable> tables = new ArrayList<AbstractSortedMapTable>();
+		for(AbstractMapTable table : level2Tables) {
+			tables.add((AbstractSortedMapTable) table);
+		}
+		Collections.sort(tables, new Comparator<AbstractSortedMapTable>() {
+
+			@Override
+			public int compare(AbstractSortedMapTable t1, AbstractSortedMapTable t2) {
+				return t1.getMinKeyHash() < t2.getMinKeyHash() ? -1 : (t1.getMinKeyHash() > t2.getMinKeyHash() ? 1 : 0);
+			}
+
+		});
+		return tables;
+	}
+
 }
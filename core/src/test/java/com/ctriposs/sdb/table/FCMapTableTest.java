@@ -6,6 +6,7 @@ import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -14,6 +15,7 @@ import java.util.List;
 
 import org.junit.After;
 import org.junit.Test;
+import org.xerial.snappy.Snappy;
 
 import com.ctriposs.sdb.table.FCMapTable;
 import com.ctriposs.sdb.table.GetResult;
@@ -101,6 +103,63 @@ public class FCMapTableTest {
 
 	}
 
+	@Test
+	public void testGetIntoBuffer() throws IOException, ClassNotFoundException {
+		long createdTime = System.nanoTime();
+		mapTable = new FCMapTable(testDir, 1, createdTime, 1000);
+
+		List<String> keyList = new ArrayList<String>();
+		for(int i = 0; i < 1000; i++) {
+			keyList.add("key" + i);
+		}
+		Collections.sort(keyList, new Comparator<String>() {
+
+			@Override
+			public int compare(String arg0, String arg1) {
+				int hash0 = Arrays.hashCode(arg0.getBytes());
+				int hash1 = Arrays.hashCode(arg1.getBytes());
+				if (hash0 < hash1) return -1;
+				else if (hash0 > hash1) return 1;
+				else return 0;
+			}
+
+		});
+
+		for(String key : keyList) {
+			int i = Integer.parseInt(key.substring(3));
+			byte[] value = ("value" + i).getBytes();
+			if (i % 3 == 0) { // deleted
+				mapTable.appendNew(key.getBytes(), Arrays.hashCode(key.getBytes()), new byte[] {0}, AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), true, false);
+			} else if (i % 3 == 1) { // compressed
+				mapTable.appendNew(key.getBytes(), Arrays.hashCode(key.getBytes()), Snappy.compress(value), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false, true);
+			} else {
+				mapTable.appendNew(key.getBytes(), Arrays.hashCode(key.getBytes()), value, AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false, false);
+			}
+		}
+
+		GetResult result = new GetResult();
+		ByteBuffer[] buffers = new ByteBuffer[] { ByteBuffer.allocate(64), ByteBuffer.allocateDirect(64) };
+		for(ByteBuffer dst : buffers) {
+			for(int i = 0; i < 1000; i++) {
+				dst.clear();
+				int length = mapTable.get(("key" + i).getBytes(), dst, result);
+				assertTrue(result.isFound());
+				if (i % 3 == 0) {
+					assertTrue(length == GetResult.DELETED);
+					assertTrue(result.isDeleted());
+				} else {
+					assertTrue(length == ("value" + i).length());
+					byte[] value = new byte[length];
+					dst.flip();
+					dst.get(value);
+					assertTrue(Arrays.equals(("value" + i).getBytes(), value));
+				}
+			}
+			assertTrue(mapTable.get("missing".getBytes(), dst, result) == GetResult.NOT_FOUND);
+			assertFalse(result.isFound());
+		}
+	}
+
 	@Test
 	public void testLoopAndReopen() throws IOException, ClassNotFoundException {
 		long createdTime = System.nanoTime();
@@ -188,6 +247,35 @@ public class FCMapTableTest {
 
 	}
 
+	@Test
+	public void testExpiryTime() throws IOException, ClassNotFoundException {
+		long createdTime = System.nanoTime();
+		mapTable = new FCMapTable(testDir, 2, createdTime, 1000);
+		long now = System.currentTimeMillis();
+		for(int i = 0; i < 100; i++) {
+			// expiring from now + 1000 to now + 100000
+			mapTable.appendNew(("key" + i).getBytes(), Arrays.hashCode(("key" + i).getBytes()), "value".getBytes(), (i + 1) * 1000, now, false, false);
+		}
+		assertTrue(mapTable.getMaxExpiryTime() == now + 100 * 1000);
+		assertFalse(mapTable.isAllExpired(now + 100 * 1000));
+		assertTrue(mapTable.isAllExpired(now + 100 * 1000 + 1));
+		assertTrue(mapTable.getEstimatedExpiredFraction(now) == 0);
+		assertTrue(Math.abs(mapTable.getEstimatedExpiredFraction(now + 50 * 1000) - 0.5) < 0.01);
+
+		// one entry never expires
+		mapTable.appendNew("forever".getBytes(), Arrays.hashCode("forever".getBytes()), "value".getBytes(), AbstractMapTable.NO_TIMEOUT, now, false, false);
+		assertTrue(mapTable.getMaxExpiryTime() == Long.MAX_VALUE);
+		assertFalse(mapTable.isAllExpired(now + 200 * 1000));
+		assertTrue(Math.abs(mapTable.getEstimatedExpiredFraction(now + 200 * 1000) - 100.0 / 101) < 0.01);
+
+		// recorded in the meta file
+		mapTable.saveMetadata();
+		mapTable.close();
+		mapTable = new FCMapTable(testDir, mapTable.getFileName());
+		assertTrue(mapTable.getMaxExpiryTime() == Long.MAX_VALUE);
+		assertTrue(Math.abs(mapTable.getEstimatedExpiredFraction(now + 50 * 1000) - 0.5 * 100 / 101) < 0.01);
+	}
+
 	@Test
 	public void operationAfterClosedTest() throws Exception {
 		long createdTime = System.nanoTime();
@@ -13,6 +13,7 @@ import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -134,6 +135,54 @@ public class HashMapTablePerfTest {
 		
 	}
 	
+	@Test
+	public void testConcurrentPutScalability() throws ExecutionException, InterruptedException, IOException {
+		final int COUNT = 100000;
+		final byte[][] keys = new byte[COUNT][];
+		for(int i = 0; i < COUNT; i++) keys[i] = ("user:" + i).getBytes();
+		final byte[] value = new byte[100];
+		
+		for(int threads = 1; threads <= 32; threads *= 2) {
+			map = new HashMapTable(testDir, 0, System.nanoTime());
+			map.setCompressionEnabled(false);
+			ExecutorService es = Executors.newFixedThreadPool(threads);
+			
+			long start = System.nanoTime();
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for(int t = 0; t < threads; t++) {
+				final int finalT = t;
+				final int nThreads = threads;
+				futures.add(es.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						for (int i = finalT; i < COUNT; i += nThreads) {
+							assertTrue(map.put(keys[i], value, AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false));
+						}
+						return null;
+					}
+					
+				}));
+			}
+			for (Future<?> future : futures)
+				future.get();
+			long time = System.nanoTime() - start;
+			es.shutdown();
+			
+			assertEquals(COUNT, map.getAppendedSize());
+			assertEquals(COUNT, map.getRealSize());
+			for(int i = 0; i < COUNT; i++) {
+				assertTrue(map.get(keys[i]).isFound());
+			}
+			System.out.printf("%2d threads put %,d K operations per second%n", threads,
+					(int) (COUNT * 1e6 / time));
+			
+			map.close();
+			map = null;
+			FileUtil.deleteDirectory(new File(testDir));
+		}
+	}
+	
 	public static class SampleValue implements Serializable {
 
 		private static final long serialVersionUID = 1L;
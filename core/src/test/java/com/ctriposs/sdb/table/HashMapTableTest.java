@@ -4,6 +4,9 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -20,10 +23,12 @@ import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.After;
 import org.junit.Test;
 
+import com.ctriposs.sdb.WriteBatch;
 import com.ctriposs.sdb.table.AbstractMapTable;
 import com.ctriposs.sdb.table.GetResult;
 import com.ctriposs.sdb.table.HashMapTable;
 import com.ctriposs.sdb.table.IMapEntry;
+import com.ctriposs.sdb.utils.BytesUtil;
 import com.ctriposs.sdb.utils.FileUtil;
 import com.ctriposs.sdb.utils.TestUtil;
 
@@ -155,6 +160,363 @@ public class HashMapTableTest {
 		}
 	}
 
+	@Test
+	public void testPutBatch() throws IOException {
+		long createdTime = System.nanoTime();
+		mapTable = new HashMapTable(testDir, 0, createdTime);
+
+		WriteBatch batch = new WriteBatch();
+		for(int i = 0; i < 100; i++) {
+			batch.put(("key" + i).getBytes(), ("value" + i).getBytes());
+		}
+		for(int i = 0; i < 100; i += 2) {
+			batch.delete(("key" + i).getBytes());
+		}
+		assertTrue(mapTable.put(batch.getEntries(), System.currentTimeMillis()));
+		assertTrue(mapTable.getAppendedSize() == 150);
+		assertTrue(mapTable.getRealSize() == 100);
+
+		for(int i = 0; i < 100; i++) {
+			GetResult result = mapTable.get(("key" + i).getBytes());
+			if (i % 2 == 0) {
+				assertTrue(result.isFound() && result.isDeleted());
+			} else {
+				assertTrue(result.isFound() && !result.isDeleted() && !result.isExpired());
+				assertTrue(Arrays.equals(("value" + i).getBytes(), result.getValue()));
+			}
+		}
+
+		// all or nothing
+		batch.clear();
+		int count = AbstractMapTable.INIT_INDEX_ITEMS_PER_TABLE - mapTable.getAppendedSize() + 1;
+		for(int i = 0; i < count; i++) {
+			batch.put(("overflow" + i).getBytes(), ("value" + i).getBytes());
+		}
+		assertFalse(mapTable.put(batch.getEntries(), System.currentTimeMillis()));
+		assertTrue(mapTable.getAppendedSize() == 150);
+		assertFalse(mapTable.get("overflow0".getBytes()).isFound());
+
+		batch.getEntries().remove(count - 1);
+		assertTrue(mapTable.put(batch.getEntries(), System.currentTimeMillis()));
+		assertTrue(mapTable.getAppendedSize() == AbstractMapTable.INIT_INDEX_ITEMS_PER_TABLE);
+		assertFalse(mapTable.put("key".getBytes(), "value".getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false));
+
+		mapTable.close();
+
+		// reload
+		mapTable = new HashMapTable(testDir, mapTable.getFileName());
+		assertTrue(mapTable.getAppendedSize() == AbstractMapTable.INIT_INDEX_ITEMS_PER_TABLE);
+		GetResult result = mapTable.get(("overflow" + (count - 2)).getBytes());
+		assertTrue(Arrays.equals(("value" + (count - 2)).getBytes(), result.getValue()));
+		result = mapTable.get("key1".getBytes());
+		assertTrue(Arrays.equals("value1".getBytes(), result.getValue()));
+	}
+
+	@Test
+	public void testCustomCapacity() throws IOException {
+		int maxEntries = 1000, dataFileSize = 1024 * 1024;
+		mapTable = new HashMapTable(testDir, (short)0, 0, System.nanoTime(), maxEntries, dataFileSize);
+		assertTrue(mapTable.getIndexItemsCapacity() == maxEntries);
+		assertTrue(mapTable.getDataFileCapacity() == dataFileSize);
+		assertTrue(mapTable.getBackFileSize() == HashMapTable.INDEX_ITEM_LENGTH * maxEntries + dataFileSize + HashMapTable.INDEX_ITEM_LENGTH);
+
+		// index overflow
+		for(int i = 0; i < maxEntries; i++) {
+			assertTrue(mapTable.put(("key" + i).getBytes(), ("value" + i).getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false));
+		}
+		assertFalse(mapTable.put("key".getBytes(), "value".getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false));
+		mapTable.close();
+
+		// capacity is recorded in meta, not assumed on load
+		mapTable = new HashMapTable(testDir, mapTable.getFileName());
+		assertTrue(mapTable.getIndexItemsCapacity() == maxEntries);
+		assertTrue(mapTable.getDataFileCapacity() == dataFileSize);
+		assertTrue(mapTable.getAppendedSize() == maxEntries);
+		assertFalse(mapTable.put("key".getBytes(), "value".getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false));
+		assertTrue(Arrays.equals("value1".getBytes(), mapTable.get("key1".getBytes()).getValue()));
+		mapTable.close();
+
+		// data overflow
+		mapTable = new HashMapTable(testDir, (short)0, 0, System.nanoTime(), maxEntries, dataFileSize);
+		mapTable.setCompressionEnabled(false);
+		byte[] value = new byte[100 * 1024];
+		int count = 0;
+		while(mapTable.put(("key" + count).getBytes(), value, AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false)) {
+			count++;
+		}
+		assertTrue(count == 10);
+		assertTrue(mapTable.getAppendedDataSize() <= dataFileSize);
+	}
+
+	@Test
+	public void testSyncPut() throws Exception {
+		mapTable = new HashMapTable(testDir, 0, System.nanoTime());
+		mapTable.setSyncEnabled(true);
+
+		// concurrent writers share forces
+		final int count = 200, threads = 8;
+		ExecutorService es = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for(int t = 0; t < threads; t++) {
+			final int finalT = t;
+			futures.add(es.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						for(int i = finalT; i < count * threads; i += threads) {
+							assertTrue(mapTable.put(("key" + i).getBytes(), ("value" + i).getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false));
+						}
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+
+			}));
+		}
+		for(Future<?> future : futures) {
+			future.get();
+		}
+		es.shutdown();
+
+		WriteBatch batch = new WriteBatch();
+		batch.put("batch".getBytes(), "value".getBytes());
+		assertTrue(mapTable.put(batch.getEntries(), System.currentTimeMillis()));
+		mapTable.close();
+
+		mapTable = new HashMapTable(testDir, mapTable.getFileName());
+		assertTrue(mapTable.getAppendedSize() == count * threads + 1);
+		for(int i = 0; i < count * threads; i++) {
+			assertTrue(Arrays.equals(("value" + i).getBytes(), mapTable.get(("key" + i).getBytes()).getValue()));
+		}
+		// nothing appended, no force
+		mapTable.sync();
+	}
+
+	@Test
+	public void testSyncWithUnfinishedWriter() throws IOException {
+		mapTable = new HashMapTable(testDir, 0, System.nanoTime());
+		mapTable.setCompressionEnabled(false);
+		mapTable.setSyncEnabled(true);
+
+		// a writer has reserved its space and is still copying while another writer forces
+		byte[] key = "unfinished".getBytes();
+		byte[] value = "value".getBytes();
+		long reserved = mapTable.reserve(1, key.length + value.length);
+		assertTrue(mapTable.put("finished".getBytes(), "value".getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false));
+		assertTrue(mapTable.getForcedEntries() == 1);
+
+		// its own force is not skipped
+		mapTable.appendReserved(reserved, key, Arrays.hashCode(key), value, AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false, false);
+		assertTrue(mapTable.getForcedEntries() == 2);
+		assertTrue(Arrays.equals(value, mapTable.get(key).getValue()));
+	}
+
+	@Test
+	public void testSealWithUnfinishedWriter() throws IOException {
+		mapTable = new HashMapTable(testDir, 0, System.nanoTime());
+		mapTable.setCompressionEnabled(false);
+		assertTrue(mapTable.put("first".getBytes(), "value".getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false));
+		assertTrue(mapTable.isWriteCompleted());
+
+		// a writer still copying when the table is switched off
+		byte[] key = "unfinished".getBytes();
+		byte[] value = "value".getBytes();
+		long reserved = mapTable.reserve(1, key.length + value.length);
+		mapTable.markImmutable(true);
+		assertFalse(mapTable.isWriteCompleted());
+
+		// no more space is taken in a sealed table
+		assertFalse(mapTable.put("late".getBytes(), "value".getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false));
+		List<WriteBatch.Entry> entries = new WriteBatch().put("late".getBytes(), "value".getBytes()).getEntries();
+		assertFalse(mapTable.put(entries, System.currentTimeMillis()));
+		assertTrue(mapTable.getAppendedSize() == 2);
+
+		mapTable.appendReserved(reserved, key, Arrays.hashCode(key), value, AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false, false);
+		assertTrue(mapTable.isWriteCompleted());
+		assertTrue(mapTable.getSortedEntries().length == 2);
+	}
+
+	@Test
+	public void testReloadWithUnfinishedWriter() throws IOException {
+		mapTable = new HashMapTable(testDir, 0, System.nanoTime());
+		mapTable.setCompressionEnabled(false);
+		assertTrue(mapTable.put("first".getBytes(), "value".getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false));
+
+		// a writer reserves item 1 and dies before writing it, the writer of item 2 completes
+		mapTable.reserve(1, "unfinished".length() + "value".length());
+		assertTrue(mapTable.put("finished".getBytes(), "value".getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false));
+		long dataSize = mapTable.getAppendedDataSize();
+		mapTable.close();
+
+		mapTable = new HashMapTable(testDir, mapTable.getFileName());
+		mapTable.setCompressionEnabled(false);
+		assertTrue(mapTable.getAppendedSize() == 3);
+		assertTrue(mapTable.getAppendedDataSize() == dataSize);
+		assertTrue(mapTable.getRealSize() == 2);
+		assertTrue(Arrays.equals("value".getBytes(), mapTable.get("first".getBytes()).getValue()));
+		assertTrue(Arrays.equals("value".getBytes(), mapTable.get("finished".getBytes()).getValue()));
+		assertFalse(mapTable.get("unfinished".getBytes()).isFound());
+
+		// new appends go past the completed item
+		assertTrue(mapTable.put("next".getBytes(), "next value".getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false));
+		assertTrue(Arrays.equals("value".getBytes(), mapTable.get("finished".getBytes()).getValue()));
+		assertTrue(Arrays.equals("next value".getBytes(), mapTable.get("next".getBytes()).getValue()));
+		assertTrue(mapTable.getAppendedSize() == 4);
+	}
+
+	@Test
+	public void testSortedEntries() throws IOException {
+		mapTable = new HashMapTable(testDir, 0, System.nanoTime());
+		mapTable.setCompressionEnabled(false);
+		int count = 20000;
+		Set<String> keys = new HashSet<String>();
+		for(int i = 0; i < count; i++) {
+			String key = TestUtil.randomString(8);
+			keys.add(key);
+			mapTable.put(key.getBytes(), ("value" + i).getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis());
+		}
+		// keys sharing a key hash, and overwritten keys
+		String[] collisions = { "BBBB", "AaAa", "BBAa", "AaBB" };
+		for(String key : collisions) {
+			keys.add(key);
+			mapTable.put(key.getBytes(), key.getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis());
+			mapTable.put(key.getBytes(), key.getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis());
+		}
+
+		long[] sortedEntries = mapTable.getSortedEntries();
+		assertTrue(sortedEntries.length == keys.size());
+		Set<String> sortedKeys = new HashSet<String>();
+		byte[] lastKey = null;
+		int lastKeyHash = Integer.MIN_VALUE;
+		for(long sortedEntry : sortedEntries) {
+			IMapEntry mapEntry = mapTable.getMapEntry(HashMapTable.getSortedIndex(sortedEntry));
+			byte[] key = mapEntry.getKey();
+			int keyHash = HashMapTable.getSortedKeyHash(sortedEntry);
+			assertTrue(keyHash == mapEntry.getKeyHash());
+			assertTrue(keyHash > lastKeyHash || (keyHash == lastKeyHash && (lastKey == null || BytesUtil.compare(lastKey, key) < 0)));
+			// the latest entry of the key
+			assertTrue(mapTable.get(key).getTimeToLive() == mapEntry.getTimeToLive());
+			assertTrue(Arrays.equals(mapTable.get(key).getValue(), mapEntry.getValue()));
+			sortedKeys.add(new String(key));
+			lastKey = key;
+			lastKeyHash = keyHash;
+		}
+		assertTrue(sortedKeys.equals(keys));
+	}
+
+	@Test
+	public void testHashIndexSnapshot() throws IOException {
+		mapTable = new HashMapTable(testDir, 0, System.nanoTime());
+		mapTable.setCompressionEnabled(false);
+		int count = 1000;
+		for(int i = 0; i < count; i++) {
+			mapTable.put(("key" + i).getBytes(), ("value" + i).getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis());
+		}
+		// duplicated keys and tombstones
+		for(int i = 0; i < count; i += 10) {
+			mapTable.put(("key" + i).getBytes(), ("new" + i).getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis());
+		}
+		mapTable.delete("key1".getBytes());
+
+		// not saved while a writer has not put its entry in the hash index
+		byte[] key = "unfinished".getBytes();
+		long reserved = mapTable.reserve(1, key.length * 2);
+		assertFalse(mapTable.saveHashIndexSnapshot());
+		mapTable.appendReserved(reserved, key, Arrays.hashCode(key), key, AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false, false);
+		int appendedSize = mapTable.getAppendedSize();
+		long appendedDataSize = mapTable.getAppendedDataSize();
+		assertTrue(mapTable.saveHashIndexSnapshot());
+		File snapshotFile = new File(testDir, mapTable.getFileName() + HashMapTable.HASH_INDEX_SNAPSHOT_FILE_SUFFIX);
+		assertTrue(snapshotFile.exists());
+		mapTable.close();
+
+		// loaded from the snapshot
+		mapTable = new HashMapTable(testDir, mapTable.getFileName());
+		assertTrue(mapTable.getAppendedSize() == appendedSize);
+		assertTrue(mapTable.getAppendedDataSize() == appendedDataSize);
+		assertTrue(mapTable.getRealSize() == count + 1);
+		assertTrue(Arrays.equals(key, mapTable.get(key).getValue()));
+		for(int i = 0; i < count; i++) {
+			GetResult result = mapTable.get(("key" + i).getBytes());
+			if (i == 1) {
+				assertTrue(result.isDeleted());
+			} else {
+				assertTrue(Arrays.equals(((i % 10 == 0 ? "new" : "value") + i).getBytes(), result.getValue()));
+			}
+		}
+
+		// appended after the snapshot, the stale snapshot is ignored
+		mapTable.put("late".getBytes(), "value".getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis());
+		mapTable.put("key2".getBytes(), "late".getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis());
+		mapTable.close();
+		mapTable = new HashMapTable(testDir, mapTable.getFileName());
+		assertTrue(mapTable.getAppendedSize() == appendedSize + 2);
+		assertTrue(mapTable.getRealSize() == count + 2);
+		assertTrue(Arrays.equals("value".getBytes(), mapTable.get("late".getBytes()).getValue()));
+		assertTrue(Arrays.equals("late".getBytes(), mapTable.get("key2".getBytes()).getValue()));
+
+		// a corrupted snapshot is ignored too
+		assertTrue(mapTable.saveHashIndexSnapshot());
+		mapTable.close();
+		RandomAccessFile raf = new RandomAccessFile(snapshotFile, "rw");
+		raf.setLength(snapshotFile.length() / 2);
+		raf.close();
+		mapTable = new HashMapTable(testDir, mapTable.getFileName());
+		assertTrue(mapTable.getRealSize() == count + 2);
+		assertTrue(Arrays.equals("value".getBytes(), mapTable.get("late".getBytes()).getValue()));
+
+		mapTable.close();
+		mapTable.delete();
+		assertFalse(snapshotFile.exists());
+		mapTable = null;
+	}
+
+	@Test
+	public void testGetIntoBuffer() throws IOException {
+		long createdTime = System.nanoTime();
+		mapTable = new HashMapTable(testDir, 0, createdTime);
+		mapTable.setCompressionEnabled(true);
+
+		for(int i = 0; i < 100; i++) {
+			mapTable.put(("key" + i).getBytes(), ("value" + i).getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis());
+		}
+		mapTable.put("expired".getBytes(), "value".getBytes(), 1, System.currentTimeMillis() - 1000);
+		mapTable.delete("key0".getBytes());
+
+		GetResult result = new GetResult();
+		ByteBuffer[] buffers = new ByteBuffer[] { ByteBuffer.allocate(64), ByteBuffer.allocateDirect(64) };
+		for(ByteBuffer dst : buffers) {
+			for(int i = 1; i < 100; i++) {
+				dst.clear();
+				int length = mapTable.get(("key" + i).getBytes(), dst, result);
+				assertTrue(result.isFound() && !result.isDeleted() && !result.isExpired());
+				assertTrue(length == ("value" + i).length());
+				assertTrue(dst.position() == length);
+				byte[] value = new byte[length];
+				dst.flip();
+				dst.get(value);
+				assertTrue(Arrays.equals(("value" + i).getBytes(), value));
+			}
+
+			dst.clear();
+			assertTrue(mapTable.get("key0".getBytes(), dst, result) == GetResult.DELETED);
+			assertTrue(result.isFound() && result.isDeleted());
+			assertTrue(mapTable.get("expired".getBytes(), dst, result) == GetResult.EXPIRED);
+			assertTrue(result.isFound() && result.isExpired());
+			assertTrue(mapTable.get("missing".getBytes(), dst, result) == GetResult.NOT_FOUND);
+			assertFalse(result.isFound());
+			assertTrue(dst.position() == 0);
+		}
+
+		try {
+			mapTable.get("key1".getBytes(), ByteBuffer.allocate(2), result);
+			fail();
+		} catch (BufferOverflowException boe) {
+
+		}
+	}
+
 	@Test
 	public void testLoop() throws IOException {
 		long createdTime = System.nanoTime();
@@ -338,12 +700,6 @@ public class HashMapTableTest {
 		} catch (IllegalStateException e) {
 		}
 
-		try {
-			mapTable.getEntrySet();
-			fail("Should not get here after the SDB is closed.");
-		} catch (IllegalStateException e) {
-		}
-
 		try {
 			mapTable.put(testKey, testValue, 1000, System.currentTimeMillis());
 			fail("Should not get here after the SDB is closed.");
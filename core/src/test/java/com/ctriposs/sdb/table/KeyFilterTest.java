@@ -0,0 +1,91 @@
+package com.ctriposs.sdb.table;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class KeyFilterTest {
+
+	@Test
+	public void testBlockedBloomFilter() throws IOException {
+		for(double bitsPerKey : new double[] { 4, 10, 14.5, 20 }) {
+			this.verify(FilterPolicy.blockedBloom(bitsPerKey), 100000);
+		}
+		this.verify(FilterPolicy.blockedBloom(10), 1);
+	}
+
+	@Test
+	public void testXorFilter() throws IOException {
+		this.verify(FilterPolicy.xor(8), 100000);
+		this.verify(FilterPolicy.xor(16), 100000);
+		this.verify(FilterPolicy.xor(8), 1);
+		this.verify(FilterPolicy.xor(16), 0);
+
+		// duplicate hashes are kept once
+		long[] hashes = { 1, 2, 2, 3, 3, 3 };
+		KeyFilter filter = KeyFilter.read(FilterPolicy.xor(8).build(hashes, hashes.length), "test");
+		for(long hash : hashes) {
+			assertTrue(filter.mightContain(hash));
+		}
+	}
+
+	@Test
+	public void testNoFilter() throws IOException {
+		KeyFilter filter = KeyFilter.read(FilterPolicy.none().build(new long[0], 0), "test");
+		assertTrue(filter.mightContain(KeyFilter.hash("key".getBytes())));
+	}
+
+	@Test
+	public void testCorrupted() {
+		ByteBuffer block = FilterPolicy.blockedBloom(10).build(new long[] { 1, 2, 3 }, 3);
+		ByteBuffer truncated = block.duplicate();
+		truncated.limit(block.limit() - 1);
+		try {
+			KeyFilter.read(truncated.slice(), "test");
+			fail();
+		} catch (IOException ioe) {
+
+		}
+
+		block.putInt(KeyFilter.HEADER_TYPE, 100);
+		try {
+			KeyFilter.read(block, "test");
+			fail();
+		} catch (IOException ioe) {
+
+		}
+	}
+
+	// no false negatives, false positives and size about as projected
+	private void verify(FilterPolicy policy, int count) throws IOException {
+		Random random = new Random(17);
+		long[] hashes = new long[count];
+		for(int i = 0; i < count; i++) {
+			hashes[i] = KeyFilter.hash(("key" + random.nextLong()).getBytes());
+		}
+		KeyFilter filter = KeyFilter.read(policy.build(hashes, count), "test");
+		for(int i = 0; i < count; i++) {
+			assertTrue(filter.mightContain(hashes[i]));
+		}
+		if (count < 1000) return;
+
+		assertTrue(filter.getSizeInBytes() <= policy.getBitsPerKey() * count / 8 + 1024);
+		assertEquals(policy.getFalsePositiveRate(), filter.getFalsePositiveRate(count), policy.getFalsePositiveRate() * 0.05);
+		int lookups = 1000000;
+		int falsePositives = 0;
+		for(int i = 0; i < lookups; i++) {
+			if (filter.mightContain(KeyFilter.hash(("missing" + i).getBytes()))) falsePositives++;
+		}
+		double rate = (double) falsePositives / lookups;
+		double projected = policy.getFalsePositiveRate();
+		assertTrue(policy + " " + rate + " " + projected, rate <= projected * 1.3 + 0.00005);
+		assertTrue(policy + " " + rate + " " + projected, rate >= projected * 0.7 - 0.00005);
+	}
+
+}
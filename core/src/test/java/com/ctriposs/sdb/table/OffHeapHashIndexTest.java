@@ -0,0 +1,112 @@
+package com.ctriposs.sdb.table;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.ctriposs.sdb.utils.FileUtil;
+import com.ctriposs.sdb.utils.TestUtil;
+
+public class OffHeapHashIndexTest {
+
+	private static String testDir = TestUtil.TEST_BASE_DIR + "sdb/unit/off_heap_hash_index_test";
+
+	private HashMapTable mapTable;
+	private OffHeapHashIndex index;
+
+	@Test
+	public void testCollisions() throws IOException {
+		mapTable = new HashMapTable(testDir, 0, System.nanoTime());
+		index = new OffHeapHashIndex(mapTable, 8);
+		assertTrue(index.getSlotCount() == 16);
+
+		// keys sharing one hash probe past each other
+		int count = 12;
+		for(int i = 0; i < count; i++) {
+			byte[] key = ("key" + i).getBytes();
+			mapTable.appendNew(key, ("value" + i).getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis());
+			index.put(key, 7, i);
+		}
+		assertTrue(index.size() == count);
+		for(int i = 0; i < count; i++) {
+			assertTrue(index.get(("key" + i).getBytes(), 7) == i);
+		}
+		assertTrue(index.get("key".getBytes(), 7) == -1);
+		assertTrue(index.get(("key" + 0).getBytes(), 8) == -1);
+
+		// "Aa" and "BB" share their real hash too
+		byte[] aa = "Aa".getBytes();
+		byte[] bb = "BB".getBytes();
+		assertTrue(Arrays.hashCode(aa) == Arrays.hashCode(bb));
+		mapTable.appendNew(aa, "aa".getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis());
+		mapTable.appendNew(bb, "bb".getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis());
+		index.put(aa, Arrays.hashCode(aa), count);
+		index.put(bb, Arrays.hashCode(bb), count + 1);
+		assertTrue(index.get(aa, Arrays.hashCode(aa)) == count);
+		assertTrue(index.get(bb, Arrays.hashCode(bb)) == count + 1);
+
+		Set<Integer> indexes = new HashSet<Integer>();
+		for(int i : index.getIndexes()) {
+			indexes.add(i);
+		}
+		assertTrue(indexes.size() == count + 2);
+	}
+
+	@Test
+	public void testOverwrite() throws IOException {
+		mapTable = new HashMapTable(testDir, 0, System.nanoTime());
+		index = new OffHeapHashIndex(mapTable, 16);
+
+		byte[] key = "key".getBytes();
+		for(int i = 0; i < 3; i++) {
+			mapTable.appendNew(key, ("value" + i).getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis());
+		}
+		int keyHash = Arrays.hashCode(key);
+		index.put(key, keyHash, 1);
+		assertTrue(index.get(key, keyHash) == 1);
+		// the newer index item wins, an older one never replaces it
+		index.put(key, keyHash, 2);
+		assertTrue(index.get(key, keyHash) == 2);
+		index.put(key, keyHash, 0);
+		assertTrue(index.get(key, keyHash) == 2);
+		index.put(keyHash, 1);
+		assertTrue(index.get(key, keyHash) == 2);
+		assertTrue(index.size() == 1);
+
+		index.clear();
+		assertTrue(index.size() == 0);
+		assertTrue(index.get(key, keyHash) == -1);
+	}
+
+	@Test
+	public void testFree() throws IOException {
+		mapTable = new HashMapTable(testDir, 0, System.nanoTime());
+		index = new OffHeapHashIndex(mapTable, 1000);
+		assertTrue(index.getCapacityInBytes() == 2048 * 8);
+
+		byte[] key = "key".getBytes();
+		mapTable.appendNew(key, "value".getBytes(), AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis());
+		index.put(key, Arrays.hashCode(key), 0);
+		index.free();
+		// freeing twice is harmless
+		index.free();
+	}
+
+	@After
+	public void clear() throws IOException {
+		if (index != null) {
+			index.free();
+		}
+		if (mapTable != null) {
+			mapTable.close();
+		}
+		FileUtil.deleteDirectory(new File(testDir));
+	}
+}
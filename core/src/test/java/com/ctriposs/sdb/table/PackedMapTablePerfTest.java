@@ -0,0 +1,162 @@
+package com.ctriposs.sdb.table;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.ctriposs.sdb.utils.FileUtil;
+import com.ctriposs.sdb.utils.TestUtil;
+
+public class PackedMapTablePerfTest {
+
+	private static String testDir = TestUtil.TEST_BASE_DIR + "sdb/unit/packed_map_table_perf_test";
+
+	private PackedMapTable mapTable;
+	private PackedMapTable hashIndexedTable;
+
+	@Test
+	public void testLookup() throws IOException, ClassNotFoundException {
+		int count = 1000000;
+		byte[][] keys = sortedKeys("user:", count);
+		mapTable = build(keys, AbstractSortedMapTable.IndexType.SORTED);
+		String fileName = mapTable.getFileName();
+
+		// lookups in random order
+		Collections.shuffle(Arrays.asList(keys), new Random(3));
+		for(boolean directory : new boolean[] { false, true, false, true }) {
+			AbstractSortedMapTable.hashDirectoryEnabled = directory;
+			try {
+				mapTable.close();
+				// a fresh mapping, pages of the file still in the OS page cache are only mapped in again
+				mapTable = new PackedMapTable(testDir, fileName);
+				assertTrue(mapTable.hasHashDirectory() == directory);
+				String search = directory ? "hash directory" : "block index";
+				System.out.printf("Lookup by %s, first pass %,d K lookups per second%n", search, lookup(mapTable, keys) / 1000);
+				System.out.printf("Lookup by %s, warm %,d K lookups per second%n", search, lookup(mapTable, keys) / 1000);
+				System.out.printf("Key hash search by %s, warm %,d K searches per second%n", search, search(mapTable, keys) / 1000);
+			} finally {
+				AbstractSortedMapTable.hashDirectoryEnabled = true;
+			}
+		}
+	}
+
+	@Test
+	public void testPerfectHashIndex() throws IOException, ClassNotFoundException {
+		int count = 1000000;
+		byte[][] keys = sortedKeys("user:", count);
+		mapTable = build(keys, AbstractSortedMapTable.IndexType.SORTED);
+		hashIndexedTable = build(keys, AbstractSortedMapTable.IndexType.PERFECT_HASH);
+		assertTrue(hashIndexedTable.getIndexType() == AbstractSortedMapTable.IndexType.PERFECT_HASH);
+		System.out.printf("Perfect hash index of %,d keys, %.2f bits per key%n", count, hashIndexedTable.getHashIndexSize() * 8.0d / count);
+
+		// present keys in random order, and missing keys let through by the filter or not
+		Collections.shuffle(Arrays.asList(keys), new Random(5));
+		byte[][] missingKeys = sortedKeys("missing:", count);
+		Collections.shuffle(Arrays.asList(missingKeys), new Random(7));
+		for(int round = 0; round < 2; round++) {
+			System.out.printf("Get by hash directory, %.1f ns per hit, %.1f ns per miss%n", get(mapTable, keys, true), get(mapTable, missingKeys, false));
+			System.out.printf("Get by perfect hash index, %.1f ns per hit, %.1f ns per miss%n",
+					get(hashIndexedTable, keys, true), get(hashIndexedTable, missingKeys, false));
+		}
+	}
+
+	// keys sorted by key hash
+	private static byte[][] sortedKeys(String prefix, int count) {
+		byte[][] keys = new byte[count][];
+		for(int i = 0; i < count; i++) {
+			keys[i] = (prefix + i).getBytes();
+		}
+		Arrays.sort(keys, new Comparator<byte[]>() {
+
+			@Override
+			public int compare(byte[] k1, byte[] k2) {
+				int h1 = Arrays.hashCode(k1), h2 = Arrays.hashCode(k2);
+				return h1 < h2 ? -1 : (h1 > h2 ? 1 : 0);
+			}
+
+		});
+		return keys;
+	}
+
+	private static PackedMapTable build(byte[][] keys, AbstractSortedMapTable.IndexType indexType) throws IOException, ClassNotFoundException {
+		PackedMapTable table = new PackedMapTable(testDir, (short)1, 2, System.nanoTime(), keys.length, 32L * keys.length,
+				FilterPolicy.DEFAULT, indexType);
+		SortedMapTableBuilder builder = new SortedMapTableBuilder(SortedMapTableBuilder.DEFAULT_BUFFER_SIZE);
+		builder.open(table);
+		byte[] value = new byte[8];
+		for(byte[] key : keys) {
+			builder.append(key, Arrays.hashCode(key), value, AbstractMapTable.NO_TIMEOUT, System.currentTimeMillis(), false, false);
+		}
+		builder.finish();
+		table.reMap();
+		table.markUsable(true);
+		return table;
+	}
+
+	// nanoseconds per get, the hashes of the keys are computed once by the caller as for the levels of a shard
+	private static double get(PackedMapTable table, byte[][] keys, boolean found) throws IOException {
+		int[] keyHashes = new int[keys.length];
+		long[] filterHashes = new long[keys.length];
+		for(int i = 0; i < keys.length; i++) {
+			keyHashes[i] = Arrays.hashCode(keys[i]);
+			filterHashes[i] = KeyFilter.hash(keys[i]);
+		}
+		ByteBuffer dst = ByteBuffer.allocate(64);
+		GetResult result = new GetResult();
+		long start = System.nanoTime();
+		for(int i = 0; i < keys.length; i++) {
+			dst.clear();
+			table.get(keys[i], keyHashes[i], filterHashes[i], dst, result);
+			assertTrue(result.isFound() == found);
+		}
+		return (double) (System.nanoTime() - start) / keys.length;
+	}
+
+	// lookups per second
+	private static long lookup(PackedMapTable table, byte[][] keys) throws IOException {
+		long start = System.nanoTime();
+		for(byte[] key : keys) {
+			assertTrue(table.indexOfKeyHash(Arrays.hashCode(key)) < keys.length);
+			assertTrue(table.get(key).isFound());
+		}
+		return (long) (keys.length * 1e9 / (System.nanoTime() - start));
+	}
+
+	// key hash searches per second
+	private static long search(PackedMapTable table, byte[][] keys) {
+		int[] keyHashes = new int[keys.length];
+		for(int i = 0; i < keys.length; i++) {
+			keyHashes[i] = Arrays.hashCode(keys[i]);
+		}
+		long start = System.nanoTime();
+		long sum = 0;
+		for(int round = 0; round < 5; round++) {
+			for(int keyHash : keyHashes) {
+				sum += table.indexOfKeyHash(keyHash);
+			}
+		}
+		assertTrue(sum > 0);
+		return (long) (keys.length * 5 * 1e9 / (System.nanoTime() - start));
+	}
+
+	@After
+	public void clear() throws IOException {
+		if (mapTable != null) {
+			mapTable.close();
+		}
+		if (hashIndexedTable != null) {
+			hashIndexedTable.close();
+		}
+		FileUtil.deleteDirectory(new File(testDir));
+	}
+
+}
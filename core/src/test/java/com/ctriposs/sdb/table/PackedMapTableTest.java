@@ -0,0 +1,380 @@
+package com.ctriposs.sdb.table;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.ctriposs.sdb.utils.FileUtil;
+import com.ctriposs.sdb.utils.TestUtil;
+
+public class PackedMapTableTest {
+
+	private static String testDir = TestUtil.TEST_BASE_DIR + "sdb/unit/packed_map_table_test";
+
+	private PackedMapTable mapTable;
+	private List<byte[]> keys = new ArrayList<byte[]>();
+	private List<byte[]> values = new ArrayList<byte[]>();
+	private long createdTime = System.currentTimeMillis();
+
+	@Test
+	public void testBuildAndLoad() throws IOException, ClassNotFoundException {
+		int count = 5000;
+		mapTable = this.build(count);
+		mapTable.markUsable(true);
+		mapTable.saveMetadata();
+
+		// a single file
+		String[] files = new File(testDir).list();
+		assertTrue(files.length == 1);
+		assertTrue(files[0].equals(mapTable.getFileName() + PackedMapTable.TABLE_FILE_SUFFIX));
+		assertTrue(mapTable.getFormatVersion() == PackedMapTable.FORMAT_VERSION);
+		this.verify(mapTable, count);
+
+		mapTable.close();
+		mapTable = new PackedMapTable(testDir, mapTable.getFileName());
+		assertTrue(mapTable.isUsable());
+		assertTrue(mapTable.getFormatVersion() == PackedMapTable.FORMAT_VERSION);
+		this.verify(mapTable, count);
+
+		// too big to be mapped at once, key/values are read from the file
+		long maxMappedFileSize = PackedMapTable.maxMappedFileSize;
+		PackedMapTable.maxMappedFileSize = 1024;
+		try {
+			mapTable.close();
+			mapTable = new PackedMapTable(testDir, mapTable.getFileName());
+			this.verify(mapTable, count);
+		} finally {
+			PackedMapTable.maxMappedFileSize = maxMappedFileSize;
+		}
+	}
+
+	@Test
+	public void testFilterPolicies() throws IOException, ClassNotFoundException {
+		int count = 5000;
+		FilterPolicy[] policies = { FilterPolicy.blockedBloom(10), FilterPolicy.xor(8), FilterPolicy.xor(16), FilterPolicy.none() };
+		for(FilterPolicy policy : policies) {
+			mapTable = this.build(count, policy);
+			mapTable.markUsable(true);
+			this.verify(mapTable, count);
+			assertTrue(mapTable.getFilterSize() < (policy.getBitsPerKey() + 1) * count / 8 + 1024);
+
+			mapTable.close();
+			mapTable = new PackedMapTable(testDir, mapTable.getFileName());
+			this.verify(mapTable, count);
+
+			// missing keys sharing key hashes with the keys, every lookup is either ruled out or a false positive
+			long negatives = mapTable.getFilterRejects() + mapTable.getFilterFalsePositives();
+			int lookups = count / 2;
+			for(int i = 0; i < lookups; i++) {
+				assertFalse(mapTable.get(("C#" + i).getBytes()).isFound());
+			}
+			negatives = mapTable.getFilterRejects() + mapTable.getFilterFalsePositives() - negatives;
+			assertTrue(negatives == lookups);
+			assertTrue(mapTable.getFilterFalsePositives() <= lookups * policy.getFalsePositiveRate() * 2 + 10);
+
+			// the filter is mapped with the index of a file too big to be mapped at once
+			long maxMappedFileSize = PackedMapTable.maxMappedFileSize;
+			PackedMapTable.maxMappedFileSize = 1024;
+			try {
+				mapTable.close();
+				mapTable = new PackedMapTable(testDir, mapTable.getFileName());
+				this.verify(mapTable, count);
+			} finally {
+				PackedMapTable.maxMappedFileSize = maxMappedFileSize;
+			}
+			mapTable.close();
+			mapTable.delete();
+			mapTable = null;
+		}
+	}
+
+	@Test
+	public void testPerfectHashIndex() throws IOException, ClassNotFoundException {
+		int count = 5000;
+		// the index is built from the key hashes of the filter, or without a filter
+		for(FilterPolicy policy : new FilterPolicy[] { FilterPolicy.DEFAULT, FilterPolicy.none() }) {
+			mapTable = this.build(count, policy, AbstractSortedMapTable.IndexType.PERFECT_HASH);
+			mapTable.markUsable(true);
+			assertTrue(mapTable.getIndexType() == AbstractSortedMapTable.IndexType.PERFECT_HASH);
+			assertTrue(mapTable.getHashIndexSize() > 0 && mapTable.getHashIndexSize() < 4L * count);
+			this.verify(mapTable, count);
+
+			mapTable.close();
+			mapTable = new PackedMapTable(testDir, mapTable.getFileName());
+			assertTrue(mapTable.getIndexType() == AbstractSortedMapTable.IndexType.PERFECT_HASH);
+			assertTrue(mapTable.getFormatVersion() == PackedMapTable.FORMAT_VERSION);
+			this.verify(mapTable, count);
+
+			// missing keys sharing key hashes with the keys get a slot of another key
+			for(int i = 0; i < count / 2; i++) {
+				assertFalse(mapTable.get(("C#" + i).getBytes()).isFound());
+			}
+
+			// the index is mapped with the index items of a file too big to be mapped at once
+			long maxMappedFileSize = PackedMapTable.maxMappedFileSize;
+			PackedMapTable.maxMappedFileSize = 1024;
+			try {
+				mapTable.close();
+				mapTable = new PackedMapTable(testDir, mapTable.getFileName());
+				assertTrue(mapTable.getIndexType() == AbstractSortedMapTable.IndexType.PERFECT_HASH);
+				this.verify(mapTable, count);
+			} finally {
+				PackedMapTable.maxMappedFileSize = maxMappedFileSize;
+			}
+			mapTable.close();
+			mapTable.delete();
+			mapTable = null;
+		}
+
+		// searched by key hash without the index
+		mapTable = this.build(count);
+		assertTrue(mapTable.getIndexType() == AbstractSortedMapTable.IndexType.SORTED);
+		assertTrue(mapTable.getHashIndexSize() == 0);
+	}
+
+	@Test
+	public void testHashDirectory() throws IOException, ClassNotFoundException {
+		// random key hashes, and a run of a single key hash
+		int count = 20000;
+		Random random = new Random(11);
+		int[] keyHashes = new int[count];
+		for(int i = 0; i < count; i++) {
+			keyHashes[i] = i < 1000 ? 12345 : random.nextInt();
+		}
+		keyHashes[1000] = Integer.MIN_VALUE;
+		keyHashes[1001] = Integer.MAX_VALUE;
+		Arrays.sort(keyHashes);
+		mapTable = new PackedMapTable(testDir, (short)1, 2, System.nanoTime(), count, 1024 * 1024);
+		SortedMapTableBuilder builder = new SortedMapTableBuilder(4096);
+		builder.open(mapTable);
+		for(int i = 0; i < count; i++) {
+			byte[] key = ("key" + i).getBytes();
+			builder.append(key, keyHashes[i], key, AbstractMapTable.NO_TIMEOUT, createdTime, false, false);
+		}
+		builder.finish();
+		mapTable.reMap();
+		assertTrue(mapTable.hasHashDirectory());
+		this.verifyKeyHashes(mapTable, keyHashes);
+
+		mapTable.close();
+		mapTable = new PackedMapTable(testDir, mapTable.getFileName());
+		assertTrue(mapTable.hasHashDirectory());
+		this.verifyKeyHashes(mapTable, keyHashes);
+
+		AbstractSortedMapTable.hashDirectoryEnabled = false;
+		try {
+			mapTable.close();
+			mapTable = new PackedMapTable(testDir, mapTable.getFileName());
+			assertFalse(mapTable.hasHashDirectory());
+			this.verifyKeyHashes(mapTable, keyHashes);
+		} finally {
+			AbstractSortedMapTable.hashDirectoryEnabled = true;
+		}
+	}
+
+	private void verifyKeyHashes(PackedMapTable table, int[] keyHashes) {
+		Random random = new Random(13);
+		for(int i = 0; i < 20000; i++) {
+			int keyHash;
+			switch(i % 4) {
+			case 0: keyHash = random.nextInt(); break;
+			case 1: keyHash = keyHashes[random.nextInt(keyHashes.length)]; break;
+			case 2: keyHash = keyHashes[random.nextInt(keyHashes.length)] + 1; break;
+			default: keyHash = keyHashes[random.nextInt(keyHashes.length)] - 1;
+			}
+			assertTrue(table.indexOfKeyHash(keyHash) == lowerBound(keyHashes, keyHash));
+		}
+		for(int keyHash : new int[] { Integer.MIN_VALUE, Integer.MIN_VALUE + 1, 12344, 12345, 12346, Integer.MAX_VALUE - 1, Integer.MAX_VALUE }) {
+			assertTrue(table.indexOfKeyHash(keyHash) == lowerBound(keyHashes, keyHash));
+		}
+	}
+
+	private static int lowerBound(int[] keyHashes, int keyHash) {
+		int index = 0;
+		while(index < keyHashes.length && keyHashes[index] < keyHash) index++;
+		return index;
+	}
+
+	@Test
+	public void testUnfinished() throws IOException, ClassNotFoundException {
+		mapTable = new PackedMapTable(testDir, (short)1, 2, System.nanoTime(), 100, 1024);
+		SortedMapTableBuilder builder = new SortedMapTableBuilder(1024);
+		builder.open(mapTable);
+		for(int i = 0; i < 100; i++) {
+			byte[] key = ("key" + i).getBytes();
+			builder.append(key, Arrays.hashCode(key), key, AbstractMapTable.NO_TIMEOUT, createdTime, false, false);
+		}
+		builder.finish();
+		mapTable.close();
+		assertTrue(new File(testDir).list().length == 2);
+
+		// never sealed
+		mapTable = new PackedMapTable(testDir, mapTable.getFileName());
+		assertFalse(mapTable.isUsable());
+		mapTable.close();
+		mapTable.delete();
+		assertTrue(new File(testDir).list().length == 0);
+
+		// sealed but not marked usable
+		mapTable = this.build(100);
+		mapTable.close();
+		mapTable = new PackedMapTable(testDir, mapTable.getFileName());
+		assertFalse(mapTable.isUsable());
+		assertTrue(mapTable.getAppendedSize() == 100);
+	}
+
+	@Test
+	public void testUnsupportedVersion() throws IOException, ClassNotFoundException {
+		mapTable = this.build(100);
+		mapTable.markUsable(true);
+		mapTable.close();
+
+		String file = testDir + File.separator + mapTable.getFileName() + PackedMapTable.TABLE_FILE_SUFFIX;
+		// version 2 is the only format ever released
+		for(int version : new int[] { PackedMapTable.FORMAT_VERSION + 1, 1 }) {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.seek(raf.length() - PackedMapTable.TRAILER_LENGTH);
+				raf.writeInt(version);
+			} finally {
+				raf.close();
+			}
+			try {
+				new PackedMapTable(testDir, mapTable.getFileName());
+				fail();
+			} catch (IOException ioe) {
+
+			}
+		}
+	}
+
+	// entries sorted by key hash, pairs of keys share a key hash
+	private PackedMapTable build(int count) throws IOException, ClassNotFoundException {
+		return this.build(count, FilterPolicy.DEFAULT);
+	}
+
+	private PackedMapTable build(int count, FilterPolicy filterPolicy) throws IOException, ClassNotFoundException {
+		return this.build(count, filterPolicy, AbstractSortedMapTable.IndexType.SORTED);
+	}
+
+	private PackedMapTable build(int count, FilterPolicy filterPolicy, AbstractSortedMapTable.IndexType indexType)
+			throws IOException, ClassNotFoundException {
+		keys.clear();
+		values.clear();
+		for(int i = 0; i < count / 2; i++) {
+			keys.add(("Aa" + i).getBytes());
+			keys.add(("BB" + i).getBytes());
+		}
+		Collections.sort(keys, new Comparator<byte[]>() {
+
+			@Override
+			public int compare(byte[] k1, byte[] k2) {
+				int h1 = Arrays.hashCode(k1), h2 = Arrays.hashCode(k2);
+				return h1 < h2 ? -1 : (h1 > h2 ? 1 : 0);
+			}
+
+		});
+		Random random = new Random(31);
+		for(int i = 0; i < keys.size(); i++) {
+			byte[] value = new byte[1 + random.nextInt(100)];
+			random.nextBytes(value);
+			values.add(value);
+		}
+
+		PackedMapTable table = new PackedMapTable(testDir, (short)1, 2, System.nanoTime(), keys.size(), 64 * 1024, filterPolicy,
+				indexType);
+		SortedMapTableBuilder builder = new SortedMapTableBuilder(4096);
+		builder.open(table);
+		for(int i = 0; i < keys.size(); i++) {
+			byte[] key = keys.get(i);
+			long ttl = i % 3 == 0 ? 1000000 + i : AbstractMapTable.NO_TIMEOUT;
+			builder.append(key, Arrays.hashCode(key), values.get(i), ttl, createdTime, i % 7 == 0, false);
+		}
+		builder.finish();
+		table.reMap();
+		return table;
+	}
+
+	private void verify(PackedMapTable table, int count) throws IOException {
+		assertTrue(table.getAppendedSize() == count);
+		assertTrue(table.getMinKeyHash() == Arrays.hashCode(keys.get(0)));
+		assertTrue(table.getMaxKeyHash() == Arrays.hashCode(keys.get(count - 1)));
+		assertTrue(table.getEstimatedExpiredFraction(createdTime + 1000000 + count / 2) > 0);
+		assertTrue(table.getEstimatedExpiredFraction(createdTime) == 0);
+
+		ByteBuffer dst = ByteBuffer.allocate(128);
+		GetResult reusable = new GetResult();
+		for(int i = 0; i < count; i++) {
+			byte[] key = keys.get(i);
+			GetResult result = table.get(key);
+			assertTrue(result.isFound());
+			assertTrue(result.isDeleted() == (i % 7 == 0));
+			dst.clear();
+			int length = table.get(key, dst, reusable);
+			if (i % 7 == 0) {
+				assertTrue(length == GetResult.DELETED);
+			} else {
+				assertArrayEquals(values.get(i), result.getValue());
+				assertTrue(length == values.get(i).length);
+				assertArrayEquals(values.get(i), Arrays.copyOf(dst.array(), length));
+			}
+		}
+		assertFalse(table.get("missing".getBytes()).isFound());
+
+		// the block index gives the same positions as a plain search
+		Random random = new Random(7);
+		for(int i = 0; i < 2000; i++) {
+			int keyHash = i % 2 == 0 ? random.nextInt() : table.getKeyHash(random.nextInt(count)) + random.nextInt(3) - 1;
+			int expected = 0;
+			while(expected < count && table.getKeyHash(expected) < keyHash) expected++;
+			assertTrue(table.indexOfKeyHash(keyHash) == expected);
+		}
+
+		byte[][] sortedKeys = keys.subList(100, 300).toArray(new byte[0][]);
+		int[] keyHashes = new int[sortedKeys.length];
+		for(int i = 0; i < sortedKeys.length; i++) {
+			keyHashes[i] = Arrays.hashCode(sortedKeys[i]);
+		}
+		GetResult[] results = table.get(sortedKeys, keyHashes);
+		for(int i = 0; i < results.length; i++) {
+			assertTrue(results[i].isFound());
+		}
+
+		SortedMapTableScanner scanner = new SortedMapTableScanner(table, 0, count, 1024, true);
+		try {
+			for(int i = 0; i < count; i++) {
+				IMapEntry entry = scanner.next();
+				assertArrayEquals(keys.get(i), entry.getKey());
+				assertArrayEquals(values.get(i), entry.getValue());
+				assertTrue(entry.isDeleted() == (i % 7 == 0));
+			}
+			assertTrue(scanner.next() == null);
+		} finally {
+			scanner.close();
+		}
+	}
+
+	@After
+	public void clear() throws IOException {
+		if (mapTable != null) {
+			mapTable.close();
+		}
+		FileUtil.deleteDirectory(new File(testDir));
+	}
+
+}
@@ -0,0 +1,74 @@
+package com.ctriposs.sdb.table;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PerfectHashIndexTest {
+
+	@Test
+	public void testIndex() throws IOException {
+		for(int count : new int[] { 1, 2, 3, 100, 10000, 1000000 }) {
+			this.verify(count);
+		}
+	}
+
+	@Test
+	public void testSharedHash() {
+		long[] hashes = { 1, 2, 3, 2 };
+		assertTrue(PerfectHashIndex.build(hashes, hashes.length) == null);
+	}
+
+	@Test
+	public void testCorrupted() {
+		ByteBuffer block = PerfectHashIndex.build(new long[] { 1, 2, 3 }, 3);
+		ByteBuffer truncated = block.duplicate();
+		truncated.limit(block.limit() - 1);
+		try {
+			PerfectHashIndex.read(truncated.slice(), "test");
+			fail();
+		} catch (IOException ioe) {
+
+		}
+
+		block.putInt(PerfectHashIndex.HEADER_TYPE, 100);
+		try {
+			PerfectHashIndex.read(block, "test");
+			fail();
+		} catch (IOException ioe) {
+
+		}
+	}
+
+	// every key gets its own index item number, the size is about as projected
+	private void verify(int count) throws IOException {
+		Random random = new Random(19);
+		long[] hashes = new long[count];
+		for(int i = 0; i < count; i++) {
+			hashes[i] = KeyFilter.hash(("key" + random.nextLong()).getBytes());
+		}
+		PerfectHashIndex index = PerfectHashIndex.read(PerfectHashIndex.build(hashes, count), "test");
+		assertTrue(index.getKeys() == count);
+		for(int i = 0; i < count; i++) {
+			assertTrue(index.get(hashes[i]) == i);
+		}
+		// keys not in the table get -1 or the number of some entry
+		for(int i = 0; i < 10000; i++) {
+			int entry = index.get(random.nextLong());
+			assertTrue(entry >= -1 && entry < count);
+		}
+
+		double bitsPerKey = index.getSizeInBytes() * 8.0d / count;
+		int entryBits = Math.max(32 - Integer.numberOfLeadingZeros(count - 1), 1);
+		System.out.printf("Perfect hash index of %,d keys, %.2f bits per key, %.2f bits per key besides the %d bit index item numbers%n",
+				count, bitsPerKey, bitsPerKey - entryBits, entryBits);
+		if (count >= 10000) {
+			assertTrue(bitsPerKey - entryBits < 4);
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package com.ctriposs.sdb.table;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.ctriposs.sdb.utils.FileUtil;
+import com.ctriposs.sdb.utils.TestUtil;
+
+public class SortedMapTableBuilderTest {
+
+	private static String testDir = TestUtil.TEST_BASE_DIR + "sdb/unit/sorted_map_table_builder_test";
+
+	private List<AbstractSortedMapTable> tables = new ArrayList<AbstractSortedMapTable>();
+
+	@Test
+	public void testBuild() throws IOException, ClassNotFoundException {
+		int count = 3000;
+		List<byte[]> keys = new ArrayList<byte[]>();
+		for(int i = 0; i < count; i++) {
+			keys.add(("key" + i).getBytes());
+		}
+		Collections.sort(keys, new Comparator<byte[]>() {
+
+			@Override
+			public int compare(byte[] k1, byte[] k2) {
+				int h1 = Arrays.hashCode(k1), h2 = Arrays.hashCode(k2);
+				return h1 < h2 ? -1 : (h1 > h2 ? 1 : 0);
+			}
+
+		});
+		Random random = new Random(29);
+		List<byte[]> values = new ArrayList<byte[]>();
+		for(int i = 0; i < count; i++) {
+			// a few values bigger than the buffer
+			byte[] value = new byte[i % 500 == 0 ? 5000 : 1 + random.nextInt(200)];
+			random.nextBytes(value);
+			values.add(value);
+		}
+
+		long createdTime = System.currentTimeMillis();
+		FCMapTable appended = new FCMapTable(testDir, (short)0, 2, System.nanoTime(), count);
+		tables.add(appended);
+		FCMapTable built = new FCMapTable(testDir, (short)0, 2, System.nanoTime() + 1, count);
+		tables.add(built);
+		SortedMapTableBuilder builder = new SortedMapTableBuilder(1024);
+		builder.open(built);
+		for(int i = 0; i < count; i++) {
+			byte[] key = keys.get(i);
+			long ttl = i % 3 == 0 ? 1000000 + i : AbstractMapTable.NO_TIMEOUT;
+			appended.appendNew(key, Arrays.hashCode(key), values.get(i), ttl, createdTime, i % 7 == 0, false);
+			builder.append(key, Arrays.hashCode(key), values.get(i), ttl, createdTime, i % 7 == 0, false);
+			assertTrue(built.getAppendedSize() == appended.getAppendedSize());
+			assertTrue(built.getAppendedDataSize() == appended.getAppendedDataSize());
+		}
+		builder.finish();
+		try {
+			builder.append(keys.get(0), Arrays.hashCode(keys.get(0)), values.get(0), 0, createdTime, false, false);
+			fail();
+		} catch (IllegalStateException ise) {
+
+		}
+		for(AbstractSortedMapTable table : tables) {
+			table.reMap();
+			table.markUsable(true);
+			table.saveMetadata();
+		}
+
+		// same index items and data as appended one by one, the data file is trimmed
+		assertTrue(built.dataChannel.size() == built.getAppendedDataSize());
+		assertArrayEquals(readFile(appended.indexChannel.size(), appended.indexFile), readFile(built.indexChannel.size(), built.indexFile));
+		assertArrayEquals(readFile(appended.getAppendedDataSize(), appended.dataFile), readFile(built.getAppendedDataSize(), built.dataFile));
+		assertTrue(built.getMinKeyHash() == appended.getMinKeyHash());
+		assertTrue(built.getMaxKeyHash() == appended.getMaxKeyHash());
+		long now = createdTime + 1000000 + count / 2;
+		assertTrue(built.getEstimatedExpiredFraction(now) == appended.getEstimatedExpiredFraction(now));
+		assertTrue(built.getEstimatedExpiredFraction(now) > 0);
+
+		built.close();
+		FCMapTable reloaded = new FCMapTable(testDir, built.getFileName());
+		tables.set(1, reloaded);
+		assertTrue(reloaded.getAppendedSize() == count);
+		for(int i = 0; i < count; i++) {
+			GetResult result = reloaded.get(keys.get(i));
+			assertTrue(result.isFound());
+			assertTrue(result.isDeleted() == (i % 7 == 0));
+			if (!result.isDeleted()) {
+				assertArrayEquals(values.get(i), result.getValue());
+			}
+		}
+	}
+
+	private static byte[] readFile(long length, String file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			ByteBuffer buf = ByteBuffer.allocate((int) length);
+			while(buf.hasRemaining() && raf.getChannel().read(buf, buf.position()) > 0);
+			return buf.array();
+		} finally {
+			raf.close();
+		}
+	}
+
+	@After
+	public void clear() throws IOException {
+		for(AbstractSortedMapTable table : tables) {
+			table.close();
+		}
+		FileUtil.deleteDirectory(new File(testDir));
+	}
+
+}
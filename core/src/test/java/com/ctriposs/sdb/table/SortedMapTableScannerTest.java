@@ -0,0 +1,108 @@
+package com.ctriposs.sdb.table;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.ctriposs.sdb.utils.FileUtil;
+import com.ctriposs.sdb.utils.TestUtil;
+
+public class SortedMapTableScannerTest {
+
+	private static String testDir = TestUtil.TEST_BASE_DIR + "sdb/unit/sorted_map_table_scanner_test";
+
+	private AbstractSortedMapTable mapTable;
+
+	@Test
+	public void testFCMapTableScan() throws IOException, ClassNotFoundException {
+		mapTable = new FCMapTable(testDir, 2, System.nanoTime(), 2000);
+		this.appendAndScan();
+	}
+
+	@Test
+	public void testMMFMapTableScan() throws IOException, ClassNotFoundException {
+		mapTable = new MMFMapTable(testDir, 1, System.nanoTime(), 2000, 4);
+		this.appendAndScan();
+	}
+
+	private void appendAndScan() throws IOException, ClassNotFoundException {
+		Random random = new Random(17);
+		int count = 2000;
+		for(int i = 0; i < count; i++) {
+			byte[] key = ("key" + i).getBytes();
+			// values crossing the read ahead size and a few bigger than it
+			byte[] value = new byte[i % 100 == 0 ? 3000 : 1 + random.nextInt(300)];
+			random.nextBytes(value);
+			this.append(key, value, i % 3 == 0 ? 100000 : AbstractMapTable.NO_TIMEOUT, i % 7 == 0, i % 5 == 0);
+		}
+		mapTable.reMap();
+		mapTable.saveMetadata();
+
+		int[][] ranges = new int[][] { {0, count}, {0, 0}, {count, count}, {1, 2}, {99, 1301} };
+		for(int[] range : ranges) {
+			for(int readAheadSize : new int[] { 1, 1024, SortedMapTableScanner.DEFAULT_READ_AHEAD_SIZE }) {
+				this.verifyScan(range[0], range[1], readAheadSize, false);
+				this.verifyScan(range[0], range[1], readAheadSize, true);
+			}
+		}
+
+		try {
+			new SortedMapTableScanner(mapTable, 0, count + 1, 1024, false);
+			fail();
+		} catch (IllegalArgumentException iae) {
+
+		}
+	}
+
+	private void append(byte[] key, byte[] value, long timeToLive, boolean deleted, boolean compressed) throws IOException {
+		if (mapTable instanceof FCMapTable) {
+			((FCMapTable) mapTable).appendNew(key, Arrays.hashCode(key), value, timeToLive, System.currentTimeMillis(), deleted, compressed);
+		} else {
+			((MMFMapTable) mapTable).appendNew(key, Arrays.hashCode(key), value, timeToLive, System.currentTimeMillis(), deleted, compressed);
+		}
+	}
+
+	private void verifyScan(int fromIndex, int toIndex, int readAheadSize, boolean prefetch) throws IOException {
+		SortedMapTableScanner scanner = new SortedMapTableScanner(mapTable, fromIndex, toIndex, readAheadSize, prefetch);
+		long bytes = 0;
+		try {
+			for(int i = fromIndex; i < toIndex; i++) {
+				IMapEntry scanned = scanner.next();
+				IMapEntry expected = mapTable.getMapEntry(i);
+				assertTrue(scanned.getIndex() == i);
+				assertArrayEquals(expected.getKey(), scanned.getKey());
+				assertArrayEquals(expected.getValue(), scanned.getValue());
+				assertTrue(scanned.getKeyHash() == expected.getKeyHash());
+				assertTrue(scanned.getTimeToLive() == expected.getTimeToLive());
+				assertTrue(scanned.getCreatedTime() == expected.getCreatedTime());
+				assertTrue(scanned.isDeleted() == expected.isDeleted());
+				assertTrue(scanned.isCompressed() == expected.isCompressed());
+				assertTrue(scanned.isInUse());
+				bytes += expected.getKey().length + expected.getValue().length + AbstractMapTable.INDEX_ITEM_LENGTH;
+			}
+			assertNull(scanner.next());
+			assertNull(scanner.next());
+			assertTrue(scanner.getReadBytes() == bytes);
+		} finally {
+			scanner.close();
+		}
+	}
+
+	@After
+	public void clear() throws IOException {
+		if (mapTable != null) {
+			mapTable.close();
+		}
+		FileUtil.deleteDirectory(new File(testDir));
+	}
+
+}